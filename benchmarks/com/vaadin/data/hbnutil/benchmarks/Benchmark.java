@@ -0,0 +1,27 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+/**
+ * One benchmarked operation, run by a BenchmarkRunner. The runner calls {@link #setUp()} before and
+ * {@link #tearDown()} after every iteration, and {@link #invoke(long)} as often as fits into the iteration time.
+ */
+public abstract class Benchmark
+{
+	/**
+	 * Prepares an iteration, for example by beginning a transaction. Not measured.
+	 */
+	public void setUp() throws Exception
+	{
+	}
+
+	/**
+	 * Cleans up after an iteration. Not measured.
+	 */
+	public void tearDown() throws Exception
+	{
+	}
+
+	/**
+	 * Performs the operation once. The result is consumed by the runner so the work can not be optimized away.
+	 */
+	public abstract Object invoke(long invocation) throws Exception;
+}
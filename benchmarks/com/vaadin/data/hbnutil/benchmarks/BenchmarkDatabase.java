@@ -0,0 +1,201 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.Work;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.service.ServiceRegistryBuilder;
+
+/**
+ * In-memory HSQLDB database holding a configurable number of BenchmarkNodes. The first {@link #getRootCount()} nodes
+ * are roots, every other node is a child of one of them, titles are unique and the nodes are spread over
+ * {@link #CATEGORIES} categories. Up to {@link #MAX_KEYED_COUNT} BenchmarkKeyedNodes are inserted as well.
+ */
+public class BenchmarkDatabase
+{
+	public static final int CATEGORIES = 10;
+	public static final int MAX_KEYED_COUNT = 1000;
+	private static final int INSERT_BATCH_SIZE = 5000;
+
+	private final SessionFactory sessionFactory;
+	private final int rowCount;
+	private final int rootCount;
+
+	/**
+	 * Creates the database and inserts rowCount nodes. Further configuration, for example an interceptor, a connection
+	 * provider or a connection pool size other than 64, can be given in configuration, or null.
+	 */
+	public BenchmarkDatabase(String name, int rowCount, Configuration configuration)
+	{
+		this.rowCount = rowCount;
+		this.rootCount = Math.max(1, (int) Math.sqrt(rowCount));
+
+		final Configuration benchmarkConfiguration = (configuration != null) ? configuration : new Configuration();
+
+		if (benchmarkConfiguration.getProperty("hibernate.connection.pool_size") == null)
+			benchmarkConfiguration.setProperty("hibernate.connection.pool_size", "64");
+
+		benchmarkConfiguration
+				.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
+				.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
+				.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:" + name)
+				.setProperty("hibernate.connection.username", "sa")
+				.setProperty("hibernate.current_session_context_class", "thread")
+				.setProperty("hibernate.hbm2ddl.auto", "create-drop")
+				.setProperty("hibernate.show_sql", "false")
+				.addAnnotatedClass(BenchmarkNode.class)
+				.addAnnotatedClass(BenchmarkKeyedNode.class);
+
+		final ServiceRegistry serviceRegistry = new ServiceRegistryBuilder()
+				.applySettings(benchmarkConfiguration.getProperties())
+				.buildServiceRegistry();
+
+		sessionFactory = benchmarkConfiguration.buildSessionFactory(serviceRegistry);
+		seed();
+	}
+
+	public SessionFactory getSessionFactory()
+	{
+		return sessionFactory;
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public int getRootCount()
+	{
+		return rootCount;
+	}
+
+	/**
+	 * Gets the identifier of the node at the given position in insertion order.
+	 */
+	public Long getId(int position)
+	{
+		return Long.valueOf(position + 1);
+	}
+
+	public int getKeyedCount()
+	{
+		return Math.min(rowCount, MAX_KEYED_COUNT);
+	}
+
+	/**
+	 * Gets the identifier of the keyed node at the given position in insertion order.
+	 */
+	public BenchmarkKey getKey(int position)
+	{
+		return new BenchmarkKey(position % CATEGORIES, Long.valueOf(position));
+	}
+
+	public void close()
+	{
+		sessionFactory.close();
+	}
+
+	/**
+	 * Inserts the nodes with JDBC batches, which is much faster than Hibernate for millions of rows.
+	 */
+	private void seed()
+	{
+		final Session session = sessionFactory.openSession();
+		final Transaction transaction = session.beginTransaction();
+
+		try
+		{
+			session.doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					final PreparedStatement insert = connection.prepareStatement(
+							"insert into BenchmarkNode (id, title, created, category, parent_id) values (?, ?, ?, ?, ?)");
+					final long now = System.currentTimeMillis();
+
+					try
+					{
+						for (int position = 0; position < rowCount; position++)
+						{
+							insert.setLong(1, getId(position));
+							insert.setString(2, String.format("Node %08d", position));
+							insert.setTimestamp(3, new Timestamp(now - position * 1000L));
+							insert.setInt(4, position % CATEGORIES);
+
+							if (position < rootCount)
+								insert.setNull(5, java.sql.Types.BIGINT);
+							else
+								insert.setLong(5, getId(position % rootCount));
+
+							insert.addBatch();
+
+							if ((position + 1) % INSERT_BATCH_SIZE == 0)
+								insert.executeBatch();
+						}
+
+						if (rowCount % INSERT_BATCH_SIZE != 0)
+							insert.executeBatch();
+					}
+					finally
+					{
+						insert.close();
+					}
+
+					final PreparedStatement keyedInsert = connection.prepareStatement(
+							"insert into BenchmarkKeyedNode (region, code, title) values (?, ?, ?)");
+
+					try
+					{
+						for (int position = 0; position < getKeyedCount(); position++)
+						{
+							final BenchmarkKey key = getKey(position);
+							keyedInsert.setInt(1, key.getRegion());
+							keyedInsert.setLong(2, key.getCode());
+							keyedInsert.setString(3, String.format("Keyed node %08d", position));
+							keyedInsert.addBatch();
+						}
+
+						if (getKeyedCount() > 0)
+							keyedInsert.executeBatch();
+					}
+					finally
+					{
+						keyedInsert.close();
+					}
+
+					final Statement statement = connection.createStatement();
+
+					try
+					{
+						statement.execute("create index BenchmarkNode_title on BenchmarkNode (title)");
+						statement.execute("create index BenchmarkNode_category on BenchmarkNode (category)");
+					}
+					finally
+					{
+						statement.close();
+					}
+				}
+			});
+
+			transaction.commit();
+		}
+		catch (RuntimeException e)
+		{
+			transaction.rollback();
+			throw e;
+		}
+		finally
+		{
+			session.close();
+		}
+	}
+}
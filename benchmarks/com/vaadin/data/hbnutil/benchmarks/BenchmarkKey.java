@@ -0,0 +1,70 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * Composite identifier of BenchmarkKeyedNode.
+ */
+@Embeddable
+public class BenchmarkKey implements Serializable
+{
+	private static final long serialVersionUID = 6903617795036286021L;
+	private Integer region;
+	private Long code;
+
+	public BenchmarkKey()
+	{
+	}
+
+	public BenchmarkKey(Integer region, Long code)
+	{
+		this.region = region;
+		this.code = code;
+	}
+
+	@Column
+	public Integer getRegion()
+	{
+		return region;
+	}
+
+	public void setRegion(Integer region)
+	{
+		this.region = region;
+	}
+
+	@Column
+	public Long getCode()
+	{
+		return code;
+	}
+
+	public void setCode(Long code)
+	{
+		this.code = code;
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof BenchmarkKey))
+			return false;
+
+		final BenchmarkKey key = (BenchmarkKey) other;
+		return equal(region, key.region) && equal(code, key.code);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * ((region == null) ? 0 : region.hashCode()) + ((code == null) ? 0 : code.hashCode());
+	}
+
+	private static boolean equal(Object a, Object b)
+	{
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,46 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+/**
+ * Entity with an embedded composite identifier, to measure the embedded key paths of the container.
+ */
+@Entity
+@Table(name = "BenchmarkKeyedNode")
+public class BenchmarkKeyedNode implements Serializable
+{
+	private static final long serialVersionUID = -8311092412967360187L;
+	private BenchmarkKey key;
+	private String title;
+
+	public BenchmarkKeyedNode()
+	{
+	}
+
+	@EmbeddedId
+	public BenchmarkKey getKey()
+	{
+		return key;
+	}
+
+	public void setKey(BenchmarkKey key)
+	{
+		this.key = key;
+	}
+
+	@Column
+	public String getTitle()
+	{
+		return title;
+	}
+
+	public void setTitle(String title)
+	{
+		this.title = title;
+	}
+}
@@ -0,0 +1,101 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Set;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.Table;
+
+/**
+ * Entity shaped like the SampleNode of the tests, with identifiers assigned by the seeding code so large tables can be
+ * inserted with plain JDBC batches, a category to filter on and the inverse collection of the children.
+ */
+@Entity
+@Table(name = "BenchmarkNode")
+public class BenchmarkNode implements Serializable
+{
+	private static final long serialVersionUID = -3164826617201964263L;
+	private Long id;
+	private String title;
+	private Date created;
+	private Integer category;
+	private BenchmarkNode parent;
+	private Set<BenchmarkNode> children;
+
+	public BenchmarkNode()
+	{
+	}
+
+	@Id
+	@Column
+	public Long getId()
+	{
+		return id;
+	}
+
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	@Column
+	public String getTitle()
+	{
+		return title;
+	}
+
+	public void setTitle(String title)
+	{
+		this.title = title;
+	}
+
+	@Column
+	public Date getCreated()
+	{
+		return created;
+	}
+
+	public void setCreated(Date created)
+	{
+		this.created = created;
+	}
+
+	@Column
+	public Integer getCategory()
+	{
+		return category;
+	}
+
+	public void setCategory(Integer category)
+	{
+		this.category = category;
+	}
+
+	@ManyToOne(fetch = FetchType.LAZY)
+	public BenchmarkNode getParent()
+	{
+		return parent;
+	}
+
+	public void setParent(BenchmarkNode parent)
+	{
+		this.parent = parent;
+	}
+
+	@OneToMany(mappedBy = "parent", fetch = FetchType.LAZY)
+	public Set<BenchmarkNode> getChildren()
+	{
+		return children;
+	}
+
+	public void setChildren(Set<BenchmarkNode> children)
+	{
+		this.children = children;
+	}
+}
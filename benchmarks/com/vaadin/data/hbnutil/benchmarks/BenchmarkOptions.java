@@ -0,0 +1,93 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of the benchmark programs, given as --name=value.
+ */
+public class BenchmarkOptions
+{
+	private final Map<String, String> options = new HashMap<String, String>();
+
+	public BenchmarkOptions(String[] args)
+	{
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("options are given as --name=value: " + arg);
+
+			final int separator = arg.indexOf('=');
+
+			if (separator < 0)
+				options.put(arg.substring(2), "true");
+			else
+				options.put(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+	}
+
+	public String getString(String name, String defaultValue)
+	{
+		final String value = options.get(name);
+		return (value == null) ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue)
+	{
+		final String value = options.get(name);
+		return (value == null) ? defaultValue : Integer.parseInt(value);
+	}
+
+	public long getLong(String name, long defaultValue)
+	{
+		final String value = options.get(name);
+		return (value == null) ? defaultValue : Long.parseLong(value);
+	}
+
+	public double getDouble(String name, double defaultValue)
+	{
+		final String value = options.get(name);
+		return (value == null) ? defaultValue : Double.parseDouble(value);
+	}
+
+	public boolean getBoolean(String name)
+	{
+		return Boolean.parseBoolean(options.get(name));
+	}
+
+	/**
+	 * Gets a comma separated list of integers, accepting k and m suffixes for thousands and millions.
+	 */
+	public List<Integer> getIntList(String name, String defaultValue)
+	{
+		final List<Integer> values = new ArrayList<Integer>();
+
+		for (String value : getString(name, defaultValue).split(","))
+		{
+			final String trimmed = value.trim().toLowerCase();
+
+			if (trimmed.endsWith("m"))
+				values.add(Integer.parseInt(trimmed.substring(0, trimmed.length() - 1)) * 1000000);
+			else if (trimmed.endsWith("k"))
+				values.add(Integer.parseInt(trimmed.substring(0, trimmed.length() - 1)) * 1000);
+			else
+				values.add(Integer.parseInt(trimmed));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Applies the common runner options --warmup, --iterations and --time (milliseconds per iteration).
+	 */
+	public BenchmarkRunner createRunner(String suite)
+	{
+		final BenchmarkRunner runner = new BenchmarkRunner(suite);
+		runner.setWarmupIterations(getInt("warmup", 3));
+		runner.setMeasurementIterations(getInt("iterations", 5));
+		runner.setIterationMillis(getLong("time", 1000));
+		return runner;
+	}
+}
@@ -0,0 +1,174 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of one benchmark: the average time per operation over the measured iterations with its standard deviation,
+ * the allocation per operation where the JVM can measure it, and secondary results such as query counts or latency
+ * percentiles added by the benchmark program. Results that are not timings, such as memory footprints, carry their own
+ * mode and unit and a single score.
+ */
+public class BenchmarkResult
+{
+	private final String benchmark;
+	private final Map<String, String> parameters;
+	private final String mode;
+	private final String unit;
+	private final double[] iterationScores;
+	private final long operations;
+	private final double allocatedBytesPerOperation;
+	private final Map<String, Number> secondary = new LinkedHashMap<String, Number>();
+
+	public BenchmarkResult(String benchmark, Map<String, String> parameters, double[] iterationScores,
+			long operations, double allocatedBytesPerOperation)
+	{
+		this(benchmark, parameters, "avgt", "ns/op", iterationScores, operations, allocatedBytesPerOperation);
+	}
+
+	/**
+	 * Creates a result measured once in the given mode and unit, e.g. a footprint in bytes.
+	 */
+	public BenchmarkResult(String benchmark, Map<String, String> parameters, String mode, String unit, double score)
+	{
+		this(benchmark, parameters, mode, unit, new double[] { score }, 1, -1);
+	}
+
+	private BenchmarkResult(String benchmark, Map<String, String> parameters, String mode, String unit,
+			double[] iterationScores, long operations, double allocatedBytesPerOperation)
+	{
+		this.benchmark = benchmark;
+		this.parameters = new LinkedHashMap<String, String>(parameters);
+		this.mode = mode;
+		this.unit = unit;
+		this.iterationScores = iterationScores.clone();
+		this.operations = operations;
+		this.allocatedBytesPerOperation = allocatedBytesPerOperation;
+	}
+
+	public String getBenchmark()
+	{
+		return benchmark;
+	}
+
+	public Map<String, String> getParameters()
+	{
+		return parameters;
+	}
+
+	/**
+	 * Gets the JMH style mode of the score, avgt for the average time per operation.
+	 */
+	public String getMode()
+	{
+		return mode;
+	}
+
+	public String getUnit()
+	{
+		return unit;
+	}
+
+	/**
+	 * Gets the mean of the iteration scores, in nanoseconds per operation unless another unit is set.
+	 */
+	public double getScore()
+	{
+		double sum = 0;
+
+		for (double score : iterationScores)
+			sum += score;
+
+		return (iterationScores.length == 0) ? Double.NaN : sum / iterationScores.length;
+	}
+
+	/**
+	 * Gets the standard deviation of the iteration scores.
+	 */
+	public double getError()
+	{
+		if (iterationScores.length < 2)
+			return Double.NaN;
+
+		final double mean = getScore();
+		double squares = 0;
+
+		for (double score : iterationScores)
+			squares += (score - mean) * (score - mean);
+
+		return Math.sqrt(squares / (iterationScores.length - 1));
+	}
+
+	public double getMin()
+	{
+		double min = Double.POSITIVE_INFINITY;
+
+		for (double score : iterationScores)
+			min = Math.min(min, score);
+
+		return min;
+	}
+
+	public double getMax()
+	{
+		double max = Double.NEGATIVE_INFINITY;
+
+		for (double score : iterationScores)
+			max = Math.max(max, score);
+
+		return max;
+	}
+
+	public int getIterations()
+	{
+		return iterationScores.length;
+	}
+
+	/**
+	 * Gets the number of measured operations.
+	 */
+	public long getOperations()
+	{
+		return operations;
+	}
+
+	/**
+	 * Gets the bytes allocated by the benchmark thread per operation, or a negative value if the JVM does not measure
+	 * thread allocation.
+	 */
+	public double getAllocatedBytesPerOperation()
+	{
+		return allocatedBytesPerOperation;
+	}
+
+	public Map<String, Number> getSecondary()
+	{
+		return secondary;
+	}
+
+	public BenchmarkResult addSecondary(String name, Number value)
+	{
+		secondary.put(name, value);
+		return this;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder text = new StringBuilder(String.format("%-32s %-28s %14.1f", benchmark, parameters,
+				getScore()));
+
+		if (iterationScores.length > 1)
+			text.append(String.format(" +- %10.1f", getError()));
+
+		text.append(' ').append(unit);
+
+		if (allocatedBytesPerOperation >= 0)
+			text.append(String.format(" %12.1f B/op", allocatedBytesPerOperation));
+
+		for (Map.Entry<String, Number> value : secondary.entrySet())
+			text.append(' ').append(value.getKey()).append('=').append(value.getValue());
+
+		return text.toString();
+	}
+}
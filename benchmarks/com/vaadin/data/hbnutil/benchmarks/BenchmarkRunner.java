@@ -0,0 +1,305 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal benchmark harness in the spirit of JMH average time mode, without its dependency: every benchmark runs a
+ * number of warmup iterations followed by measured iterations of a fixed duration, and the time and, on HotSpot, the
+ * allocation per operation are reported. Results are printed and can be written as JSON, so runs of different releases
+ * can be compared.
+ */
+public class BenchmarkRunner
+{
+	private static volatile int sink;
+
+	private final String suite;
+	private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+	private final List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+	private final List<String> failures = new ArrayList<String>();
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+
+	public BenchmarkRunner(String suite)
+	{
+		this.suite = suite;
+	}
+
+	public void setWarmupIterations(int warmupIterations)
+	{
+		this.warmupIterations = warmupIterations;
+	}
+
+	public void setMeasurementIterations(int measurementIterations)
+	{
+		this.measurementIterations = Math.max(1, measurementIterations);
+	}
+
+	public void setIterationMillis(long iterationMillis)
+	{
+		this.iterationMillis = Math.max(1, iterationMillis);
+	}
+
+	/**
+	 * Sets a parameter recorded with the results of the benchmarks run after this call, e.g. the row count.
+	 */
+	public void setParameter(String name, Object value)
+	{
+		parameters.put(name, String.valueOf(value));
+	}
+
+	/**
+	 * Runs a benchmark on the current thread and records its result.
+	 */
+	public BenchmarkResult run(String name, Benchmark benchmark) throws Exception
+	{
+		for (int i = 0; i < warmupIterations; i++)
+			iterate(benchmark, null);
+
+		final double[] scores = new double[measurementIterations];
+		long operations = 0;
+		long allocated = 0;
+
+		for (int i = 0; i < measurementIterations; i++)
+		{
+			final long[] iteration = new long[3];
+			iterate(benchmark, iteration);
+			scores[i] = (double) iteration[1] / iteration[0];
+			operations += iteration[0];
+			allocated = (allocated < 0 || iteration[2] < 0) ? -1 : allocated + iteration[2];
+		}
+
+		final BenchmarkResult result = new BenchmarkResult(name, parameters, scores, operations,
+				(allocated < 0) ? -1 : (double) allocated / operations);
+
+		results.add(result);
+		System.out.println(result);
+		return result;
+	}
+
+	/**
+	 * Records a result computed by the benchmark program itself, for example by a multi-threaded workload.
+	 */
+	public BenchmarkResult addResult(BenchmarkResult result)
+	{
+		results.add(result);
+		System.out.println(result);
+		return result;
+	}
+
+	/**
+	 * Records a failure if a measured value exceeds its limit, e.g. the allocation per operation of a benchmark. The
+	 * failures are written with the results and make {@link #exitWithStatus()} exit with a non-zero status, so
+	 * regressions fail a build.
+	 */
+	public boolean assertAtMost(String description, double value, double limit)
+	{
+		if (value <= limit)
+			return true;
+
+		final String failure = String.format(Locale.ROOT, "%s %s: %.1f exceeds the limit of %.1f", description,
+				parameters, value, limit);
+
+		failures.add(failure);
+		System.out.println("FAILED " + failure);
+		return false;
+	}
+
+	public List<String> getFailures()
+	{
+		return Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * Exits the JVM with status 1 if an assertion failed, 0 otherwise.
+	 */
+	public void exitWithStatus()
+	{
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	public Map<String, String> getParameters()
+	{
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	public List<BenchmarkResult> getResults()
+	{
+		return Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * Runs one iteration. If measurement is not null, the number of operations, the elapsed nanoseconds and the
+	 * allocated bytes, or -1 if unknown, are stored in it.
+	 */
+	private void iterate(Benchmark benchmark, long[] measurement) throws Exception
+	{
+		benchmark.setUp();
+
+		try
+		{
+			final long iterationNanos = iterationMillis * 1000000L;
+			final long allocatedBefore = getAllocatedBytes();
+			final long start = System.nanoTime();
+			long elapsed = 0;
+			long operations = 0;
+			int consumed = 0;
+
+			do
+			{
+				final Object result = benchmark.invoke(operations++);
+				consumed += (result == null) ? 0 : System.identityHashCode(result);
+				elapsed = System.nanoTime() - start;
+			}
+			while (elapsed < iterationNanos);
+
+			final long allocatedAfter = getAllocatedBytes();
+			sink += consumed;
+
+			if (measurement != null)
+			{
+				measurement[0] = operations;
+				measurement[1] = elapsed;
+				measurement[2] = (allocatedBefore < 0) ? -1 : allocatedAfter - allocatedBefore;
+			}
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated so far by the current thread, or -1 if the JVM does not measure it.
+	 */
+	public static long getAllocatedBytes()
+	{
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean)
+		{
+			final com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+
+			if (hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled())
+				return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Writes the results as JSON: the suite, the JVM, the time of the run and one object per result.
+	 */
+	public void writeJson(File file) throws IOException
+	{
+		final StringBuilder json = new StringBuilder();
+
+		json.append("{\n  \"suite\": ").append(quote(suite))
+				.append(",\n  \"jvm\": ").append(quote(System.getProperty("java.vm.name") + " "
+						+ System.getProperty("java.version")))
+				.append(",\n  \"timestamp\": ").append(quote(String.format("%tFT%<tT%<tz", new Date())))
+				.append(",\n  \"results\": [");
+
+		for (int i = 0; i < results.size(); i++)
+		{
+			final BenchmarkResult result = results.get(i);
+
+			json.append((i == 0) ? "\n" : ",\n")
+					.append("    {\n      \"benchmark\": ").append(quote(result.getBenchmark()))
+					.append(",\n      \"params\": {");
+
+			appendMembers(json, result.getParameters(), true);
+
+			json.append("},\n      \"mode\": ").append(quote(result.getMode()))
+					.append(", \"unit\": ").append(quote(result.getUnit()))
+					.append(",\n      \"iterations\": ").append(result.getIterations())
+					.append(",\n      \"operations\": ").append(result.getOperations())
+					.append(",\n      \"score\": ").append(number(result.getScore()))
+					.append(",\n      \"error\": ").append(number(result.getError()))
+					.append(",\n      \"min\": ").append(number(result.getMin()))
+					.append(",\n      \"max\": ").append(number(result.getMax()))
+					.append(",\n      \"allocatedBytesPerOp\": ").append(number(result.getAllocatedBytesPerOperation()))
+					.append(",\n      \"secondary\": {");
+
+			appendMembers(json, result.getSecondary(), false);
+
+			json.append("}\n    }");
+		}
+
+		json.append("\n  ],\n  \"failures\": [");
+
+		for (int i = 0; i < failures.size(); i++)
+			json.append((i == 0) ? "\n    " : ",\n    ").append(quote(failures.get(i)));
+
+		json.append(failures.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+		try
+		{
+			writer.write(json.toString());
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private static void appendMembers(StringBuilder json, Map<String, ?> members, boolean quoteValues)
+	{
+		boolean first = true;
+
+		for (Map.Entry<String, ?> member : members.entrySet())
+		{
+			if (!first)
+				json.append(", ");
+
+			json.append(quote(member.getKey())).append(": ");
+
+			if (quoteValues)
+				json.append(quote(String.valueOf(member.getValue())));
+			else
+				json.append(number(((Number) member.getValue()).doubleValue()));
+
+			first = false;
+		}
+	}
+
+	private static String number(double value)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+
+		return (value == Math.rint(value) && Math.abs(value) < 1e15) ? String.valueOf((long) value)
+				: String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String value)
+	{
+		final StringBuilder quoted = new StringBuilder("\"");
+
+		for (char c : value.toCharArray())
+		{
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,165 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.service.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+
+/**
+ * Hibernate's built-in connection pool limited to a maximum number of connections in use, like a production pool
+ * such as c3p0, so that threads wait for a connection when the pool is exhausted. The built-in pool opens extra
+ * connections instead of waiting. It measures how long threads waited and how many connections were in use.
+ * Configure it with hibernate.connection.provider_class and set the maximum with {@link #MAX_ACTIVE}; threads
+ * waiting longer than 30 seconds fail with an SQLException.
+ */
+public class BoundedConnectionProvider extends DriverManagerConnectionProviderImpl
+{
+	private static final long serialVersionUID = 7462093185307415539L;
+	public static final String MAX_ACTIVE = "benchmark.connection.max_active";
+	private static final long TIMEOUT_SECONDS = 30;
+
+	private Semaphore permits = new Semaphore(Integer.MAX_VALUE, true);
+	private int maxActive = Integer.MAX_VALUE;
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peakActive = new AtomicInteger();
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void configure(Map configValues)
+	{
+		super.configure(configValues);
+
+		final Object configured = configValues.get(MAX_ACTIVE);
+
+		if (configured != null)
+		{
+			maxActive = Integer.parseInt(configured.toString());
+			permits = new Semaphore(maxActive, true);
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		final long start = System.nanoTime();
+
+		if (!permits.tryAcquire())
+		{
+			try
+			{
+				if (!permits.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+					throw new SQLException("no connection available within " + TIMEOUT_SECONDS + " seconds");
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for a connection");
+			}
+
+			final long waited = System.nanoTime() - start;
+			waits.incrementAndGet();
+			waitNanos.addAndGet(waited);
+
+			for (long max = maxWaitNanos.get(); waited > max; max = maxWaitNanos.get())
+			{
+				if (maxWaitNanos.compareAndSet(max, waited))
+					break;
+			}
+		}
+
+		try
+		{
+			final Connection connection = super.getConnection();
+			acquisitions.incrementAndGet();
+
+			final int nowActive = active.incrementAndGet();
+
+			for (int peak = peakActive.get(); nowActive > peak; peak = peakActive.get())
+			{
+				if (peakActive.compareAndSet(peak, nowActive))
+					break;
+			}
+
+			return connection;
+		}
+		catch (SQLException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	@Override
+	public void closeConnection(Connection connection) throws SQLException
+	{
+		try
+		{
+			super.closeConnection(connection);
+		}
+		finally
+		{
+			active.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	public int getMaxActive()
+	{
+		return maxActive;
+	}
+
+	/**
+	 * Gets the number of connections handed out since the last reset.
+	 */
+	public long getAcquisitions()
+	{
+		return acquisitions.get();
+	}
+
+	/**
+	 * Gets the number of acquisitions that had to wait for a connection since the last reset.
+	 */
+	public long getWaits()
+	{
+		return waits.get();
+	}
+
+	public long getWaitNanos()
+	{
+		return waitNanos.get();
+	}
+
+	public long getMaxWaitNanos()
+	{
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * Gets the highest number of connections in use at the same time since the last reset.
+	 */
+	public int getPeakActive()
+	{
+		return peakActive.get();
+	}
+
+	/**
+	 * Resets the statistics, e.g. after a warmup.
+	 */
+	public void reset()
+	{
+		acquisitions.set(0);
+		waits.set(0);
+		waitNanos.set(0);
+		maxWaitNanos.set(0);
+		peakActive.set(active.get());
+	}
+}
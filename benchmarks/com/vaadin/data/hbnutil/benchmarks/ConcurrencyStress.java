@@ -0,0 +1,473 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.HbnContainer;
+import com.vaadin.data.hbnutil.metrics.SimpleMetricsRegistry;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Stress test and benchmark of many HbnContainers sharing one SessionFactory, as in production where every UI has its
+ * own containers and request threads run concurrently. Each worker thread runs a mixed workload of scroll, filter,
+ * sort and update requests, each in its own transaction of the thread's current session, against its own container;
+ * all containers share one MetricsRegistry. For every thread count it reports the throughput, the latency
+ * percentiles per request type, the waits for a connection of the pool, the time threads were blocked on monitors
+ * and the errors, by exception and the HbnContainer code raising it.
+ * 
+ * Errors raised from the container state, such as a ConcurrentModificationException of the idToIndex map or the
+ * filters set, make the program exit with status 1. With --threads-per-container above 1, threads share a container,
+ * e.g. as with a background thread refreshing the container of a UI, which HbnContainer does not support; that mode
+ * is meant to show which internals break and is not checked.
+ * 
+ * Options: --threads (comma separated thread counts, default 1,8,32), --virtual (run the workers on virtual threads,
+ * on Java 21 and later), --threads-per-container (1), --pool (maximum connections in use, 16), --time (milliseconds
+ * per thread count, 5000), --warmup (milliseconds of warmup at the highest thread count, 2000), --mix (percentages of
+ * scroll, filter, sort and update requests, 60,15,15,10), --page (50), --rows (20k) and --out
+ * (concurrency-stress.json). Monitor blocking is only measured for platform threads.
+ */
+public class ConcurrencyStress
+{
+	private static final String[] OPERATIONS = { "scroll", "filter", "sort", "update" };
+	private static final String[] SORT_COLUMNS = { "title", "created", "category" };
+
+	private final BenchmarkDatabase database;
+	private final BoundedConnectionProvider connectionProvider;
+	private final ContainerErrorCollector errors = new ContainerErrorCollector();
+	private final SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+	private final int[] mix;
+	private final int pageSize;
+	private final boolean virtual;
+	private final int threadsPerContainer;
+
+	public ConcurrencyStress(BenchmarkDatabase database, int[] mix, int pageSize, boolean virtual,
+			int threadsPerContainer)
+	{
+		this.database = database;
+		this.connectionProvider = (BoundedConnectionProvider) ((SessionFactoryImplementor) database
+				.getSessionFactory()).getServiceRegistry().getService(ConnectionProvider.class);
+		this.mix = mix.clone();
+		this.pageSize = pageSize;
+		this.virtual = virtual;
+		this.threadsPerContainer = threadsPerContainer;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final BenchmarkOptions options = new BenchmarkOptions(args);
+		final BenchmarkRunner runner = new BenchmarkRunner("ConcurrencyStress");
+		final List<Integer> threadCounts = options.getIntList("threads", "1,8,32");
+		final List<Integer> mix = options.getIntList("mix", "60,15,15,10");
+		final int threadsPerContainer = options.getInt("threads-per-container", 1);
+		final boolean virtual = options.getBoolean("virtual");
+		final int rows = options.getInt("rows", 20000);
+		final int pool = options.getInt("pool", 16);
+
+		if (mix.size() != OPERATIONS.length)
+			throw new IllegalArgumentException("--mix takes " + OPERATIONS.length + " percentages");
+
+		if (virtual && !supportsVirtualThreads())
+			throw new IllegalArgumentException("virtual threads need Java 21 or later");
+
+		final BenchmarkDatabase database = new BenchmarkDatabase("ConcurrencyStress", rows, new Configuration()
+				.setProperty("hibernate.connection.provider_class", BoundedConnectionProvider.class.getName())
+				.setProperty(BoundedConnectionProvider.MAX_ACTIVE, String.valueOf(pool))
+				.setProperty("hibernate.connection.pool_size", String.valueOf(pool)));
+
+		try
+		{
+			useMultiVersionConcurrency(database.getSessionFactory());
+
+			final int[] weights = new int[mix.size()];
+
+			for (int i = 0; i < weights.length; i++)
+				weights[i] = mix.get(i).intValue();
+
+			final ConcurrencyStress stress = new ConcurrencyStress(database, weights, options.getInt("page", 50),
+					virtual, threadsPerContainer);
+
+			Logger.getRootLogger().addAppender(stress.errors);
+			runner.setParameter("rows", rows);
+			runner.setParameter("pool", pool);
+			runner.setParameter("threadsPerContainer", threadsPerContainer);
+			runner.setParameter("virtual", virtual);
+
+			int maxThreads = 1;
+
+			for (int threads : threadCounts)
+				maxThreads = Math.max(maxThreads, threads);
+
+			stress.run(maxThreads, options.getLong("warmup", 2000));
+
+			for (int threads : threadCounts)
+			{
+				runner.setParameter("threads", threads);
+				stress.run(threads, options.getLong("time", 5000)).report(runner, threadsPerContainer == 1);
+			}
+		}
+		finally
+		{
+			database.close();
+		}
+
+		runner.writeJson(new File(options.getString("out", "concurrency-stress.json")));
+		runner.exitWithStatus();
+	}
+
+	/**
+	 * Runs the workload on the given number of threads for the given time.
+	 */
+	public Run run(int threads, long millis) throws Exception
+	{
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		if (threadBean.isThreadContentionMonitoringSupported())
+			threadBean.setThreadContentionMonitoringEnabled(true);
+
+		errors.reset();
+		connectionProvider.reset();
+
+		final Run run = new Run(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> workers = new ArrayList<Thread>();
+		HbnContainer<BenchmarkNode> container = null;
+
+		for (int i = 0; i < threads; i++)
+		{
+			if (i % threadsPerContainer == 0)
+			{
+				container = new HbnContainer<BenchmarkNode>(BenchmarkNode.class, database.getSessionFactory());
+				container.setMetricsRegistry(registry);
+			}
+
+			final Worker worker = new Worker(run, container, start, new Random(31L * i + threads));
+			workers.add(virtual ? newVirtualThread(worker) : new Thread(worker, "stress-" + i));
+		}
+
+		for (Thread worker : workers)
+			worker.start();
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		run.stopped = true;
+
+		for (Thread worker : workers)
+			worker.join();
+
+		run.elapsedNanos = System.nanoTime() - begin;
+		return run;
+	}
+
+	/**
+	 * Switches HSQLDB from table locks to multi version concurrency control, so that readers do not queue behind the
+	 * updates as they would with a single writer lock, and contention shows in the container rather than the database.
+	 */
+	private static void useMultiVersionConcurrency(SessionFactory sessionFactory)
+	{
+		final Session session = sessionFactory.openSession();
+
+		try
+		{
+			session.doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					final Statement statement = connection.createStatement();
+
+					try
+					{
+						statement.execute("SET DATABASE TRANSACTION CONTROL MVCC");
+					}
+					finally
+					{
+						statement.close();
+					}
+				}
+			});
+		}
+		finally
+		{
+			session.close();
+		}
+	}
+
+	private static boolean supportsVirtualThreads()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an unstarted virtual thread through reflection, as the project is built for older Java versions.
+	 */
+	private static Thread newVirtualThread(Runnable task) throws Exception
+	{
+		final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		final Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		return (Thread) unstarted.invoke(builder, task);
+	}
+
+	/**
+	 * The results of one run, collected from all its workers.
+	 */
+	public class Run
+	{
+		private final int threads;
+		private final Map<String, LatencySamples> latencies = new LinkedHashMap<String, LatencySamples>();
+		private final AtomicLong blockedCount = new AtomicLong();
+		private final AtomicLong blockedMillis = new AtomicLong();
+		private final AtomicLong waitedCount = new AtomicLong();
+		private volatile boolean stopped = false;
+		private long elapsedNanos;
+
+		private Run(int threads)
+		{
+			this.threads = threads;
+
+			for (String operation : OPERATIONS)
+				latencies.put(operation, new LatencySamples());
+		}
+
+		private synchronized void addAll(Map<String, LatencySamples> workerLatencies)
+		{
+			for (Map.Entry<String, LatencySamples> operation : workerLatencies.entrySet())
+				latencies.get(operation.getKey()).addAll(operation.getValue());
+		}
+
+		/**
+		 * Adds the results of this run to the runner and, if checked is set, fails it on container errors.
+		 */
+		public void report(BenchmarkRunner runner, boolean checked)
+		{
+			final LatencySamples all = new LatencySamples();
+
+			for (LatencySamples samples : latencies.values())
+				all.addAll(samples);
+
+			final double seconds = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+			final long acquisitions = connectionProvider.getAcquisitions();
+			final BenchmarkResult result = all.addTo(new BenchmarkResult("stress", runner.getParameters(), "thrpt",
+					"ops/s", all.getCount() / seconds), "latency.");
+
+			result.addSecondary("pool.acquisitions", acquisitions)
+					.addSecondary("pool.waits", connectionProvider.getWaits())
+					.addSecondary("pool.waitRatio", (double) connectionProvider.getWaits() / Math.max(1, acquisitions))
+					.addSecondary("pool.meanWaitNanos", connectionProvider.getWaitNanos() / Math.max(1, acquisitions))
+					.addSecondary("pool.maxWaitNanos", connectionProvider.getMaxWaitNanos())
+					.addSecondary("pool.peakActive", connectionProvider.getPeakActive())
+					.addSecondary("monitor.blockedCount", virtual ? -1 : blockedCount.get())
+					.addSecondary("monitor.blockedMillisPerThread", virtual ? -1 : blockedMillis.get() / threads)
+					.addSecondary("monitor.waitedCount", virtual ? -1 : waitedCount.get())
+					.addSecondary("errors.container", errors.getContainerErrors())
+					.addSecondary("errors.database", errors.getDatabaseErrors())
+					.addSecondary("errors.other", errors.getOtherErrors());
+
+			runner.addResult(result);
+
+			for (Map.Entry<String, LatencySamples> operation : latencies.entrySet())
+			{
+				final LatencySamples samples = operation.getValue();
+
+				runner.addResult(samples.addTo(new BenchmarkResult("stress." + operation.getKey(),
+						runner.getParameters(), "thrpt", "ops/s", samples.getCount() / seconds), "latency."));
+			}
+
+			for (Map.Entry<String, Integer> error : errors.getErrors().entrySet())
+				System.out.println("  " + error.getValue() + " x " + error.getKey());
+
+			if (checked)
+				runner.assertAtMost("container errors", errors.getContainerErrors(), 0);
+		}
+	}
+
+	/**
+	 * Runs requests of the mix until the run is stopped.
+	 */
+	private class Worker implements Runnable
+	{
+		private final Run run;
+		private final HbnContainer<BenchmarkNode> container;
+		private final CountDownLatch start;
+		private final Random random;
+		private final Map<String, LatencySamples> latencies = new LinkedHashMap<String, LatencySamples>();
+
+		private Worker(Run run, HbnContainer<BenchmarkNode> container, CountDownLatch start, Random random)
+		{
+			this.run = run;
+			this.container = container;
+			this.start = start;
+			this.random = random;
+
+			for (String operation : OPERATIONS)
+				latencies.put(operation, new LatencySamples());
+		}
+
+		@Override
+		public void run()
+		{
+			final SessionFactory sessionFactory = database.getSessionFactory();
+
+			try
+			{
+				start.await();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			while (!run.stopped)
+			{
+				final int operation = chooseOperation();
+				final long begin = System.nanoTime();
+				Transaction transaction = null;
+
+				try
+				{
+					transaction = sessionFactory.getCurrentSession().beginTransaction();
+					execute(operation);
+					transaction.commit();
+				}
+				catch (RuntimeException e)
+				{
+					errors.addThrown(e);
+
+					if (transaction != null && transaction.isActive())
+						rollback(transaction);
+				}
+
+				latencies.get(OPERATIONS[operation]).add(System.nanoTime() - begin);
+			}
+
+			final ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId());
+
+			if (info != null)
+			{
+				run.blockedCount.addAndGet(info.getBlockedCount());
+				run.blockedMillis.addAndGet(Math.max(0, info.getBlockedTime()));
+				run.waitedCount.addAndGet(info.getWaitedCount());
+			}
+
+			run.addAll(latencies);
+		}
+
+		private int chooseOperation()
+		{
+			int total = 0;
+
+			for (int weight : mix)
+				total += weight;
+
+			int choice = random.nextInt(Math.max(1, total));
+
+			for (int i = 0; i < mix.length; i++)
+			{
+				choice -= mix[i];
+
+				if (choice < 0)
+					return i;
+			}
+
+			return 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void execute(int operation)
+		{
+			switch (operation)
+			{
+				case 0:
+					scroll(random.nextInt(Math.max(1, container.size() - pageSize)));
+					break;
+				case 1:
+					container.removeAllContainerFilters();
+
+					if (random.nextBoolean())
+						container.addContainerFilter(new Compare.Equal("category",
+								random.nextInt(BenchmarkDatabase.CATEGORIES)));
+					else if (random.nextBoolean())
+						container.addContainerFilter(new SimpleStringFilter("title", "Node 000" + random.nextInt(10),
+								false, true));
+
+					scroll(0);
+					break;
+				case 2:
+					container.sort(new Object[] { SORT_COLUMNS[random.nextInt(SORT_COLUMNS.length)] },
+							new boolean[] { random.nextBoolean() });
+					container.getIdByIndex(random.nextInt(Math.max(1, container.size())));
+					break;
+				default:
+					final HbnContainer<BenchmarkNode>.EntityItem<BenchmarkNode> item = container.getItem(database
+							.getId(random.nextInt(database.getRowCount())));
+
+					if (item != null)
+					{
+						final Property<Object> category = (Property<Object>) item.getItemProperty("category");
+						category.setValue(random.nextInt(BenchmarkDatabase.CATEGORIES));
+					}
+
+					break;
+			}
+		}
+
+		/**
+		 * Reads a page of titles from the given index on, like a Table rendering it.
+		 */
+		private void scroll(int startIndex)
+		{
+			for (Object itemId : container.getItemIds(startIndex, pageSize))
+			{
+				final Property<?> title = container.getContainerProperty(itemId, "title");
+
+				if (title != null)
+					title.getValue();
+			}
+		}
+
+		private void rollback(Transaction transaction)
+		{
+			try
+			{
+				transaction.rollback();
+			}
+			catch (RuntimeException e)
+			{
+				errors.addThrown(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import com.vaadin.data.hbnutil.HbnContainer;
+import com.vaadin.data.util.filter.Compare;
+
+/**
+ * Benchmarks of the HbnContainer hot paths against an embedded HSQLDB seeded with BenchmarkNodes: size, random and
+ * sequential getIdByIndex, nextItemId scans, indexOfId, getItemIds ranges, filter application, sort switching,
+ * hierarchy expansion, and the write throughput of saveEntities and importEntities, reported in rows per second. Run it with the benchmarks, tests and src folders and the library jars on the classpath:
+ * 
+ * java com.vaadin.data.hbnutil.benchmarks.ContainerBenchmarks --rows=10k,100k,1m --out=container.json
+ * 
+ * Options: --rows (default 10k), --warmup (3), --iterations (5), --time (milliseconds per iteration, 1000), --page
+ * (rows per getItemIds range, 50), --batch (entities written per saveEntities or importEntities call, 1000) and
+ * --out (container-benchmarks.json). Millions of rows need a large heap, the
+ * database is held in memory.
+ */
+public class ContainerBenchmarks
+{
+	public static void main(String[] args) throws Exception
+	{
+		final BenchmarkOptions options = new BenchmarkOptions(args);
+		final BenchmarkRunner runner = options.createRunner("ContainerBenchmarks");
+		final int pageSize = options.getInt("page", 50);
+		final int batchSize = options.getInt("batch", 1000);
+
+		for (int rows : options.getIntList("rows", "10k"))
+		{
+			final BenchmarkDatabase database = new BenchmarkDatabase("ContainerBenchmarks" + rows, rows, null);
+
+			try
+			{
+				runner.setParameter("rows", rows);
+				run(runner, database, pageSize);
+				runWrites(runner, database, batchSize);
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+
+		runner.writeJson(new File(options.getString("out", "container-benchmarks.json")));
+	}
+
+	/**
+	 * Runs every benchmark against a new container of the given database.
+	 */
+	public static void run(BenchmarkRunner runner, final BenchmarkDatabase database, final int pageSize)
+			throws Exception
+	{
+		final SessionFactory sessionFactory = database.getSessionFactory();
+		final HbnContainer<BenchmarkNode> container = new HbnContainer<BenchmarkNode>(BenchmarkNode.class,
+				sessionFactory);
+		final int rows = database.getRowCount();
+		final Random random = new Random(42);
+		final Object[] sampleIds = new Object[Math.min(rows, 1000)];
+
+		for (int i = 0; i < sampleIds.length; i++)
+			sampleIds[i] = database.getId(random.nextInt(rows));
+
+		runner.run("size", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.size();
+			}
+		});
+
+		runner.run("getIdByIndex.random", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.getIdByIndex(random.nextInt(rows));
+			}
+		});
+
+		runner.run("getIdByIndex.sequential", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.getIdByIndex((int) (invocation % rows));
+			}
+		});
+
+		runner.run("nextItemId.scan", new TransactionalBenchmark(sessionFactory)
+		{
+			private Object itemId;
+
+			@Override
+			public Object invoke(long invocation)
+			{
+				itemId = (itemId == null) ? container.firstItemId() : container.nextItemId(itemId);
+				return itemId;
+			}
+		});
+
+		runner.run("indexOfId", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.indexOfId(sampleIds[(int) (invocation % sampleIds.length)]);
+			}
+		});
+
+		runner.run("getItemIds.range", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.getItemIds(random.nextInt(Math.max(1, rows - pageSize)), Math.min(rows, pageSize));
+			}
+		});
+
+		runner.run("filter.apply", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				container.addContainerFilter(new Compare.Equal("category",
+						(int) (invocation % BenchmarkDatabase.CATEGORIES)));
+				final int size = container.size();
+				container.removeAllContainerFilters();
+				return size;
+			}
+		});
+
+		runner.run("sort.switch", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				container.sort(new Object[] { "title" }, new boolean[] { invocation % 2 == 0 });
+				return container.getIdByIndex(0);
+			}
+
+			@Override
+			public void tearDown() throws Exception
+			{
+				container.sort(new Object[0], new boolean[0]);
+				super.tearDown();
+			}
+		});
+
+		runner.run("hierarchy.expand", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return container.getChildren(database.getId(random.nextInt(database.getRootCount())));
+			}
+		});
+	}
+
+	/**
+	 * Runs the bulk write benchmarks against a new container of the given database, each invocation writing batchSize
+	 * new nodes. The written nodes are deleted after every iteration, so the table keeps its size.
+	 */
+	public static void runWrites(BenchmarkRunner runner, BenchmarkDatabase database, int batchSize) throws Exception
+	{
+		final HbnContainer<BenchmarkNode> container = new HbnContainer<BenchmarkNode>(BenchmarkNode.class,
+				database.getSessionFactory());
+
+		runWrite(runner, "saveEntities", new BulkWrite(container, database, batchSize, false), batchSize);
+		runWrite(runner, "importEntities", new BulkWrite(container, database, batchSize, true), batchSize);
+	}
+
+	/**
+	 * Runs a bulk write benchmark and adds its throughput in rows per second as a result of its own.
+	 */
+	private static void runWrite(BenchmarkRunner runner, String name, BulkWrite benchmark, int batchSize)
+			throws Exception
+	{
+		final BenchmarkResult result = runner.run(name, benchmark);
+		runner.addResult(new BenchmarkResult(name + ".throughput", runner.getParameters(), "thrpt", "rows/s",
+				batchSize * 1e9 / result.getScore()));
+	}
+
+	/**
+	 * Writes a batch of new nodes per invocation with saveEntities, or with importEntities.
+	 */
+	private static class BulkWrite extends TransactionalBenchmark
+	{
+		private final HbnContainer<BenchmarkNode> container;
+		private final BenchmarkDatabase database;
+		private final int batchSize;
+		private final boolean stateless;
+		private long nextId;
+
+		private BulkWrite(HbnContainer<BenchmarkNode> container, BenchmarkDatabase database, int batchSize,
+				boolean stateless)
+		{
+			super(database.getSessionFactory());
+			this.container = container;
+			this.database = database;
+			this.batchSize = batchSize;
+			this.stateless = stateless;
+		}
+
+		@Override
+		public void setUp() throws Exception
+		{
+			nextId = database.getRowCount() + 1;
+			super.setUp();
+		}
+
+		@Override
+		public Object invoke(long invocation)
+		{
+			final List<BenchmarkNode> nodes = new ArrayList<BenchmarkNode>(batchSize);
+			final Date created = new Date();
+
+			for (int i = 0; i < batchSize; i++)
+			{
+				final BenchmarkNode node = new BenchmarkNode();
+				node.setId(nextId++);
+				node.setTitle("Written " + node.getId());
+				node.setCreated(created);
+				node.setCategory((int) (node.getId() % BenchmarkDatabase.CATEGORIES));
+				nodes.add(node);
+			}
+
+			return stateless ? container.importEntities(nodes) : container.saveEntities(nodes);
+		}
+
+		@Override
+		public void tearDown() throws Exception
+		{
+			final Session session = database.getSessionFactory().getCurrentSession();
+
+			session.flush();
+			session.clear();
+			session.createQuery("delete from BenchmarkNode where id > :rows")
+					.setLong("rows", database.getRowCount())
+					.executeUpdate();
+			super.tearDown();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.vaadin.data.hbnutil.ApplicationLogger;
+
+/**
+ * Log4j appender counting the errors of concurrent workloads by exception class and the HbnContainer code it was
+ * raised in. HbnContainer catches and logs many exceptions instead of throwing them, so errors logged by the
+ * com.vaadin.data.hbnutil loggers are collected along with the ones a workload catches itself, which it passes to
+ * {@link #addThrown(Throwable)}. Exceptions raised from the JDK collections behind the container state, such as a
+ * ConcurrentModificationException, are counted as container errors; JDBC and Hibernate errors as database errors.
+ * Other errors, e.g. an IndexOutOfBoundsException for an index beyond a size that changed since it was read, are
+ * counted but not classified.
+ */
+public class ContainerErrorCollector extends AppenderSkeleton
+{
+	private static final String PACKAGE = "com.vaadin.data.hbnutil";
+	private static final String[] CONTAINER_ERRORS = { "java.util.ConcurrentModificationException",
+			"java.util.NoSuchElementException", "java.lang.NullPointerException",
+			"java.lang.ArrayIndexOutOfBoundsException", "java.lang.IllegalStateException",
+			"java.lang.ClassCastException" };
+
+	private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+	private int containerErrors = 0;
+	private int databaseErrors = 0;
+
+	@Override
+	protected void append(LoggingEvent event)
+	{
+		if (event.getLevel().isGreaterOrEqual(Level.ERROR) && event.getLoggerName().startsWith(PACKAGE))
+			add("logged", String.valueOf(event.getMessage()));
+	}
+
+	/**
+	 * Counts an exception thrown to the workload.
+	 */
+	public void addThrown(Throwable exception)
+	{
+		add("thrown", ApplicationLogger.unwindStack(exception));
+	}
+
+	public synchronized Map<String, Integer> getErrors()
+	{
+		return new TreeMap<String, Integer>(errors);
+	}
+
+	public synchronized int getContainerErrors()
+	{
+		return containerErrors;
+	}
+
+	public synchronized int getDatabaseErrors()
+	{
+		return databaseErrors;
+	}
+
+	public synchronized int getOtherErrors()
+	{
+		int total = 0;
+
+		for (Integer count : errors.values())
+			total += count.intValue();
+
+		return total - containerErrors - databaseErrors;
+	}
+
+	public synchronized void reset()
+	{
+		errors.clear();
+		containerErrors = 0;
+		databaseErrors = 0;
+	}
+
+	@Override
+	public boolean requiresLayout()
+	{
+		return false;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	/**
+	 * Counts an error from a stack trace as printed by Throwable.printStackTrace, which is how ApplicationLogger logs
+	 * exceptions: the first line names the exception, the first com.vaadin.data.hbnutil frame where it was raised.
+	 */
+	private synchronized void add(String source, String stackTrace)
+	{
+		final String[] lines = stackTrace.split("\n");
+		final String exception = lines[0].trim().split("[: ]")[0];
+		String site = "";
+
+		for (String line : lines)
+		{
+			final String trimmed = line.trim();
+
+			if (trimmed.startsWith("at " + PACKAGE) && !trimmed.contains(".benchmarks."))
+			{
+				site = " at " + trimmed.substring(3 + PACKAGE.length() + 1);
+				break;
+			}
+		}
+
+		final String key = source + " " + exception + site;
+		final Integer count = errors.get(key);
+		errors.put(key, (count == null) ? 1 : count.intValue() + 1);
+
+		if (stackTrace.contains("JDBCException") || stackTrace.contains("SQLException"))
+			databaseErrors++;
+		else if (isContainerError(exception))
+			containerErrors++;
+	}
+
+	private static boolean isContainerError(String exception)
+	{
+		for (String containerError : CONTAINER_ERRORS)
+		{
+			if (containerError.equals(exception))
+				return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,194 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hibernate.SessionFactory;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.HbnContainer;
+
+/**
+ * Memory footprint of HbnContainer state for BenchmarkNodes, with a basic, a many-to-one and a collection property,
+ * and for BenchmarkKeyedNodes, with an embedded identifier. For each entity type it reports the bytes retained by a
+ * new container and by its index row buffer, and for each cache size the bytes retained by that many cached items
+ * with their properties read, per item, and by the container itself. The cache holds its items through weak
+ * references, so the container is reported both with strongly retained memory only and with the cached items.
+ * 
+ * Sizes are estimated by ObjectFootprint, excluding the SessionFactory, the Session and other objects shared with the
+ * rest of the application, and are checked against {@link #FOOTPRINT_LIMITS}; the program exits with status 1 if one
+ * is exceeded, so a footprint regression fails the build. On Java 9 and later run it with the --add-opens options
+ * listed by ObjectFootprint, otherwise JDK collections are only counted shallowly.
+ * 
+ * Options: --rows (default 20k), --cache-sizes (100,1k,10k) and --out (footprint-benchmarks.json). Cache sizes over
+ * the number of rows of an entity type are skipped; the database holds at most 1000 BenchmarkKeyedNodes.
+ */
+public class FootprintBenchmarks
+{
+	/**
+	 * Bytes above which a footprint fails, by benchmark and entity type: about one and a half times the footprint
+	 * estimated on a 64 bit HotSpot JVM with compressed references when the benchmark was written.
+	 */
+	public static final Map<String, Double> FOOTPRINT_LIMITS = new LinkedHashMap<String, Double>();
+
+	static
+	{
+		FOOTPRINT_LIMITS.put("container.new.BenchmarkNode", 6400.0);
+		FOOTPRINT_LIMITS.put("container.new.BenchmarkKeyedNode", 6400.0);
+		FOOTPRINT_LIMITS.put("rowBuffer.perRow.BenchmarkNode", 336.0);
+		FOOTPRINT_LIMITS.put("rowBuffer.perRow.BenchmarkKeyedNode", 224.0);
+		FOOTPRINT_LIMITS.put("item.BenchmarkNode", 1000.0);
+		FOOTPRINT_LIMITS.put("item.BenchmarkKeyedNode", 704.0);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final BenchmarkOptions options = new BenchmarkOptions(args);
+		final BenchmarkRunner runner = options.createRunner("FootprintBenchmarks");
+		final List<Integer> cacheSizes = options.getIntList("cache-sizes", "100,1k,10k");
+		final int rows = options.getInt("rows", 20000);
+		final BenchmarkDatabase database = new BenchmarkDatabase("FootprintBenchmarks", rows, null);
+		final Set<String> opaqueClasses = new TreeSet<String>();
+
+		try
+		{
+			runner.setParameter("rows", rows);
+			run(runner, database, BenchmarkNode.class, cacheSizes, database.getRowCount(), opaqueClasses);
+			run(runner, database, BenchmarkKeyedNode.class, cacheSizes, database.getKeyedCount(), opaqueClasses);
+		}
+		finally
+		{
+			database.close();
+		}
+
+		if (!opaqueClasses.isEmpty())
+			System.out.println("counted shallowly, run with --add-opens to follow their fields: " + opaqueClasses);
+
+		runner.writeJson(new File(options.getString("out", "footprint-benchmarks.json")));
+		runner.exitWithStatus();
+	}
+
+	/**
+	 * Measures the footprints of containers of the given entity type, which has the given number of rows.
+	 */
+	public static <T> void run(BenchmarkRunner runner, BenchmarkDatabase database, Class<T> entityType,
+			List<Integer> cacheSizes, int rows, Set<String> opaqueClasses) throws Exception
+	{
+		final SessionFactory sessionFactory = database.getSessionFactory();
+		final String entityName = entityType.getSimpleName();
+
+		runner.setParameter("entity", entityName);
+		runner.setParameter("cacheSize", 0);
+
+		HbnContainer<T> container = new HbnContainer<T>(entityType, sessionFactory);
+		ObjectFootprint footprint = new ObjectFootprint().exclude(sessionFactory);
+		check(runner, addFootprint(runner, "container.new", footprint.measure(container)), entityName);
+		opaqueClasses.addAll(footprint.getOpaqueClasses());
+
+		sessionFactory.getCurrentSession().beginTransaction();
+
+		try
+		{
+			container.getIdByIndex(0);
+
+			final List<?> rowBuffer = (List<?>) getField(container, "indexRowBuffer");
+			footprint = new ObjectFootprint().exclude(sessionFactory, container);
+			final long bufferBytes = footprint.measure(rowBuffer);
+
+			addFootprint(runner, "rowBuffer", bufferBytes).addSecondary("rows", rowBuffer.size());
+			check(runner, addFootprint(runner, "rowBuffer.perRow", (double) bufferBytes / rowBuffer.size()),
+					entityName);
+			opaqueClasses.addAll(footprint.getOpaqueClasses());
+		}
+		finally
+		{
+			sessionFactory.getCurrentSession().getTransaction().commit();
+		}
+
+		for (int cacheSize : cacheSizes)
+		{
+			if (cacheSize > rows)
+				continue;
+
+			runner.setParameter("cacheSize", cacheSize);
+			container = new HbnContainer<T>(entityType, sessionFactory);
+			sessionFactory.getCurrentSession().beginTransaction();
+
+			try
+			{
+				final List<Object> items = loadItems(container, cacheSize);
+
+				footprint = new ObjectFootprint().exclude(sessionFactory, container);
+				final long itemBytes = footprint.measure(items.toArray());
+				opaqueClasses.addAll(footprint.getOpaqueClasses());
+
+				addFootprint(runner, "items", itemBytes);
+				check(runner, addFootprint(runner, "item", (double) itemBytes / cacheSize), entityName);
+
+				footprint = new ObjectFootprint().exclude(sessionFactory);
+				addFootprint(runner, "container.retained", footprint.measure(container));
+
+				footprint = new ObjectFootprint().exclude(sessionFactory).setFollowReferences(true);
+				addFootprint(runner, "container.withItems", footprint.measure(container));
+				opaqueClasses.addAll(footprint.getOpaqueClasses());
+			}
+			finally
+			{
+				sessionFactory.getCurrentSession().getTransaction().commit();
+			}
+		}
+	}
+
+	/**
+	 * Gets the first count items of a container the way a Table renders them, reading every property except the
+	 * collections. The items are returned so they stay strongly reachable while they are measured.
+	 */
+	private static List<Object> loadItems(HbnContainer<?> container, int count)
+	{
+		final List<Object> items = new ArrayList<Object>(count);
+
+		for (Object itemId : container.getItemIds(0, count))
+		{
+			final HbnContainer<?>.EntityItem<?> item = container.getItem(itemId);
+
+			for (Object propertyId : container.getContainerPropertyIds())
+			{
+				final Property<?> property = item.getItemProperty(propertyId);
+
+				if (!Collection.class.isAssignableFrom(property.getType()))
+					property.getValue();
+			}
+
+			items.add(item);
+		}
+
+		return items;
+	}
+
+	private static BenchmarkResult addFootprint(BenchmarkRunner runner, String name, double bytes)
+	{
+		return runner.addResult(new BenchmarkResult(name, runner.getParameters(), "footprint", "bytes", bytes));
+	}
+
+	private static void check(BenchmarkRunner runner, BenchmarkResult result, String entityName)
+	{
+		final Double limit = FOOTPRINT_LIMITS.get(result.getBenchmark() + "." + entityName);
+
+		if (limit != null)
+			runner.assertAtMost(result.getBenchmark() + " bytes", result.getScore(), limit.doubleValue());
+	}
+
+	private static Object getField(Object object, String name) throws Exception
+	{
+		final Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(object);
+	}
+}
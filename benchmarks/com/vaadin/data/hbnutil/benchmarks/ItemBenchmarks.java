@@ -0,0 +1,277 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hibernate.SessionFactory;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.HbnContainer;
+import com.vaadin.data.hbnutil.filter.FilterFactory;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Microbenchmarks of the per cell paths of HbnContainer: EntityItem construction and getItemProperty,
+ * EntityProperty getValue, getType and setValue for basic, many-to-one, collection and embedded identifier
+ * properties, propertyInEmbeddedKey, getIdForPojo and FilterFactory translation. The private container methods are
+ * called through reflection, which adds the same small constant to every run.
+ * 
+ * The bytes allocated per operation are checked against the limits in {@link #ALLOCATION_LIMITS}, and the program
+ * exits with status 1 if one is exceeded, so an allocation regression fails the build. Allocation is only measured on
+ * JVMs supporting thread allocation counters, such as HotSpot. Options as for ContainerBenchmarks, with --rows
+ * defaulting to 1000 and --out to item-benchmarks.json.
+ */
+public class ItemBenchmarks
+{
+	/**
+	 * Bytes allocated per operation above which a benchmark fails: about twice the allocation measured on HotSpot when
+	 * the benchmark was written, and at least 128 bytes for the boxing done by the harness itself.
+	 */
+	public static final Map<String, Double> ALLOCATION_LIMITS = new LinkedHashMap<String, Double>();
+
+	static
+	{
+		ALLOCATION_LIMITS.put("EntityItem.new", 640.0);
+		ALLOCATION_LIMITS.put("EntityItem.getItemProperty", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getValue.basic", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getValue.manyToOne", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getValue.collection", 8192.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getValue.embeddedId", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getType.basic", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getType.manyToOne", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getType.collection", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.getType.embeddedId", 128.0);
+		ALLOCATION_LIMITS.put("EntityProperty.setValue.basic", 2560.0);
+		ALLOCATION_LIMITS.put("EntityProperty.setValue.manyToOne", 5120.0);
+		ALLOCATION_LIMITS.put("EntityProperty.setValue.collection", 40960.0);
+		ALLOCATION_LIMITS.put("EntityProperty.setValue.embeddedId", 2048.0);
+		ALLOCATION_LIMITS.put("propertyInEmbeddedKey.embedded", 128.0);
+		ALLOCATION_LIMITS.put("propertyInEmbeddedKey.basic", 128.0);
+		ALLOCATION_LIMITS.put("getIdForPojo", 128.0);
+		ALLOCATION_LIMITS.put("FilterFactory.compare", 128.0);
+		ALLOCATION_LIMITS.put("FilterFactory.string", 128.0);
+		ALLOCATION_LIMITS.put("FilterFactory.and", 128.0);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		final BenchmarkOptions options = new BenchmarkOptions(args);
+		final BenchmarkRunner runner = options.createRunner("ItemBenchmarks");
+
+		for (int rows : options.getIntList("rows", "1000"))
+		{
+			final BenchmarkDatabase database = new BenchmarkDatabase("ItemBenchmarks" + rows, rows, null);
+
+			try
+			{
+				runner.setParameter("rows", rows);
+				run(runner, database);
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+
+		runner.writeJson(new File(options.getString("out", "item-benchmarks.json")));
+		runner.exitWithStatus();
+	}
+
+	/**
+	 * Runs every benchmark against new containers of the given database and checks their allocation.
+	 */
+	public static void run(BenchmarkRunner runner, BenchmarkDatabase database) throws Exception
+	{
+		final SessionFactory sessionFactory = database.getSessionFactory();
+		final HbnContainer<BenchmarkNode> nodes = new HbnContainer<BenchmarkNode>(BenchmarkNode.class, sessionFactory);
+		final HbnContainer<BenchmarkKeyedNode> keyedNodes = new HbnContainer<BenchmarkKeyedNode>(
+				BenchmarkKeyedNode.class, sessionFactory);
+		final Long rootId = database.getId(0);
+		final Long childId = database.getId(database.getRootCount());
+		final BenchmarkKey key = database.getKey(0);
+
+		check(runner, runner.run("EntityItem.new", new TransactionalBenchmark(sessionFactory)
+		{
+			@Override
+			public Object invoke(long invocation)
+			{
+				return nodes.new EntityItem<BenchmarkNode>(childId);
+			}
+		}));
+
+		check(runner, runner.run("EntityItem.getItemProperty", new TransactionalBenchmark(sessionFactory)
+		{
+			private HbnContainer<BenchmarkNode>.EntityItem<BenchmarkNode> item;
+
+			@Override
+			public void setUp() throws Exception
+			{
+				super.setUp();
+				item = nodes.getItem(childId);
+			}
+
+			@Override
+			public Object invoke(long invocation)
+			{
+				return item.getItemProperty("title");
+			}
+		}));
+
+		final Map<String, PropertyBenchmark> shapes = new LinkedHashMap<String, PropertyBenchmark>();
+		shapes.put("basic", new PropertyBenchmark(sessionFactory, nodes, childId, "title"));
+		shapes.put("manyToOne", new PropertyBenchmark(sessionFactory, nodes, childId, "parent"));
+		shapes.put("collection", new PropertyBenchmark(sessionFactory, nodes, rootId, "children"));
+		shapes.put("embeddedId", new PropertyBenchmark(sessionFactory, keyedNodes, key, "region"));
+
+		for (Map.Entry<String, PropertyBenchmark> shape : shapes.entrySet())
+		{
+			for (PropertyOperation operation : PropertyOperation.values())
+			{
+				final String name = "EntityProperty." + operation.name().toLowerCase().replace("value", "Value")
+						.replace("type", "Type") + "." + shape.getKey();
+
+				check(runner, runner.run(name, shape.getValue().with(operation)));
+			}
+		}
+
+		final Method propertyInEmbeddedKey = getDeclaredMethod("propertyInEmbeddedKey", Object.class);
+		final Method getIdForPojo = getDeclaredMethod("getIdForPojo", Object.class);
+
+		check(runner, runner.run("propertyInEmbeddedKey.embedded", new Benchmark()
+		{
+			@Override
+			public Object invoke(long invocation) throws Exception
+			{
+				return propertyInEmbeddedKey.invoke(keyedNodes, "region");
+			}
+		}));
+
+		check(runner, runner.run("propertyInEmbeddedKey.basic", new Benchmark()
+		{
+			@Override
+			public Object invoke(long invocation) throws Exception
+			{
+				return propertyInEmbeddedKey.invoke(nodes, "title");
+			}
+		}));
+
+		check(runner, runner.run("getIdForPojo", new TransactionalBenchmark(sessionFactory)
+		{
+			private Object pojo;
+
+			@Override
+			public void setUp() throws Exception
+			{
+				super.setUp();
+				pojo = sessionFactory.getCurrentSession().get(BenchmarkNode.class, childId);
+			}
+
+			@Override
+			public Object invoke(long invocation) throws Exception
+			{
+				return getIdForPojo.invoke(nodes, pojo);
+			}
+		}));
+
+		final Filter compare = new Compare.Equal("category", 3);
+		final Filter string = new SimpleStringFilter("title", "node", true, false);
+		final Filter and = new And(compare, string);
+
+		check(runner, runner.run("FilterFactory.compare", new FilterBenchmark(compare)));
+		check(runner, runner.run("FilterFactory.string", new FilterBenchmark(string)));
+		check(runner, runner.run("FilterFactory.and", new FilterBenchmark(and)));
+	}
+
+	private static void check(BenchmarkRunner runner, BenchmarkResult result)
+	{
+		final Double limit = ALLOCATION_LIMITS.get(result.getBenchmark());
+
+		if (limit != null && result.getAllocatedBytesPerOperation() >= 0)
+			runner.assertAtMost(result.getBenchmark() + " B/op", result.getAllocatedBytesPerOperation(), limit);
+	}
+
+	private static Method getDeclaredMethod(String name, Class<?>... parameterTypes) throws NoSuchMethodException
+	{
+		final Method method = HbnContainer.class.getDeclaredMethod(name, parameterTypes);
+		method.setAccessible(true);
+		return method;
+	}
+
+	private enum PropertyOperation
+	{
+		GETVALUE, GETTYPE, SETVALUE
+	}
+
+	/**
+	 * Calls one operation on one property of one item. The property is read once before every iteration so the
+	 * entity is attached to the session of the iteration, and setValue writes back the value read then.
+	 */
+	private static class PropertyBenchmark extends TransactionalBenchmark
+	{
+		private final HbnContainer<?> container;
+		private final Object itemId;
+		private final Object propertyId;
+		private PropertyOperation operation;
+		private Property<?> property;
+		private Object value;
+
+		PropertyBenchmark(SessionFactory sessionFactory, HbnContainer<?> container, Object itemId, Object propertyId)
+		{
+			super(sessionFactory);
+			this.container = container;
+			this.itemId = itemId;
+			this.propertyId = propertyId;
+		}
+
+		PropertyBenchmark with(PropertyOperation operation)
+		{
+			this.operation = operation;
+			return this;
+		}
+
+		@Override
+		public void setUp() throws Exception
+		{
+			super.setUp();
+			property = container.getContainerProperty(itemId, propertyId);
+			value = property.getValue();
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Object invoke(long invocation)
+		{
+			switch (operation)
+			{
+				case GETVALUE:
+					return property.getValue();
+				case GETTYPE:
+					return property.getType();
+				default:
+					((Property<Object>) property).setValue(value);
+					return property;
+			}
+		}
+	}
+
+	private static class FilterBenchmark extends Benchmark
+	{
+		private final Filter filter;
+
+		FilterBenchmark(Filter filter)
+		{
+			this.filter = filter;
+		}
+
+		@Override
+		public Object invoke(long invocation)
+		{
+			return FilterFactory.getContainerFilter(filter);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Latencies in nanoseconds collected by a workload, e.g. one per replayed call, for computing percentiles. Samples
+ * are kept in full, so percentiles are exact. Not thread safe; collect per thread and combine with
+ * {@link #addAll(LatencySamples)}.
+ */
+public class LatencySamples
+{
+	private long[] samples = new long[1024];
+	private int count = 0;
+	private boolean sorted = true;
+
+	public void add(long nanos)
+	{
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, 2 * count);
+
+		samples[count++] = nanos;
+		sorted = false;
+	}
+
+	public void addAll(LatencySamples other)
+	{
+		for (int i = 0; i < other.count; i++)
+			add(other.samples[i]);
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public long getTotal()
+	{
+		long total = 0;
+
+		for (int i = 0; i < count; i++)
+			total += samples[i];
+
+		return total;
+	}
+
+	public double getMean()
+	{
+		return (count == 0) ? Double.NaN : (double) getTotal() / count;
+	}
+
+	/**
+	 * Gets the given percentile, between 0 and 100, by the nearest rank method, or -1 if there are no samples.
+	 */
+	public long getPercentile(double percentile)
+	{
+		if (count == 0)
+			return -1;
+
+		if (!sorted)
+		{
+			Arrays.sort(samples, 0, count);
+			sorted = true;
+		}
+
+		final int rank = (int) Math.ceil(percentile / 100 * count);
+		return samples[Math.min(count, Math.max(1, rank)) - 1];
+	}
+
+	public long getMax()
+	{
+		return getPercentile(100);
+	}
+
+	/**
+	 * Adds the count, mean, 50th, 90th, 99th and 99.9th percentiles and maximum, in nanoseconds, as secondary results
+	 * with the given prefix.
+	 */
+	public BenchmarkResult addTo(BenchmarkResult result, String prefix)
+	{
+		return result.addSecondary(prefix + "count", count)
+				.addSecondary(prefix + "mean", Math.round(getMean()))
+				.addSecondary(prefix + "p50", getPercentile(50))
+				.addSecondary(prefix + "p90", getPercentile(90))
+				.addSecondary(prefix + "p99", getPercentile(99))
+				.addSecondary(prefix + "p99.9", getPercentile(99.9))
+				.addSecondary(prefix + "max", getMax());
+	}
+}
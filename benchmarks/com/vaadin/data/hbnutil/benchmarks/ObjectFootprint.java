@@ -0,0 +1,278 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Estimates the memory retained by object graphs, in the way JOL's GraphLayout does but without the dependency: the
+ * graph is walked through all instance fields and the shallow size of every object is computed from the field layout,
+ * the object header and the reference size of the running HotSpot JVM. Field packing is approximated, so sizes are
+ * estimates that are typically within a few percent of the real ones.
+ * 
+ * Objects shared with the rest of the application, such as the SessionFactory, Hibernate metadata and types, classes
+ * and loggers, are boundaries and are neither counted nor followed; further boundaries can be added. Weakly and
+ * softly referenced objects are only counted if {@link #setFollowReferences(boolean)} is set, and reference queues
+ * are not counted.
+ * 
+ * On Java 9 and later the JDK internals must be opened to the walker, e.g. with --add-opens
+ * java.base/java.util=ALL-UNNAMED and likewise for java.lang, java.util.concurrent, java.util.concurrent.atomic and
+ * java.util.concurrent.locks; classes whose fields can not be read are counted shallowly and listed by
+ * {@link #getOpaqueClasses()}.
+ */
+public class ObjectFootprint
+{
+	private static final int REFERENCE_SIZE;
+	private static final int HEADER_SIZE;
+	private static final int ALIGNMENT;
+	private static final Map<Class<?>, Integer> PRIMITIVE_SIZES = new HashMap<Class<?>, Integer>();
+
+	static
+	{
+		PRIMITIVE_SIZES.put(boolean.class, 1);
+		PRIMITIVE_SIZES.put(byte.class, 1);
+		PRIMITIVE_SIZES.put(char.class, 2);
+		PRIMITIVE_SIZES.put(short.class, 2);
+		PRIMITIVE_SIZES.put(int.class, 4);
+		PRIMITIVE_SIZES.put(float.class, 4);
+		PRIMITIVE_SIZES.put(long.class, 8);
+		PRIMITIVE_SIZES.put(double.class, 8);
+
+		final boolean is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+		final boolean compressedOops = is64Bit && "true".equals(getVmOption("UseCompressedOops", "true"));
+		final boolean compressedClasses = is64Bit
+				&& "true".equals(getVmOption("UseCompressedClassPointers", String.valueOf(compressedOops)));
+
+		REFERENCE_SIZE = (!is64Bit || compressedOops) ? 4 : 8;
+		HEADER_SIZE = !is64Bit ? 8 : compressedClasses ? 12 : 16;
+		ALIGNMENT = Integer.parseInt(getVmOption("ObjectAlignmentInBytes", "8"));
+	}
+
+	private final Map<Class<?>, ClassLayout> layouts = new HashMap<Class<?>, ClassLayout>();
+	private final Map<Object, Object> boundaries = new IdentityHashMap<Object, Object>();
+	private final List<Class<?>> boundaryTypes = new ArrayList<Class<?>>();
+	private final Set<String> opaqueClasses = new TreeSet<String>();
+	private boolean followReferences = false;
+
+	public ObjectFootprint()
+	{
+		boundaryTypes.add(Class.class);
+		boundaryTypes.add(ClassLoader.class);
+		boundaryTypes.add(Thread.class);
+		boundaryTypes.add(Enum.class);
+		boundaryTypes.add(ReferenceQueue.class);
+		boundaryTypes.add(Field.class);
+		boundaryTypes.add(java.lang.reflect.Method.class);
+		boundaryTypes.add(org.hibernate.SessionFactory.class);
+		boundaryTypes.add(org.hibernate.engine.spi.SessionImplementor.class);
+		boundaryTypes.add(org.hibernate.metadata.ClassMetadata.class);
+		boundaryTypes.add(org.hibernate.persister.entity.EntityPersister.class);
+		boundaryTypes.add(org.hibernate.type.Type.class);
+		boundaryTypes.add(org.slf4j.Logger.class);
+	}
+
+	/**
+	 * Adds objects that are neither counted nor followed, e.g. the container when only its items are measured.
+	 */
+	public ObjectFootprint exclude(Object... objects)
+	{
+		for (Object object : objects)
+			boundaries.put(object, object);
+
+		return this;
+	}
+
+	/**
+	 * Adds a type whose instances are neither counted nor followed.
+	 */
+	public ObjectFootprint excludeType(Class<?> type)
+	{
+		boundaryTypes.add(type);
+		return this;
+	}
+
+	/**
+	 * Sets if the referents of weak, soft and phantom references are counted, which is off by default so that only
+	 * strongly retained memory is reported.
+	 */
+	public ObjectFootprint setFollowReferences(boolean followReferences)
+	{
+		this.followReferences = followReferences;
+		return this;
+	}
+
+	/**
+	 * Gets the names of the classes whose fields could not be read, so their instances were counted shallowly.
+	 */
+	public Set<String> getOpaqueClasses()
+	{
+		return opaqueClasses;
+	}
+
+	public static int getReferenceSize()
+	{
+		return REFERENCE_SIZE;
+	}
+
+	public static int getHeaderSize()
+	{
+		return HEADER_SIZE;
+	}
+
+	/**
+	 * Gets the estimated bytes of all objects reachable from the roots, counting shared objects once.
+	 */
+	public long measure(Object... roots)
+	{
+		final Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		final List<Object> pending = new ArrayList<Object>();
+		long bytes = 0;
+
+		for (Object root : roots)
+			pending.add(root);
+
+		while (!pending.isEmpty())
+		{
+			final Object object = pending.remove(pending.size() - 1);
+
+			if (object == null || visited.containsKey(object) || isBoundary(object))
+				continue;
+
+			visited.put(object, object);
+
+			final Class<?> type = object.getClass();
+
+			if (type.isArray())
+			{
+				final int length = Array.getLength(object);
+				final Class<?> componentType = type.getComponentType();
+				final int elementSize = componentType.isPrimitive() ? PRIMITIVE_SIZES.get(componentType)
+						: REFERENCE_SIZE;
+
+				bytes += align(HEADER_SIZE + 4 + (long) length * elementSize);
+
+				if (!componentType.isPrimitive())
+				{
+					for (int i = 0; i < length; i++)
+						pending.add(Array.get(object, i));
+				}
+
+				continue;
+			}
+
+			final ClassLayout layout = getLayout(type);
+			bytes += layout.size;
+
+			if (followReferences && object instanceof Reference<?>)
+				pending.add(((Reference<?>) object).get());
+
+			for (Field field : layout.referenceFields)
+			{
+				try
+				{
+					pending.add(field.get(object));
+				}
+				catch (IllegalAccessException e)
+				{
+					opaqueClasses.add(type.getName());
+				}
+			}
+		}
+
+		return bytes;
+	}
+
+	private boolean isBoundary(Object object)
+	{
+		if (boundaries.containsKey(object))
+			return true;
+
+		for (Class<?> type : boundaryTypes)
+		{
+			if (type.isInstance(object))
+				return true;
+		}
+
+		return false;
+	}
+
+	private ClassLayout getLayout(Class<?> type)
+	{
+		ClassLayout layout = layouts.get(type);
+
+		if (layout == null)
+		{
+			layout = new ClassLayout();
+			long fieldBytes = 0;
+
+			for (Class<?> current = type; current != null; current = current.getSuperclass())
+			{
+				for (Field field : current.getDeclaredFields())
+				{
+					if (Modifier.isStatic(field.getModifiers()))
+						continue;
+
+					final Class<?> fieldType = field.getType();
+					fieldBytes += fieldType.isPrimitive() ? PRIMITIVE_SIZES.get(fieldType) : REFERENCE_SIZE;
+
+					if (fieldType.isPrimitive() || current == Reference.class)
+						continue;
+
+					try
+					{
+						field.setAccessible(true);
+						layout.referenceFields.add(field);
+					}
+					catch (RuntimeException e)
+					{
+						opaqueClasses.add(type.getName());
+					}
+				}
+			}
+
+			layout.size = align(HEADER_SIZE + fieldBytes);
+			layouts.put(type, layout);
+		}
+
+		return layout;
+	}
+
+	private static long align(long bytes)
+	{
+		return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static String getVmOption(String name, String defaultValue)
+	{
+		try
+		{
+			final HotSpotDiagnosticMXBean diagnostics = ManagementFactory.newPlatformMXBeanProxy(
+					ManagementFactory.getPlatformMBeanServer(), "com.sun.management:type=HotSpotDiagnostic",
+					HotSpotDiagnosticMXBean.class);
+
+			return diagnostics.getVMOption(name).getValue();
+		}
+		catch (Exception e)
+		{
+			return defaultValue;
+		}
+	}
+
+	private static class ClassLayout
+	{
+		private long size;
+		private final List<Field> referenceFields = new ArrayList<Field>();
+	}
+}
@@ -0,0 +1,475 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.HbnContainer;
+import com.vaadin.data.hbnutil.QueryBudget;
+import com.vaadin.data.hbnutil.QueryBudgetInterceptor;
+import com.vaadin.data.hbnutil.metrics.ContainerCallLog;
+import com.vaadin.data.hbnutil.metrics.ContainerMetrics;
+import com.vaadin.data.hbnutil.metrics.RecordingContainer;
+import com.vaadin.data.hbnutil.metrics.SimpleMetricsRegistry;
+
+/**
+ * Replays Container call sequences recorded with a RecordingContainer, e.g. from a Table in a real UI session,
+ * headless against a seeded BenchmarkDatabase, and reports per replay the SQL statements issued, the latency
+ * percentiles of the calls and of the UI requests, and the item cache and row buffer behavior. Paging and caching
+ * changes can so be tested against real scroll behavior without a browser:
+ * 
+ * java com.vaadin.data.hbnutil.benchmarks.ScrollReplay --log=session1.log,session2.log --rows=100k
+ * 
+ * Each replay uses a new container, and each recorded request runs in its own transaction. Calls are replayed as
+ * fast as possible; getContainerProperty also reads the value, as a Table does when it renders the cell. Logs of other
+ * entity types replay their access pattern rather than their data: numeric identifiers are mapped onto the seeded
+ * rows, other identifiers by their hash code, and unknown property identifiers onto the BenchmarkNode columns.
+ * 
+ * Without --log, --sessions synthetic sessions (default 3) of --scrolls requests each (100) are recorded first by
+ * driving a RecordingContainer the way a Table with --page visible rows (15) and a cache rate of 2 does: initial
+ * render, scrolling by pages, drags to random positions, keyboard navigation, selection and sorting. They are written
+ * to --log-dir, by default a temporary directory. Further options: --rows (default 20k), --warmup (replays of each
+ * log run before the measured one, 1), --request-gap (milliseconds between calls starting a new request in logs
+ * without request marks, 100) and --out (scroll-replay.json).
+ */
+public class ScrollReplay
+{
+	private static final String[] COLUMNS = { "title", "created", "category", "parent" };
+	private static final int CACHE_RATE = 2;
+
+	public static void main(String[] args) throws Exception
+	{
+		final BenchmarkOptions options = new BenchmarkOptions(args);
+		final BenchmarkRunner runner = new BenchmarkRunner("ScrollReplay");
+		final int rows = options.getInt("rows", 20000);
+		final int warmup = options.getInt("warmup", 1);
+		final long requestGapMicros = TimeUnit.MILLISECONDS.toMicros(options.getLong("request-gap", 100));
+		final BenchmarkDatabase database = new BenchmarkDatabase("ScrollReplay", rows,
+				new Configuration().setInterceptor(new QueryBudgetInterceptor()));
+
+		try
+		{
+			final List<File> logs = new ArrayList<File>();
+
+			if (options.getString("log", null) != null)
+			{
+				for (String log : options.getString("log", null).split(","))
+					logs.add(new File(log.trim()));
+			}
+			else
+			{
+				final String logDir = options.getString("log-dir", null);
+				final File directory = (logDir != null) ? new File(logDir) : createTempDirectory();
+				final int sessions = options.getInt("sessions", 3);
+
+				directory.mkdirs();
+
+				for (int session = 0; session < sessions; session++)
+				{
+					final File log = new File(directory, "scroll-session-" + session + ".log");
+					recordSyntheticSession(database, log, session, options.getInt("page", 15),
+							options.getInt("scrolls", 100));
+					logs.add(log);
+				}
+			}
+
+			runner.setParameter("rows", rows);
+
+			for (File log : logs)
+			{
+				final ContainerCallLog.Recording recording = ContainerCallLog.read(log);
+				runner.setParameter("log", log.getName());
+
+				for (int i = 0; i < warmup; i++)
+					new Replay(database, recording, requestGapMicros).run();
+
+				new Replay(database, recording, requestGapMicros).run().report(runner);
+			}
+		}
+		finally
+		{
+			database.close();
+		}
+
+		runner.writeJson(new File(options.getString("out", "scroll-replay.json")));
+	}
+
+	/**
+	 * Records a synthetic Table session on BenchmarkNodes to the given file.
+	 */
+	public static void recordSyntheticSession(BenchmarkDatabase database, File file, long seed, int pageLength,
+			int scrolls) throws Exception
+	{
+		final SessionFactory sessionFactory = database.getSessionFactory();
+		final ContainerCallLog log = ContainerCallLog.create(file, BenchmarkNode.class.getName());
+		final RecordingContainer<BenchmarkNode> table = new RecordingContainer<BenchmarkNode>(
+				new HbnContainer<BenchmarkNode>(BenchmarkNode.class, sessionFactory), log);
+		final Random random = new Random(seed);
+		final int cacheRows = CACHE_RATE * pageLength;
+		int first = 0;
+		int cachedFrom = 0;
+		int cachedTo = 0;
+
+		try
+		{
+			for (int request = 0; request <= scrolls; request++)
+			{
+				log.markRequest();
+				final Transaction transaction = sessionFactory.getCurrentSession().beginTransaction();
+
+				try
+				{
+					final int size = table.size();
+					final int action = random.nextInt(100);
+
+					if (request == 0)
+					{
+						first = 0;
+					}
+					else if (action < 60)
+					{
+						first += pageLength * (1 + random.nextInt(3));
+					}
+					else if (action < 75)
+					{
+						first -= pageLength;
+					}
+					else if (action < 85)
+					{
+						first = random.nextInt(Math.max(1, size));
+					}
+					else if (action < 95)
+					{
+						Object itemId = table.getIdByIndex(Math.min(size - 1, first + random.nextInt(pageLength)));
+						table.getItem(itemId);
+
+						for (int step = random.nextInt(5); step > 0 && itemId != null; step--)
+							itemId = table.nextItemId(itemId);
+
+						if (itemId != null)
+							table.indexOfId(itemId);
+
+						continue;
+					}
+					else
+					{
+						table.sort(new Object[] { COLUMNS[random.nextInt(COLUMNS.length - 1)] },
+								new boolean[] { random.nextBoolean() });
+						first = 0;
+						cachedFrom = 0;
+						cachedTo = 0;
+					}
+
+					first = Math.max(0, Math.min(first, size - pageLength));
+					final Object firstId = table.getIdByIndex(first);
+					table.indexOfId(firstId);
+
+					final int from = Math.max(0, first - cacheRows);
+					final int to = Math.min(size, first + pageLength + cacheRows);
+					final int fetchFrom = (from >= cachedFrom && from < cachedTo) ? cachedTo : from;
+					final int fetchTo = (to > cachedFrom && to <= cachedTo) ? cachedFrom : to;
+
+					if (fetchTo > fetchFrom)
+					{
+						for (Object itemId : table.getItemIds(fetchFrom, fetchTo - fetchFrom))
+						{
+							for (String column : COLUMNS)
+								table.getContainerProperty(itemId, column).getValue();
+						}
+					}
+
+					cachedFrom = from;
+					cachedTo = to;
+				}
+				finally
+				{
+					transaction.commit();
+				}
+			}
+		}
+		finally
+		{
+			log.close();
+		}
+	}
+
+	private static File createTempDirectory() throws Exception
+	{
+		final File directory = File.createTempFile("scroll-replay", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	/**
+	 * One replay of a recording against a new container.
+	 */
+	private static class Replay
+	{
+		private final BenchmarkDatabase database;
+		private final ContainerCallLog.Recording recording;
+		private final long requestGapMicros;
+		private final SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+		private final HbnContainer<BenchmarkNode> container;
+		private final Map<Object, Object> propertyIds = new HashMap<Object, Object>();
+		private final LatencySamples calls = new LatencySamples();
+		private final LatencySamples requests = new LatencySamples();
+		private final Map<String, LatencySamples> methods = new LinkedHashMap<String, LatencySamples>();
+		private int requestCount = 0;
+		private int statements = 0;
+		private int maxRequestStatements = 0;
+		private int maxRequestRepeats = 0;
+		private int errors = 0;
+		private int skipped = 0;
+
+		private Replay(BenchmarkDatabase database, ContainerCallLog.Recording recording, long requestGapMicros)
+		{
+			this.database = database;
+			this.recording = recording;
+			this.requestGapMicros = requestGapMicros;
+			this.container = new HbnContainer<BenchmarkNode>(BenchmarkNode.class, database.getSessionFactory());
+			container.setMetricsRegistry(registry);
+		}
+
+		private Replay run()
+		{
+			final List<ContainerCallLog.Call> recorded = recording.getCalls();
+			int next = 0;
+
+			while (next < recorded.size())
+			{
+				int end = next + 1;
+
+				while (end < recorded.size() && !startsRequest(recorded.get(end - 1), recorded.get(end)))
+					end++;
+
+				replayRequest(recorded.subList(next, end));
+				next = end;
+			}
+
+			return this;
+		}
+
+		private boolean startsRequest(ContainerCallLog.Call previous, ContainerCallLog.Call call)
+		{
+			if (recording.isRequestsMarked())
+				return call.getRequest() != previous.getRequest();
+
+			return call.getOffsetMicros() - previous.getOffsetMicros() > requestGapMicros;
+		}
+
+		private void replayRequest(List<ContainerCallLog.Call> requestCalls)
+		{
+			final SessionFactory sessionFactory = database.getSessionFactory();
+			final QueryBudget budget = new QueryBudget("replayed request", 0, 0, QueryBudget.Action.WARN).begin();
+			final long requestStart = System.nanoTime();
+			final Transaction transaction = sessionFactory.getCurrentSession().beginTransaction();
+
+			try
+			{
+				for (ContainerCallLog.Call call : requestCalls)
+				{
+					final long start = System.nanoTime();
+
+					try
+					{
+						if (!replayCall(call))
+						{
+							skipped++;
+							continue;
+						}
+					}
+					catch (RuntimeException e)
+					{
+						errors++;
+					}
+
+					final long elapsed = System.nanoTime() - start;
+					LatencySamples methodSamples = methods.get(call.getMethod());
+
+					if (methodSamples == null)
+					{
+						methodSamples = new LatencySamples();
+						methods.put(call.getMethod(), methodSamples);
+					}
+
+					methodSamples.add(elapsed);
+					calls.add(elapsed);
+				}
+			}
+			finally
+			{
+				if (transaction.isActive())
+					transaction.commit();
+
+				requests.add(System.nanoTime() - requestStart);
+				budget.end();
+			}
+
+			requestCount++;
+			statements += budget.getStatementCount();
+			maxRequestStatements = Math.max(maxRequestStatements, budget.getStatementCount());
+
+			for (Integer repeats : budget.getRepeatedStatements().values())
+				maxRequestRepeats = Math.max(maxRequestRepeats, repeats.intValue());
+		}
+
+		/**
+		 * Replays a call, returning false if the method is not known.
+		 */
+		private boolean replayCall(ContainerCallLog.Call call)
+		{
+			final String method = call.getMethod();
+
+			if (method.equals("size"))
+				container.size();
+			else if (method.equals("containsId"))
+				container.containsId(mapId(call.getArgument(0)));
+			else if (method.equals("getItem"))
+				container.getItem(mapId(call.getArgument(0)));
+			else if (method.equals("getContainerProperty"))
+			{
+				final Property<?> property = container.getContainerProperty(mapId(call.getArgument(0)),
+						mapPropertyId(call.getArgument(1)));
+
+				if (property != null)
+					property.getValue();
+			}
+			else if (method.equals("getItemIds") && call.getArgumentCount() == 0)
+				container.getItemIds();
+			else if (method.equals("getItemIds"))
+				container.getItemIds(mapIndex(call.getArgument(0)), ((Integer) call.getArgument(1)).intValue());
+			else if (method.equals("indexOfId"))
+				container.indexOfId(mapId(call.getArgument(0)));
+			else if (method.equals("getIdByIndex"))
+				container.getIdByIndex(mapIndex(call.getArgument(0)));
+			else if (method.equals("nextItemId"))
+				container.nextItemId(mapId(call.getArgument(0)));
+			else if (method.equals("prevItemId"))
+				container.prevItemId(mapId(call.getArgument(0)));
+			else if (method.equals("firstItemId"))
+				container.firstItemId();
+			else if (method.equals("lastItemId"))
+				container.lastItemId();
+			else if (method.equals("isFirstId"))
+				container.isFirstId(mapId(call.getArgument(0)));
+			else if (method.equals("isLastId"))
+				container.isLastId(mapId(call.getArgument(0)));
+			else if (method.equals("sort"))
+			{
+				final Object[] sortPropertyIds = new Object[call.getArgumentCount() / 2];
+				final boolean[] ascending = new boolean[sortPropertyIds.length];
+
+				for (int i = 0; i < sortPropertyIds.length; i++)
+				{
+					sortPropertyIds[i] = mapPropertyId(call.getArgument(2 * i));
+					ascending[i] = Boolean.TRUE.equals(call.getArgument(2 * i + 1));
+				}
+
+				container.sort(sortPropertyIds, ascending);
+			}
+			else if (method.equals("getChildren"))
+				container.getChildren(mapId(call.getArgument(0)));
+			else if (method.equals("getParent"))
+				container.getParent(mapId(call.getArgument(0)));
+			else if (method.equals("rootItemIds"))
+				container.rootItemIds();
+			else if (method.equals("areChildrenAllowed"))
+				container.areChildrenAllowed(mapId(call.getArgument(0)));
+			else if (method.equals("isRoot"))
+				container.isRoot(mapId(call.getArgument(0)));
+			else if (method.equals("hasChildren"))
+				container.hasChildren(mapId(call.getArgument(0)));
+			else
+				return false;
+
+			return true;
+		}
+
+		private Object mapId(Object itemId)
+		{
+			if (itemId == null)
+				return null;
+
+			final int rows = database.getRowCount();
+
+			if (itemId instanceof Number)
+				return database.getId((int) (((((Number) itemId).longValue() - 1) % rows + rows) % rows));
+
+			return database.getId((itemId.hashCode() & Integer.MAX_VALUE) % rows);
+		}
+
+		private int mapIndex(Object index)
+		{
+			return ((Integer) index).intValue() % database.getRowCount();
+		}
+
+		private Object mapPropertyId(Object propertyId)
+		{
+			final Collection<String> knownPropertyIds = container.getContainerPropertyIds();
+
+			if (knownPropertyIds.contains(propertyId))
+				return propertyId;
+
+			Object mapped = propertyIds.get(propertyId);
+
+			if (mapped == null)
+			{
+				mapped = COLUMNS[propertyIds.size() % COLUMNS.length];
+				propertyIds.put(propertyId, mapped);
+			}
+
+			return mapped;
+		}
+
+		private void report(BenchmarkRunner runner)
+		{
+			final ContainerMetrics metrics = container.getMetrics();
+			final BenchmarkResult result = new BenchmarkResult("replay", runner.getParameters(), "replay", "ns/call",
+					calls.getMean());
+
+			calls.addTo(result, "call.");
+			requests.addTo(result, "request.");
+			result.addSecondary("errors", errors)
+					.addSecondary("skippedCalls", skipped)
+					.addSecondary("statements", statements)
+					.addSecondary("statementsPerRequest.mean", (double) statements / Math.max(1, requestCount))
+					.addSecondary("statementsPerRequest.max", maxRequestStatements)
+					.addSecondary("statementRepeatsPerRequest.max", maxRequestRepeats);
+
+			if (metrics != null)
+			{
+				result.addSecondary("cache.hits", metrics.getCacheHitCount())
+						.addSecondary("cache.misses", metrics.getCacheMissCount())
+						.addSecondary("cache.hitRate", metrics.getCacheHitRate())
+						.addSecondary("rowBuffer.hits", metrics.getRowBufferHitCount())
+						.addSecondary("rowBuffer.misses", metrics.getRowBufferMissCount());
+
+				for (Map.Entry<String, Long> queries : metrics.getQueryCounts().entrySet())
+					result.addSecondary("queries." + queries.getKey(), queries.getValue());
+			}
+
+			runner.addResult(result);
+
+			for (Map.Entry<String, LatencySamples> method : methods.entrySet())
+			{
+				final LatencySamples samples = method.getValue();
+
+				runner.addResult(samples.addTo(new BenchmarkResult("replay." + method.getKey(),
+						runner.getParameters(), "replay", "ns/call", samples.getMean()), ""));
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.vaadin.data.hbnutil.benchmarks;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+/**
+ * Benchmark running every iteration in a transaction of the current session, like a UI request would.
+ */
+public abstract class TransactionalBenchmark extends Benchmark
+{
+	private final SessionFactory sessionFactory;
+	private Transaction transaction;
+
+	public TransactionalBenchmark(SessionFactory sessionFactory)
+	{
+		this.sessionFactory = sessionFactory;
+	}
+
+	@Override
+	public void setUp() throws Exception
+	{
+		transaction = sessionFactory.getCurrentSession().beginTransaction();
+	}
+
+	@Override
+	public void tearDown() throws Exception
+	{
+		if (transaction != null && transaction.isActive())
+			transaction.commit();
+
+		transaction = null;
+	}
+}
@@ -21,10 +21,12 @@ import org.slf4j.LoggerFactory;
 public class ApplicationLogger
 {
 	private final Logger logger;
+	private final String className;
 
 	public ApplicationLogger(Class<?> classType)
 	{
 		logger = LoggerFactory.getLogger(classType);
+		className = classType.getSimpleName();
 	}
 
 	public void error(String message)
@@ -102,42 +104,30 @@ public class ApplicationLogger
 		logger.trace(message + ": " + unwindStack(exception));
 	}
 
-	public void executionTrace()
+	/**
+	 * Traces the execution of the given call site, normally the name of the calling method. The site is passed as a
+	 * constant instead of being looked up on the stack, so tracing stays cheap enough to be enabled in production: the
+	 * call is logged at TRACE level and recorded in the {@link ExecutionTrace} ring buffer when that is enabled. Nothing
+	 * is allocated when both are disabled.
+	 */
+	public void executionTrace(String site)
 	{
-		if (logger.isTraceEnabled()) // speed-up when not tracing
-		{
-			final StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-			logger.trace(formatTraceMessage(null, stackTrace[2]));
-		}
+		ExecutionTrace.record(className, site);
+		logger.trace("Execution Trace: {}.{}()", className, site);
 	}
 
-	public void executionTrace(String message)
+	/**
+	 * Traces the execution of the calling method, found by walking the stack.
+	 * 
+	 * @deprecated walking the stack is slow, use {@link #executionTrace(String)} instead.
+	 */
+	@Deprecated
+	public void executionTrace()
 	{
-		if (logger.isTraceEnabled()) // speed-up when not tracing
+		if (logger.isTraceEnabled() || ExecutionTrace.isEnabled()) // speed-up when not tracing
 		{
 			final StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-			logger.trace(formatTraceMessage(message, stackTrace[2]));
-		}
-	}
-
-	private String formatTraceMessage(String message, StackTraceElement stackElement)
-	{
-		try
-		{
-			final StringBuilder traceMessage = new StringBuilder();
-
-			traceMessage.append(String.format("Execution Trace: [%s:%d] %s()",
-				stackElement.getFileName(), stackElement.getLineNumber(), stackElement.getMethodName()));
-
-			if (message != null && message.length() > 0)
-				traceMessage.append(": " + traceMessage);
-
-			return traceMessage.toString();
-		}
-		catch (Exception e)
-		{
-			this.error(e);
-			return "Trace unavailable due to previous errors...";
+			executionTrace(stackTrace[2].getMethodName());
 		}
 	}
 
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+/**
+ * Polls a changelog table maintained by database triggers and reports the logged changes to HbnContainers, so writes
+ * made outside of Hibernate, for example by batch jobs in other processes, show up without a full refresh. Each row of
+ * the table describes one change: the entity name, the identifier of the changed entity, the operation ('I', 'U' or
+ * 'D', or any word starting with these letters) and an ascending sequence number. Every poll reads the rows after the
+ * last seen sequence number with a single indexed query, and the changes are queued in the registered containers
+ * until their {@link HbnContainer#applyExternalChanges()} is called.
+ * 
+ * Sequence numbers are assigned when a row is inserted but become visible when its transaction commits, so a row can
+ * show up after rows with higher numbers were already read. The numbers skipped by a poll are therefore remembered as
+ * gaps and read again by the following polls, until they show up or the gap timeout expires; numbers lost by rolled
+ * back transactions simply expire.
+ * 
+ * The entity column may hold the Hibernate entity name or the unqualified class name. Only simple identifiers are
+ * supported. Since the triggers log the writes made through the containers as well, these are reported back, which
+ * costs a verification query when they are applied but leaves the container consistent. Containers are referenced
+ * weakly. Rows are never deleted by the poller; purging old rows is left to the database.
+ */
+public class ChangeLogPoller
+{
+	private ApplicationLogger logger = new ApplicationLogger(ChangeLogPoller.class);
+
+	private static final int DEFAULT_MAX_ROWS = 1000;
+	private static final long DEFAULT_GAP_TIMEOUT_MILLIS = 60000;
+	private static final int MAX_GAPS = 1000;
+	private final SessionFactory sessionFactory;
+	private final String changesQuery;
+	private final String gapsQuery;
+	private final String lastSequenceQuery;
+	private final List<WeakReference<HbnContainer<?>>> containers =
+			new CopyOnWriteArrayList<WeakReference<HbnContainer<?>>>();
+	private volatile long lastSequence = Long.MIN_VALUE;
+	private int maxRows = DEFAULT_MAX_ROWS;
+	private long gapTimeoutMillis = DEFAULT_GAP_TIMEOUT_MILLIS;
+	private final TreeMap<Long, Long> gapDeadlines = new TreeMap<Long, Long>();
+	private ScheduledFuture<?> scheduledPoll;
+
+	/**
+	 * Creates a poller for a changelog table with the columns entity, entity_id, op and seq.
+	 */
+	public ChangeLogPoller(SessionFactory sessionFactory, String tableName)
+	{
+		this(sessionFactory, tableName, "entity", "entity_id", "op", "seq");
+	}
+
+	public ChangeLogPoller(SessionFactory sessionFactory, String tableName, String entityColumn, String idColumn,
+			String operationColumn, String sequenceColumn)
+	{
+		this.sessionFactory = sessionFactory;
+		final String select = "select " + entityColumn + ", " + idColumn + ", " + operationColumn + ", "
+				+ sequenceColumn + " from " + tableName + " where " + sequenceColumn;
+
+		this.changesQuery = select + " > ? order by " + sequenceColumn;
+		this.gapsQuery = select + " in (:gaps) order by " + sequenceColumn;
+		this.lastSequenceQuery = "select max(" + sequenceColumn + ") from " + tableName;
+	}
+
+	/**
+	 * Starts reporting the logged changes of the entity type of the given container to it.
+	 */
+	public void addContainer(HbnContainer<?> container)
+	{
+		logger.executionTrace("addContainer");
+
+		containers.add(new WeakReference<HbnContainer<?>>(container));
+	}
+
+	/**
+	 * Stops reporting logged changes to the given container.
+	 */
+	public void removeContainer(HbnContainer<?> container)
+	{
+		logger.executionTrace("removeContainer");
+
+		for (WeakReference<HbnContainer<?>> reference : containers)
+		{
+			final HbnContainer<?> registered = reference.get();
+
+			if (registered == null || registered == container)
+				containers.remove(reference);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of changelog rows read by one poll. Remaining rows are read by the next polls.
+	 */
+	public void setMaxRows(int maxRows)
+	{
+		logger.executionTrace("setMaxRows");
+
+		this.maxRows = maxRows;
+	}
+
+	public int getMaxRows()
+	{
+		logger.executionTrace("getMaxRows");
+
+		return maxRows;
+	}
+
+	/**
+	 * Sets how long a skipped sequence number is read again before it is given up, 60 seconds by default. It should
+	 * exceed the longest transaction that writes to the logged tables.
+	 */
+	public void setGapTimeout(long timeout, TimeUnit unit)
+	{
+		logger.executionTrace("setGapTimeout");
+
+		this.gapTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	public long getGapTimeout(TimeUnit unit)
+	{
+		logger.executionTrace("getGapTimeout");
+
+		return unit.convert(gapTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the number of skipped sequence numbers that are still read again by the polls.
+	 */
+	public synchronized int getGapCount()
+	{
+		logger.executionTrace("getGapCount");
+
+		return gapDeadlines.size();
+	}
+
+	/**
+	 * Gets the sequence number of the last change read.
+	 */
+	public long getLastSequence()
+	{
+		logger.executionTrace("getLastSequence");
+
+		return lastSequence;
+	}
+
+	/**
+	 * Sets the sequence number of the last change read, for example to resume polling where a previous poller stopped.
+	 * The remembered gaps are dropped.
+	 */
+	public synchronized void setLastSequence(long lastSequence)
+	{
+		logger.executionTrace("setLastSequence");
+
+		this.lastSequence = lastSequence;
+		gapDeadlines.clear();
+	}
+
+	/**
+	 * Skips the changes already logged, typically before the first poll since freshly loaded containers already show
+	 * them. Otherwise the first poll reads the table from its first row.
+	 */
+	public synchronized void skipLoggedChanges()
+	{
+		logger.executionTrace("skipLoggedChanges");
+
+		final StatelessSession session = sessionFactory.openStatelessSession();
+		final Transaction transaction = session.beginTransaction();
+
+		try
+		{
+			final Number sequence = (Number) session.createSQLQuery(lastSequenceQuery).uniqueResult();
+			transaction.commit();
+
+			if (sequence != null)
+				lastSequence = sequence.longValue();
+
+			gapDeadlines.clear();
+		}
+		finally
+		{
+			close(session, transaction);
+		}
+	}
+
+	/**
+	 * Reads the changes logged since the last poll, and those that showed up in the gaps left by earlier polls, and
+	 * queues them in the registered containers. Returns the number of changelog rows read.
+	 */
+	public synchronized int poll()
+	{
+		logger.executionTrace("poll");
+
+		expireGaps();
+
+		final StatelessSession session = sessionFactory.openStatelessSession();
+		final Transaction transaction = session.beginTransaction();
+		final List<?> gapRows;
+		final List<?> rows;
+
+		try
+		{
+			if (gapDeadlines.isEmpty())
+			{
+				gapRows = new ArrayList<Object>();
+			}
+			else
+			{
+				gapRows = session.createSQLQuery(gapsQuery)
+						.setParameterList("gaps", new ArrayList<Long>(gapDeadlines.keySet()))
+						.list();
+			}
+
+			rows = session.createSQLQuery(changesQuery)
+					.setLong(0, lastSequence)
+					.setMaxResults(maxRows)
+					.list();
+			transaction.commit();
+		}
+		finally
+		{
+			close(session, transaction);
+		}
+
+		for (Object row : gapRows)
+		{
+			final Object[] columns = (Object[]) row;
+
+			gapDeadlines.remove(((Number) columns[3]).longValue());
+			notifyContainers(columns);
+		}
+
+		for (Object row : rows)
+		{
+			final Object[] columns = (Object[]) row;
+			final long sequence = ((Number) columns[3]).longValue();
+
+			addGaps(sequence);
+			notifyContainers(columns);
+
+			lastSequence = sequence;
+		}
+
+		if (!gapRows.isEmpty())
+			logger.debug("read " + gapRows.size() + " late logged changes, " + gapDeadlines.size() + " gaps left");
+
+		if (!rows.isEmpty())
+			logger.debug("read " + rows.size() + " logged changes up to sequence " + lastSequence);
+
+		return gapRows.size() + rows.size();
+	}
+
+	/**
+	 * Remembers the sequence numbers between the last one read and the given one as gaps. At most MAX_GAPS are kept;
+	 * if there are more, the lowest ones are given up.
+	 */
+	private void addGaps(long sequence)
+	{
+		if (lastSequence == Long.MIN_VALUE || sequence - lastSequence <= 1)
+			return;
+
+		final long deadline = System.currentTimeMillis() + gapTimeoutMillis;
+		final long first = Math.max(lastSequence + 1, sequence - MAX_GAPS);
+
+		if (first > lastSequence + 1)
+			logger.warn("gave up " + (first - lastSequence - 1) + " skipped changelog sequence numbers");
+
+		for (long gap = first; gap < sequence; gap++)
+			gapDeadlines.put(gap, deadline);
+
+		while (gapDeadlines.size() > MAX_GAPS)
+			gapDeadlines.pollFirstEntry();
+	}
+
+	/**
+	 * Gives up the gaps whose timeout expired.
+	 */
+	private void expireGaps()
+	{
+		final long now = System.currentTimeMillis();
+		final Iterator<Map.Entry<Long, Long>> gaps = gapDeadlines.entrySet().iterator();
+
+		while (gaps.hasNext())
+		{
+			if (gaps.next().getValue() <= now)
+				gaps.remove();
+		}
+	}
+
+	/**
+	 * Polls the changelog on the given scheduler with the given delay between two polls, until {@link #stop()} is
+	 * called.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler, long delay, TimeUnit unit)
+	{
+		logger.executionTrace("start");
+
+		stop();
+
+		scheduledPoll = scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					poll();
+				}
+				catch (RuntimeException e)
+				{
+					logger.error(e);
+				}
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * Stops polling on the scheduler.
+	 */
+	public synchronized void stop()
+	{
+		logger.executionTrace("stop");
+
+		if (scheduledPoll != null)
+			scheduledPoll.cancel(false);
+
+		scheduledPoll = null;
+	}
+
+	/**
+	 * Ends the transaction of a changelog read and closes its session. The reads run in a transaction of their own, so
+	 * the pooled connection is not handed back with a transaction open, which on MVCC databases would keep snapshots
+	 * alive and hold back DDL.
+	 */
+	private static void close(StatelessSession session, Transaction transaction)
+	{
+		try
+		{
+			if (transaction.isActive())
+				transaction.rollback();
+		}
+		finally
+		{
+			session.close();
+		}
+	}
+
+	private void notifyContainers(Object[] columns)
+	{
+		final EntityChangeListener.Change change = getChange(columns[2]);
+
+		if (change != null && columns[0] != null && columns[1] != null)
+			notifyContainers(columns[0].toString(), columns[1], change);
+	}
+
+	private void notifyContainers(String entityName, Object entityId, EntityChangeListener.Change change)
+	{
+		for (WeakReference<HbnContainer<?>> reference : containers)
+		{
+			final HbnContainer<?> container = reference.get();
+
+			if (container == null)
+				containers.remove(reference);
+			else
+				container.changeLogged(change, entityName, entityId);
+		}
+	}
+
+	private static EntityChangeListener.Change getChange(Object operation)
+	{
+		if (operation == null || operation.toString().length() == 0)
+			return null;
+
+		switch (Character.toUpperCase(operation.toString().charAt(0)))
+		{
+			case 'I':
+				return EntityChangeListener.Change.INSERT;
+			case 'U':
+				return EntityChangeListener.Change.UPDATE;
+			case 'D':
+				return EntityChangeListener.Change.DELETE;
+			default:
+				return null;
+		}
+	}
+}
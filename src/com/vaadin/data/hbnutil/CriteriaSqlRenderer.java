@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import org.hibernate.Criteria;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.internal.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaJoinWalker;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
+import org.hibernate.persister.entity.OuterJoinLoadable;
+
+/**
+ * Renders the SQL of a criteria query with the Hibernate loader classes, for the slow operation log when no
+ * QueryBudgetInterceptor captured the statement. These classes are Hibernate internals, so all of their use is kept
+ * here: if they fail to link against the Hibernate version at hand, the renderer disables itself and the log entries
+ * are written without SQL.
+ */
+final class CriteriaSqlRenderer
+{
+	private static final ApplicationLogger logger = new ApplicationLogger(CriteriaSqlRenderer.class);
+	private static volatile boolean disabled = false;
+
+	private CriteriaSqlRenderer()
+	{
+	}
+
+	/**
+	 * Renders the SQL the given criteria query is executed with, or returns null if it can not be rendered.
+	 */
+	static String render(Criteria criteria)
+	{
+		if (disabled || !(criteria instanceof CriteriaImpl))
+			return null;
+
+		try
+		{
+			final CriteriaImpl criteriaImpl = (CriteriaImpl) criteria;
+			final SessionImplementor session = criteriaImpl.getSession();
+			final SessionFactoryImplementor factory = session.getFactory();
+			final String entityName = factory.getImplementors(criteriaImpl.getEntityOrClassName())[0];
+			final CriteriaQueryTranslator translator = new CriteriaQueryTranslator(factory, criteriaImpl, entityName,
+					CriteriaQueryTranslator.ROOT_SQL_ALIAS);
+
+			return new CriteriaJoinWalker((OuterJoinLoadable) factory.getEntityPersister(entityName), translator,
+					factory, criteriaImpl, entityName, session.getLoadQueryInfluencers()).getSQLString();
+		}
+		catch (RuntimeException e)
+		{
+			logger.debug("unable to render the SQL of a slow query: " + e);
+			return null;
+		}
+		catch (LinkageError e)
+		{
+			disabled = true;
+			logger.warn("rendering the SQL of slow queries is not supported with this Hibernate version: " + e);
+			return null;
+		}
+	}
+}
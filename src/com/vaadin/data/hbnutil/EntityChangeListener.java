@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCollectionUpdateEvent;
+import org.hibernate.event.spi.PostCollectionUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+
+/**
+ * Hibernate event listener that tells the HbnContainers tracking changes about entities written by any session of
+ * their session factory. One listener is registered per session factory, the first time a container of that factory
+ * enables change tracking. Inserts, updates and deletes are reported once their transaction committed, collection
+ * updates when they are flushed. The containers are referenced weakly, so a container that is no longer used can be
+ * garbage collected without disabling change tracking first.
+ */
+final class EntityChangeListener implements PostInsertEventListener, PostUpdateEventListener,
+		PostDeleteEventListener, PostCollectionUpdateEventListener
+{
+	private static final long serialVersionUID = 2630862714370185841L;
+	private static final Map<SessionFactory, EntityChangeListener> listeners =
+			new WeakHashMap<SessionFactory, EntityChangeListener>();
+
+	private final transient List<WeakReference<HbnContainer<?>>> containers =
+			new CopyOnWriteArrayList<WeakReference<HbnContainer<?>>>();
+
+	/**
+	 * Kind of change reported to a container.
+	 */
+	enum Change
+	{
+		INSERT, UPDATE, DELETE
+	}
+
+	private EntityChangeListener()
+	{
+	}
+
+	/**
+	 * Starts reporting the changes of the given session factory to the given container.
+	 */
+	static void register(SessionFactory sessionFactory, HbnContainer<?> container)
+	{
+		getListener(sessionFactory).containers.add(new WeakReference<HbnContainer<?>>(container));
+	}
+
+	/**
+	 * Stops reporting changes to the given container.
+	 */
+	static void unregister(SessionFactory sessionFactory, HbnContainer<?> container)
+	{
+		final EntityChangeListener listener;
+
+		synchronized (listeners)
+		{
+			listener = listeners.get(sessionFactory);
+		}
+
+		if (listener == null)
+			return;
+
+		for (WeakReference<HbnContainer<?>> reference : listener.containers)
+		{
+			final HbnContainer<?> registered = reference.get();
+
+			if (registered == null || registered == container)
+				listener.containers.remove(reference);
+		}
+	}
+
+	private static EntityChangeListener getListener(SessionFactory sessionFactory)
+	{
+		synchronized (listeners)
+		{
+			EntityChangeListener listener = listeners.get(sessionFactory);
+
+			if (listener == null)
+			{
+				listener = new EntityChangeListener();
+				listeners.put(sessionFactory, listener);
+
+				final EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory)
+						.getServiceRegistry()
+						.getService(EventListenerRegistry.class);
+
+				registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+				registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+				registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+				registry.appendListeners(EventType.POST_COLLECTION_UPDATE, listener);
+			}
+
+			return listener;
+		}
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent event)
+	{
+		notifyContainers(Change.INSERT, event.getEntity(), event.getId());
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent event)
+	{
+		notifyContainers(Change.UPDATE, event.getEntity(), event.getId());
+	}
+
+	@Override
+	public void onPostDelete(PostDeleteEvent event)
+	{
+		notifyContainers(Change.DELETE, event.getEntity(), event.getId());
+	}
+
+	@Override
+	public void onPostUpdateCollection(PostCollectionUpdateEvent event)
+	{
+		final Object owner = event.getAffectedOwnerOrNull();
+
+		if (owner != null)
+			notifyContainers(Change.UPDATE, owner, event.getAffectedOwnerIdOrNull());
+	}
+
+	private void notifyContainers(Change change, Object entity, Serializable entityId)
+	{
+		final Iterator<WeakReference<HbnContainer<?>>> iterator = containers.iterator();
+
+		while (iterator.hasNext())
+		{
+			final WeakReference<HbnContainer<?>> reference = iterator.next();
+			final HbnContainer<?> container = reference.get();
+
+			if (container == null)
+				containers.remove(reference);
+			else
+				container.entityChanged(change, entity, entityId);
+		}
+	}
+}
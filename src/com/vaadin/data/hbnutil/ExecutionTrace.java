@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low overhead record of the most recent operations, meant to be switched on in production to diagnose a slow screen.
+ * Every call of {@link ApplicationLogger#executionTrace(String)} is stored in a fixed size ring buffer together with
+ * its thread and a nanosecond timestamp, without locking, stack walking or allocation, and the buffer can be dumped
+ * on demand. When disabled, which is the default, recording costs a single volatile read.
+ * 
+ * Writers never wait for each other or for a dump; an entry that is overwritten while it is dumped is skipped, so a
+ * dump is a best effort snapshot of the last {@link #getCapacity()} operations.
+ */
+public final class ExecutionTrace
+{
+	private static final int DEFAULT_CAPACITY = 4096;
+	private static volatile boolean enabled = false;
+	private static volatile RingBuffer buffer = new RingBuffer(DEFAULT_CAPACITY);
+
+	private ExecutionTrace()
+	{
+	}
+
+	/**
+	 * Enables or disables recording. Disabling keeps the recorded operations so they can still be dumped.
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		ExecutionTrace.enabled = enabled;
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Sets the number of operations kept, rounded up to a power of two, and discards the recorded ones.
+	 */
+	public static void setCapacity(int capacity)
+	{
+		buffer = new RingBuffer(Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+	}
+
+	public static int getCapacity()
+	{
+		return buffer.mask + 1;
+	}
+
+	/**
+	 * Discards the recorded operations.
+	 */
+	public static void clear()
+	{
+		buffer = new RingBuffer(getCapacity());
+	}
+
+	/**
+	 * Records a call of the given site. Both arguments are expected to be constants so nothing is allocated.
+	 */
+	static void record(String className, String site)
+	{
+		if (enabled)
+			buffer.record(className, site);
+	}
+
+	/**
+	 * Returns the recorded operations, oldest first, one line each with the time elapsed since the oldest one in
+	 * milliseconds, the thread identifier and the call site.
+	 */
+	public static List<String> dump()
+	{
+		return buffer.dump();
+	}
+
+	/**
+	 * Fixed size ring buffer of operations. Each slot carries the sequence number it was last written for; a slot is
+	 * marked as being written before its fields are set, so readers can detect and skip torn entries.
+	 */
+	private static final class RingBuffer
+	{
+		private final int mask;
+		private final AtomicLong cursor = new AtomicLong();
+		private final AtomicLongArray sequences;
+		private final String[] classNames;
+		private final String[] sites;
+		private final long[] threadIds;
+		private final long[] timestamps;
+
+		private RingBuffer(int capacity)
+		{
+			mask = capacity - 1;
+			sequences = new AtomicLongArray(capacity);
+			classNames = new String[capacity];
+			sites = new String[capacity];
+			threadIds = new long[capacity];
+			timestamps = new long[capacity];
+
+			for (int i = 0; i < capacity; i++)
+				sequences.set(i, -1);
+		}
+
+		private void record(String className, String site)
+		{
+			final long sequence = cursor.getAndIncrement();
+			final int index = (int) sequence & mask;
+
+			sequences.set(index, -1);
+			classNames[index] = className;
+			sites[index] = site;
+			threadIds[index] = Thread.currentThread().getId();
+			timestamps[index] = System.nanoTime();
+			sequences.lazySet(index, sequence);
+		}
+
+		private List<String> dump()
+		{
+			final long last = cursor.get();
+			final long first = Math.max(0, last - mask - 1);
+			final List<String> lines = new ArrayList<String>((int) (last - first));
+			long origin = 0;
+
+			for (long sequence = first; sequence < last; sequence++)
+			{
+				final int index = (int) sequence & mask;
+
+				if (sequences.get(index) != sequence)
+					continue;
+
+				final String className = classNames[index];
+				final String site = sites[index];
+				final long threadId = threadIds[index];
+				final long timestamp = timestamps[index];
+
+				if (sequences.get(index) != sequence)
+					continue;
+
+				if (lines.isEmpty())
+					origin = timestamp;
+
+				lines.add(String.format("%12.3f ms [thread %d] %s.%s()",
+						(double) (timestamp - origin) / TimeUnit.MILLISECONDS.toNanos(1), threadId, className, site));
+			}
+
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.vaadin.data.hbnutil.filter.ContainerFilter;
+
+/**
+ * Caches the identifiers matching a set of container filters. The cache is bounded by the total number of cached
+ * identifiers and evicts the least recently used filter results first. Numeric identifiers are stored as a sorted
+ * primitive array to keep the footprint small.
+ */
+public class FilterResultCache
+{
+	private final Cache<Set<ContainerFilter>, IdSet> cache;
+
+	public FilterResultCache(long maximumIds)
+	{
+		// a single segment, as Guava splits the maximum weight between the segments and a filter result weighing more
+		// than its segment's share would be evicted immediately
+		cache = CacheBuilder.newBuilder()
+				.concurrencyLevel(1)
+				.maximumWeight(maximumIds)
+				.weigher(new Weigher<Set<ContainerFilter>, IdSet>()
+				{
+					@Override
+					public int weigh(Set<ContainerFilter> filters, IdSet ids)
+					{
+						return Math.max(1, ids.size());
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Returns the cached identifiers for the given filters or null if they are not cached.
+	 */
+	public IdSet get(Set<ContainerFilter> filters)
+	{
+		return cache.getIfPresent(filters);
+	}
+
+	/**
+	 * Caches the identifiers for the given filters. The filter set is copied so later changes to the container filters
+	 * do not affect the cache key.
+	 */
+	public IdSet put(Set<ContainerFilter> filters, Collection<?> ids)
+	{
+		final IdSet idSet = IdSet.of(ids);
+		cache.put(new HashSet<ContainerFilter>(filters), idSet);
+		return idSet;
+	}
+
+	/**
+	 * Discards all cached filter results, typically because the underlying data was modified.
+	 */
+	public void invalidateAll()
+	{
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Returns the hit, miss and eviction statistics of this cache.
+	 */
+	public CacheStats stats()
+	{
+		return cache.stats();
+	}
+
+	/**
+	 * Immutable set of entity identifiers. Long and Integer identifiers are kept in a sorted long array, any other
+	 * identifier type in a hash set.
+	 */
+	public static final class IdSet implements Serializable
+	{
+		private static final long serialVersionUID = -2318765329837530261L;
+		private final long[] numericIds;
+		private final boolean integerIds;
+		private final Set<Object> objectIds;
+
+		private IdSet(long[] numericIds, boolean integerIds, Set<Object> objectIds)
+		{
+			this.numericIds = numericIds;
+			this.integerIds = integerIds;
+			this.objectIds = objectIds;
+		}
+
+		static IdSet of(Collection<?> ids)
+		{
+			boolean allLong = true;
+			boolean allInteger = true;
+
+			for (Object id : ids)
+			{
+				allLong &= (id instanceof Long);
+				allInteger &= (id instanceof Integer);
+			}
+
+			if (ids.isEmpty() || !(allLong || allInteger))
+				return new IdSet(null, false, new HashSet<Object>(ids));
+
+			final long[] numericIds = new long[ids.size()];
+			int i = 0;
+
+			for (Object id : ids)
+				numericIds[i++] = ((Number) id).longValue();
+
+			Arrays.sort(numericIds);
+			return new IdSet(numericIds, allInteger, null);
+		}
+
+		public int size()
+		{
+			return (numericIds != null) ? numericIds.length : objectIds.size();
+		}
+
+		public boolean contains(Object id)
+		{
+			if (numericIds == null)
+				return objectIds.contains(id);
+
+			if (!(integerIds ? id instanceof Integer : id instanceof Long))
+				return false;
+
+			return Arrays.binarySearch(numericIds, ((Number) id).longValue()) >= 0;
+		}
+
+		/**
+		 * Returns the identifiers with their original type, in ascending order for numeric identifiers.
+		 */
+		public List<Object> toList()
+		{
+			if (numericIds == null)
+				return new ArrayList<Object>(objectIds);
+
+			final List<Object> ids = new ArrayList<Object>(numericIds.length);
+
+			for (long id : numericIds)
+				ids.add(integerIds ? (Object) Integer.valueOf((int) id) : (Object) Long.valueOf(id));
+
+			return ids;
+		}
+	}
+}
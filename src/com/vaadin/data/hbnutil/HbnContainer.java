@@ -13,9 +13,13 @@
 
 package com.vaadin.data.hbnutil;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,23 +31,44 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
 import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Conjunction;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.internal.CriteriaImpl;
 import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.type.ComponentType;
 import org.hibernate.type.Type;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -54,6 +79,12 @@ import com.vaadin.data.hbnutil.HbnContainer.EntityItem.EntityProperty;
 import com.vaadin.data.hbnutil.filter.ContainerFilter;
 import com.vaadin.data.hbnutil.filter.FilterFactory;
 import com.vaadin.data.hbnutil.filter.StringContainerFilter;
+import com.vaadin.data.hbnutil.filter.SubqueryContainerFilter;
+import com.vaadin.data.hbnutil.metrics.ContainerEvent;
+import com.vaadin.data.hbnutil.metrics.ContainerEventRecorder;
+import com.vaadin.data.hbnutil.metrics.ContainerMetrics;
+import com.vaadin.data.hbnutil.metrics.ContainerMetrics.QueryShape;
+import com.vaadin.data.hbnutil.metrics.MetricsRegistry;
 import com.vaadin.data.util.MethodProperty;
 import com.vaadin.data.util.converter.Converter.ConversionException;
 import com.vaadin.data.util.filter.UnsupportedFilterException;
@@ -70,7 +101,13 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 	private String parentPropertyName = null;
 	private static final int ROW_BUF_SIZE = 100;
 	private static final int ID_TO_INDEX_MAX_SIZE = 300;
+	private static final int ID_RESTRICTION_MAX_SIZE = 2000;
+	private static final int ID_RESTRICTION_CHUNK_SIZE = 500;
+	private static final int IN_MEMORY_MAX_ROWS = 50000;
+	private static final int EVALUATION_CHUNK_SIZE = 500;
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 50;
 	private boolean normalOrder = true;
+	private final boolean orderCustomized;
 	private List<T> ascRowBuffer;
 	private List<T> descRowBuffer;
 	private Object lastId;
@@ -86,6 +123,32 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 	private final Map<String, Class<?>> addedProperties = new HashMap<String, Class<?>>();
 	private final LoadingCache<Object, EntityItem<T>> cache;
 	private final HashMap<Object, Boolean> embeddedPropertiesCache = new HashMap<Object, Boolean>();
+	private final AtomicLong queryGeneration = new AtomicLong();
+	private transient Map<Session, RunningQuery> runningQueries = new ConcurrentHashMap<Session, RunningQuery>();
+	private int queryTimeout = 0;
+	private FilterResultCache filterResultCache;
+	private boolean inMemory = false;
+	private InMemorySnapshot inMemorySnapshot;
+	private InMemorySnapshot evaluatedSnapshot;
+	private int writeBatchSize = 0;
+	private transient WriteBehindQueue<T> writeBehindQueue;
+	private boolean eventCoalescing = false;
+	private transient Container.ItemSetChangeEvent pendingEvent;
+	private transient ScheduledExecutorService eventScheduler;
+	private transient ScheduledFuture<?> scheduledEventFlush;
+	private transient Executor eventDispatcher;
+	private transient volatile boolean eventsDue = false;
+	private long eventDebounceMillis = 0;
+	private boolean changeTracking = false;
+	private transient ContainerMetrics metrics;
+	private transient ContainerEventRecorder eventRecorder;
+	private transient int operationDepth = 0;
+	private long slowOperationNanos = 0;
+	private int callMaxStatements = 0;
+	private int callMaxRepeats = 0;
+	private QueryBudget.Action callBudgetAction = QueryBudget.Action.WARN;
+	private transient Queue<ExternalChange> externalChanges = new ConcurrentLinkedQueue<ExternalChange>();
+	private transient Cache<Object, Boolean> ownWrites = CacheBuilder.newBuilder().weakKeys().build();
 
 	/**
 	 * Item wrappping a Hibernate mapped entity object. EntityItems are generally instantiated automatically by
@@ -111,7 +174,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 		@SuppressWarnings("unchecked")
 		public EntityItem(Serializable id)
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.<init>");
 
 			pojo = (T) sessionFactory.getCurrentSession().get(entityType, id);
 			// add non-hibernate mapped container properties
@@ -126,14 +189,14 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 		 */
 		public T getPojo()
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.getPojo");
 			return pojo;
 		}
 
 		@SuppressWarnings("rawtypes")
 		public boolean addItemProperty(Object id, Property property) throws UnsupportedOperationException
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.addItemProperty");
 
 			properties.put(id, property);
 			return true;
@@ -141,7 +204,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 
 		public Property<?> getItemProperty(Object id)
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.getItemProperty");
 
 			Property<?> p = properties.get(id);
 			if (p == null)
@@ -154,14 +217,14 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 
 		public Collection<?> getItemPropertyIds()
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.getItemPropertyIds");
 
 			return getContainerPropertyIds();
 		}
 
 		public boolean removeItemProperty(Object id) throws UnsupportedOperationException
 		{
-			logger.executionTrace();
+			logger.executionTrace("EntityItem.removeItemProperty");
 
 			Property<?> removed = properties.remove(id);
 			return removed != null;
@@ -196,7 +259,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			public EntityProperty(String propertyName)
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.<init>");
 
 				this.propertyName = propertyName;
 			}
@@ -209,12 +272,12 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public Object getValue()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.getValue");
 
 				final Session session = sessionFactory.getCurrentSession();
 				final SessionImplementor sessionImplementor = (SessionImplementor) session;
 
-				if (!sessionFactory.getCurrentSession().contains(pojo))
+				if (!sessionFactory.getCurrentSession().contains(pojo) && !isWriteQueued(pojo))
 					pojo = (T) session.get(entityType, (Serializable) getIdForPojo(pojo));
 
 				if (propertyInEmbeddedKey(propertyName))
@@ -276,7 +339,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public boolean isReadOnly()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.isReadOnly");
 
 				return false;
 			}
@@ -305,7 +368,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public void setValue(Object newValue) throws ReadOnlyException, ConversionException
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.setValue");
 
 				try
 				{
@@ -411,10 +474,20 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 							}
 						}
 
-						@SuppressWarnings("unchecked")
-						T newPojo = (T) session.merge(pojo);
-						pojo = newPojo;
+						if (writeBehindQueue != null)
+						{
+							queueUpdate(session, pojo);
+						}
+						else
+						{
+							@SuppressWarnings("unchecked")
+							T newPojo = (T) session.merge(pojo);
+							pojo = newPojo;
+						}
+
+						markOwnWrite(pojo);
 
+						invalidateCachedResults();
 						fireValueChange();
 					}
 					catch (Exception e)
@@ -435,7 +508,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public void addListener(ValueChangeListener listener)
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.addListener");
 
 				if (valueChangeListeners == null)
 					valueChangeListeners = new LinkedList<ValueChangeListener>();
@@ -450,7 +523,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public void removeListener(ValueChangeListener listener)
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.removeListener");
 
 				if (valueChangeListeners != null)
 					valueChangeListeners.remove(listener);
@@ -462,7 +535,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public void addValueChangeListener(ValueChangeListener listener)
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.addValueChangeListener");
 
 				addListener(listener);
 			}
@@ -473,7 +546,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public void removeValueChangeListener(ValueChangeListener listener)
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.removeValueChangeListener");
 
 				removeListener(listener);
 			}
@@ -493,7 +566,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			@Override
 			public String toString()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.toString");
 
 				final Object value = getValue();
 				return (value != null) ? value.toString() : null;
@@ -504,7 +577,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			public EntityItem<T> getEntityItem()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.getEntityItem");
 
 				return EntityItem.this;
 			}
@@ -514,7 +587,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			public T getPojo()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.getPojo");
 
 				return pojo;
 			}
@@ -524,7 +597,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			private Type getPropertyType()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.getPropertyType");
 
 				return classMetadata.getPropertyType(propertyName);
 			}
@@ -536,7 +609,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			public Class<?> getType()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.getType");
 
 				if (propertyInEmbeddedKey(propertyName))
 				{
@@ -601,7 +674,7 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 			 */
 			private void fireValueChange()
 			{
-				logger.executionTrace();
+				logger.executionTrace("EntityProperty.fireValueChange");
 				if (valueChangeListeners != null)
 				{
 					final HbnPropertyValueChangeEvent event = new HbnPropertyValueChangeEvent();
@@ -617,16 +690,75 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 		}
 	}
 
+	/**
+	 * Receives the entities scrolled by {@link HbnContainer#exportEntities(ExportHandler)}, one at a time.
+	 */
+	public interface ExportHandler<E>
+	{
+		public void export(E entity);
+	}
+
+	/**
+	 * Item set change event telling that items were added to the container, fired by saveEntity and the bulk insert
+	 * methods. Listeners that do not know this type can treat it as a plain item set change. Mirrors the event of the
+	 * same name introduced in later Vaadin versions.
+	 */
+	public interface ItemAddEvent extends Container.ItemSetChangeEvent
+	{
+		/**
+		 * Gets the identifier of the first added item. It may be null if the identifier is only assigned later.
+		 */
+		public Object getFirstItemId();
+
+		/**
+		 * Gets the index of the first added item, or -1 if it is not known, for example after a bulk insert.
+		 */
+		public int getFirstIndex();
+
+		public int getAddedItemsCount();
+	}
+
+	/**
+	 * Item set change event telling that items were removed from the container, fired by removeItem and removeItems.
+	 * Listeners that do not know this type can treat it as a plain item set change.
+	 */
+	public interface ItemRemoveEvent extends Container.ItemSetChangeEvent
+	{
+		public Object getFirstItemId();
+
+		/**
+		 * Gets the index the first removed item had, or -1 if it is not known.
+		 */
+		public int getFirstIndex();
+
+		/**
+		 * Gets the number of removed items, including removed children.
+		 */
+		public int getRemovedItemsCount();
+	}
+
+	/**
+	 * Receives the outcome of the writes performed in the background when write-behind is enabled. The methods are
+	 * called on the executor thread, once per written batch.
+	 */
+	public interface WriteBehindListener<E>
+	{
+		public void writesCompleted(List<E> entities);
+
+		public void writesFailed(List<E> entities, Exception exception);
+	}
+
 	/**
 	 * Constructor creates a new instance of HbnContainer.
 	 */
 	public HbnContainer(Class<T> entityType, SessionFactory sessionFactory)
 	{
-		logger.executionTrace();
+		logger.executionTrace("<init>");
 
 		this.entityType = entityType;
 		this.sessionFactory = sessionFactory;
 		this.classMetadata = sessionFactory.getClassMetadata(entityType);
+		this.orderCustomized = isOrderCustomized();
 
 		this.cache = CacheBuilder.newBuilder()
 				.expireAfterAccess(2, TimeUnit.MINUTES)
@@ -657,1413 +789,4436 @@ public class HbnContainer<T> implements Container, Container.Indexed, Container.
 	 */
 	protected EntityItem<T> loadEntity(Serializable entityId)
 	{
-		logger.executionTrace();
+		logger.executionTrace("loadEntity");
 
 		EntityItem<T> entity = null;
 
 		if (entityId != null)
+		{
+			final long start = startTiming();
 			entity = new EntityItem<T>(entityId);
+			recordQuery(QueryShape.SINGLE_GET, start, null, null, (entity.getPojo() == null) ? 0 : 1);
+		}
 
 		return entity;
 	}
 
 	/**
 	 * This method is used to save an entity to the database and in the process it will fire an item set change event.
+	 * With write-behind enabled the insert is only queued and the identifier is returned if it is already assigned;
+	 * generated identifiers are set on the entity once the insert was written.
 	 */
 	public Serializable saveEntity(T entity)
 	{
-		logger.executionTrace();
+		logger.executionTrace("saveEntity");
+
+		final long start = startTiming();
+		markOwnWrite(entity);
+
+		if (writeBehindQueue != null)
+		{
+			writeBehindQueue.insert(entity);
+			recordEvent(ContainerEvent.Kind.WRITE, "saveEntity", start, -1, -1, 1, false);
+			return (Serializable) getIdForPojo(entity);
+		}
 
 		final Session session = sessionFactory.getCurrentSession();
 		final Object entityId = session.save(entity);
 
-		clearInternalCache();
-		fireItemSetChange();
+		invalidateCachedResults();
+
+		final Integer index = applyInsert(entityId, entity);
 
+		if (index == null)
+			clearInternalCache();
+
+		if (index != null && index >= 0)
+			fireItemSetChange(new ItemAdd(entityId, index, 1));
+		else
+			fireItemSetChange();
+
+		recordEvent(ContainerEvent.Kind.WRITE, "saveEntity", start, -1, -1, 1, false);
 		return (Serializable) entityId;
 	}
 
 	/**
-	 * This method is used to update an entity in the database, update the cache and fire value change events when
-	 * necessary.
+	 * This method is used to save many entities to the database at once, for example during an import. The session is
+	 * flushed and cleared every {@link #getWriteBatchSize()} entities so the first-level cache stays bounded, and the
+	 * inserts of each flush are sent as JDBC batches if hibernate.jdbc.batch_size is configured and the identifier
+	 * generator allows it. A single item set change event is fired at the end.
+	 * 
+	 * Note that clearing the session detaches every entity it holds, not only the saved ones.
 	 */
-	public Serializable updateEntity(T entity)
+	public List<Serializable> saveEntities(Iterable<T> entities)
 	{
-		logger.executionTrace();
+		logger.executionTrace("saveEntities");
 
+		final long eventStart = startTiming();
 		final Session session = sessionFactory.getCurrentSession();
-		session.update(entity);
+		final List<Serializable> entityIds = new ArrayList<Serializable>();
+		final int batchSize = getWriteBatchSize();
+		final long start = System.currentTimeMillis();
 
-		final Object entityId = getIdForPojo(entity);
-		final EntityItem<T> cachedEntity = cache.getIfPresent(entityId);
-
-		cache.refresh(entityId);
-
-		if (cachedEntity != null)
+		for (T entity : entities)
 		{
-			for (Object propertyId : cachedEntity.getItemPropertyIds())
+			markOwnWrite(entity);
+			entityIds.add(session.save(entity));
+
+			if (entityIds.size() % batchSize == 0)
 			{
-				Property<?> cachedProperty = cachedEntity.getItemProperty(propertyId);
-				if (cachedProperty instanceof EntityItem.EntityProperty)
-				{
-					@SuppressWarnings("rawtypes")
-					EntityProperty entityProperty = (EntityProperty) cachedProperty;
-					entityProperty.fireValueChange();
-				}
+				session.flush();
+				session.clear();
 			}
 		}
 
-		return (Serializable) entityId;
-	}
-
-	/**
-	 * This method adds a new property to all items in the container. The property id, data type and default value of
-	 * the new Property are given as parameters. HbnContainer automatically adds all fields that are mapped by Hibernate
-	 * to the database. With this method we can add a property to the container that is contained in the pojo but not
-	 * Hibernate mapped.
-	 */
-	@Override
-	public boolean addContainerProperty(Object propertyId, Class<?> classType, Object defaultValue)
-			throws UnsupportedOperationException
-	{
-		logger.executionTrace();
+		session.flush();
+		session.clear();
 
-		boolean propertyExists = true;
+		final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		logger.debug("saved " + entityIds.size() + " entities in " + elapsed + " ms ("
+				+ (entityIds.size() * 1000L / elapsed) + " entities/s)");
 
-		try
-		{
-			new MethodProperty<Object>(this.entityType.newInstance(), propertyId.toString());
-		}
-		catch (Exception e)
+		if (!entityIds.isEmpty())
 		{
-			logger.debug("Note: this is not an error: " + e);
-			propertyExists = false;
+			invalidateCachedResults();
+			clearInternalCache();
+			fireItemSetChange(new ItemAdd(entityIds.get(0), -1, entityIds.size()));
 		}
 
-		addedProperties.put(propertyId.toString(), classType);
-		return propertyExists;
+		recordEvent(ContainerEvent.Kind.WRITE, "saveEntities", eventStart, -1, -1, entityIds.size(), false);
+		return entityIds;
 	}
 
 	/**
-	 * Creates a new Item into the Container and assigns it an automatic ID. The new ID is returned, or null if the
-	 * operation fails. After a successful call you can use the getItemmethod to fetch the Item. This functionality is
-	 * optional.
+	 * Sets the number of entities written between two flushes of the session by the bulk write methods. A value of zero
+	 * or less uses hibernate.jdbc.batch_size, or 50 if that is not configured either.
 	 */
-	@Override
-	public Object addItem() throws UnsupportedOperationException
+	public void setWriteBatchSize(int batchSize)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setWriteBatchSize");
 
-		try
-		{
-			final T entity = entityType.newInstance();
-			return saveEntity(entity);
-		}
-		catch (Exception e)
-		{
-			logger.error(e);
-			return null;
-		}
+		writeBatchSize = batchSize;
 	}
 
 	/**
-	 * Creates a new Item with the given ID in the Container. The new Item is returned, and it is ready to have its
-	 * Properties modified. Returns null if the operation fails or the Container already contains a Item with the given
-	 * ID. This functionality is optional.
-	 * 
-	 * Note that in this implementation we are expecting auto-generated identifiers so this method is not implemented.
+	 * Gets the number of entities written between two flushes of the session by the bulk write methods.
 	 */
-	@Override
-	public Item addItem(Object entityId) throws UnsupportedOperationException
+	public int getWriteBatchSize()
 	{
-		throw new UnsupportedOperationException();
+		logger.executionTrace("getWriteBatchSize");
+
+		if (writeBatchSize > 0)
+			return writeBatchSize;
+
+		final int jdbcBatchSize = ((SessionFactoryImplementor) sessionFactory).getSettings().getJdbcBatchSize();
+		return (jdbcBatchSize > 0) ? jdbcBatchSize : DEFAULT_WRITE_BATCH_SIZE;
 	}
 
 	/**
-	 * Tests if the Container contains the specified Item. Filtering can hide items so that they will not be visible
-	 * through the container API, and this method should respect visibility of items (i.e. only indicate visible items
-	 * as being in the container) if feasible for the container.
+	 * Enables or disables event coalescing. In coalescing mode item set change events are not sent right away but
+	 * collected until {@link #flushEvents()} is called, typically once at the end of a request, so several filter,
+	 * sort and write operations cause a single refresh of the listening components. A single collected event is sent
+	 * as it is; several are merged into one plain item set change event. Pending events are sent when coalescing is
+	 * disabled.
 	 */
-	@Override
-	public boolean containsId(Object entityId)
+	public void setEventCoalescing(boolean eventCoalescing)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setEventCoalescing");
 
-		try
-		{
-			final EntityItem<T> entity = cache.get(entityId);
-			return (entity != null);
-		}
-		catch (Exception e)
-		{
-			logger.error(e);
-			return false;
-		}
+		this.eventCoalescing = eventCoalescing;
+
+		if (!eventCoalescing)
+			flushEvents();
 	}
 
 	/**
-	 * Gets the Property identified by the given entityId and propertyId from the Container. If the Container does not
-	 * contain the item or it is filtered out, or the Container does not have the Property, null is returned.
+	 * Tells if event coalescing is enabled.
 	 */
-	@Override
-	public Property<?> getContainerProperty(Object entityId, Object propertyId)
+	public boolean isEventCoalescing()
 	{
-		logger.executionTrace();
+		logger.executionTrace("isEventCoalescing");
 
-		try
-		{
-			EntityItem<?> entity = cache.get(entityId);
-			Property<?> property = entity.getItemProperty(propertyId);
-			return property;
-		}
-		catch (Exception e)
-		{
-			logger.error(e);
-			return null;
-		}
+		return eventCoalescing;
 	}
 
 	/**
-	 * Gets the ID's of all Properties stored in the Container. The ID's cannot be modified through the returned
-	 * collection.
+	 * Sets a debounce for event coalescing mode, meant for push driven updates that have no natural end of request.
+	 * Once no further event was collected for the given delay, the collected events are marked due on a thread of the
+	 * given scheduler; they are not sent from that thread, but at the start of the next call of a Container API method,
+	 * on the thread making it. A null scheduler removes the debounce.
 	 */
-	@Override
-	public Collection<String> getContainerPropertyIds()
+	public void setEventDebounce(long delay, TimeUnit unit, ScheduledExecutorService scheduler)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setEventDebounce");
 
-		Collection<String> propertyIds = getSortableContainerPropertyIds();
-		propertyIds.addAll(addedProperties.keySet());
-		return propertyIds;
+		setEventDebounce(delay, unit, scheduler, null);
 	}
 
 	/**
-	 * This is an HbnContainer specific utility method that is used to retrieve the list of embedded property key
-	 * identifiers.
+	 * Sets a debounce for event coalescing mode like {@link #setEventDebounce(long, TimeUnit, ScheduledExecutorService)},
+	 * but hands due events to the given dispatcher, which is expected to send them with {@link #flushEvents()} on the
+	 * thread owning the container, typically by running the task with the lock of the UI session held. Without a
+	 * dispatcher due events wait for the next container call.
 	 */
-	private Collection<String> getEmbeddedKeyPropertyIds()
+	public synchronized void setEventDebounce(long delay, TimeUnit unit, ScheduledExecutorService scheduler,
+			Executor dispatcher)
 	{
-		logger.executionTrace();
-
-		final ArrayList<String> embeddedKeyPropertyIds = new ArrayList<String>();
-		final Type identifierType = classMetadata.getIdentifierType();
-
-		if (identifierType.isComponentType())
-		{
-			final ComponentType idComponent = (ComponentType) identifierType;
-			final String[] propertyNameArray = idComponent.getPropertyNames();
+		logger.executionTrace("setEventDebounce");
 
-			if (propertyNameArray != null)
-			{
-				final List<String> propertyNames = Arrays.asList(propertyNameArray);
-				embeddedKeyPropertyIds.addAll(propertyNames);
-			}
-		}
+		if (scheduledEventFlush != null)
+			scheduledEventFlush.cancel(false);
 
-		return embeddedKeyPropertyIds;
+		scheduledEventFlush = null;
+		eventScheduler = scheduler;
+		eventDispatcher = dispatcher;
+		eventDebounceMillis = unit.toMillis(delay);
 	}
 
 	/**
-	 * Gets the Item with the given Item ID from the Container. If the Container does not contain the requested Item,
-	 * null is returned. Containers should not return Items that are filtered out.
+	 * Sends the item set change event collected in event coalescing mode, if any.
 	 */
-	@Override
-	public EntityItem<T> getItem(Object entityId)
+	public void flushEvents()
 	{
-		logger.executionTrace();
+		logger.executionTrace("flushEvents");
 
-		try
-		{
-			return cache.get(entityId);
-		}
-		catch (ExecutionException e)
+		final Container.ItemSetChangeEvent changeEvent;
+
+		synchronized (this)
 		{
-			logger.error(e);
-			return null;
+			changeEvent = pendingEvent;
+			pendingEvent = null;
+			eventsDue = false;
+
+			if (scheduledEventFlush != null)
+				scheduledEventFlush.cancel(false);
+
+			scheduledEventFlush = null;
 		}
+
+		if (changeEvent != null)
+			dispatchItemSetChange(changeEvent);
 	}
 
 	/**
-	 * Gets the ID's of all visible (after filtering and sorting) Items stored in the Container. The ID's cannot be
-	 * modified through the returned collection. If the container is Container.Ordered, the collection returned by this
-	 * method should follow that order. If the container is Container.Sortable, the items should be in the sorted order.
-	 * Calling this method for large lazy containers can be an expensive operation and should be avoided when practical.
-	 * 
-	 * Create an optimized query to return only identifiers. Note that this method does not scale well for large
-	 * database. At least Table is optimized so that it does not call this method.
+	 * Enables write-behind, or disables it if the executor is null. With write-behind enabled saveEntity, updateEntity
+	 * and setting item property values no longer write to the database on the calling thread. The change is applied to
+	 * the entity and the cached item right away, queued and coalesced per entity, and written on the given executor in
+	 * batches of {@link #getWriteBatchSize()} entities, each batch in its own session and transaction. The state of an
+	 * entity is copied when it is queued, so the caller may go on modifying it while the write is pending. The
+	 * listener is told about every written or failed batch. Entities are detached from the current session while their
+	 * writes are pending, and inserted entities show up in the container after {@link #flushWrites()}. Pending writes
+	 * are flushed before write-behind is disabled or reconfigured.
 	 */
-	@Override
-	public Collection<?> getItemIds()
+	public void setWriteBehind(Executor executor, WriteBehindListener<T> listener)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setWriteBehind");
+
+		flushWrites();
 
-		// TODO: BUG: does not preserve sort order!
-		final Criteria criteria = getCriteria();
-		criteria.setProjection(Projections.id());
-		return criteria.list();
+		writeBehindQueue = (executor != null)
+				? new WriteBehindQueue<T>(sessionFactory, classMetadata, executor, listener, getWriteBatchSize())
+				: null;
 	}
 
 	/**
-	 * Get numberOfItems consecutive item ids from the container, starting with the item id at startIndex.
-	 * 
-	 * Implementations should return at most numberOfItems item ids, but can contain less if the container has less
-	 * items than required to fulfill the request. The returned list must hence contain all of the item ids from the
-	 * range:
-	 * 
-	 * startIndex to max(startIndex + (numberOfItems-1), container.size()-1).
+	 * Tells if write-behind is enabled.
 	 */
-	@Override
-	public List<?> getItemIds(int startIndex, int count)
+	public boolean isWriteBehind()
 	{
-		logger.executionTrace();
+		logger.executionTrace("isWriteBehind");
 
-		final List<?> entityIds = (List<?>) getItemIds();
-		return entityIds.subList(startIndex, startIndex + count);
+		return writeBehindQueue != null;
 	}
 
 	/**
-	 * Gets the data type of all Properties identified by the given Property ID. This method does pretty much the same
-	 * thing as EntityItemProperty#getType()
+	 * Blocks until all writes queued by write-behind are written. If anything was written since the last call, the
+	 * internal caches are reset and an item set change event is fired so inserted entities become visible.
 	 */
-	public Class<?> getType(Object propertyId)
+	public void flushWrites()
 	{
-		logger.executionTrace();
-
-		// TODO: refactor to use same code as EntityItemProperty#getType()
-		// This will also fix incomplete implementation of this method (for association types). Not critical as
-		// Components don't really rely on this methods.
+		logger.executionTrace("flushWrites");
 
-		if (addedProperties.keySet().contains(propertyId))
-			return addedProperties.get(propertyId);
+		if (writeBehindQueue == null)
+			return;
 
-		if (propertyInEmbeddedKey(propertyId))
+		try
 		{
-			final ComponentType idType = (ComponentType) classMetadata.getIdentifierType();
-			final String[] propertyNames = idType.getPropertyNames();
-
-			for (int i = 0; i < propertyNames.length; i++)
+			if (writeBehindQueue.awaitFlush())
 			{
-				String name = propertyNames[i];
-				if (name.equals(propertyId))
-				{
-					String idName = classMetadata.getIdentifierPropertyName();
-					try
-					{
-						Field idField = entityType.getDeclaredField(idName);
-						Field propertyField = idField.getType().getDeclaredField((String) propertyId);
-						return propertyField.getType();
-					}
-					catch (NoSuchFieldException ex)
-					{
-						throw new RuntimeException("Could not find the type of specified container property.", ex);
-					}
-				}
+				cache.invalidateAll();
+				invalidateCachedResults();
+				clearInternalCache();
+				fireItemSetChange();
 			}
 		}
-
-		Type propertyType = classMetadata.getPropertyType(propertyId.toString());
-		return propertyType.getReturnedClass();
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
-	 * Removes all Items from the Container. Note that Property ID and type information is preserved. This functionality
-	 * is optional.
+	 * Enables or disables change tracking. With change tracking enabled the container listens to the entities of its
+	 * type written by any session of its session factory, for example by other users or by background jobs. The cached
+	 * item of a changed entity is invalidated as soon as the change is committed, and the change is queued until
+	 * {@link #applyExternalChanges()} is called. Writes made through this container are not reported back to it. Bulk
+	 * statements and stateless sessions, including removeAllItems, updateAll and importEntities, raise no Hibernate
+	 * events and are therefore not tracked; writes made outside of Hibernate can be tracked with a
+	 * {@link ChangeLogPoller} instead.
 	 */
-	@Override
-	public boolean removeAllItems() throws UnsupportedOperationException
+	public void setChangeTracking(boolean changeTracking)
 	{
-		logger.executionTrace();
-
-		try
-		{
-			final Session session = sessionFactory.getCurrentSession();
-			final Query query = session.createQuery("DELETE FROM " + entityType.getSimpleName());
+		logger.executionTrace("setChangeTracking");
 
-			final int deleted = query.executeUpdate();
-			cache.invalidateAll();
+		if (changeTracking == this.changeTracking)
+			return;
 
-			if (deleted > 0)
-			{
-				clearInternalCache();
-				fireItemSetChange();
-			}
+		this.changeTracking = changeTracking;
 
+		if (changeTracking)
+		{
+			EntityChangeListener.register(sessionFactory, this);
+		}
+		else
+		{
+			EntityChangeListener.unregister(sessionFactory, this);
+			externalChanges.clear();
+		}
+	}
+
+	/**
+	 * Tells if change tracking is enabled.
+	 */
+	public boolean isChangeTracking()
+	{
+		logger.executionTrace("isChangeTracking");
+
+		return changeTracking;
+	}
+
+	/**
+	 * Applies the changes queued by change tracking or by a {@link ChangeLogPoller} and fires the matching events: an
+	 * item add event for an inserted entity, an item remove event for a deleted one, and value change events on the
+	 * cached properties of an updated one. Updates that may move the entity, because the container is filtered, sorted
+	 * or hierarchical, fire a plain item set change event instead. Changed entities are evicted from the current
+	 * session so they are reloaded. This must be called on the thread that owns the container, for example from a poll
+	 * or push handler with the UI locked, since the changes themselves are reported on the threads that committed them
+	 * or polled them. Returns the number of applied changes.
+	 */
+	public int applyExternalChanges()
+	{
+		logger.executionTrace("applyExternalChanges");
+
+		final List<ExternalChange> changes = new ArrayList<ExternalChange>();
+		final Set<Object> entityIds = new HashSet<Object>();
+		ExternalChange change;
+
+		while ((change = externalChanges.poll()) != null)
+		{
+			changes.add(change);
+			entityIds.add(change.entityId);
+		}
+
+		if (changes.isEmpty())
+			return 0;
+
+		final Session session = sessionFactory.getCurrentSession();
+
+		evictEntities(session, entityIds);
+		cache.invalidateAll(entityIds);
+		invalidateCachedResults();
+
+		if (changes.size() > ROW_BUF_SIZE)
+		{
+			clearInternalCache();
+			fireItemSetChange();
+			return changes.size();
+		}
+
+		final List<Container.ItemSetChangeEvent> patchedEvents = new ArrayList<Container.ItemSetChangeEvent>();
+
+		for (ExternalChange externalChange : changes)
+		{
+			switch (externalChange.change)
+			{
+				case INSERT:
+					applyExternalInsert(session, externalChange.entityId, patchedEvents);
+					break;
+				case DELETE:
+					applyExternalDelete(externalChange.entityId, patchedEvents);
+					break;
+				case UPDATE:
+					applyExternalUpdate(externalChange.entityId, externalChange.item);
+					break;
+			}
+		}
+
+		firePatchedEvents(patchedEvents);
+
+		logger.debug("applied " + changes.size() + " external changes");
+		return changes.size();
+	}
+
+	/**
+	 * This method is used to update an entity in the database, update the cache and fire value change events when
+	 * necessary. With write-behind enabled the update is queued and the cached item shows the given entity right away;
+	 * an entity whose queued insert was not written yet has no identifier, so there is no cached item and null is
+	 * returned.
+	 */
+	public Serializable updateEntity(T entity)
+	{
+		logger.executionTrace("updateEntity");
+
+		final long start = startTiming();
+		final Session session = sessionFactory.getCurrentSession();
+		final Object entityId = getIdForPojo(entity);
+
+		markOwnWrite(entity);
+
+		if (writeBehindQueue != null)
+			queueUpdate(session, entity);
+		else
+			session.update(entity);
+
+		invalidateCachedResults();
+
+		if (entityId == null)
+		{
+			recordEvent(ContainerEvent.Kind.WRITE, "updateEntity", start, -1, -1, 1, false);
+			return null;
+		}
+
+		final EntityItem<T> cachedEntity = cache.getIfPresent(entityId);
+
+		if (writeBehindQueue != null && cachedEntity != null)
+			cachedEntity.pojo = entity;
+		else
+			cache.refresh(entityId);
+
+		if (cachedEntity != null)
+			fireValueChanges(cachedEntity);
+
+		recordEvent(ContainerEvent.Kind.WRITE, "updateEntity", start, -1, -1, 1, false);
+		return (Serializable) entityId;
+	}
+
+	/**
+	 * This method is used to insert a large number of entities, for example during an import. The entities are inserted
+	 * through a StatelessSession sharing the connection and transaction of the current session, so nothing is kept in a
+	 * first-level cache and memory use does not grow with the number of rows. Cascades, interceptors and second-level
+	 * caching do not apply to stateless inserts. A single item set change event is fired at the end.
+	 */
+	public List<Serializable> importEntities(Iterable<T> entities)
+	{
+		logger.executionTrace("importEntities");
+
+		final long eventStart = startTiming();
+		final List<Serializable> entityIds = new ArrayList<Serializable>();
+		final StatelessSession statelessSession = openStatelessSession();
+		final long start = System.currentTimeMillis();
+
+		try
+		{
+			for (T entity : entities)
+				entityIds.add(statelessSession.insert(entity));
+		}
+		finally
+		{
+			statelessSession.close();
+		}
+
+		final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		logger.debug("imported " + entityIds.size() + " entities in " + elapsed + " ms ("
+				+ (entityIds.size() * 1000L / elapsed) + " entities/s)");
+
+		if (!entityIds.isEmpty())
+		{
+			invalidateCachedResults();
+			clearInternalCache();
+			fireItemSetChange(new ItemAdd(entityIds.get(0), -1, entityIds.size()));
+		}
+
+		recordEvent(ContainerEvent.Kind.WRITE, "importEntities", eventStart, -1, -1, entityIds.size(), false);
+		return entityIds;
+	}
+
+	/**
+	 * This method is used to update a large number of detached entities through a StatelessSession sharing the
+	 * connection and transaction of the current session. Only the updated entities are invalidated in the item cache
+	 * and evicted from the current session; other cached items are left alone. A single item set change event is fired
+	 * at the end because filters and sorting may be affected by the new values.
+	 */
+	public List<Serializable> updateEntities(Iterable<T> entities)
+	{
+		logger.executionTrace("updateEntities");
+
+		final long start = startTiming();
+		final List<Serializable> entityIds = new ArrayList<Serializable>();
+		final Session session = sessionFactory.getCurrentSession();
+		final StatelessSession statelessSession = openStatelessSession();
+
+		try
+		{
+			for (T entity : entities)
+			{
+				statelessSession.update(entity);
+				entityIds.add((Serializable) getIdForPojo(entity));
+			}
+		}
+		finally
+		{
+			statelessSession.close();
+		}
+
+		if (!entityIds.isEmpty())
+		{
+			evictEntities(session, entityIds);
+			cache.invalidateAll(entityIds);
+			invalidateCachedResults();
+			clearInternalCache();
+			fireItemSetChange();
+		}
+
+		recordEvent(ContainerEvent.Kind.WRITE, "updateEntities", start, -1, -1, entityIds.size(), false);
+		return entityIds;
+	}
+
+	/**
+	 * This method is used to export the entities of the container, for example to a file. The current filters and
+	 * sort order are applied and the entities are scrolled with a forward-only cursor through a StatelessSession
+	 * sharing the connection of the current session, so every entity can be garbage collected once the handler
+	 * returns. Filters on properties not mapped by Hibernate are evaluated for every row; sorting on such properties is
+	 * not applied. Associations of exported entities are not initialized by a stateless session and must not be
+	 * navigated in the handler unless they are eagerly fetched. Returns the number of exported entities.
+	 */
+	public int exportEntities(ExportHandler<T> handler)
+	{
+		logger.executionTrace("exportEntities");
+
+		final List<ContainerFilter> addedPropertyFilters = getAddedPropertyFilters();
+		final List<Method> addedPropertyGetters = getAddedPropertyGetters(addedPropertyFilters);
+		final StatelessSession statelessSession = openStatelessSession();
+		final long start = System.currentTimeMillis();
+		int exported = 0;
+
+		try
+		{
+			final Criteria criteria = statelessSession.createCriteria(entityType).setFetchSize(EVALUATION_CHUNK_SIZE);
+
+			if (filters != null)
+				addFilterCriteria(criteria, filters);
+
+			for (Order order : getOrder(false))
+				criteria.addOrder(order);
+
+			if (queryTimeout > 0)
+				criteria.setTimeout(queryTimeout);
+
+			final ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+
+			try
+			{
+				while (results.next())
+				{
+					@SuppressWarnings("unchecked")
+					final T entity = (T) results.get(0);
+
+					if (passesFilters(entity, addedPropertyFilters, addedPropertyGetters))
+					{
+						handler.export(entity);
+						exported++;
+					}
+				}
+			}
+			finally
+			{
+				results.close();
+			}
+		}
+		finally
+		{
+			statelessSession.close();
+		}
+
+		final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		logger.debug("exported " + exported + " entities in " + elapsed + " ms ("
+				+ (exported * 1000L / elapsed) + " entities/s)");
+
+		return exported;
+	}
+
+	/**
+	 * This method adds a new property to all items in the container. The property id, data type and default value of
+	 * the new Property are given as parameters. HbnContainer automatically adds all fields that are mapped by Hibernate
+	 * to the database. With this method we can add a property to the container that is contained in the pojo but not
+	 * Hibernate mapped.
+	 */
+	@Override
+	public boolean addContainerProperty(Object propertyId, Class<?> classType, Object defaultValue)
+			throws UnsupportedOperationException
+	{
+		logger.executionTrace("addContainerProperty");
+
+		boolean propertyExists = true;
+
+		try
+		{
+			new MethodProperty<Object>(this.entityType.newInstance(), propertyId.toString());
+		}
+		catch (Exception e)
+		{
+			logger.debug("Note: this is not an error: " + e);
+			propertyExists = false;
+		}
+
+		addedProperties.put(propertyId.toString(), classType);
+		return propertyExists;
+	}
+
+	/**
+	 * Creates a new Item into the Container and assigns it an automatic ID. The new ID is returned, or null if the
+	 * operation fails. After a successful call you can use the getItemmethod to fetch the Item. This functionality is
+	 * optional.
+	 */
+	@Override
+	public Object addItem() throws UnsupportedOperationException
+	{
+		logger.executionTrace("addItem");
+
+		try
+		{
+			final T entity = entityType.newInstance();
+			return saveEntity(entity);
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a new Item with the given ID in the Container. The new Item is returned, and it is ready to have its
+	 * Properties modified. Returns null if the operation fails or the Container already contains a Item with the given
+	 * ID. This functionality is optional.
+	 * 
+	 * Note that in this implementation we are expecting auto-generated identifiers so this method is not implemented.
+	 */
+	@Override
+	public Item addItem(Object entityId) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Tests if the Container contains the specified Item. Filtering can hide items so that they will not be visible
+	 * through the container API, and this method should respect visibility of items (i.e. only indicate visible items
+	 * as being in the container) if feasible for the container.
+	 */
+	@Override
+	public boolean containsId(Object entityId)
+	{
+		logger.executionTrace("containsId");
+
+		final long start = startOperation();
+
+		try
+		{
+			final EntityItem<T> entity = cache.get(entityId);
+			return (entity != null);
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return false;
+		}
+		finally
+		{
+			recordOperation("containsId", start);
+		}
+	}
+
+	/**
+	 * Gets the Property identified by the given entityId and propertyId from the Container. If the Container does not
+	 * contain the item or it is filtered out, or the Container does not have the Property, null is returned.
+	 */
+	@Override
+	public Property<?> getContainerProperty(Object entityId, Object propertyId)
+	{
+		logger.executionTrace("getContainerProperty");
+
+		try
+		{
+			EntityItem<?> entity = cache.get(entityId);
+			Property<?> property = entity.getItemProperty(propertyId);
+			return property;
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the ID's of all Properties stored in the Container. The ID's cannot be modified through the returned
+	 * collection.
+	 */
+	@Override
+	public Collection<String> getContainerPropertyIds()
+	{
+		logger.executionTrace("getContainerPropertyIds");
+
+		Collection<String> propertyIds = getSortableContainerPropertyIds();
+		propertyIds.addAll(addedProperties.keySet());
+		return propertyIds;
+	}
+
+	/**
+	 * This is an HbnContainer specific utility method that is used to retrieve the list of embedded property key
+	 * identifiers.
+	 */
+	private Collection<String> getEmbeddedKeyPropertyIds()
+	{
+		logger.executionTrace("getEmbeddedKeyPropertyIds");
+
+		final ArrayList<String> embeddedKeyPropertyIds = new ArrayList<String>();
+		final Type identifierType = classMetadata.getIdentifierType();
+
+		if (identifierType.isComponentType())
+		{
+			final ComponentType idComponent = (ComponentType) identifierType;
+			final String[] propertyNameArray = idComponent.getPropertyNames();
+
+			if (propertyNameArray != null)
+			{
+				final List<String> propertyNames = Arrays.asList(propertyNameArray);
+				embeddedKeyPropertyIds.addAll(propertyNames);
+			}
+		}
+
+		return embeddedKeyPropertyIds;
+	}
+
+	/**
+	 * Gets the Item with the given Item ID from the Container. If the Container does not contain the requested Item,
+	 * null is returned. Containers should not return Items that are filtered out.
+	 */
+	@Override
+	public EntityItem<T> getItem(Object entityId)
+	{
+		logger.executionTrace("getItem");
+
+		final long start = startOperation();
+		final boolean cacheHit = eventRecorder != null && entityId != null && cache.asMap().containsKey(entityId);
+
+		try
+		{
+			return cache.get(entityId);
+		}
+		catch (ExecutionException e)
+		{
+			logger.error(e);
+			return null;
+		}
+		finally
+		{
+			recordOperation("getItem", start);
+			recordEvent(ContainerEvent.Kind.CACHE_LOAD, "getItem", start, -1, -1, cacheHit ? 0 : 1, cacheHit);
+		}
+	}
+
+	/**
+	 * Gets the ID's of all visible (after filtering and sorting) Items stored in the Container. The ID's cannot be
+	 * modified through the returned collection. If the container is Container.Ordered, the collection returned by this
+	 * method should follow that order. If the container is Container.Sortable, the items should be in the sorted order.
+	 * Calling this method for large lazy containers can be an expensive operation and should be avoided when practical.
+	 * 
+	 * Create an optimized query to return only identifiers. Note that this method does not scale well for large
+	 * database. At least Table is optimized so that it does not call this method.
+	 */
+	@Override
+	public Collection<?> getItemIds()
+	{
+		logger.executionTrace("getItemIds");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.getIds(0, snapshot.size());
+
+			// TODO: BUG: does not preserve sort order!
+			final Criteria criteria = getCriteria();
+			criteria.setProjection(Projections.id());
+			return listQuery(criteria, QueryShape.ID_PROJECTION);
+		}
+		finally
+		{
+			recordOperation("getItemIds", start);
+		}
+	}
+
+	/**
+	 * Get numberOfItems consecutive item ids from the container, starting with the item id at startIndex.
+	 * 
+	 * Implementations should return at most numberOfItems item ids, but can contain less if the container has less
+	 * items than required to fulfill the request. The returned list must hence contain all of the item ids from the
+	 * range:
+	 * 
+	 * startIndex to max(startIndex + (numberOfItems-1), container.size()-1).
+	 */
+	@Override
+	public List<?> getItemIds(int startIndex, int count)
+	{
+		logger.executionTrace("getItemIds");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.getIds(startIndex, count);
+
+			final List<?> entityIds = (List<?>) getItemIds();
+			return entityIds.subList(startIndex, startIndex + count);
+		}
+		finally
+		{
+			recordOperation("getItemIds", start, startIndex, count);
+		}
+	}
+
+	/**
+	 * Gets the data type of all Properties identified by the given Property ID. This method does pretty much the same
+	 * thing as EntityItemProperty#getType()
+	 */
+	public Class<?> getType(Object propertyId)
+	{
+		logger.executionTrace("getType");
+
+		// TODO: refactor to use same code as EntityItemProperty#getType()
+		// This will also fix incomplete implementation of this method (for association types). Not critical as
+		// Components don't really rely on this methods.
+
+		if (addedProperties.keySet().contains(propertyId))
+			return addedProperties.get(propertyId);
+
+		if (propertyInEmbeddedKey(propertyId))
+		{
+			final ComponentType idType = (ComponentType) classMetadata.getIdentifierType();
+			final String[] propertyNames = idType.getPropertyNames();
+
+			for (int i = 0; i < propertyNames.length; i++)
+			{
+				String name = propertyNames[i];
+				if (name.equals(propertyId))
+				{
+					String idName = classMetadata.getIdentifierPropertyName();
+					try
+					{
+						Field idField = entityType.getDeclaredField(idName);
+						Field propertyField = idField.getType().getDeclaredField((String) propertyId);
+						return propertyField.getType();
+					}
+					catch (NoSuchFieldException ex)
+					{
+						throw new RuntimeException("Could not find the type of specified container property.", ex);
+					}
+				}
+			}
+		}
+
+		Type propertyType = classMetadata.getPropertyType(propertyId.toString());
+		return propertyType.getReturnedClass();
+	}
+
+	/**
+	 * Removes all Items from the Container. Note that Property ID and type information is preserved. This functionality
+	 * is optional.
+	 */
+	@Override
+	public boolean removeAllItems() throws UnsupportedOperationException
+	{
+		logger.executionTrace("removeAllItems");
+
+		final long start = startTiming();
+
+		try
+		{
+			final Session session = sessionFactory.getCurrentSession();
+			final Query query = session.createQuery("DELETE FROM " + entityType.getSimpleName());
+
+			final int deleted = query.executeUpdate();
+			cache.invalidateAll();
+			invalidateCachedResults();
+
+			if (deleted > 0)
+			{
+				clearInternalCache();
+				fireItemSetChange();
+			}
+
+			recordEvent(ContainerEvent.Kind.WRITE, "removeAllItems", start, -1, -1, deleted, false);
 			return (size() == 0);
 		}
-		catch (Exception e)
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Sets the given properties to the given values on every item that passes the current filters. The filters are
+	 * compiled into the WHERE clause of a single HQL UPDATE statement. If a filter can not be expressed in HQL, the
+	 * identifiers of the filtered items are queried first and updated in chunks instead. Bulk updates bypass the
+	 * session, so all cached items of the container are invalidated and its entities are evicted from the current
+	 * session. A single item set change event is fired. Returns the number of updated items.
+	 * 
+	 * Only mapped properties that are not collections can be updated. Like for setting a property value, the value of
+	 * an association is the identifier of the referenced entity; an entity instance is accepted as well. The version of
+	 * a versioned entity is incremented by the statement and can not be set.
+	 */
+	public int updateAll(Map<?, ?> propertyValues) throws UnsupportedOperationException
+	{
+		logger.executionTrace("updateAll");
+
+		final long start = startTiming();
+
+		if (propertyValues.isEmpty())
+			return 0;
+
+		final List<String> mappedNames = Arrays.asList(classMetadata.getPropertyNames());
+		final String versionName = classMetadata.isVersioned()
+				? classMetadata.getPropertyNames()[classMetadata.getVersionProperty()]
+				: null;
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final StringBuilder assignments = new StringBuilder();
+
+		for (Map.Entry<?, ?> propertyValue : propertyValues.entrySet())
+		{
+			final String propertyName = propertyValue.getKey().toString();
+
+			if (isAddedProperty(propertyName) || propertyInEmbeddedKey(propertyName)
+					|| propertyName.equals(getIdPropertyName()) || !mappedNames.contains(propertyName))
+			{
+				final String message = "HbnContainer can only bulk update mapped properties: " + propertyName;
+				throw new UnsupportedOperationException(message);
+			}
+
+			final Type propertyType = classMetadata.getPropertyType(propertyName);
+
+			if (propertyType.isCollectionType())
+			{
+				final String message = "HbnContainer can not bulk update collection properties: " + propertyName;
+				throw new UnsupportedOperationException(message);
+			}
+
+			if (propertyName.equals(versionName))
+			{
+				final String message = "HbnContainer can not bulk update the version property: " + propertyName;
+				throw new UnsupportedOperationException(message);
+			}
+
+			final String parameterName = "hbnset" + parameters.size();
+			parameters.put(parameterName, getBulkUpdateValue(propertyType, propertyValue.getValue()));
+
+			if (assignments.length() > 0)
+				assignments.append(", ");
+
+			assignments.append(propertyName).append(" = :").append(parameterName);
+		}
+
+		final String statement = ((versionName != null) ? "update versioned " : "update ")
+				+ classMetadata.getEntityName() + " set " + assignments;
+		final int updated = executeBulkStatement(statement, parameters);
+
+		if (updated > 0)
+		{
+			invalidateCachedResults();
+			clearInternalCache();
+			fireItemSetChange();
+		}
+
+		recordEvent(ContainerEvent.Kind.WRITE, "updateAll", start, -1, -1, updated, false);
+		return updated;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that converts a value given to updateAll to the value bound to
+	 * the statement. The value of an association is taken as the identifier of the referenced entity, which is loaded
+	 * as a proxy, unless it already is an instance of the referenced type.
+	 */
+	private Object getBulkUpdateValue(Type propertyType, Object value)
+	{
+		if (value == null || !propertyType.isAssociationType())
+			return value;
+
+		final Class<?> referencedType = propertyType.getReturnedClass();
+
+		if (referencedType.isInstance(value))
+			return value;
+
+		return sessionFactory.getCurrentSession().load(referencedType, (Serializable) value);
+	}
+
+	/**
+	 * Removes every item that passes the current filters. The filters are compiled into the WHERE clause of a single
+	 * HQL DELETE statement. If a filter can not be expressed in HQL, or if some of the items have children that must be
+	 * removed first, the identifiers of the filtered items are queried first and removed like by
+	 * {@link #removeItems(Collection)}. A single item set change event is fired. Returns the number of removed items,
+	 * not counting removed children.
+	 */
+	public int removeAll()
+	{
+		logger.executionTrace("removeAll");
+
+		final long start = startTiming();
+		int removed = 0;
+
+		if (!hasFilteredChildren())
+		{
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			removed = executeBulkStatement("delete from " + classMetadata.getEntityName(), parameters);
+		}
+		else
+		{
+			final List<Object> entityIds = new ArrayList<Object>(getItemIds());
+			deleteEntities(entityIds);
+			removed = entityIds.size();
+		}
+
+		if (removed > 0)
+		{
+			invalidateCachedResults();
+			clearInternalCache();
+			fireItemSetChange();
+		}
+
+		recordEvent(ContainerEvent.Kind.WRITE, "removeAll", start, -1, -1, removed, false);
+		return removed;
+	}
+
+	/**
+	 * Removes a Property specified by the given Property ID from the Container. Note that the Property will be removed
+	 * from all Items in the Container. This functionality is optional.
+	 */
+	@Override
+	public boolean removeContainerProperty(Object propertyId) throws UnsupportedOperationException
+	{
+		logger.executionTrace("removeContainerProperty");
+
+		final Class<?> removed = addedProperties.remove(propertyId);
+		return (removed != null);
+	}
+
+	/**
+	 * Removes the Item identified by entityId from the Container. Containers that support filtering should also allow
+	 * removing an item that is currently filtered out. This functionality is optional.
+	 * 
+	 * Note that this method recursively removes all children of this entity before removing this entity.
+	 */
+	@Override
+	public boolean removeItem(Object entityId) throws UnsupportedOperationException
+	{
+		logger.executionTrace("removeItem");
+
+		final long start = startTiming();
+		final Integer index = idToIndex.get(entityId);
+		final int deleted = deleteEntity(entityId);
+
+		if (deleted == 1 && index != null && applyRemoval(entityId, index))
+		{
+			fireItemSetChange(new ItemRemove(entityId, index, 1));
+		}
+		else
+		{
+			clearInternalCache();
+			fireItemSetChange(new ItemRemove(entityId, (index != null) ? index : -1, deleted));
+		}
+
+		recordEvent(ContainerEvent.Kind.WRITE, "removeItem", start, -1, -1, deleted, false);
+		return true;
+	}
+
+	/**
+	 * Removes the items identified by the given identifiers together with all their children, for example a multiple
+	 * selection of a table. Children are resolved for the whole set with one query per tree level, and the entities
+	 * are deleted with chunked id IN statements, children first. Like removeAllItems, the deletes bypass the session,
+	 * so cascades configured on the entities do not apply. A single item set change event is fired.
+	 */
+	public boolean removeItems(Collection<?> entityIds) throws UnsupportedOperationException
+	{
+		logger.executionTrace("removeItems");
+
+		if (entityIds.isEmpty())
+			return false;
+
+		final long start = startTiming();
+		final int deleted = deleteEntities(entityIds);
+
+		invalidateCachedResults();
+		clearInternalCache();
+		fireItemSetChange(new ItemRemove(entityIds.iterator().next(), -1, deleted));
+
+		recordEvent(ContainerEvent.Kind.WRITE, "removeItems", start, -1, -1, deleted, false);
+		return deleted > 0;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that deletes an entity after recursively deleting its children.
+	 * No item set change event is fired and the paging state is left to the caller. Returns the number of deleted
+	 * entities.
+	 */
+	private int deleteEntity(Object entityId)
+	{
+		logger.executionTrace("deleteEntity");
+
+		int deleted = 0;
+
+		for (Object id : getChildren(entityId))
+			deleted += deleteEntity(id);
+
+		if (deleted > 0)
+			clearInternalCache();
+
+		final Session session = sessionFactory.getCurrentSession();
+		final Object entity = session.load(entityType, (Serializable) entityId);
+
+		session.delete(entity);
+		markOwnWrite(((SessionImplementor) session).getPersistenceContext().unproxy(entity));
+		cache.invalidate(entityId);
+		invalidateCachedResults();
+
+		return deleted + 1;
+	}
+
+	/**
+	 * Gets the number of visible Items in the Container. Filtering can hide items so that they will not be visible
+	 * through the container API.
+	 */
+	@Override
+	public int size()
+	{
+		logger.executionTrace("size");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.size();
+
+			final FilterResultCache.IdSet filterResult = getFilterResult();
+
+			if (filterResult != null)
+			{
+				size = filterResult.size();
+				return size.intValue();
+			}
+
+			final long generation = queryGeneration.get();
+			final Number rowCount = (Number) uniqueQuery(getBaseCriteria()
+					.setProjection(Projections.rowCount()), QueryShape.COUNT);
+
+			final int count = (rowCount == null) ? 0 : rowCount.intValue();
+
+			if (!isSuperseded(generation))
+				size = count;
+
+			return count;
+		}
+		finally
+		{
+			recordOperation("size", start);
+		}
+	}
+
+	/**
+	 * Adds a new item after the given item. Adding an item after null item adds the item as first item of the ordered
+	 * container. Note that we can't implement properly for database backed container like this so it is unsupported.
+	 */
+	@Override
+	public Object addItemAfter(Object previousEntityId) throws UnsupportedOperationException
+	{
+		logger.executionTrace("addItemAfter");
+
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Adds a new item after the given item. Adding an item after null item adds the item as first item of the ordered
+	 * container. Note that we can't implement properly for database backed container like this so it is unsupported.
+	 */
+	@Override
+	public Item addItemAfter(Object previousEntityId, Object newEntityId) throws UnsupportedOperationException
+	{
+		logger.executionTrace("addItemAfter");
+
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Gets the ID of the first Item in the Container.
+	 */
+	@Override
+	public Object firstItemId()
+	{
+		logger.executionTrace("firstItemId");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.getIdByIndex(normalOrder ? 0 : snapshot.size() - 1);
+
+			final long generation = queryGeneration.get();
+			final Object firstPojo = uniqueQuery(getCriteria()
+					.setMaxResults(1)
+					.setCacheable(true), QueryShape.PAGE);
+
+			if (firstPojo == null)
+				return null;
+
+			final Object entityId = getIdForPojo(firstPojo);
+
+			if (!isSuperseded(generation))
+			{
+				firstId = entityId;
+				idToIndex.put(firstId, normalOrder ? 0 : size() - 1);
+			}
+
+			return entityId;
+		}
+		finally
+		{
+			recordOperation("firstItemId", start);
+		}
+	}
+
+	/**
+	 * Tests if the Item corresponding to the given Item ID is the first Item in the Container.
+	 */
+	@Override
+	public boolean isFirstId(Object entityId)
+	{
+		logger.executionTrace("isFirstId");
+		return entityId.equals(firstItemId());
+	}
+
+	/**
+	 * Tests if the Item corresponding to the given Item ID is the last Item in the Container.
+	 */
+	@Override
+	public boolean isLastId(Object entityId)
+	{
+		logger.executionTrace("isLastId");
+		return entityId.equals(lastItemId());
+	}
+
+	/**
+	 * Gets the ID of the last Item in the Container.
+	 */
+	@Override
+	public Object lastItemId()
+	{
+		logger.executionTrace("lastItemId");
+
+		final long start = startOperation();
+
+		try
+		{
+			if (lastId == null)
+			{
+				normalOrder = !normalOrder;
+				lastId = firstItemId();
+				normalOrder = !normalOrder;
+			}
+
+			return lastId;
+		}
+		finally
+		{
+			recordOperation("lastItemId", start);
+		}
+	}
+
+	/**
+	 * Gets the ID of the Item following the Item that corresponds to entityId. If the given Item is the last or not
+	 * found in the Container, null is returned.
+	 * 
+	 * This is a simple method but it contains a lot of code. The complicated logic is needed to avoid:
+	 * 
+	 * - a large number of database queries - scrolling through a large query result
+	 * 
+	 * This way this container can be used with large data sets.
+	 */
+	@Override
+	public Object nextItemId(Object entityId)
+	{
+		logger.executionTrace("nextItemId");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+			{
+				final int index = snapshot.indexOfId(entityId);
+				return (index < 0) ? null : snapshot.getIdByIndex(normalOrder ? index + 1 : index - 1);
+			}
+
+			EntityItem<T> entity = null;
+			List<T> rowBuffer = null;
+
+			try
+			{
+				entity = cache.get(entityId);
+				rowBuffer = getRowBuffer();
+			}
+			catch (Exception e)
+			{
+				rethrowIfBudgetExceeded(e);
+
+				logger.error(e);
+				return null;
+			}
+
+			try
+			{
+				int index;
+				if ((index = rowBuffer.indexOf(entity.getPojo())) != -1)
+				{
+					final T nextEntity = rowBuffer.get(index + 1);
+
+					if (metrics != null)
+						metrics.recordRowBuffer(true);
+
+					return getIdForPojo(nextEntity);
+				}
+			}
+			catch (Exception e) // entityId is not in rowBuffer, suppress the exception
+			{
+				rethrowIfBudgetExceeded(e);
+			}
+
+			if (metrics != null)
+				metrics.recordRowBuffer(false);
+
+			final long generation = queryGeneration.get();
+			int currentIndex = indexOfId(entityId);
+			int size = size();
+
+			int firstIndex = (normalOrder)
+					? currentIndex + 1
+					: size - currentIndex;
+
+			if (firstIndex < 0 || firstIndex >= size)
+				return null;
+
+			final Criteria criteria = getCriteria()
+					.setFirstResult(firstIndex)
+					.setMaxResults(ROW_BUF_SIZE);
+
+			@SuppressWarnings("unchecked")
+			final List<T> newRowBuffer = (List<T>) listQuery(criteria, QueryShape.PAGE);
+
+			if (newRowBuffer.size() > 0)
+			{
+				if (!isSuperseded(generation))
+					setRowBuffer(newRowBuffer, firstIndex);
+
+				final T nextPojo = newRowBuffer.get(0);
+				return getIdForPojo(nextPojo);
+			}
+
+			return null;
+		}
+		finally
+		{
+			recordOperation("nextItemId", start);
+		}
+	}
+
+	/**
+	 * Gets the ID of the Item preceding the Item that corresponds to entityId. If the given Item is the first or not
+	 * found in the Container, null is returned.
+	 */
+	@Override
+	public Object prevItemId(Object entityId)
+	{
+		logger.executionTrace("prevItemId");
+
+		final long start = startOperation();
+
+		try
+		{
+			normalOrder = !normalOrder;
+			Object previous = nextItemId(entityId);
+			normalOrder = !normalOrder;
+			return previous;
+		}
+		finally
+		{
+			recordOperation("prevItemId", start);
+		}
+	}
+
+	/**
+	 * Not supported in HbnContainer. Indexing/order is controlled by underlying database.
+	 */
+	@Override
+	public Object addItemAt(int index) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Not supported in HbnContainer. Indexing/order is controlled by underlying database.
+	 */
+	@Override
+	public Item addItemAt(int index, Object newEntityId) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Get the item id for the item at the position given by index.
+	 */
+	@Override
+	public Object getIdByIndex(int index)
+	{
+		logger.executionTrace("getIdByIndex");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.getIdByIndex(index);
+
+			final long generation = queryGeneration.get();
+			List<T> rowBuffer = indexRowBuffer;
+			int indexInCache = index - indexRowBufferFirstIndex;
+
+			final boolean bufferHit = rowBuffer != null && indexInCache >= 0 && indexInCache < rowBuffer.size();
+
+			if (!bufferHit)
+			{
+				rowBuffer = resetIndexRowBuffer(index);
+				indexInCache = 0;
+			}
+
+			if (metrics != null)
+				metrics.recordRowBuffer(bufferHit);
+
+			if (rowBuffer.isEmpty() && isSuperseded(generation))
+				return null;
+
+			final T pojo = rowBuffer.get(indexInCache);
+			final Object id = getIdForPojo(pojo);
+
+			if (isSuperseded(generation))
+				return id;
+
+			idToIndex.put(id, new Integer(index));
+
+			if (idToIndex.size() > ID_TO_INDEX_MAX_SIZE)
+				idToIndex.remove(idToIndex.keySet().iterator().next());
+
+			return id;
+		}
+		finally
+		{
+			recordOperation("getIdByIndex", start, index, 1);
+		}
+	}
+
+	/**
+	 * Gets the index of the Item corresponding to the entityId. The following is true for the returned index: 0 <=
+	 * index < size(), or index = -1 if there is no visible item with that id in the container.
+	 * 
+	 * Note! Expects that getIdByIndex is called for this entityId. Otherwise it will be potentially rather slow
+	 * operation with large tables. When used with Table, this shouldn't be a problem.
+	 */
+	@Override
+	public int indexOfId(Object entityId)
+	{
+		logger.executionTrace("indexOfId");
+
+		final long start = startOperation();
+
+		try
+		{
+			final InMemorySnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+				return snapshot.indexOfId(entityId);
+
+			final Integer index = idToIndex.get(entityId);
+
+			return (index == null)
+					? slowIndexOfId(entityId)
+					: index;
+		}
+		finally
+		{
+			recordOperation("indexOfId", start);
+		}
+	}
+
+	/**
+	 * Gets the container property IDs which can be used to sort the items.
+	 */
+	@Override
+	public Collection<String> getSortableContainerPropertyIds()
+	{
+		logger.executionTrace("getSortableContainerPropertyIds");
+
+		final String[] propertyNames = classMetadata.getPropertyNames();
+		final LinkedList<String> propertyIds = new LinkedList<String>();
+
+		propertyIds.addAll(Arrays.asList(propertyNames));
+		propertyIds.addAll(getEmbeddedKeyPropertyIds());
+
+		return propertyIds;
+	}
+
+	/**
+	 * Sort method. Sorts the container items. Sorting a container can irreversibly change the order of its items or
+	 * only change the order temporarily, depending on the container.
+	 * 
+	 * HbnContainer does not actually sort anything here, just clearing cache will do the thing lazily.
+	 */
+	@Override
+	public void sort(Object[] propertyId, boolean[] ascending)
+	{
+		logger.executionTrace("sort");
+
+		clearInternalCache();
+		cancelRunningQueries();
+		orderPropertyIds = propertyId;
+		orderAscendings = ascending;
+		recordChange(ContainerEvent.Kind.SORT_CHANGE, "sort");
+	}
+
+	/**
+	 * Remove all active filters from the container.
+	 */
+	@Override
+	public void removeAllContainerFilters()
+	{
+		logger.executionTrace("removeAllContainerFilters");
+
+		if (filters != null)
+		{
+			filters = null;
+			clearInternalCache();
+			cancelRunningQueries();
+			recordChange(ContainerEvent.Kind.FILTER_CHANGE, "removeAllContainerFilters");
+			fireItemSetChange();
+		}
+	}
+
+	/**
+	 * Adds a filter for the container
+	 * 
+	 * Note that for complex filtering it is possible to override {@link #getBaseCriteria()} method and add filter
+	 * so the query directly.
+	 */
+	@Override
+	public void addContainerFilter(Filter filter) throws UnsupportedFilterException
+	{
+		logger.executionTrace("addContainerFilter");
+
+		final ContainerFilter containerFilter = FilterFactory.getContainerFilter(filter);
+
+		addContainerFilter(containerFilter);
+	}
+
+	/**
+	 * Finds the identifiers for the children of the given item. The returned collection is unmodifiable.
+	 */
+	@Override
+	public Collection<?> getChildren(Object entityId)
+	{
+		logger.executionTrace("getChildren");
+
+		final long start = startOperation();
+
+		try
+		{
+			final ArrayList<Object> children = new ArrayList<Object>();
+
+			try
+			{
+				parentPropertyName = getParentPropertyName();
+
+				if (parentPropertyName == null)
+					return children;
+
+				for (Object id : getItemIds())
+				{
+					EntityItem<T> entity = cache.get(id);
+					Property<?> property = entity.getItemProperty(parentPropertyName);
+					Object value = property.getValue();
+
+					if (entityId.equals(value))
+						children.add(id);
+				}
+			}
+			catch (Exception e)
+			{
+				rethrowIfBudgetExceeded(e);
+
+				logger.error(e);
+			}
+
+			return children;
+		}
+		finally
+		{
+			recordOperation("getChildren", start);
+			recordEvent(ContainerEvent.Kind.HIERARCHY_QUERY, "getChildren", start, -1, -1, -1, false);
+		}
+	}
+
+	/**
+	 * Gets the identifier of the given item's parent. If there is no parent or we are unable to infer the name of the
+	 * parent property this method will return null.
+	 */
+	@Override
+	public Object getParent(Object entityId)
+	{
+		logger.executionTrace("getParent");
+
+		final long start = startOperation();
+
+		try
+		{
+			parentPropertyName = getParentPropertyName();
+
+			if (parentPropertyName == null)
+			{
+				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
+				return null;
+			}
+
+			final EntityItem<T> entity = cache.get(entityId);
+			final Property<?> property = entity.getItemProperty(parentPropertyName);
+			final Object value = property.getValue();
+
+			return value;
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return null;
+		}
+		finally
+		{
+			recordOperation("getParent", start);
+			recordEvent(ContainerEvent.Kind.HIERARCHY_QUERY, "getParent", start, -1, -1, -1, false);
+		}
+	}
+
+	/**
+	 * Gets the IDs of all Items in the container that don't have a parent. Such items are called root Items. The
+	 * returned collection is unmodifiable.
+	 */
+	@Override
+	public Collection<?> rootItemIds()
+	{
+		logger.executionTrace("rootItemIds");
+
+		final long start = startOperation();
+
+		try
+		{
+			final ArrayList<Object> rootItems = new ArrayList<Object>();
+
+			try
+			{
+				parentPropertyName = getParentPropertyName();
+
+				if (parentPropertyName == null)
+				{
+					logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
+					return rootItems;
+				}
+
+				final Collection<?> allItemIds = getItemIds();
+
+				for (Object id : allItemIds)
+				{
+					EntityItem<T> entity = cache.get(id);
+					Property<?> property = entity.getItemProperty(parentPropertyName);
+					Object value = property.getValue();
+
+					if (value == null)
+						rootItems.add(id);
+				}
+			}
+			catch (Exception e)
+			{
+				rethrowIfBudgetExceeded(e);
+
+				logger.error(e);
+			}
+
+			return rootItems;
+		}
+		finally
+		{
+			recordOperation("rootItemIds", start);
+			recordEvent(ContainerEvent.Kind.HIERARCHY_QUERY, "rootItemIds", start, -1, -1, -1, false);
+		}
+	}
+
+	/**
+	 * Sets the parent of an Item. The new parent item must exist and be able to have children. (
+	 * areChildrenAllowed(Object) == true ). It is also possible to detach a node from the hierarchy (and thus make it
+	 * root) by setting the parent null. This operation is optional.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Override
+	public boolean setParent(Object entityId, Object newParentId)
+	{
+		logger.executionTrace("setParent");
+
+		try
+		{
+			parentPropertyName = getParentPropertyName();
+
+			if (parentPropertyName == null)
+			{
+				logger.warn("failed to find a parent property name; unable to set the parent.");
+				return false;
+			}
+
+			final EntityItem<T> item = cache.get(entityId);
+			final Property property = item.getItemProperty(parentPropertyName);
+
+			property.setValue(newParentId);
+			final Object value = property.getValue();
+
+			return (value.equals(newParentId));
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Tests if the Item with given ID can have children.
+	 */
+	@Override
+	public boolean areChildrenAllowed(Object entityId)
+	{
+		logger.executionTrace("areChildrenAllowed");
+
+		if ((parentPropertyName = getParentPropertyName()) != null)
+			return containsId(entityId);
+
+		return false;
+	}
+
+	/**
+	 * Sets the given Item's capability to have children. If the Item identified with entityId already has children and
+	 * areChildrenAllowed(Object) is false this method fails and false is returned.
+	 * 
+	 * The children must be first explicitly removed with setParent(Object entityId, Object newParentId)or
+	 * com.vaadin.data.Container.removeItem(Object entityId).
+	 * 
+	 * This operation is optional. If it is not implemented, the method always returns false.
+	 */
+	@Override
+	public boolean setChildrenAllowed(Object entityId, boolean areChildrenAllowed)
+	{
+		logger.executionTrace("setChildrenAllowed");
+
+		return false;
+	}
+
+	/**
+	 * Tests if the Item specified with entityId is a root Item. The hierarchical container can have more than one root
+	 * and must have at least one unless it is empty. The getParent(Object entityId) method always returns null for root
+	 * Items.
+	 */
+	@Override
+	public boolean isRoot(Object entityId)
+	{
+		logger.executionTrace("isRoot");
+
+		final long start = startOperation();
+
+		try
+		{
+			parentPropertyName = getParentPropertyName();
+
+			if (parentPropertyName == null)
+			{
+				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
+				return false;
+			}
+
+			final EntityItem<T> item = cache.get(entityId);
+			final Property<?> property = item.getItemProperty(parentPropertyName);
+			final Object value = property.getValue();
+
+			return (value == null);
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return false;
+		}
+		finally
+		{
+			recordOperation("isRoot", start);
+			recordEvent(ContainerEvent.Kind.HIERARCHY_QUERY, "isRoot", start, -1, -1, -1, false);
+		}
+	}
+
+	/**
+	 * Tests if the Item specified with entityId has child Items or if it is a leaf. The getChildren(Object entityId)
+	 * method always returns null for leaf Items.
+	 * 
+	 * Note that being a leaf does not imply whether or not an Item is allowed to have children.
+	 */
+	@Override
+	public boolean hasChildren(Object entityId)
+	{
+		logger.executionTrace("hasChildren");
+
+		final long start = startOperation();
+
+		try
+		{
+			parentPropertyName = getParentPropertyName();
+
+			if (parentPropertyName == null)
+			{
+				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
+				return false;
+			}
+
+			for (Object id : getItemIds())
+			{
+				EntityItem<T> item = cache.get(id);
+				Property<?> property = item.getItemProperty(parentPropertyName);
+				Object value = property.getValue();
+
+				if (entityId.equals(value))
+					return true;
+			}
+
+			return false;
+		}
+		catch (Exception e)
+		{
+			rethrowIfBudgetExceeded(e);
+
+			logger.error(e);
+			return false;
+		}
+		finally
+		{
+			recordOperation("hasChildren", start);
+			recordEvent(ContainerEvent.Kind.HIERARCHY_QUERY, "hasChildren", start, -1, -1, -1, false);
+		}
+	}
+
+	/**
+	 * Adds an Item set change listener for the object.
+	 */
+	@Override
+	public void addItemSetChangeListener(ItemSetChangeListener listener)
+	{
+		logger.executionTrace("addItemSetChangeListener");
+
+		if (itemSetChangeListeners == null)
+			itemSetChangeListeners = new LinkedList<ItemSetChangeListener>();
+
+		itemSetChangeListeners.add(listener);
+	}
+
+	/**
+	 * Removes the Item set change listener from the object.
+	 */
+	@Override
+	public void removeItemSetChangeListener(ItemSetChangeListener listener)
+	{
+		logger.executionTrace("removeItemSetChangeListener");
+		
+		if (itemSetChangeListeners != null)
+			itemSetChangeListeners.remove(listener);
+	}
+
+	/**
+	 * Adds an Item set change listener for the object. This method is deprecated. You should use
+	 * addItemSetChangeListener() instead.
+	 */
+	@Override
+	@Deprecated
+	public void addListener(ItemSetChangeListener listener)
+	{
+		logger.executionTrace("addListener");
+		addItemSetChangeListener(listener);
+	}
+
+	/**
+	 * Removes the Item set change listener from the object. This method is deprecated. You should use
+	 * addItemSetChangeListener() instead.
+	 */
+	@Override
+	@Deprecated
+	public void removeListener(ItemSetChangeListener listener)
+	{
+		logger.executionTrace("removeListener");
+		removeItemSetChangeListener(listener);
+	}
+
+	//
+	// UTILITY METHODS
+	//
+
+	/**
+	 * This method was added mainly to allow unit tests to be written to cover the filter add/remove methods.
+	 */
+	public Set<ContainerFilter> getContainerFilters()
+	{
+		return filters;
+	}
+
+	/**
+	 * This method was added mainly to allow unit tests to be written to cover the listener add/remove methods.
+	 */
+	public List<ItemSetChangeListener> getItemSetChangeListeners()
+	{
+		return itemSetChangeListeners;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Determines if a property is contained within an embedded key.
+	 */
+	private boolean propertyInEmbeddedKey(Object propertyId)
+	{
+		logger.executionTrace("propertyInEmbeddedKey");
+
+		if (embeddedPropertiesCache.containsKey(propertyId))
+			return embeddedPropertiesCache.get(propertyId);
+
+		final Type identifierType = classMetadata.getIdentifierType();
+
+		if (identifierType.isComponentType())
+		{
+			final ComponentType componentType = (ComponentType) identifierType;
+			final String[] idPropertyNames = componentType.getPropertyNames();
+			final List<String> idPropertyNameList = Arrays.asList(idPropertyNames);
+			return idPropertyNameList.contains(propertyId);
+		}
+
+		return false;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. This method triggers events associated with the
+	 * ItemSetChangeListener.
+	 */
+	private void fireItemSetChange()
+	{
+		logger.executionTrace("fireItemSetChange");
+
+		fireItemSetChange(new ItemSetChange());
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that sends the given event to the ItemSetChangeListeners, or
+	 * queues it in event coalescing mode.
+	 */
+	private void fireItemSetChange(Container.ItemSetChangeEvent changeEvent)
+	{
+		logger.executionTrace("fireItemSetChange");
+
+		if (eventCoalescing)
+		{
+			queueItemSetChange(changeEvent);
+			return;
+		}
+
+		dispatchItemSetChange(changeEvent);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that queues an event in event coalescing mode. Several queued
+	 * events are merged into one plain item set change event, since the details of each no longer apply once other
+	 * changes were made. With a debounce configured, the dispatch is (re)scheduled after the debounce delay.
+	 */
+	private synchronized void queueItemSetChange(Container.ItemSetChangeEvent changeEvent)
+	{
+		logger.executionTrace("queueItemSetChange");
+
+		pendingEvent = (pendingEvent == null) ? changeEvent : new ItemSetChange();
+
+		if (eventScheduler == null)
+			return;
+
+		if (scheduledEventFlush != null)
+			scheduledEventFlush.cancel(false);
+
+		scheduledEventFlush = eventScheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				markEventsDue();
+			}
+		}, eventDebounceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that runs on the debounce scheduler. It only marks the collected
+	 * events due and hands them to the dispatcher, if any, as the listeners must not be called from the scheduler.
+	 */
+	private void markEventsDue()
+	{
+		logger.executionTrace("markEventsDue");
+
+		final Executor dispatcher;
+
+		synchronized (this)
+		{
+			if (pendingEvent == null)
+				return;
+
+			eventsDue = true;
+			dispatcher = eventDispatcher;
+		}
+
+		if (dispatcher != null)
+		{
+			dispatcher.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					flushEvents();
+				}
+			});
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that delivers an event to the ItemSetChangeListeners.
+	 */
+	private void dispatchItemSetChange(Container.ItemSetChangeEvent changeEvent)
+	{
+		logger.executionTrace("dispatchItemSetChange");
+
+		if (itemSetChangeListeners != null)
+		{
+			final Object[] changeListeners = itemSetChangeListeners.toArray();
+
+			for (int i = 0; i < changeListeners.length; i++)
+			{
+				ItemSetChangeListener changeListener = (ItemSetChangeListener) changeListeners[i];
+				changeListener.containerItemSetChange(changeEvent);
+			}
+		}
+	}
+
+	/**
+	 * Plain item set change event of this container.
+	 */
+	private class ItemSetChange implements Container.ItemSetChangeEvent
+	{
+		private static final long serialVersionUID = -3002746333251784195L;
+
+		public Container getContainer()
+		{
+			return HbnContainer.this;
+		}
+	}
+
+	/**
+	 * Item set change event for added items.
+	 */
+	private class ItemAdd extends ItemSetChange implements ItemAddEvent
+	{
+		private static final long serialVersionUID = 6315294937611563722L;
+		private final Object firstItemId;
+		private final int firstIndex;
+		private final int count;
+
+		private ItemAdd(Object firstItemId, int firstIndex, int count)
+		{
+			this.firstItemId = firstItemId;
+			this.firstIndex = firstIndex;
+			this.count = count;
+		}
+
+		public Object getFirstItemId()
+		{
+			return firstItemId;
+		}
+
+		public int getFirstIndex()
+		{
+			return firstIndex;
+		}
+
+		public int getAddedItemsCount()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * Item set change event for removed items.
+	 */
+	private class ItemRemove extends ItemSetChange implements ItemRemoveEvent
+	{
+		private static final long serialVersionUID = -1738526092146528873L;
+		private final Object firstItemId;
+		private final int firstIndex;
+		private final int count;
+
+		private ItemRemove(Object firstItemId, int firstIndex, int count)
+		{
+			this.firstItemId = firstItemId;
+			this.firstIndex = firstIndex;
+			this.count = count;
+		}
+
+		public Object getFirstItemId()
+		{
+			return firstItemId;
+		}
+
+		public int getFirstIndex()
+		{
+			return firstIndex;
+		}
+
+		public int getRemovedItemsCount()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * Change of an entity made by another session, queued by change tracking together with the item that was cached
+	 * for the entity when the change was reported.
+	 */
+	private class ExternalChange
+	{
+		private final EntityChangeListener.Change change;
+		private final Object entityId;
+		private final EntityItem<T> item;
+
+		private ExternalChange(EntityChangeListener.Change change, Object entityId, EntityItem<T> item)
+		{
+			this.change = change;
+			this.entityId = entityId;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Gets a base listing using current ordering criteria.
+	 */
+	private Criteria getCriteria()
+	{
+		logger.executionTrace("getCriteria");
+
+		final FilterResultCache.IdSet filterResult = getCachedFilterResult();
+		final boolean restrictToIds = filterResult != null
+				&& filterResult.size() <= ID_RESTRICTION_MAX_SIZE
+				&& !classMetadata.getIdentifierType().isComponentType();
+
+		final Criteria criteria = (restrictToIds)
+				? getIdRestrictedCriteria(filterResult)
+				: getBaseCriteria();
+		final List<Order> orders = getOrder(!normalOrder);
+
+		for (Order order : orders)
+		{
+			criteria.addOrder(order);
+		}
+
+		return criteria;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Return the ordering criteria in the order in which they should
+	 * be applied. The composed order must be stable and must include {@link #getNaturalOrder(boolean)} at the end.
+	 */
+	protected final List<Order> getOrder(boolean flipOrder)
+	{
+		logger.executionTrace("getOrder");
+
+		final List<Order> orders = new ArrayList<Order>();
+		orders.addAll(getDefaultOrder(flipOrder));
+		orders.add(getNaturalOrder(flipOrder));
+		return orders;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Returns the ordering to use for the container contents. The
+	 * default implementation provides the {@link Container.Sortable} functionality. Properties not mapped by Hibernate
+	 * are left out; they are sorted in memory. Can be overridden to customize item sort order.
+	 */
+	protected List<Order> getDefaultOrder(boolean flipOrder)
+	{
+		logger.executionTrace("getDefaultOrder");
+
+		final List<Order> orders = new ArrayList<Order>();
+
+		if (orderPropertyIds != null)
+		{
+			for (int i = 0; i < orderPropertyIds.length; i++)
+			{
+				String propertyId = orderPropertyIds[i].toString();
+
+				if (isAddedProperty(propertyId))
+					continue;
+
+				if (propertyInEmbeddedKey(propertyId))
+					propertyId = classMetadata.getIdentifierPropertyName() + "." + propertyId;
+
+				boolean ascending = (flipOrder)
+						? !orderAscendings[i]
+						: orderAscendings[i];
+
+				Order order = (ascending)
+						? Order.asc(propertyId)
+						: Order.desc(propertyId);
+
+				orders.add(order);
+			}
+		}
+
+		return orders;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Creates the base criteria for entity class and add possible
+	 * restrictions to query. Filters on association paths and collections are added as EXISTS subqueries. This method
+	 * is protected so developers can add their own custom criteria.
+	 */
+	protected Criteria getBaseCriteria()
+	{
+		logger.executionTrace("getBaseCriteria");
+
+		final Session session = sessionFactory.getCurrentSession();
+		final Criteria criteria = session.createCriteria(entityType);
+
+		if (filters != null)
+			addFilterCriteria(criteria, filters);
+
+		return criteria;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that adds the restrictions of the given filters to the criteria.
+	 */
+	private Criteria addFilterCriteria(Criteria criteria, Collection<ContainerFilter> containerFilters)
+	{
+		logger.executionTrace("addFilterCriteria");
+
+		for (ContainerFilter filter : containerFilters)
+		{
+			if (isAddedProperty(filter.getPropertyId()))
+				continue;
+
+			if (filter instanceof SubqueryContainerFilter)
+			{
+				final SubqueryContainerFilter subqueryFilter = (SubqueryContainerFilter) filter;
+				criteria = criteria.add(subqueryFilter.getSubqueryCriterion(entityType, getIdPropertyName()));
+				continue;
+			}
+
+			String idName = null;
+
+			if (propertyInEmbeddedKey(filter.getPropertyId()))
+				idName = classMetadata.getIdentifierPropertyName();
+
+			criteria = criteria.add(filter.getCriterion(idName));
+		}
+
+		return criteria;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Creates criteria restricted to the cached identifiers of the
+	 * current filters instead of the filters themselves, so changing the sort order does not re-evaluate expensive
+	 * filters. Identifiers are split into chunks to stay below the parameter limits of common databases.
+	 */
+	private Criteria getIdRestrictedCriteria(FilterResultCache.IdSet filterResult)
+	{
+		logger.executionTrace("getIdRestrictedCriteria");
+
+		final Criteria criteria = sessionFactory.getCurrentSession().createCriteria(entityType);
+		final List<Object> ids = filterResult.toList();
+
+		if (ids.isEmpty())
+			return criteria.add(Restrictions.sqlRestriction("1=0"));
+
+		final Disjunction disjunction = Restrictions.disjunction();
+
+		for (int i = 0; i < ids.size(); i += ID_RESTRICTION_CHUNK_SIZE)
+		{
+			final int end = Math.min(ids.size(), i + ID_RESTRICTION_CHUNK_SIZE);
+			disjunction.add(Restrictions.in(getIdPropertyName(), ids.subList(i, end)));
+		}
+
+		return criteria.add(disjunction);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that tells if a subclass overrides getDefaultOrder or
+	 * getNaturalOrder, in which case the sort order is not known from the sorted properties alone.
+	 */
+	private boolean isOrderCustomized()
+	{
+		for (Class<?> type = getClass(); type != HbnContainer.class; type = type.getSuperclass())
+		{
+			for (Method method : type.getDeclaredMethods())
+			{
+				final boolean orderMethod = method.getName().equals("getDefaultOrder")
+						|| method.getName().equals("getNaturalOrder");
+
+				if (orderMethod && Arrays.equals(method.getParameterTypes(), new Class<?>[] { boolean.class }))
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Natural order is the order in which the database is sorted if
+	 * container has no other ordering set. Natural order is always added as least significant order to queries. This is
+	 * needed to keep items stable order across queries. The default implementation sorts entities by identifier column.
+	 */
+	protected Order getNaturalOrder(boolean flipOrder)
+	{
+		logger.executionTrace("getNaturalOrder");
+
+		final String propertyName = getIdPropertyName();
+
+		return (flipOrder)
+				? Order.desc(propertyName)
+				: Order.asc(propertyName);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method to detect identifier of given entity object.
+	 */
+	private Object getIdForPojo(Object pojo)
+	{
+		logger.executionTrace("getIdForPojo");
+
+		final Session session = sessionFactory.getCurrentSession();
+		return classMetadata.getIdentifier(pojo, (SessionImplementor) session);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. RowBuffer stores a list of entity items to avoid excessive
+	 * number of DB queries.
+	 */
+	private List<T> getRowBuffer()
+	{
+		logger.executionTrace("getRowBuffer");
+
+		return (normalOrder) ? ascRowBuffer : descRowBuffer;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. RowBuffer stores some pojos to avoid excessive number of DB
+	 * queries. Also updates the idToIndex map.
+	 */
+	private void setRowBuffer(List<T> list, int firstIndex)
+	{
+		logger.executionTrace("setRowBuffer");
+
+		if (normalOrder)
+		{
+			ascRowBuffer = list;
+
+			for (int i = 0; i < list.size(); ++i)
+			{
+				idToIndex.put(getIdForPojo(list.get(i)), firstIndex + i);
+			}
+		}
+		else
+		{
+			descRowBuffer = list;
+			final int lastIndex = size() - 1;
+
+			for (int i = 0; i < list.size(); ++i)
+			{
+				idToIndex.put(getIdForPojo(list.get(i)), lastIndex - firstIndex - i);
+			}
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that gets the property name of the identifier.
+	 */
+	private String getIdPropertyName()
+	{
+		logger.executionTrace("getIdPropertyName");
+
+		return classMetadata.getIdentifierPropertyName();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method to query new set of entity items to cache from given index. The
+	 * fetched rows are returned but only kept as the index row buffer if no filter or sort change happened meanwhile.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<T> resetIndexRowBuffer(int index)
+	{
+		logger.executionTrace("resetIndexRowBuffer");
+
+		final long generation = queryGeneration.get();
+		final List<T> rows = (List<T>) listQuery(getCriteria().setFirstResult(index).setMaxResults(ROW_BUF_SIZE),
+				QueryShape.PAGE);
+
+		if (!isSuperseded(generation))
+		{
+			indexRowBufferFirstIndex = index;
+			indexRowBuffer = rows;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that gets the index of the given identifier.
+	 */
+	private int slowIndexOfId(Object entityId)
+	{
+		logger.executionTrace("slowIndexOfId");
+
+		final FilterResultCache.IdSet filterResult = getCachedFilterResult();
+
+		if (filterResult != null && !filterResult.contains(entityId))
+			return -1;
+
+		final Criteria criteria = getCriteria().setProjection(Projections.id());
+		final List<?> list = listQuery(criteria, QueryShape.ID_PROJECTION);
+		return list.indexOf(entityId);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method. Adds container filter for hibernate mapped property. For
+	 * property not mapped by Hibernate.
+	 */
+	public void addContainerFilter(Object propertyId, String filterString, boolean ignoreCase, boolean onlyMatchPrefix)
+	{
+		logger.executionTrace("addContainerFilter");
+
+		addContainerFilter(new StringContainerFilter(propertyId, filterString, ignoreCase, onlyMatchPrefix));
+	}
+
+	/**
+	 * Clears all filters present in filters which have the same property id as
+	 * that set in containerFilter
+	 * 
+	 * @param containerFilter
+	 *            the filter which will be used to filter filters
+	 * @param filters
+	 *            set of filters to filter
+	 * @return A filtered set of ContainerFilters where there are no filters
+	 *         with the same property ID as the one in containerFilter
+	 */
+	/*
+	 * TODO: is this really necessary? Enums do not work properly in tables
+	 * without this, but those may have to be better handled somewhere else
+	 */
+	private Set<ContainerFilter> filterFilters(
+			final ContainerFilter containerFilter,
+			final Set<ContainerFilter> filters)
+	{
+		final HashSet<ContainerFilter> filtered = new HashSet<ContainerFilter>();
+
+		final Object propertyId = containerFilter.getPropertyId();
+		for (ContainerFilter filter : filters)
+		{
+			if (!propertyId.equals(filter.getPropertyId()))
+			{
+				filtered.add(filter);
+			}
+		}
+
+		return filtered;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that adds a container filter. Filters on properties not mapped by
+	 * Hibernate are evaluated in memory and must therefore support in-memory evaluation.
+	 */
+	public void addContainerFilter(ContainerFilter containerFilter)
+	{
+		logger.executionTrace("addContainerFilter");
+
+		if (isAddedProperty(containerFilter.getPropertyId()) && !containerFilter.isEvaluable())
+		{
+			final String message = "HbnContainer can not evaluate this filter on properties not mapped by Hibernate";
+			throw new UnsupportedFilterException(message);
+		}
+
+		if (filters == null)
+			filters = new HashSet<ContainerFilter>();
+
+		filters = filterFilters(containerFilter, filters);
+
+		filters.add(containerFilter);
+
+		clearInternalCache();
+		cancelRunningQueries();
+		recordChange(ContainerEvent.Kind.FILTER_CHANGE, "addContainerFilter");
+		fireItemSetChange();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that removes container filters for the given property identifier.
+	 */
+	public void removeContainerFilters(Object propertyId)
+	{
+		logger.executionTrace("removeContainerFilters");
+
+		if (filters != null)
+		{
+			for (Iterator<ContainerFilter> iterator = filters.iterator(); iterator.hasNext();)
+			{
+				ContainerFilter containerFilter = iterator.next();
+
+				if (containerFilter.getPropertyId().equals(propertyId))
+					iterator.remove();
+			}
+
+			clearInternalCache();
+			cancelRunningQueries();
+			recordChange(ContainerEvent.Kind.FILTER_CHANGE, "removeContainerFilters");
+			fireItemSetChange();
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that removes the given container filter.
+	 */
+	@Override
+	public void removeContainerFilter(Filter filter)
+	{
+		logger.executionTrace("removeContainerFilter");
+
+		final ContainerFilter containerFilter = FilterFactory.getContainerFilter(filter);
+		filters.remove(containerFilter);
+
+		clearInternalCache();
+		cancelRunningQueries();
+		recordChange(ContainerEvent.Kind.FILTER_CHANGE, "removeContainerFilter");
+		fireItemSetChange();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that infers the name of the parent field belonging to the current
+	 * property based on type.
+	 */
+	private String getParentPropertyName()
+	{
+		logger.executionTrace("getParentPropertyName");
+
+		// TODO: make this a little more robust, there are a number of cases where this will fail.
+
+		if (parentPropertyName == null)
+		{
+			String[] propertyNames = classMetadata.getPropertyNames();
+
+			for (int i = 0; i < propertyNames.length; ++i)
+			{
+				String entityTypeName = entityType.getName();
+				String propertyTypeName = classMetadata.getPropertyType(propertyNames[i]).getName();
+
+				if (entityTypeName.equals(propertyTypeName))
+				{
+					parentPropertyName = propertyNames[i];
+					break;
+				}
+			}
+		}
+
+		return parentPropertyName;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method to clear all cache fields.
+	 */
+	protected void clearInternalCache()
+	{
+		logger.executionTrace("clearInternalCache");
+
+		idToIndex.clear();
+		indexRowBuffer = null;
+		ascRowBuffer = null;
+		descRowBuffer = null;
+		firstId = null;
+		lastId = null;
+		size = null;
+		embeddedPropertiesCache.clear();
+		queryGeneration.incrementAndGet();
+		evaluatedSnapshot = null;
+
+		if (inMemorySnapshot != null)
+			inMemorySnapshot.invalidateView();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that patches the paging state after a single entity was inserted,
+	 * so loaded index windows stay valid instead of being queried again. The position of the new entity is counted
+	 * from its sort key with one query, after checking with another that it passes the filters. Returns the index of
+	 * the new entity, -1 if it does not pass the filters, or null if the position can not be determined reliably, in
+	 * which case the caller must clear the internal cache. This is the case in in-memory and evaluation mode, for
+	 * composite identifiers, when sorting on a nullable or embedded property, since the position of null values in the
+	 * database order is vendor specific, and when a subclass overrides getDefaultOrder or getNaturalOrder.
+	 */
+	private Integer applyInsert(Object entityId, T pojo)
+	{
+		logger.executionTrace("applyInsert");
+
+		if (size == null && indexRowBuffer == null && idToIndex.isEmpty())
+			return null;
+
+		if (inMemory || requiresEvaluation() || classMetadata.getIdentifierType().isComponentType())
+			return null;
+
+		final Criterion precedes = getPrecedingCriterion(entityId, pojo);
+
+		if (precedes == null)
+			return null;
+
+		final Criteria visible = getBaseCriteria()
+				.add(Restrictions.idEq(entityId))
+				.setProjection(Projections.rowCount());
+
+		if (((Number) uniqueQuery(visible, QueryShape.COUNT)).intValue() == 0)
+		{
+			queryGeneration.incrementAndGet();
+			return -1;
+		}
+
+		final Criteria preceding = getBaseCriteria()
+				.add(precedes)
+				.setProjection(Projections.rowCount());
+		final int index = ((Number) uniqueQuery(preceding, QueryShape.COUNT)).intValue();
+
+		queryGeneration.incrementAndGet();
+		shiftIndexes(index, 1);
+		idToIndex.put(entityId, index);
+
+		if (indexRowBuffer != null)
+		{
+			final int indexInBuffer = index - indexRowBufferFirstIndex;
+
+			if (indexInBuffer < 0)
+			{
+				indexRowBufferFirstIndex++;
+			}
+			else if (indexInBuffer <= indexRowBuffer.size())
+			{
+				indexRowBuffer = new ArrayList<T>(indexRowBuffer);
+				indexRowBuffer.add(indexInBuffer, pojo);
+			}
+		}
+
+		if (size != null)
+		{
+			if (lastId != null && index == size)
+				lastId = entityId;
+
+			size++;
+		}
+		else
+		{
+			lastId = null;
+		}
+
+		firstId = null;
+		ascRowBuffer = null;
+		descRowBuffer = null;
+
+		return index;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that patches the paging state after the entity at the given
+	 * index was removed, so loaded index windows stay valid instead of being queried again. Returns false if the
+	 * internal cache must be cleared instead.
+	 */
+	private boolean applyRemoval(Object entityId, int index)
+	{
+		logger.executionTrace("applyRemoval");
+
+		if (inMemory || requiresEvaluation())
+			return false;
+
+		queryGeneration.incrementAndGet();
+		idToIndex.remove(entityId);
+		shiftIndexes(index + 1, -1);
+
+		if (indexRowBuffer != null)
+		{
+			final int indexInBuffer = index - indexRowBufferFirstIndex;
+
+			if (indexInBuffer < 0)
+			{
+				indexRowBufferFirstIndex--;
+			}
+			else if (indexInBuffer < indexRowBuffer.size())
+			{
+				indexRowBuffer = new ArrayList<T>(indexRowBuffer);
+				indexRowBuffer.remove(indexInBuffer);
+			}
+		}
+
+		if (size != null)
+			size--;
+
+		if (entityId.equals(lastId))
+			lastId = null;
+
+		firstId = null;
+		ascRowBuffer = null;
+		descRowBuffer = null;
+
+		return true;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that moves every known index at or after the given index by the
+	 * given offset.
+	 */
+	private void shiftIndexes(int fromIndex, int offset)
+	{
+		for (Map.Entry<Object, Integer> entry : idToIndex.entrySet())
+		{
+			if (entry.getValue() >= fromIndex)
+				entry.setValue(entry.getValue() + offset);
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that creates a restriction matching the entities that precede
+	 * the given entity in the current sort order, the identifier being the least significant sort key. Returns null if
+	 * that can not be expressed reliably, which includes orderings customized by a subclass, as the Order objects
+	 * returned by {@link #getOrder(boolean)} can not be inspected.
+	 */
+	private Criterion getPrecedingCriterion(Object entityId, T pojo)
+	{
+		logger.executionTrace("getPrecedingCriterion");
+
+		if (orderCustomized)
+			return null;
+
+		final List<String> propertyPaths = new ArrayList<String>();
+		final List<Object> values = new ArrayList<Object>();
+		final List<Boolean> ascendings = new ArrayList<Boolean>();
+		final List<String> propertyNames = Arrays.asList(classMetadata.getPropertyNames());
+
+		if (orderPropertyIds != null)
+		{
+			for (int i = 0; i < orderPropertyIds.length; i++)
+			{
+				final String propertyName = orderPropertyIds[i].toString();
+
+				if (propertyName.equals(getIdPropertyName()))
+				{
+					propertyPaths.add(propertyName);
+					values.add(entityId);
+					ascendings.add(orderAscendings[i]);
+					continue;
+				}
+
+				final int propertyIndex = propertyNames.indexOf(propertyName);
+
+				if (propertyIndex < 0 || classMetadata.getPropertyNullability()[propertyIndex])
+					return null;
+
+				final Type propertyType = classMetadata.getPropertyType(propertyName);
+
+				if (propertyType.isCollectionType())
+					return null;
+
+				final Object value = getSortValue(pojo, entityId, propertyName);
+
+				if (value == null)
+					return null;
+
+				final String propertyPath = (propertyType.isEntityType())
+						? propertyName + "."
+								+ sessionFactory.getClassMetadata(propertyType.getReturnedClass())
+										.getIdentifierPropertyName()
+						: propertyName;
+
+				propertyPaths.add(propertyPath);
+				values.add(value);
+				ascendings.add(orderAscendings[i]);
+			}
+		}
+
+		propertyPaths.add(getIdPropertyName());
+		values.add(entityId);
+		ascendings.add(Boolean.TRUE);
+
+		final Disjunction precedes = Restrictions.disjunction();
+
+		for (int i = 0; i < propertyPaths.size(); i++)
+		{
+			final Conjunction term = Restrictions.conjunction();
+
+			for (int j = 0; j < i; j++)
+				term.add(Restrictions.eq(propertyPaths.get(j), values.get(j)));
+
+			term.add((ascendings.get(i))
+					? Restrictions.lt(propertyPaths.get(i), values.get(i))
+					: Restrictions.gt(propertyPaths.get(i), values.get(i)));
+
+			precedes.add(term);
+		}
+
+		return precedes;
+	}
+
+	/**
+	 * Enables or disables in-memory mode. In in-memory mode the filtered entity set is loaded once into a columnar
+	 * snapshot of all mapped property values, and size, ordering, sorting, filtering and index lookups are answered
+	 * from memory without database queries. Filters that can not be evaluated in memory are still applied by the
+	 * database when the snapshot is loaded. Writes through the container discard the snapshot so it is reloaded on next
+	 * access. In-memory mode is meant for small reference tables; it is switched off automatically if the entity set
+	 * exceeds 50000 rows.
+	 */
+	public void setInMemory(boolean inMemory)
+	{
+		logger.executionTrace("setInMemory");
+
+		this.inMemory = inMemory;
+		inMemorySnapshot = null;
+		clearInternalCache();
+	}
+
+	/**
+	 * Tells if the container is in in-memory mode.
+	 */
+	public boolean isInMemory()
+	{
+		logger.executionTrace("isInMemory");
+
+		return inMemory;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the in-memory snapshot with an up to date view of
+	 * the current filters and sort order, loading the snapshot if necessary. Filters or sorting on properties not mapped
+	 * by Hibernate always use an evaluated snapshot. Returns null if neither applies.
+	 */
+	private InMemorySnapshot getSnapshot()
+	{
+		logger.executionTrace("getSnapshot");
+
+		if (requiresEvaluation())
+		{
+			if (evaluatedSnapshot == null)
+			{
+				final long generation = queryGeneration.get();
+				final InMemorySnapshot snapshot = evaluateAddedProperties();
+
+				if (isSuperseded(generation))
+					return snapshot;
+
+				evaluatedSnapshot = snapshot;
+			}
+
+			return evaluatedSnapshot;
+		}
+
+		if (!inMemory)
+			return null;
+
+		final Set<ContainerFilter> databaseFilters = new HashSet<ContainerFilter>();
+		final Set<ContainerFilter> memoryFilters = new HashSet<ContainerFilter>();
+		final Map<String, String> columnPaths = getSnapshotColumnPaths();
+
+		if (filters != null)
+		{
+			for (ContainerFilter filter : filters)
+			{
+				final Object propertyId = filter.getPropertyId();
+
+				if (filter.isEvaluable() && propertyId != null && columnPaths.containsKey(propertyId.toString()))
+					memoryFilters.add(filter);
+				else
+					databaseFilters.add(filter);
+			}
+		}
+
+		if (inMemorySnapshot == null || !inMemorySnapshot.getDatabaseFilters().equals(databaseFilters))
+			inMemorySnapshot = loadSnapshot(columnPaths, databaseFilters);
+
+		if (inMemorySnapshot != null && !inMemorySnapshot.hasView())
+			inMemorySnapshot.updateView(memoryFilters, orderPropertyIds, orderAscendings);
+
+		return inMemorySnapshot;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that maps every property kept in the in-memory snapshot to the
+	 * path used to project it. Associations are projected as the identifier of the associated entity, like their
+	 * property value, and collections are left out. The identifier and embedded key properties are mapped to null
+	 * because they are read from the identifier.
+	 */
+	private Map<String, String> getSnapshotColumnPaths()
+	{
+		logger.executionTrace("getSnapshotColumnPaths");
+
+		final Map<String, String> columnPaths = new LinkedHashMap<String, String>();
+
+		for (String propertyName : classMetadata.getPropertyNames())
+		{
+			final Type propertyType = classMetadata.getPropertyType(propertyName);
+
+			if (propertyType.isCollectionType())
+				continue;
+
+			if (propertyType.isAssociationType())
+			{
+				final ClassMetadata metadata = sessionFactory.getClassMetadata(propertyType.getReturnedClass());
+
+				if (metadata != null)
+					columnPaths.put(propertyName, propertyName + "." + metadata.getIdentifierPropertyName());
+
+				continue;
+			}
+
+			columnPaths.put(propertyName, propertyName);
+		}
+
+		for (String propertyName : getEmbeddedKeyPropertyIds())
+			columnPaths.put(propertyName, null);
+
+		columnPaths.put(getIdPropertyName(), null);
+		return columnPaths;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that loads the in-memory snapshot with a single projection
+	 * query. Returns null if the entity set is too large for in-memory mode, which is then switched off.
+	 */
+	private InMemorySnapshot loadSnapshot(Map<String, String> columnPaths, Set<ContainerFilter> databaseFilters)
+	{
+		logger.executionTrace("loadSnapshot");
+
+		final List<String> projectedProperties = new ArrayList<String>();
+		final ProjectionList projection = Projections.projectionList().add(Projections.id());
+
+		for (Map.Entry<String, String> columnPath : columnPaths.entrySet())
+		{
+			if (columnPath.getValue() != null)
+			{
+				projection.add(Projections.property(columnPath.getValue()));
+				projectedProperties.add(columnPath.getKey());
+			}
+		}
+
+		final Criteria criteria = addFilterCriteria(sessionFactory.getCurrentSession().createCriteria(entityType),
+				databaseFilters);
+
+		final long generation = queryGeneration.get();
+		final List<?> rows = listQuery(criteria.setProjection(projection).setMaxResults(IN_MEMORY_MAX_ROWS + 1),
+				QueryShape.ID_PROJECTION);
+
+		if (isSuperseded(generation))
+			return null;
+
+		if (rows.size() > IN_MEMORY_MAX_ROWS)
+		{
+			logger.warn("too many rows for in-memory mode, switching back to database mode.");
+			inMemory = false;
+			return null;
+		}
+
+		final Object[] ids = new Object[rows.size()];
+		final Map<String, Object[]> columns = new HashMap<String, Object[]>();
+
+		for (String propertyName : columnPaths.keySet())
+			columns.put(propertyName, new Object[rows.size()]);
+
+		final Collection<String> embeddedKeyPropertyIds = getEmbeddedKeyPropertyIds();
+
+		for (int row = 0; row < ids.length; row++)
+		{
+			final Object result = rows.get(row);
+			final Object[] values = (result instanceof Object[]) ? (Object[]) result : new Object[] { result };
+
+			ids[row] = values[0];
+
+			for (int i = 0; i < projectedProperties.size(); i++)
+				columns.get(projectedProperties.get(i))[row] = values[i + 1];
+
+			if (!embeddedKeyPropertyIds.isEmpty())
+			{
+				final ComponentType identifierType = (ComponentType) classMetadata.getIdentifierType();
+				final String[] propertyNames = identifierType.getPropertyNames();
+
+				for (int i = 0; i < propertyNames.length; i++)
+					columns.get(propertyNames[i])[row] = identifierType.getPropertyValue(ids[row], i, EntityMode.POJO);
+			}
+		}
+
+		columns.put(getIdPropertyName(), ids);
+
+		return new InMemorySnapshot(ids, columns, databaseFilters);
+	}
+
+	/**
+	 * Enables caching of the identifiers matching the current filters, bounded by the given total number of cached
+	 * identifiers across all filter combinations. With the cache enabled a sort change reuses the cached size and
+	 * restricts page queries to the cached identifiers instead of re-evaluating the filters. A value of zero or less
+	 * disables the cache, which is the default.
+	 */
+	public void setFilterResultCacheSize(long maximumIds)
+	{
+		logger.executionTrace("setFilterResultCacheSize");
+
+		filterResultCache = (maximumIds > 0) ? new FilterResultCache(maximumIds) : null;
+		clearInternalCache();
+	}
+
+	/**
+	 * Returns the filter result cache or null if filter result caching is disabled.
+	 */
+	public FilterResultCache getFilterResultCache()
+	{
+		logger.executionTrace("getFilterResultCache");
+
+		return filterResultCache;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the cached identifiers for the current filters
+	 * without querying the database. Returns null if caching is disabled, no filters are set or nothing is cached.
+	 */
+	private FilterResultCache.IdSet getCachedFilterResult()
+	{
+		logger.executionTrace("getCachedFilterResult");
+
+		if (filterResultCache == null || filters == null || filters.isEmpty() || requiresEvaluation())
+			return null;
+
+		return filterResultCache.get(filters);
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the identifiers for the current filters, querying
+	 * and caching them if necessary. Returns null if caching is disabled or no filters are set.
+	 */
+	private FilterResultCache.IdSet getFilterResult()
+	{
+		logger.executionTrace("getFilterResult");
+
+		if (filterResultCache == null || filters == null || filters.isEmpty() || requiresEvaluation())
+			return null;
+
+		FilterResultCache.IdSet filterResult = filterResultCache.get(filters);
+
+		if (filterResult == null)
+		{
+			final long generation = queryGeneration.get();
+			final List<?> ids = listQuery(getBaseCriteria().setProjection(Projections.id()), QueryShape.ID_PROJECTION);
+
+			if (isSuperseded(generation))
+				return null;
+
+			filterResult = filterResultCache.put(filters, ids);
+		}
+
+		return filterResult;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that tells if the given property was added with
+	 * addContainerProperty and is thus not mapped by Hibernate.
+	 */
+	private boolean isAddedProperty(Object propertyId)
+	{
+		return propertyId != null && addedProperties.containsKey(propertyId.toString());
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that tells if the current filters or sort order refer to
+	 * properties not mapped by Hibernate, which must be evaluated in memory.
+	 */
+	private boolean requiresEvaluation()
+	{
+		if (filters != null)
+		{
+			for (ContainerFilter filter : filters)
+			{
+				if (isAddedProperty(filter.getPropertyId()))
+					return true;
+			}
+		}
+
+		if (orderPropertyIds != null)
+		{
+			for (Object propertyId : orderPropertyIds)
+			{
+				if (isAddedProperty(propertyId))
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that evaluates filters and sorting on properties not mapped by
+	 * Hibernate. All other filters are applied by the database, and the candidates are scrolled with a forward-only
+	 * cursor fetching fixed-size chunks. Only the identifiers of matching entities and their sort values are kept;
+	 * entities the scroll brought into the session are evicted again so the persistence context does not grow. Like
+	 * the in-memory mode, evaluation keeps at most IN_MEMORY_MAX_ROWS matching entities; the rest is not shown.
+	 */
+	private InMemorySnapshot evaluateAddedProperties()
+	{
+		logger.executionTrace("evaluateAddedProperties");
+
+		final List<ContainerFilter> addedPropertyFilters = getAddedPropertyFilters();
+		final List<Method> addedPropertyGetters = getAddedPropertyGetters(addedPropertyFilters);
+		final Object[] sortPropertyIds = (orderPropertyIds != null) ? orderPropertyIds : new Object[0];
+		final Method[] sortGetters = new Method[sortPropertyIds.length];
+		final List<Object> ids = new ArrayList<Object>();
+		final List<List<Object>> sortValues = new ArrayList<List<Object>>();
+
+		for (int i = 0; i < sortPropertyIds.length; i++)
+		{
+			if (isAddedProperty(sortPropertyIds[i]))
+				sortGetters[i] = getAddedPropertyGetter(sortPropertyIds[i]);
+
+			sortValues.add(new ArrayList<Object>());
+		}
+
+		final Session session = sessionFactory.getCurrentSession();
+		final Set<Object> managedIds = getManagedIds(session);
+		final Criteria criteria = getBaseCriteria().setFetchSize(EVALUATION_CHUNK_SIZE);
+		final long generation = queryGeneration.get();
+
+		beginQuery(criteria, generation);
+
+		try
+		{
+			final ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+
+			try
+			{
+				while (results.next())
+				{
+					final Object pojo = results.get(0);
+					final Object id = getIdForPojo(pojo);
+
+					if (passesFilters(pojo, addedPropertyFilters, addedPropertyGetters))
+					{
+						if (ids.size() == IN_MEMORY_MAX_ROWS)
+						{
+							logger.warn("too many rows to evaluate added properties, only the first "
+									+ IN_MEMORY_MAX_ROWS + " matching rows are shown.");
+							break;
+						}
+
+						ids.add(id);
+
+						for (int i = 0; i < sortPropertyIds.length; i++)
+						{
+							sortValues.get(i).add((sortGetters[i] != null) ? getAddedPropertyValue(pojo, sortGetters[i])
+									: getSortValue(pojo, id, sortPropertyIds[i]));
+						}
+					}
+
+					if (!managedIds.contains(id))
+						session.evict(pojo);
+				}
+			}
+			finally
+			{
+				results.close();
+			}
+		}
+		catch (HibernateException e)
 		{
-			logger.error(e);
-			return false;
+			if (!isCancelled(session, e))
+				throw e;
+
+			logger.debug("superseded query was cancelled: " + e);
+			ids.clear();
+
+			for (List<Object> values : sortValues)
+				values.clear();
 		}
+		finally
+		{
+			runningQueries.remove(session);
+		}
+
+		final Map<String, Object[]> columns = new HashMap<String, Object[]>();
+
+		for (int i = 0; i < sortPropertyIds.length; i++)
+			columns.put(sortPropertyIds[i].toString(), sortValues.get(i).toArray());
+
+		final Set<ContainerFilter> noFilters = new HashSet<ContainerFilter>();
+		final InMemorySnapshot snapshot = new InMemorySnapshot(ids.toArray(), columns, noFilters);
+		snapshot.updateView(noFilters, orderPropertyIds, orderAscendings);
+
+		return snapshot;
 	}
 
 	/**
-	 * Removes a Property specified by the given Property ID from the Container. Note that the Property will be removed
-	 * from all Items in the Container. This functionality is optional.
+	 * This is an internal HbnContainer utility method that returns the current filters on properties not mapped by
+	 * Hibernate.
 	 */
-	@Override
-	public boolean removeContainerProperty(Object propertyId) throws UnsupportedOperationException
+	private List<ContainerFilter> getAddedPropertyFilters()
 	{
-		logger.executionTrace();
+		final List<ContainerFilter> addedPropertyFilters = new ArrayList<ContainerFilter>();
 
-		final Class<?> removed = addedProperties.remove(propertyId);
-		return (removed != null);
+		if (filters != null)
+		{
+			for (ContainerFilter filter : filters)
+			{
+				if (isAddedProperty(filter.getPropertyId()))
+					addedPropertyFilters.add(filter);
+			}
+		}
+
+		return addedPropertyFilters;
 	}
 
 	/**
-	 * Removes the Item identified by entityId from the Container. Containers that support filtering should also allow
-	 * removing an item that is currently filtered out. This functionality is optional.
-	 * 
-	 * Note that this method recursively removes all children of this entity before removing this entity.
+	 * This is an internal HbnContainer utility method that evaluates the given filters on the values of properties not
+	 * mapped by Hibernate, read with the getters resolved for the filters by {@link #getAddedPropertyGetters(List)}.
 	 */
-	@Override
-	public boolean removeItem(Object entityId) throws UnsupportedOperationException
+	private boolean passesFilters(Object pojo, List<ContainerFilter> addedPropertyFilters,
+			List<Method> addedPropertyGetters)
 	{
-		logger.executionTrace();
-
-		for (Object id : getChildren(entityId))
-			removeItem(id);
-
-		final Session session = sessionFactory.getCurrentSession();
-		final Object entity = session.load(entityType, (Serializable) entityId);
-
-		session.delete(entity);
-		cache.invalidate(entityId);
+		for (int i = 0; i < addedPropertyFilters.size(); i++)
+		{
+			final Object value = getAddedPropertyValue(pojo, addedPropertyGetters.get(i));
 
-		clearInternalCache();
-		fireItemSetChange();
+			if (!addedPropertyFilters.get(i).evaluate(value))
+				return false;
+		}
 
 		return true;
 	}
 
 	/**
-	 * Gets the number of visible Items in the Container. Filtering can hide items so that they will not be visible
-	 * through the container API.
+	 * This is an internal HbnContainer utility method that resolves the getters of the properties filtered by the given
+	 * filters, in the same order, before a scroll evaluates them for every row.
 	 */
-	@Override
-	public int size()
+	private List<Method> getAddedPropertyGetters(List<ContainerFilter> addedPropertyFilters)
 	{
-		logger.executionTrace();
+		final List<Method> getters = new ArrayList<Method>(addedPropertyFilters.size());
 
-		size = ((Number) getBaseCriteria()
-				.setProjection(Projections.rowCount())
-				.uniqueResult())
-				.intValue();
+		for (ContainerFilter filter : addedPropertyFilters)
+			getters.add(getAddedPropertyGetter(filter.getPropertyId()));
 
-		return size.intValue();
+		return getters;
 	}
 
 	/**
-	 * Adds a new item after the given item. Adding an item after null item adds the item as first item of the ordered
-	 * container. Note that we can't implement properly for database backed container like this so it is unsupported.
+	 * This is an internal HbnContainer utility method that resolves the getter of a property not mapped by Hibernate
+	 * with the same naming rules as MethodProperty.
 	 */
-	@Override
-	public Object addItemAfter(Object previousEntityId) throws UnsupportedOperationException
+	private Method getAddedPropertyGetter(Object propertyId)
 	{
-		logger.executionTrace();
+		final String propertyName = propertyId.toString();
+		final String suffix = propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
 
-		throw new UnsupportedOperationException();
+		for (String prefix : new String[] { "get", "is", "are" })
+		{
+			try
+			{
+				return entityType.getMethod(prefix + suffix);
+			}
+			catch (NoSuchMethodException e)
+			{
+				continue;
+			}
+		}
+
+		throw new MethodProperty.MethodException(null, "Bean property " + propertyName + " can not be found");
 	}
 
 	/**
-	 * Adds a new item after the given item. Adding an item after null item adds the item as first item of the ordered
-	 * container. Note that we can't implement properly for database backed container like this so it is unsupported.
+	 * This is an internal HbnContainer utility method that reads a property not mapped by Hibernate with its resolved
+	 * getter.
 	 */
-	@Override
-	public Item addItemAfter(Object previousEntityId, Object newEntityId) throws UnsupportedOperationException
+	private static Object getAddedPropertyValue(Object pojo, Method getter)
 	{
-		logger.executionTrace();
-
-		throw new UnsupportedOperationException();
+		try
+		{
+			return getter.invoke(pojo);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new MethodProperty.MethodException(null, e.getCause());
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new MethodProperty.MethodException(null, e);
+		}
 	}
 
 	/**
-	 * Gets the ID of the first Item in the Container.
+	 * This is an internal HbnContainer utility method that gets the value of a property for in-memory sorting.
+	 * Associations are represented by the identifier of the referenced entity, like their property value.
 	 */
-	@Override
-	public Object firstItemId()
+	private Object getSortValue(Object pojo, Object id, Object propertyId)
 	{
-		logger.executionTrace();
+		final String propertyName = propertyId.toString();
 
-		final Object firstPojo = getCriteria()
-				.setMaxResults(1)
-				.setCacheable(true)
-				.uniqueResult();
+		if (isAddedProperty(propertyName))
+			return new MethodProperty<Object>(pojo, propertyName).getValue();
 
-		firstId = getIdForPojo(firstPojo);
-		idToIndex.put(firstId, normalOrder ? 0 : size() - 1);
+		if (propertyName.equals(getIdPropertyName()))
+			return id;
 
-		return firstId;
-	}
+		if (propertyInEmbeddedKey(propertyName))
+		{
+			final ComponentType identifierType = (ComponentType) classMetadata.getIdentifierType();
+			final List<String> propertyNames = Arrays.asList(identifierType.getPropertyNames());
+			return identifierType.getPropertyValue(id, propertyNames.indexOf(propertyName), EntityMode.POJO);
+		}
 
-	/**
-	 * Tests if the Item corresponding to the given Item ID is the first Item in the Container.
-	 */
-	@Override
-	public boolean isFirstId(Object entityId)
-	{
-		logger.executionTrace();
-		return entityId.equals(firstItemId());
+		final Type propertyType = classMetadata.getPropertyType(propertyName);
+		final Object value = classMetadata.getPropertyValue(pojo, propertyName);
+
+		if (value == null || !propertyType.isEntityType())
+			return value;
+
+		final Session session = sessionFactory.getCurrentSession();
+		final ClassMetadata metadata = sessionFactory.getClassMetadata(propertyType.getReturnedClass());
+		return metadata.getIdentifier(value, (SessionImplementor) session);
 	}
 
 	/**
-	 * Tests if the Item corresponding to the given Item ID is the last Item in the Container.
+	 * This is an internal HbnContainer utility method that returns the identifiers of the entities of the container
+	 * type that are currently managed by the given session.
 	 */
-	@Override
-	public boolean isLastId(Object entityId)
+	private Set<Object> getManagedIds(Session session)
 	{
-		logger.executionTrace();
-		return entityId.equals(lastItemId());
+		final Set<Object> managedIds = new HashSet<Object>();
+		final Map<?, ?> entitiesByKey = ((SessionImplementor) session).getPersistenceContext().getEntitiesByKey();
+
+		for (Object key : entitiesByKey.keySet())
+		{
+			final EntityKey entityKey = (EntityKey) key;
+
+			if (entityKey.getEntityName().equals(classMetadata.getEntityName()))
+				managedIds.add(entityKey.getIdentifier());
+		}
+
+		return managedIds;
 	}
 
 	/**
-	 * Gets the ID of the last Item in the Container.
+	 * This is an internal HbnContainer utility method that compiles the current filters into an HQL condition. Property
+	 * paths are qualified with the given alias unless it is null. Returns an empty string if there are no filters, and
+	 * null if some filter can not be expressed in HQL.
 	 */
-	@Override
-	public Object lastItemId()
+	private String getHqlRestriction(String alias, Map<String, Object> parameters)
 	{
-		logger.executionTrace();
+		logger.executionTrace("getHqlRestriction");
 
-		if (lastId == null)
+		final StringBuilder restriction = new StringBuilder();
+
+		if (filters == null)
+			return "";
+
+		for (ContainerFilter filter : filters)
 		{
-			normalOrder = !normalOrder;
-			lastId = firstItemId();
-			normalOrder = !normalOrder;
+			if (isAddedProperty(filter.getPropertyId()) || !filter.isHqlExpressible())
+				return null;
+
+			String idName = alias;
+
+			if (propertyInEmbeddedKey(filter.getPropertyId()))
+			{
+				idName = (alias == null)
+						? classMetadata.getIdentifierPropertyName()
+						: alias + "." + classMetadata.getIdentifierPropertyName();
+			}
+
+			if (restriction.length() > 0)
+				restriction.append(" and ");
+
+			restriction.append("(").append(filter.getHqlCondition(idName, parameters)).append(")");
 		}
 
-		return lastId;
+		return restriction.toString();
 	}
 
 	/**
-	 * Gets the ID of the Item following the Item that corresponds to entityId. If the given Item is the last or not
-	 * found in the Container, null is returned.
-	 * 
-	 * This is a simple method but it contains a lot of code. The complicated logic is needed to avoid:
-	 * 
-	 * - a large number of database queries - scrolling through a large query result
-	 * 
-	 * This way this container can be used with large data sets.
+	 * This is an internal HbnContainer utility method that executes an HQL UPDATE or DELETE statement for the items
+	 * passing the current filters. The filters are compiled into its WHERE clause if possible; otherwise the statement
+	 * is executed for chunks of the filtered identifiers. Entities of the container type are evicted from the current
+	 * session and from the item cache afterwards, since bulk statements bypass the session.
 	 */
-	@Override
-	public Object nextItemId(Object entityId)
+	private int executeBulkStatement(String statement, Map<String, Object> statementParameters)
 	{
-		logger.executionTrace();
+		logger.executionTrace("executeBulkStatement");
 
-		EntityItem<T> entity = null;
-		List<T> rowBuffer = null;
+		final Session session = sessionFactory.getCurrentSession();
+		final Map<String, Object> parameters = new HashMap<String, Object>(statementParameters);
+		final String condition = getHqlRestriction(null, parameters);
+		int affected = 0;
 
-		try
+		if (condition != null)
 		{
-			entity = cache.get(entityId);
-			rowBuffer = getRowBuffer();
+			final String where = (condition.length() > 0) ? " where " + condition : "";
+			final Query query = session.createQuery(statement + where);
+
+			for (Map.Entry<String, Object> parameter : parameters.entrySet())
+				query.setParameter(parameter.getKey(), parameter.getValue());
+
+			affected = query.executeUpdate();
+
+			evictEntities(session, getManagedIds(session));
+			cache.invalidateAll();
 		}
-		catch (Exception e)
+		else
 		{
-			logger.error(e);
-			return null;
-		}
+			final List<Object> entityIds = new ArrayList<Object>(getItemIds());
 
-		try
-		{
-			int index;
-			if ((index = rowBuffer.indexOf(entity.getPojo())) != -1)
+			for (Query query : createIdQueries(session, statement, getIdPropertyName(), entityIds))
 			{
-				final T nextEntity = rowBuffer.get(index + 1);
-				return getIdForPojo(nextEntity);
+				for (Map.Entry<String, Object> parameter : statementParameters.entrySet())
+					query.setParameter(parameter.getKey(), parameter.getValue());
+
+				affected += query.executeUpdate();
 			}
-		}
-		catch (Exception e) // entityId is not in rowBuffer, suppress the exception
-		{
+
+			evictEntities(session, entityIds);
+			cache.invalidateAll(entityIds);
 		}
 
-		int currentIndex = indexOfId(entityId);
-		int size = size();
+		return affected;
+	}
 
-		int firstIndex = (normalOrder)
-				? currentIndex + 1
-				: size - currentIndex;
+	/**
+	 * This is an internal HbnContainer utility method that creates one query per chunk of the given identifiers, each
+	 * restricted to the identifiers of its chunk. Chunks stay below the parameter limits of common databases; composite
+	 * identifiers are matched one at a time.
+	 */
+	private List<Query> createIdQueries(Session session, String statement, String idPath, List<?> entityIds)
+	{
+		logger.executionTrace("createIdQueries");
 
-		if (firstIndex < 0 || firstIndex >= size)
-			return null;
+		final List<Query> queries = new ArrayList<Query>();
+		final boolean componentId = classMetadata.getIdentifierType().isComponentType();
+		final String where = (componentId)
+				? " where " + idPath + " = :hbnid"
+				: " where " + idPath + " in (:hbnids)";
+		final int chunkSize = (componentId) ? 1 : ID_RESTRICTION_CHUNK_SIZE;
 
-		final Criteria criteria = getCriteria()
-				.setFirstResult(firstIndex)
-				.setMaxResults(ROW_BUF_SIZE);
+		for (int i = 0; i < entityIds.size(); i += chunkSize)
+		{
+			final List<?> chunk = entityIds.subList(i, Math.min(entityIds.size(), i + chunkSize));
+			final Query query = session.createQuery(statement + where);
 
-		@SuppressWarnings("unchecked")
-		final List<T> newRowBuffer = criteria.list();
+			if (componentId)
+				query.setParameter("hbnid", chunk.get(0));
+			else
+				query.setParameterList("hbnids", chunk);
 
-		if (newRowBuffer.size() > 0)
-		{
-			setRowBuffer(newRowBuffer, firstIndex);
-			final T nextPojo = newRowBuffer.get(0);
-			return getIdForPojo(nextPojo);
+			queries.add(query);
 		}
 
-		return null;
+		return queries;
 	}
 
 	/**
-	 * Gets the ID of the Item preceding the Item that corresponds to entityId. If the given Item is the first or not
-	 * found in the Container, null is returned.
+	 * This is an internal HbnContainer utility method that deletes the given entities and all their descendants with
+	 * chunked HQL DELETE statements. Descendants are resolved one tree level at a time with a single query per level
+	 * (per chunk), regardless of the container filters, and deleted before their parents. The deleted entities are
+	 * evicted from the current session and invalidated in the item cache. No item set change event is fired. Returns
+	 * the number of deleted entities, including descendants.
 	 */
-	@Override
-	public Object prevItemId(Object entityId)
+	private int deleteEntities(Collection<?> entityIds)
 	{
-		logger.executionTrace();
+		logger.executionTrace("deleteEntities");
+
+		final Session session = sessionFactory.getCurrentSession();
+		final String parentPropertyName = getParentPropertyName();
+		final String entityName = classMetadata.getEntityName();
+		final String idPropertyName = getIdPropertyName();
+		final Set<Object> resolvedIds = new HashSet<Object>(entityIds);
+		final LinkedList<List<Object>> levels = new LinkedList<List<Object>>();
+
+		List<Object> level = new ArrayList<Object>(resolvedIds);
+
+		while (!level.isEmpty())
+		{
+			levels.addFirst(level);
+
+			if (parentPropertyName == null)
+				break;
+
+			final String statement = "select hbnchild." + idPropertyName + " from " + entityName + " hbnchild";
+			final String parentIdPath = "hbnchild." + parentPropertyName + "." + idPropertyName;
+			final List<Object> children = new ArrayList<Object>();
+
+			for (Query query : createIdQueries(session, statement, parentIdPath, level))
+			{
+				for (Object childId : query.list())
+				{
+					if (resolvedIds.add(childId))
+						children.add(childId);
+				}
+			}
+
+			level = children;
+		}
+
+		int deleted = 0;
+
+		for (List<Object> ids : levels)
+		{
+			for (Query query : createIdQueries(session, "delete from " + entityName, idPropertyName, ids))
+				deleted += query.executeUpdate();
+		}
+
+		evictEntities(session, resolvedIds);
+		cache.invalidateAll(resolvedIds);
 
-		normalOrder = !normalOrder;
-		Object previous = nextItemId(entityId);
-		normalOrder = !normalOrder;
-		return previous;
+		return deleted;
 	}
 
 	/**
-	 * Not supported in HbnContainer. Indexing/order is controlled by underlying database.
+	 * This is an internal HbnContainer utility method that tells if any item passing the current filters has children.
+	 * Such items can not be removed by a single DELETE statement. If the filters can not be expressed in HQL, items of
+	 * a hierarchical container are assumed to have children.
 	 */
-	@Override
-	public Object addItemAt(int index) throws UnsupportedOperationException
+	private boolean hasFilteredChildren()
 	{
-		throw new UnsupportedOperationException();
+		logger.executionTrace("hasFilteredChildren");
+
+		final String parentPropertyName = getParentPropertyName();
+
+		if (parentPropertyName == null)
+			return false;
+
+		final Map<String, Object> parameters = new HashMap<String, Object>();
+		final String condition = getHqlRestriction("hbnparent", parameters);
+
+		if (condition == null)
+			return true;
+
+		final String where = (condition.length() > 0) ? " where " + condition : "";
+		final String entityName = classMetadata.getEntityName();
+		final String idPropertyName = getIdPropertyName();
+
+		final Query query = sessionFactory.getCurrentSession().createQuery("select count(*) from " + entityName
+				+ " hbnchild where hbnchild." + parentPropertyName + "." + idPropertyName + " in (select hbnparent."
+				+ idPropertyName + " from " + entityName + " hbnparent" + where + ")");
+
+		for (Map.Entry<String, Object> parameter : parameters.entrySet())
+			query.setParameter(parameter.getKey(), parameter.getValue());
+
+		return ((Number) query.uniqueResult()).longValue() > 0;
 	}
 
 	/**
-	 * Not supported in HbnContainer. Indexing/order is controlled by underlying database.
+	 * This is an internal HbnContainer utility method that opens a StatelessSession on the connection of the current
+	 * session, so bulk operations take part in its transaction. The current session is flushed first so pending
+	 * changes are visible to the stateless session.
 	 */
-	@Override
-	public Item addItemAt(int index, Object newEntityId) throws UnsupportedOperationException
+	private StatelessSession openStatelessSession()
 	{
-		throw new UnsupportedOperationException();
+		logger.executionTrace("openStatelessSession");
+
+		final Session session = sessionFactory.getCurrentSession();
+		session.flush();
+
+		return sessionFactory.openStatelessSession(((SessionImplementor) session).connection());
 	}
 
 	/**
-	 * Get the item id for the item at the position given by index.
+	 * This is an internal HbnContainer utility method that evicts the entities with the given identifiers from the
+	 * given session, if it manages them, so they are reloaded on next access.
 	 */
-	@Override
-	public Object getIdByIndex(int index)
+	private void evictEntities(Session session, Collection<?> entityIds)
 	{
-		logger.executionTrace();
-
-		if (indexRowBuffer == null)
-			resetIndexRowBuffer(index);
+		logger.executionTrace("evictEntities");
 
-		int indexInCache = index - indexRowBufferFirstIndex;
+		final SessionImplementor sessionImplementor = (SessionImplementor) session;
+		final EntityPersister persister = ((SessionFactoryImplementor) sessionFactory)
+				.getEntityPersister(classMetadata.getEntityName());
 
-		if (!(indexInCache >= 0 && indexInCache < indexRowBuffer.size()))
+		for (Object entityId : entityIds)
 		{
-			resetIndexRowBuffer(index);
-			indexInCache = 0;
-		}
-
-		final T pojo = indexRowBuffer.get(indexInCache);
-		final Object id = getIdForPojo(pojo);
-
-		idToIndex.put(id, new Integer(index));
-
-		if (idToIndex.size() > ID_TO_INDEX_MAX_SIZE)
-			idToIndex.remove(idToIndex.keySet().iterator().next());
+			final EntityKey entityKey = sessionImplementor.generateEntityKey((Serializable) entityId, persister);
+			final Object entity = sessionImplementor.getPersistenceContext().getEntity(entityKey);
 
-		return id;
+			if (entity != null)
+				session.evict(entity);
+		}
 	}
 
 	/**
-	 * Gets the index of the Item corresponding to the entityId. The following is true for the returned index: 0 <=
-	 * index < size(), or index = -1 if there is no visible item with that id in the container.
-	 * 
-	 * Note! Expects that getIdByIndex is called for this entityId. Otherwise it will be potentially rather slow
-	 * operation with large tables. When used with Table, this shouldn't be a problem.
+	 * This is an internal HbnContainer utility method that queues the update of an entity for write-behind. The entity
+	 * is detached from the given session so the session does not write it as well.
 	 */
-	@Override
-	public int indexOfId(Object entityId)
+	@SuppressWarnings("unchecked")
+	private void queueUpdate(Session session, Object entity)
 	{
-		logger.executionTrace();
+		logger.executionTrace("queueUpdate");
 
-		final Integer index = idToIndex.get(entityId);
+		if (session.contains(entity))
+			session.evict(entity);
 
-		return (index == null)
-				? slowIndexOfId(entityId)
-				: index;
+		writeBehindQueue.update(getIdForPojo(entity), (T) entity);
 	}
 
 	/**
-	 * Gets the container property IDs which can be used to sort the items.
+	 * This is an internal HbnContainer utility method that tells if the given entity has a write queued by
+	 * write-behind. Such entities are detached and must not be reloaded since they hold the newest state.
 	 */
-	@Override
-	public Collection<String> getSortableContainerPropertyIds()
+	private boolean isWriteQueued(Object pojo)
 	{
-		logger.executionTrace();
-
-		final String[] propertyNames = classMetadata.getPropertyNames();
-		final LinkedList<String> propertyIds = new LinkedList<String>();
-
-		propertyIds.addAll(Arrays.asList(propertyNames));
-		propertyIds.addAll(getEmbeddedKeyPropertyIds());
+		return writeBehindQueue != null && writeBehindQueue.isQueued(pojo);
+	}
 
-		return propertyIds;
+	/**
+	 * This is an internal HbnContainer utility method that remembers an entity written through this container, so
+	 * change tracking does not report its writes back as external changes. The entity is referenced weakly.
+	 */
+	private void markOwnWrite(Object entity)
+	{
+		if (changeTracking && entity != null)
+			ownWrites.put(entity, Boolean.TRUE);
 	}
 
 	/**
-	 * Sort method. Sorts the container items. Sorting a container can irreversibly change the order of its items or
-	 * only change the order temporarily, depending on the container.
-	 * 
-	 * HbnContainer does not actually sort anything here, just clearing cache will do the thing lazily.
+	 * This method is called by the change tracking listener, on the thread that wrote the entity, for every committed
+	 * change of an entity of the session factory. Changes of other entity types and of entities written through this
+	 * container are ignored; the cached item of any other changed entity is invalidated and the change queued for
+	 * {@link #applyExternalChanges()}.
 	 */
-	@Override
-	public void sort(Object[] propertyId, boolean[] ascending)
+	void entityChanged(EntityChangeListener.Change change, Object entity, Serializable entityId)
 	{
-		logger.executionTrace();
+		if (entityId == null || !entityType.isInstance(entity) || ownWrites.getIfPresent(entity) != null)
+			return;
 
-		clearInternalCache();
-		orderPropertyIds = propertyId;
-		orderAscendings = ascending;
+		queueExternalChange(change, entityId);
 	}
 
 	/**
-	 * Remove all active filters from the container.
+	 * This method is called by a {@link ChangeLogPoller} for every change read from the changelog table. Changes of
+	 * other entity types are ignored, as are identifiers that can not be converted to the identifier type of this
+	 * container. The cached item of the changed entity is invalidated and the change queued for
+	 * {@link #applyExternalChanges()}.
 	 */
-	@Override
-	public void removeAllContainerFilters()
+	void changeLogged(EntityChangeListener.Change change, String entityName, Object entityId)
 	{
-		logger.executionTrace();
+		final boolean matches = entityName.equals(classMetadata.getEntityName())
+				|| entityName.equalsIgnoreCase(entityType.getSimpleName());
 
-		if (filters != null)
+		if (!matches)
+			return;
+
+		final Object identifier = convertIdentifier(entityId);
+
+		if (identifier == null)
 		{
-			filters = null;
-			clearInternalCache();
-			fireItemSetChange();
+			logger.debug("ignored logged change of " + entityName + " with identifier " + entityId);
+			return;
 		}
+
+		queueExternalChange(change, identifier);
 	}
 
 	/**
-	 * Adds a filter for the container
-	 * 
-	 * Note that for complex filtering it is possible to override {@link #getBaseCriteria()} method and add filter
-	 * so the query directly.
+	 * This is an internal HbnContainer utility method that invalidates the cached item of an entity changed outside of
+	 * this container and queues the change, together with the item that was cached, for applyExternalChanges.
 	 */
-	@Override
-	public void addContainerFilter(Filter filter) throws UnsupportedFilterException
+	private void queueExternalChange(EntityChangeListener.Change change, Object entityId)
 	{
-		logger.executionTrace();
-
-		final ContainerFilter containerFilter = FilterFactory.getContainerFilter(filter);
+		final EntityItem<T> item = cache.getIfPresent(entityId);
 
-		addContainerFilter(containerFilter);
+		cache.invalidate(entityId);
+		externalChanges.add(new ExternalChange(change, entityId, item));
 	}
 
 	/**
-	 * Finds the identifiers for the children of the given item. The returned collection is unmodifiable.
+	 * This is an internal HbnContainer utility method that converts an identifier read from the database, for example
+	 * a BigInteger or a String, to the identifier type of the entity. Returns null if that is not possible.
 	 */
-	@Override
-	public Collection<?> getChildren(Object entityId)
+	private Object convertIdentifier(Object entityId)
 	{
-		logger.executionTrace();
+		final Class<?> identifierClass = classMetadata.getIdentifierType().getReturnedClass();
 
-		final ArrayList<Object> children = new ArrayList<Object>();
+		if (identifierClass.isInstance(entityId))
+			return entityId;
 
 		try
 		{
-			parentPropertyName = getParentPropertyName();
-
-			if (parentPropertyName == null)
-				return children;
-
-			for (Object id : getItemIds())
-			{
-				EntityItem<T> entity = cache.get(id);
-				Property<?> property = entity.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
-
-				if (entityId.equals(value))
-					children.add(id);
-			}
+			if (identifierClass == Long.class)
+				return Long.valueOf(entityId.toString());
+			if (identifierClass == Integer.class)
+				return Integer.valueOf(entityId.toString());
+			if (identifierClass == Short.class)
+				return Short.valueOf(entityId.toString());
+			if (identifierClass == String.class)
+				return entityId.toString();
 		}
-		catch (Exception e)
+		catch (NumberFormatException e)
 		{
 			logger.error(e);
 		}
 
-		return children;
+		return null;
 	}
 
 	/**
-	 * Gets the identifier of the given item's parent. If there is no parent or we are unable to infer the name of the
-	 * parent property this method will return null.
+	 * This is an internal HbnContainer utility method that patches the paging state after an entity was inserted by
+	 * another session and adds an item add event to the given list if the entity is visible. If the paging state can
+	 * not be patched, the internal cache is cleared and the event is fired right away.
 	 */
-	@Override
-	public Object getParent(Object entityId)
+	@SuppressWarnings("unchecked")
+	private void applyExternalInsert(Session session, Object entityId, List<Container.ItemSetChangeEvent> patchedEvents)
 	{
-		logger.executionTrace();
+		logger.executionTrace("applyExternalInsert");
 
-		try
-		{
-			parentPropertyName = getParentPropertyName();
+		final T pojo = (T) session.get(entityType, (Serializable) entityId);
 
-			if (parentPropertyName == null)
-			{
-				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
-				return null;
-			}
+		if (pojo == null || idToIndex.containsKey(entityId))
+			return;
 
-			final EntityItem<T> entity = cache.get(entityId);
-			final Property<?> property = entity.getItemProperty(parentPropertyName);
-			final Object value = property.getValue();
+		final Integer index = applyInsert(entityId, pojo);
 
-			return value;
+		if (index == null)
+		{
+			clearInternalCache();
+			fireItemSetChange(new ItemAdd(entityId, -1, 1));
 		}
-		catch (Exception e)
+		else if (index >= 0)
 		{
-			logger.error(e);
-			return null;
+			patchedEvents.add(new ItemAdd(entityId, index, 1));
 		}
 	}
 
 	/**
-	 * Gets the IDs of all Items in the container that don't have a parent. Such items are called root Items. The
-	 * returned collection is unmodifiable.
+	 * This is an internal HbnContainer utility method that patches the paging state after an entity was deleted by
+	 * another session and adds an item remove event to the given list. If the paging state can not be patched, the
+	 * internal cache is cleared and the event is fired right away.
 	 */
-	@Override
-	public Collection<?> rootItemIds()
+	private void applyExternalDelete(Object entityId, List<Container.ItemSetChangeEvent> patchedEvents)
 	{
-		logger.executionTrace();
+		logger.executionTrace("applyExternalDelete");
 
-		final ArrayList<Object> rootItems = new ArrayList<Object>();
+		final Integer index = idToIndex.get(entityId);
 
-		try
+		if (index != null && applyRemoval(entityId, index))
 		{
-			parentPropertyName = getParentPropertyName();
+			patchedEvents.add(new ItemRemove(entityId, index, 1));
+		}
+		else
+		{
+			clearInternalCache();
+			fireItemSetChange(new ItemRemove(entityId, (index != null) ? index : -1, 1));
+		}
+	}
 
-			if (parentPropertyName == null)
-			{
-				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
-				return rootItems;
-			}
+	/**
+	 * This is an internal HbnContainer utility method that fires the events of the external inserts and deletes that
+	 * were patched into the paging state. The size is verified once for the whole batch; if it no longer matches, the
+	 * internal cache is cleared and the item add events are fired without an index.
+	 */
+	private void firePatchedEvents(List<Container.ItemSetChangeEvent> patchedEvents)
+	{
+		logger.executionTrace("firePatchedEvents");
 
-			final Collection<?> allItemIds = getItemIds();
+		if (patchedEvents.isEmpty())
+			return;
 
-			for (Object id : allItemIds)
-			{
-				EntityItem<T> entity = cache.get(id);
-				Property<?> property = entity.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
+		final boolean sizeCurrent = isSizeCurrent();
 
-				if (value == null)
-					rootItems.add(id);
-			}
-		}
-		catch (Exception e)
+		if (!sizeCurrent)
+			clearInternalCache();
+
+		for (Container.ItemSetChangeEvent changeEvent : patchedEvents)
 		{
-			logger.error(e);
+			if (!sizeCurrent && changeEvent instanceof ItemAddEvent)
+				fireItemSetChange(new ItemAdd(((ItemAddEvent) changeEvent).getFirstItemId(), -1, 1));
+			else
+				fireItemSetChange(changeEvent);
 		}
-
-		return rootItems;
 	}
 
 	/**
-	 * Sets the parent of an Item. The new parent item must exist and be able to have children. (
-	 * areChildrenAllowed(Object) == true ). It is also possible to detach a node from the hierarchy (and thus make it
-	 * root) by setting the parent null. This operation is optional.
+	 * This is an internal HbnContainer utility method that tells if the cached size still matches the database after
+	 * the paging state was patched for external changes. It does not when a change was already loaded, which happens
+	 * if it was committed shortly before the loaded index windows were queried, or if it is the changelog echo of a
+	 * write made through this container.
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	@Override
-	public boolean setParent(Object entityId, Object newParentId)
+	private boolean isSizeCurrent()
 	{
-		logger.executionTrace();
+		logger.executionTrace("isSizeCurrent");
 
-		try
-		{
-			parentPropertyName = getParentPropertyName();
+		if (size == null)
+			return true;
 
-			if (parentPropertyName == null)
-			{
-				logger.warn("failed to find a parent property name; unable to set the parent.");
-				return false;
-			}
+		final Number rowCount = (Number) uniqueQuery(getBaseCriteria().setProjection(Projections.rowCount()),
+				QueryShape.COUNT);
+		return rowCount != null && rowCount.intValue() == size.intValue();
+	}
 
-			final EntityItem<T> item = cache.get(entityId);
-			final Property property = item.getItemProperty(parentPropertyName);
+	/**
+	 * This is an internal HbnContainer utility method that refreshes the properties of an entity updated by another
+	 * session. If the update may have moved the entity or changed its visibility, the internal cache is cleared and a
+	 * plain item set change event is fired instead.
+	 */
+	private void applyExternalUpdate(Object entityId, EntityItem<T> item)
+	{
+		logger.executionTrace("applyExternalUpdate");
 
-			property.setValue(newParentId);
-			final Object value = property.getValue();
+		final boolean sorted = orderPropertyIds != null && orderPropertyIds.length > 0;
+		final boolean filtered = filters != null && !filters.isEmpty();
 
-			return (value.equals(newParentId));
+		if (sorted || filtered || getParentPropertyName() != null)
+		{
+			clearInternalCache();
+			fireItemSetChange();
 		}
-		catch (Exception e)
+		else if (item != null)
 		{
-			logger.error(e);
-			return false;
+			fireValueChanges(item);
 		}
 	}
 
 	/**
-	 * Tests if the Item with given ID can have children.
+	 * This is an internal HbnContainer utility method that fires a value change event on every instantiated entity
+	 * property of the given item.
 	 */
-	@Override
-	public boolean areChildrenAllowed(Object entityId)
+	private void fireValueChanges(EntityItem<T> item)
 	{
-		logger.executionTrace();
+		logger.executionTrace("fireValueChanges");
 
-		if ((parentPropertyName = getParentPropertyName()) != null)
-			return containsId(entityId);
+		for (Object propertyId : item.getItemPropertyIds())
+		{
+			Property<?> cachedProperty = item.getItemProperty(propertyId);
+			if (cachedProperty instanceof EntityItem.EntityProperty)
+			{
+				@SuppressWarnings("rawtypes")
+				EntityProperty entityProperty = (EntityProperty) cachedProperty;
+				entityProperty.fireValueChange();
+			}
+		}
+	}
 
-		return false;
+	/**
+	 * This is an internal HbnContainer utility method that discards cached filter results and the in-memory snapshot
+	 * after data was modified.
+	 */
+	private void invalidateCachedResults()
+	{
+		logger.executionTrace("invalidateCachedResults");
+
+		if (filterResultCache != null)
+			filterResultCache.invalidateAll();
+
+		inMemorySnapshot = null;
 	}
 
 	/**
-	 * Sets the given Item's capability to have children. If the Item identified with entityId already has children and
-	 * areChildrenAllowed(Object) is false this method fails and false is returned.
-	 * 
-	 * The children must be first explicitly removed with setParent(Object entityId, Object newParentId)or
-	 * com.vaadin.data.Container.removeItem(Object entityId).
-	 * 
-	 * This operation is optional. If it is not implemented, the method always returns false.
+	 * Sets the timeout in seconds applied to every query issued by this container. A value of zero or less means that
+	 * no timeout is set and the JDBC driver default applies.
 	 */
-	@Override
-	public boolean setChildrenAllowed(Object entityId, boolean areChildrenAllowed)
+	public void setQueryTimeout(int seconds)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setQueryTimeout");
 
-		return false;
+		queryTimeout = seconds;
 	}
 
 	/**
-	 * Tests if the Item specified with entityId is a root Item. The hierarchical container can have more than one root
-	 * and must have at least one unless it is empty. The getParent(Object entityId) method always returns null for root
-	 * Items.
+	 * Gets the timeout in seconds applied to every query issued by this container.
 	 */
-	@Override
-	public boolean isRoot(Object entityId)
+	public int getQueryTimeout()
 	{
-		logger.executionTrace();
+		logger.executionTrace("getQueryTimeout");
 
-		try
-		{
-			parentPropertyName = getParentPropertyName();
+		return queryTimeout;
+	}
 
-			if (parentPropertyName == null)
-			{
-				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
-				return false;
-			}
+	/**
+	 * Sets the registry this container records its metrics into, or disables metrics if it is null. The calls of the
+	 * Container API entry points are counted and timed, as are the queries they issue by shape, together with the hit
+	 * ratio of the row buffers and the statistics of the item cache. Metrics are aggregated per entity type, so
+	 * containers of the same entity type sharing a registry share their metrics. Without a registry nothing is
+	 * measured.
+	 */
+	public void setMetricsRegistry(MetricsRegistry registry)
+	{
+		logger.executionTrace("setMetricsRegistry");
 
-			final EntityItem<T> item = cache.get(entityId);
-			final Property<?> property = item.getItemProperty(parentPropertyName);
-			final Object value = property.getValue();
+		metrics = (registry != null) ? registry.getMetrics(classMetadata.getEntityName()) : null;
 
-			return (value == null);
-		}
-		catch (Exception e)
-		{
-			logger.error(e);
-			return false;
-		}
+		if (metrics != null)
+			metrics.addCache(cache);
 	}
 
 	/**
-	 * Tests if the Item specified with entityId has child Items or if it is a leaf. The getChildren(Object entityId)
-	 * method always returns null for leaf Items.
-	 * 
-	 * Note that being a leaf does not imply whether or not an Item is allowed to have children.
+	 * Gets the metrics this container records into, or null if no metrics registry is set.
 	 */
-	@Override
-	public boolean hasChildren(Object entityId)
+	public ContainerMetrics getMetrics()
 	{
-		logger.executionTrace();
+		logger.executionTrace("getMetrics");
 
-		try
-		{
-			parentPropertyName = getParentPropertyName();
+		return metrics;
+	}
 
-			if (parentPropertyName == null)
-			{
-				logger.warn("failed to find a parent property name; hierarchy may be incomplete.");
-				return false;
-			}
+	/**
+	 * Sets the recorder receiving an event for every page load, count, item lookup, hierarchy query, filter or sort
+	 * change and write of this container, or disables events if it is null, which is the default.
+	 */
+	public void setEventRecorder(ContainerEventRecorder eventRecorder)
+	{
+		logger.executionTrace("setEventRecorder");
 
-			for (Object id : getItemIds())
-			{
-				EntityItem<T> item = cache.get(id);
-				Property<?> property = item.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
+		this.eventRecorder = eventRecorder;
+	}
 
-				if (entityId.equals(value))
-					return true;
-			}
+	public ContainerEventRecorder getEventRecorder()
+	{
+		logger.executionTrace("getEventRecorder");
 
-			return false;
-		}
-		catch (Exception e)
-		{
-			logger.error(e);
-			return false;
-		}
+		return eventRecorder;
 	}
 
 	/**
-	 * Adds an Item set change listener for the object.
+	 * Sets the duration from which Container API calls and the queries they issue are reported in the
+	 * SlowOperationLog, together with the entity type, the filters, the sort order, the requested range, the row count
+	 * and, for queries, the rendered SQL. A duration of zero or less disables the detection, which is the default.
 	 */
-	@Override
-	public void addItemSetChangeListener(ItemSetChangeListener listener)
+	public void setSlowOperationThreshold(long duration, TimeUnit unit)
 	{
-		logger.executionTrace();
+		logger.executionTrace("setSlowOperationThreshold");
 
-		if (itemSetChangeListeners == null)
-			itemSetChangeListeners = new LinkedList<ItemSetChangeListener>();
+		slowOperationNanos = Math.max(0, unit.toNanos(duration));
+	}
 
-		itemSetChangeListeners.add(listener);
+	/**
+	 * Gets the duration from which operations are reported as slow, or zero if the detection is disabled.
+	 */
+	public long getSlowOperationThreshold(TimeUnit unit)
+	{
+		logger.executionTrace("getSlowOperationThreshold");
+
+		return unit.convert(slowOperationNanos, TimeUnit.NANOSECONDS);
 	}
 
 	/**
-	 * Removes the Item set change listener from the object.
+	 * Sets a QueryBudget applied to every call of a Container API entry point of this container, allowing at most
+	 * maxStatements SQL statements per call and each statement shape at most maxRepeats times, so hidden per-row
+	 * queries are caught where they are issued. The statements of nested calls count against the outer call too. A
+	 * limit of zero or less is not checked; with both limits disabled, which is the default, no budget is applied.
+	 * Statements are only counted if a QueryBudgetInterceptor is set on the Hibernate Configuration.
 	 */
-	@Override
-	public void removeItemSetChangeListener(ItemSetChangeListener listener)
+	public void setCallQueryBudget(int maxStatements, int maxRepeats, QueryBudget.Action action)
 	{
-		logger.executionTrace();
-		
-		if (itemSetChangeListeners != null)
-			itemSetChangeListeners.remove(listener);
+		logger.executionTrace("setCallQueryBudget");
+
+		callMaxStatements = maxStatements;
+		callMaxRepeats = maxRepeats;
+		callBudgetAction = action;
 	}
 
 	/**
-	 * Adds an Item set change listener for the object. This method is deprecated. You should use
-	 * addItemSetChangeListener() instead.
+	 * This is an internal HbnContainer utility method that tells if a QueryBudget is applied to container calls.
 	 */
-	@Override
-	@Deprecated
-	public void addListener(ItemSetChangeListener listener)
+	private boolean isCallBudgeted()
 	{
-		logger.executionTrace();
-		addItemSetChangeListener(listener);
+		return callMaxStatements > 0 || callMaxRepeats > 0;
 	}
 
 	/**
-	 * Removes the Item set change listener from the object. This method is deprecated. You should use
-	 * addItemSetChangeListener() instead.
+	 * This is an internal HbnContainer utility method that gets the start time of an operation to measure, or zero if
+	 * neither metrics nor events are recorded, slow operations detected or call query budgets applied.
 	 */
-	@Override
-	@Deprecated
-	public void removeListener(ItemSetChangeListener listener)
+	private long startTiming()
 	{
-		logger.executionTrace();
-		removeItemSetChangeListener(listener);
+		final boolean measured = metrics != null || eventRecorder != null || slowOperationNanos > 0 || isCallBudgeted();
+		return measured ? System.nanoTime() : 0L;
 	}
 
-	//
-	// UTILITY METHODS
-	//
+	/**
+	 * This is an internal HbnContainer utility method that starts a call of a Container API entry point, which is
+	 * ended by recordOperation with the returned start time. Events marked due by the debounce are sent first. Entry
+	 * points called by other entry points, like getItemIds(int, int) calling getItemIds(), are not measured on their
+	 * own; they get zero as start time, so only the call made by the application is recorded.
+	 */
+	private long startOperation()
+	{
+		if (operationDepth == 0 && eventsDue)
+			flushEvents();
+
+		if (operationDepth++ > 0)
+			return 0L;
+
+		final long start = startTiming();
+
+		if (isCallBudgeted())
+		{
+			new QueryBudget("HbnContainer call on " + classMetadata.getEntityName(), callMaxStatements, callMaxRepeats,
+					callBudgetAction).beginCall(start);
+		}
+
+		return start;
+	}
 
 	/**
-	 * This method was added mainly to allow unit tests to be written to cover the filter add/remove methods.
+	 * This is an internal HbnContainer utility method that records a call of a Container API entry point started at
+	 * the given time.
 	 */
-	public Set<ContainerFilter> getContainerFilters()
+	private void recordOperation(String operation, long start)
 	{
-		return filters;
+		recordOperation(operation, start, -1, 0);
 	}
 
 	/**
-	 * This method was added mainly to allow unit tests to be written to cover the listener add/remove methods.
+	 * This is an internal HbnContainer utility method that records a call of a Container API entry point started at
+	 * the given time for the given range of indexes, which is ignored if startIndex is negative.
 	 */
-	public List<ItemSetChangeListener> getItemSetChangeListeners()
+	private void recordOperation(String operation, long start, int startIndex, int count)
 	{
-		return itemSetChangeListeners;
+		operationDepth--;
+
+		if (start == 0L)
+			return;
+
+		final long elapsed = System.nanoTime() - start;
+		final QueryBudget budget = QueryBudget.getCurrent();
+
+		if (budget != null)
+			budget.endCall(start);
+
+		if (metrics != null)
+			metrics.recordOperation(operation, elapsed);
+
+		if (isSlow(elapsed))
+		{
+			final Integer rows = size;
+			SlowOperationLog.log(describeSlowOperation(operation + "()", elapsed, startIndex, count,
+					(rows == null) ? -1 : rows.intValue(), null));
+		}
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Determines if a property is contained within an embedded key.
+	 * This is an internal HbnContainer utility method that records a query of the given shape started at the given
+	 * time, which returned the given number of rows or -1 if it failed. The SQL captured for the query, if any, is
+	 * written to the slow operation log; otherwise it is rendered from the criteria.
 	 */
-	private boolean propertyInEmbeddedKey(Object propertyId)
+	private void recordQuery(QueryShape shape, long start, Criteria criteria, String sql, int rows)
 	{
-		logger.executionTrace();
+		if (start == 0L)
+			return;
 
-		if (embeddedPropertiesCache.containsKey(propertyId))
-			return embeddedPropertiesCache.get(propertyId);
+		final long elapsed = System.nanoTime() - start;
 
-		final Type identifierType = classMetadata.getIdentifierType();
+		if (metrics != null)
+			metrics.recordQuery(shape, elapsed);
 
-		if (identifierType.isComponentType())
+		final boolean slow = isSlow(elapsed);
+
+		if (!slow && (eventRecorder == null || shape == QueryShape.SINGLE_GET))
+			return;
+
+		final CriteriaImpl criteriaImpl = (criteria instanceof CriteriaImpl) ? (CriteriaImpl) criteria : null;
+		final Integer firstResult = (criteriaImpl == null) ? null : criteriaImpl.getFirstResult();
+		final Integer maxResults = (criteriaImpl == null) ? null : criteriaImpl.getMaxResults();
+		final int startIndex = (firstResult != null) ? firstResult.intValue() : (maxResults != null) ? 0 : -1;
+		final int count = (maxResults == null) ? -1 : maxResults.intValue();
+
+		if (shape != QueryShape.SINGLE_GET)
 		{
-			final ComponentType componentType = (ComponentType) identifierType;
-			final String[] idPropertyNames = componentType.getPropertyNames();
-			final List<String> idPropertyNameList = Arrays.asList(idPropertyNames);
-			return idPropertyNameList.contains(propertyId);
+			recordEvent((shape == QueryShape.COUNT) ? ContainerEvent.Kind.COUNT : ContainerEvent.Kind.PAGE_LOAD,
+					shape.name(), start, startIndex, count, rows, false);
 		}
 
-		return false;
+		if (slow)
+		{
+			SlowOperationLog.log(describeSlowOperation(shape + " query", elapsed, startIndex, count, rows,
+					(sql != null) ? sql : CriteriaSqlRenderer.render(criteria)));
+		}
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. This method triggers events associated with the
-	 * ItemSetChangeListener.
+	 * This is an internal HbnContainer utility method that passes an operation started at the given time to the event
+	 * recorder, if there is one.
 	 */
-	private void fireItemSetChange()
+	private void recordEvent(ContainerEvent.Kind kind, String operation, long start, int startIndex, int count,
+			int rows, boolean cacheHit)
 	{
-		logger.executionTrace();
+		final ContainerEventRecorder recorder = eventRecorder;
 
-		if (itemSetChangeListeners != null)
+		if (recorder != null && start != 0L)
 		{
-			final Object[] changeListeners = itemSetChangeListeners.toArray();
-
-			final Container.ItemSetChangeEvent changeEvent = new Container.ItemSetChangeEvent()
-			{
-				private static final long serialVersionUID = -3002746333251784195L;
-
-				public Container getContainer()
-				{
-					return HbnContainer.this;
-				}
-			};
-
-			for (int i = 0; i < changeListeners.length; i++)
-			{
-				ItemSetChangeListener changeListener = (ItemSetChangeListener) changeListeners[i];
-				changeListener.containerItemSetChange(changeEvent);
-			}
+			recorder.record(new ContainerEvent(kind, classMetadata.getEntityName(), operation, start,
+					System.nanoTime() - start, startIndex, count, rows, cacheHit));
 		}
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Gets a base listing using current ordering criteria.
+	 * This is an internal HbnContainer utility method that passes a filter or sort change to the event recorder, if
+	 * there is one.
 	 */
-	private Criteria getCriteria()
+	private void recordChange(ContainerEvent.Kind kind, String operation)
 	{
-		logger.executionTrace();
+		final ContainerEventRecorder recorder = eventRecorder;
 
-		final Criteria criteria = getBaseCriteria();
-		final List<Order> orders = getOrder(!normalOrder);
-
-		for (Order order : orders)
+		if (recorder != null)
 		{
-			criteria.addOrder(order);
+			recorder.record(new ContainerEvent(kind, classMetadata.getEntityName(), operation, System.nanoTime(), 0,
+					-1, -1, -1, false));
 		}
-
-		return criteria;
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Return the ordering criteria in the order in which they should
-	 * be applied. The composed order must be stable and must include {@link #getNaturalOrder(boolean)} at the end.
+	 * This is an internal HbnContainer utility method that tells if an operation that took the given time is to be
+	 * logged as slow. If so it takes an entry of the rate limited SlowOperationLog, which the caller must write.
 	 */
-	protected final List<Order> getOrder(boolean flipOrder)
+	private boolean isSlow(long elapsed)
 	{
-		logger.executionTrace();
-
-		final List<Order> orders = new ArrayList<Order>();
-		orders.addAll(getDefaultOrder(flipOrder));
-		orders.add(getNaturalOrder(flipOrder));
-		return orders;
+		return slowOperationNanos > 0 && elapsed >= slowOperationNanos && SlowOperationLog.tryAcquire();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Returns the ordering to use for the container contents. The
-	 * default implementation provides the {@link Container.Sortable} functionality. Can be overridden to customize item
-	 * sort order.
+	 * This is an internal HbnContainer utility method that builds the SlowOperationLog entry of a slow operation. A
+	 * negative startIndex, count or rows means that it is unknown or does not apply.
 	 */
-	protected List<Order> getDefaultOrder(boolean flipOrder)
+	private String describeSlowOperation(String operation, long elapsed, int startIndex, int count, int rows,
+			String sql)
 	{
-		logger.executionTrace();
+		final StringBuilder message = new StringBuilder();
 
-		final List<Order> orders = new ArrayList<Order>();
+		message.append("slow ").append(operation).append(" on ").append(classMetadata.getEntityName())
+				.append(String.format(" took %.3f ms", (double) elapsed / TimeUnit.MILLISECONDS.toNanos(1)))
+				.append("; filters: ").append(describeFilters())
+				.append("; order: ").append(describeOrder());
 
-		if (orderPropertyIds != null)
+		if (startIndex >= 0)
 		{
-			for (int i = 0; i < orderPropertyIds.length; i++)
-			{
-				String propertyId = orderPropertyIds[i].toString();
-
-				if (propertyInEmbeddedKey(propertyId))
-					propertyId = classMetadata.getIdentifierPropertyName() + "." + propertyId;
+			message.append("; range: ").append(startIndex);
 
-				boolean ascending = (flipOrder)
-						? !orderAscendings[i]
-						: orderAscendings[i];
+			if (count >= 0)
+				message.append("..").append(startIndex + count - 1);
+		}
 
-				Order order = (ascending)
-						? Order.asc(propertyId)
-						: Order.desc(propertyId);
+		message.append("; rows: ").append((rows < 0) ? "unknown" : String.valueOf(rows));
 
-				orders.add(order);
-			}
-		}
+		if (sql != null)
+			message.append("; sql: ").append(sql);
 
-		return orders;
+		return message.toString();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Creates the base criteria for entity class and add possible
-	 * restrictions to query. This method is protected so developers can add their own custom criteria.
+	 * This is an internal HbnContainer utility method that describes the current filters for the SlowOperationLog,
+	 * as HQL conditions with their parameters where they can be expressed in HQL.
 	 */
-	protected Criteria getBaseCriteria()
+	private String describeFilters()
 	{
-		logger.executionTrace();
+		final Set<ContainerFilter> currentFilters = filters;
 
-		final Session session = sessionFactory.getCurrentSession();
-		Criteria criteria = session.createCriteria(entityType);
+		if (currentFilters == null || currentFilters.isEmpty())
+			return "none";
 
-		if (filters != null)
+		final StringBuilder description = new StringBuilder();
+
+		for (ContainerFilter filter : currentFilters)
 		{
-			for (ContainerFilter filter : filters)
-			{
-				String idName = null;
+			if (description.length() > 0)
+				description.append(" and ");
 
-				if (propertyInEmbeddedKey(filter.getPropertyId()))
-					idName = classMetadata.getIdentifierPropertyName();
+			final Map<String, Object> parameters = new HashMap<String, Object>();
+			String condition = null;
 
-				criteria = criteria.add(filter.getCriterion(idName));
+			if (filter.isHqlExpressible())
+			{
+				try
+				{
+					condition = filter.getHqlCondition(null, parameters);
+				}
+				catch (RuntimeException e)
+				{
+					condition = null;
+				}
 			}
+
+			if (condition == null)
+				description.append(filter.getClass().getSimpleName()).append("(").append(filter.getPropertyId())
+						.append(")");
+			else
+				description.append("(").append(condition).append(")").append(parameters.isEmpty() ? "" : parameters);
 		}
 
-		return criteria;
+		return description.toString();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. Natural order is the order in which the database is sorted if
-	 * container has no other ordering set. Natural order is always added as least significant order to queries. This is
-	 * needed to keep items stable order across queries. The default implementation sorts entities by identifier column.
+	 * This is an internal HbnContainer utility method that describes the current sort order for the SlowOperationLog.
 	 */
-	protected Order getNaturalOrder(boolean flipOrder)
+	private String describeOrder()
 	{
-		logger.executionTrace();
-
-		final String propertyName = getIdPropertyName();
+		final Object[] propertyIds = orderPropertyIds;
+		final boolean[] ascendings = orderAscendings;
 
-		return (flipOrder)
-				? Order.desc(propertyName)
-				: Order.asc(propertyName);
-	}
+		if (propertyIds == null || propertyIds.length == 0)
+			return "natural";
 
-	/**
-	 * This is an internal HbnContainer utility method to detect identifier of given entity object.
-	 */
-	private Object getIdForPojo(Object pojo)
-	{
-		logger.executionTrace();
+		final StringBuilder description = new StringBuilder();
 
-		final Session session = sessionFactory.getCurrentSession();
-		return classMetadata.getIdentifier(pojo, (SessionImplementor) session);
-	}
+		for (int i = 0; i < propertyIds.length; i++)
+		{
+			if (i > 0)
+				description.append(", ");
 
-	/**
-	 * This is an internal HbnContainer utility method. RowBuffer stores a list of entity items to avoid excessive
-	 * number of DB queries.
-	 */
-	private List<T> getRowBuffer()
-	{
-		logger.executionTrace();
+			description.append(propertyIds[i])
+					.append((ascendings != null && i < ascendings.length && !ascendings[i]) ? " desc" : " asc");
+		}
 
-		return (normalOrder) ? ascRowBuffer : descRowBuffer;
+		return description.toString();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method. RowBuffer stores some pojos to avoid excessive number of DB
-	 * queries. Also updates the idToIndex map.
+	 * This is an internal HbnContainer utility method that cancels all queries currently running for this container.
+	 * It is called after the filters or the sort order changed, at which point the results of those queries are no
+	 * longer of any use. Cancellation is best effort and depends on the JDBC driver supporting Statement.cancel().
 	 */
-	private void setRowBuffer(List<T> list, int firstIndex)
+	private void cancelRunningQueries()
 	{
-		logger.executionTrace();
+		logger.executionTrace("cancelRunningQueries");
 
-		if (normalOrder)
+		final long generation = queryGeneration.get();
+
+		for (Map.Entry<Session, RunningQuery> runningQuery : runningQueries.entrySet())
 		{
-			ascRowBuffer = list;
+			if (runningQuery.getValue().generation == generation)
+				continue;
 
-			for (int i = 0; i < list.size(); ++i)
+			try
 			{
-				idToIndex.put(getIdForPojo(list.get(i)), firstIndex + i);
+				runningQuery.getValue().cancelled = true;
+				runningQuery.getKey().cancelQuery();
 			}
-		}
-		else
-		{
-			descRowBuffer = list;
-			final int lastIndex = size() - 1;
-
-			for (int i = 0; i < list.size(); ++i)
+			catch (HibernateException e)
 			{
-				idToIndex.put(getIdForPojo(list.get(i)), lastIndex - firstIndex - i);
+				logger.debug("unable to cancel a superseded query: " + e);
 			}
 		}
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that gets the property name of the identifier.
+	 * This is an internal HbnContainer utility method that tells if the internal caches were invalidated after the
+	 * given query generation was read. Results of such queries must not be stored in the row buffers.
 	 */
-	private String getIdPropertyName()
+	private boolean isSuperseded(long generation)
 	{
-		logger.executionTrace();
-
-		return classMetadata.getIdentifierPropertyName();
+		return generation != queryGeneration.get();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method to query new set of entity items to cache from given index.
+	 * This is an internal HbnContainer utility method that tells if a query failed because this container cancelled
+	 * it. Only JDBC errors of queries that were actually cancelled qualify; any other failure, including one of a
+	 * superseded query that was not cancelled, must be rethrown. It must be called before the query is unregistered.
 	 */
-	@SuppressWarnings("unchecked")
-	private void resetIndexRowBuffer(int index)
+	private boolean isCancelled(Session session, HibernateException e)
 	{
-		logger.executionTrace();
-
-		indexRowBufferFirstIndex = index;
-		indexRowBuffer = getCriteria().setFirstResult(index).setMaxResults(ROW_BUF_SIZE).list();
+		final RunningQuery runningQuery = runningQueries.get(session);
+		return runningQuery != null && runningQuery.cancelled && e instanceof JDBCException;
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that gets the index of the given identifier.
+	 * This is an internal HbnContainer utility method that executes a listing query. The query is registered as
+	 * running so it can be cancelled if the filters or the sort order change. A query that failed because it was
+	 * cancelled that way yields an empty list.
 	 */
-	private int slowIndexOfId(Object entityId)
+	private List<?> listQuery(Criteria criteria, QueryShape shape)
 	{
-		logger.executionTrace();
+		logger.executionTrace("listQuery");
 
-		final Criteria criteria = getCriteria().setProjection(Projections.id());
-		final List<?> list = criteria.list();
-		return list.indexOf(entityId);
-	}
+		final long generation = queryGeneration.get();
+		final Session session = beginQuery(criteria, generation);
+		final boolean captured = captureStatement();
+		final long start = startTiming();
+		List<?> rows = null;
 
-	/**
-	 * This is an internal HbnContainer utility method. Adds container filter for hibernate mapped property. For
-	 * property not mapped by Hibernate.
-	 */
-	public void addContainerFilter(Object propertyId, String filterString, boolean ignoreCase, boolean onlyMatchPrefix)
-	{
-		logger.executionTrace();
+		try
+		{
+			rows = criteria.list();
+			return rows;
+		}
+		catch (HibernateException e)
+		{
+			if (!isCancelled(session, e))
+				throw e;
 
-		addContainerFilter(new StringContainerFilter(propertyId, filterString, ignoreCase, onlyMatchPrefix));
+			logger.debug("superseded query was cancelled: " + e);
+			return new ArrayList<Object>();
+		}
+		finally
+		{
+			runningQueries.remove(session);
+			recordQuery(shape, start, criteria, captured ? QueryBudget.takeCapturedStatement() : null,
+					(rows == null) ? -1 : rows.size());
+		}
 	}
 
 	/**
-	 * Clears all filters present in filters which have the same property id as
-	 * that set in containerFilter
-	 * 
-	 * @param containerFilter
-	 *            the filter which will be used to filter filters
-	 * @param filters
-	 *            set of filters to filter
-	 * @return A filtered set of ContainerFilters where there are no filters
-	 *         with the same property ID as the one in containerFilter
-	 */
-	/*
-	 * TODO: is this really necessary? Enums do not work properly in tables
-	 * without this, but those may have to be better handled somewhere else
+	 * This is an internal HbnContainer utility method that executes a query returning a single result. A query that
+	 * failed because it was cancelled by a filter or sort change yields null.
 	 */
-	private Set<ContainerFilter> filterFilters(
-			final ContainerFilter containerFilter,
-			final Set<ContainerFilter> filters)
+	private Object uniqueQuery(Criteria criteria, QueryShape shape)
 	{
-		final HashSet<ContainerFilter> filtered = new HashSet<ContainerFilter>();
+		logger.executionTrace("uniqueQuery");
 
-		final Object propertyId = containerFilter.getPropertyId();
-		for (ContainerFilter filter : filters)
+		final long generation = queryGeneration.get();
+		final Session session = beginQuery(criteria, generation);
+		final boolean captured = captureStatement();
+		final long start = startTiming();
+		Object result = null;
+
+		try
 		{
-			if (!propertyId.equals(filter.getPropertyId()))
-			{
-				filtered.add(filter);
-			}
+			result = criteria.uniqueResult();
+			return result;
 		}
+		catch (HibernateException e)
+		{
+			if (!isCancelled(session, e))
+				throw e;
 
-		return filtered;
+			logger.debug("superseded query was cancelled: " + e);
+			return null;
+		}
+		finally
+		{
+			runningQueries.remove(session);
+			recordQuery(shape, start, criteria, captured ? QueryBudget.takeCapturedStatement() : null,
+					(result instanceof Number && shape == QueryShape.COUNT) ? ((Number) result).intValue()
+							: (result == null) ? 0 : 1);
+		}
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that adds a container filter.
+	 * This is an internal HbnContainer utility method that rethrows the QueryBudget.ExceededException in the cause
+	 * chain of the given exception, if there is one, so the Container API methods that log and ignore failures do not
+	 * swallow a call or request budget that is set to throw.
 	 */
-	public void addContainerFilter(ContainerFilter containerFilter)
+	private static void rethrowIfBudgetExceeded(Throwable e)
 	{
-		logger.executionTrace();
-
-		if (addedProperties.containsKey(containerFilter.getPropertyId()))
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
 		{
-			final String message = "HbnContainer does not support filtering properties not mapped by Hibernate";
-			throw new UnsupportedOperationException(message);
+			if (cause instanceof QueryBudget.ExceededException)
+				throw (QueryBudget.ExceededException) cause;
 		}
-
-		if (filters == null)
-			filters = new HashSet<ContainerFilter>();
-
-		filters = filterFilters(containerFilter, filters);
-
-		filters.add(containerFilter);
-
-		clearInternalCache();
-		fireItemSetChange();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that removes container filters for the given property identifier.
+	 * This is an internal HbnContainer utility method that starts capturing the SQL of the next statement, if slow
+	 * operations are detected, so a slow query can be logged with it. Returns true if it did.
 	 */
-	public void removeContainerFilters(Object propertyId)
+	private boolean captureStatement()
 	{
-		logger.executionTrace();
-
-		if (filters != null)
-		{
-			for (Iterator<ContainerFilter> iterator = filters.iterator(); iterator.hasNext();)
-			{
-				ContainerFilter containerFilter = iterator.next();
-
-				if (containerFilter.getPropertyId().equals(propertyId))
-					iterator.remove();
-			}
+		if (slowOperationNanos <= 0)
+			return false;
 
-			clearInternalCache();
-			fireItemSetChange();
-		}
+		QueryBudget.captureStatement();
+		return true;
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that removes the given container filter.
+	 * This is an internal HbnContainer utility method that applies the query timeout and registers the current session
+	 * as running a query of the given generation.
 	 */
-	@Override
-	public void removeContainerFilter(Filter filter)
+	private Session beginQuery(Criteria criteria, long generation)
 	{
-		logger.executionTrace();
+		final Session session = sessionFactory.getCurrentSession();
 
-		final ContainerFilter containerFilter = FilterFactory.getContainerFilter(filter);
-		filters.remove(containerFilter);
+		if (queryTimeout > 0)
+			criteria.setTimeout(queryTimeout);
 
-		fireItemSetChange();
+		runningQueries.put(session, new RunningQuery(generation));
+		return session;
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that infers the name of the parent field belonging to the current
-	 * property based on type.
+	 * The queries of this container can not be cancelled after deserialization, as the sessions running them are not
+	 * serialized, but the bookkeeping of the running queries and of external changes must be restored.
 	 */
-	private String getParentPropertyName()
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
 	{
-		logger.executionTrace();
+		in.defaultReadObject();
 
-		// TODO: make this a little more robust, there are a number of cases where this will fail.
-
-		if (parentPropertyName == null)
-		{
-			String[] propertyNames = classMetadata.getPropertyNames();
-
-			for (int i = 0; i < propertyNames.length; ++i)
-			{
-				String entityTypeName = entityType.getName();
-				String propertyTypeName = classMetadata.getPropertyType(propertyNames[i]).getName();
-
-				if (entityTypeName.equals(propertyTypeName))
-				{
-					parentPropertyName = propertyNames[i];
-					break;
-				}
-			}
-		}
-
-		return parentPropertyName;
+		runningQueries = new ConcurrentHashMap<Session, RunningQuery>();
+		externalChanges = new ConcurrentLinkedQueue<ExternalChange>();
+		ownWrites = CacheBuilder.newBuilder().weakKeys().build();
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method to clear all cache fields.
+	 * A query running in a session, with the query generation it was started in and whether it was cancelled.
 	 */
-	protected void clearInternalCache()
+	private static class RunningQuery
 	{
-		logger.executionTrace();
+		private final long generation;
+		private volatile boolean cancelled = false;
 
-		idToIndex.clear();
-		indexRowBuffer = null;
-		ascRowBuffer = null;
-		descRowBuffer = null;
-		firstId = null;
-		lastId = null;
-		size = null;
-		embeddedPropertiesCache.clear();
+		private RunningQuery(long generation)
+		{
+			this.generation = generation;
+		}
 	}
 }
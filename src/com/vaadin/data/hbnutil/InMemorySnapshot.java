@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.data.hbnutil.filter.ContainerFilter;
+
+/**
+ * Columnar in-memory copy of the rows of an entity type, used by HbnContainer in in-memory mode. Every mapped
+ * property is stored as one array of values indexed by row. Filtering and sorting produce a view, an array of row
+ * numbers in display order, so no database query is needed to answer the Container.Indexed and Container.Ordered
+ * methods.
+ */
+class InMemorySnapshot
+{
+	private final Object[] ids;
+	private final Map<String, Object[]> columns;
+	private final Map<Object, Integer> rowById;
+	private final Set<ContainerFilter> databaseFilters;
+	private int[] view;
+	private int[] viewPositionByRow;
+
+	InMemorySnapshot(Object[] ids, Map<String, Object[]> columns, Set<ContainerFilter> databaseFilters)
+	{
+		this.ids = ids;
+		this.columns = columns;
+		this.databaseFilters = databaseFilters;
+		this.rowById = new HashMap<Object, Integer>(ids.length * 2);
+
+		for (int row = 0; row < ids.length; row++)
+			rowById.put(ids[row], row);
+	}
+
+	/**
+	 * Returns the filters that were applied by the database when this snapshot was loaded.
+	 */
+	Set<ContainerFilter> getDatabaseFilters()
+	{
+		return databaseFilters;
+	}
+
+	/**
+	 * Tells if the given property is available as a column and can thus be filtered and sorted in memory.
+	 */
+	boolean hasColumn(Object propertyId)
+	{
+		return propertyId != null && columns.containsKey(propertyId.toString());
+	}
+
+	boolean hasView()
+	{
+		return view != null;
+	}
+
+	void invalidateView()
+	{
+		view = null;
+		viewPositionByRow = null;
+	}
+
+	/**
+	 * Filters and sorts the rows. Sort properties without a column are ignored; the identifier is always used as the
+	 * least significant sort key to keep the order stable, like the natural order of database queries.
+	 */
+	void updateView(Collection<ContainerFilter> filters, Object[] orderPropertyIds, boolean[] orderAscendings)
+	{
+		final List<Integer> rows = new ArrayList<Integer>(ids.length);
+
+		for (int row = 0; row < ids.length; row++)
+		{
+			if (passes(row, filters))
+				rows.add(row);
+		}
+
+		final Integer[] sortedRows = rows.toArray(new Integer[rows.size()]);
+		Arrays.sort(sortedRows, getComparator(orderPropertyIds, orderAscendings));
+
+		view = new int[sortedRows.length];
+		viewPositionByRow = new int[ids.length];
+		Arrays.fill(viewPositionByRow, -1);
+
+		for (int position = 0; position < sortedRows.length; position++)
+		{
+			view[position] = sortedRows[position];
+			viewPositionByRow[sortedRows[position]] = position;
+		}
+	}
+
+	int size()
+	{
+		return view.length;
+	}
+
+	Object getIdByIndex(int index)
+	{
+		return (index >= 0 && index < view.length) ? ids[view[index]] : null;
+	}
+
+	int indexOfId(Object id)
+	{
+		final Integer row = rowById.get(id);
+		return (row == null) ? -1 : viewPositionByRow[row];
+	}
+
+	List<Object> getIds(int startIndex, int count)
+	{
+		final int endIndex = Math.min(view.length, startIndex + count);
+		final List<Object> result = new ArrayList<Object>(Math.max(0, endIndex - startIndex));
+
+		for (int index = startIndex; index < endIndex; index++)
+			result.add(ids[view[index]]);
+
+		return result;
+	}
+
+	private boolean passes(int row, Collection<ContainerFilter> filters)
+	{
+		for (ContainerFilter filter : filters)
+		{
+			final Object value = columns.get(filter.getPropertyId().toString())[row];
+
+			if (!filter.evaluate(value))
+				return false;
+		}
+
+		return true;
+	}
+
+	private Comparator<Integer> getComparator(Object[] orderPropertyIds, boolean[] orderAscendings)
+	{
+		final List<Object[]> sortColumns = new ArrayList<Object[]>();
+		final List<Boolean> sortAscendings = new ArrayList<Boolean>();
+
+		if (orderPropertyIds != null)
+		{
+			for (int i = 0; i < orderPropertyIds.length; i++)
+			{
+				if (hasColumn(orderPropertyIds[i]))
+				{
+					sortColumns.add(columns.get(orderPropertyIds[i].toString()));
+					sortAscendings.add(orderAscendings[i]);
+				}
+			}
+		}
+
+		sortColumns.add(ids);
+		sortAscendings.add(Boolean.TRUE);
+
+		return new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer row, Integer otherRow)
+			{
+				for (int i = 0; i < sortColumns.size(); i++)
+				{
+					final Object[] column = sortColumns.get(i);
+					final int comparison = compareNullsFirst(column[row], column[otherRow]);
+
+					if (comparison != 0)
+						return sortAscendings.get(i) ? comparison : -comparison;
+				}
+
+				return 0;
+			}
+		};
+	}
+
+	private static int compareNullsFirst(Object value, Object otherValue)
+	{
+		if (value == null || otherValue == null)
+			return (value == null) ? ((otherValue == null) ? 0 : -1) : 1;
+
+		if (!(value instanceof Comparable))
+			return 0;
+
+		return ContainerFilter.compareValues(value, otherValue);
+	}
+}
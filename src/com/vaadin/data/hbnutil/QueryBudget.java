@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.hibernate.HibernateException;
+
+/**
+ * Counts the SQL statements issued by the current thread between {@link #begin()} and {@link #end()}, typically one UI
+ * request or, when set with HbnContainer.setCallQueryBudget, one container call. Statements are grouped by shape,
+ * i.e. their SQL with parameter lists collapsed, so the per-row queries of an N+1 pattern show up as one shape issued
+ * many times. When more statements than the budget allows are issued, or one shape is repeated more often than
+ * allowed, the budget either logs a warning or throws a QueryBudget.ExceededException, once per limit.
+ * 
+ * Statements are only seen if a QueryBudgetInterceptor is set on the Hibernate Configuration, or if a custom
+ * Interceptor calls {@link #statementPrepared(String)} from its onPrepareStatement method. Budgets may be nested, in
+ * which case every statement counts against all of them.
+ */
+public final class QueryBudget
+{
+	private static final ApplicationLogger logger = new ApplicationLogger(QueryBudget.class);
+	private static final ThreadLocal<QueryBudget> current = new ThreadLocal<QueryBudget>();
+	private static final ThreadLocal<String[]> capturedStatement = new ThreadLocal<String[]>();
+	private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+	/**
+	 * What a budget does when it is exceeded.
+	 */
+	public enum Action
+	{
+		WARN, THROW
+	}
+
+	/**
+	 * Thrown by a budget with the THROW action from the statement that exceeded it.
+	 */
+	public static class ExceededException extends HibernateException
+	{
+		private static final long serialVersionUID = 4380260816420163417L;
+
+		public ExceededException(String message)
+		{
+			super(message);
+		}
+	}
+
+	private final String name;
+	private final int maxStatements;
+	private final int maxRepeats;
+	private final Action action;
+	private final Map<String, Integer> shapes = new LinkedHashMap<String, Integer>();
+	private int statementCount = 0;
+	private boolean statementsExceeded = false;
+	private QueryBudget parent;
+	private boolean active = false;
+	private long token;
+
+	/**
+	 * Creates a budget allowing at most maxStatements statements, and each statement shape at most maxRepeats times.
+	 * A limit of zero or less is not checked.
+	 */
+	public QueryBudget(String name, int maxStatements, int maxRepeats, Action action)
+	{
+		this.name = name;
+		this.maxStatements = maxStatements;
+		this.maxRepeats = maxRepeats;
+		this.action = action;
+	}
+
+	/**
+	 * Starts counting the statements of the current thread against this budget.
+	 */
+	public QueryBudget begin()
+	{
+		if (active)
+			throw new IllegalStateException("query budget " + name + " is already active");
+
+		parent = current.get();
+		active = true;
+		current.set(this);
+		return this;
+	}
+
+	/**
+	 * Stops counting. Budgets begun after this one on the same thread and not yet ended are ended too.
+	 */
+	public void end()
+	{
+		if (!active)
+			return;
+
+		QueryBudget budget = current.get();
+
+		while (budget != null && budget != this)
+		{
+			budget.active = false;
+			budget = budget.parent;
+		}
+
+		active = false;
+		current.set(parent);
+		parent = null;
+	}
+
+	/**
+	 * Gets the budget the statements of the current thread are counted against, or null if there is none.
+	 */
+	public static QueryBudget getCurrent()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Counts a statement against the budgets of the current thread. This is called by QueryBudgetInterceptor.
+	 */
+	public static void statementPrepared(String sql)
+	{
+		final String[] capture = capturedStatement.get();
+
+		if (capture != null && capture[0] == null)
+			capture[0] = sql;
+
+		QueryBudget budget = current.get();
+
+		if (budget == null)
+			return;
+
+		final String shape = PARAMETER_LIST.matcher(sql).replaceAll("?");
+
+		while (budget != null)
+		{
+			budget.count(shape);
+			budget = budget.parent;
+		}
+	}
+
+	/**
+	 * Starts capturing the SQL of the next statement prepared by the current thread, which is then returned by
+	 * {@link #takeCapturedStatement()}. HbnContainer uses this to write the SQL of slow queries to the
+	 * SlowOperationLog.
+	 */
+	static void captureStatement()
+	{
+		capturedStatement.set(new String[1]);
+	}
+
+	/**
+	 * Stops capturing and returns the SQL of the first statement prepared since {@link #captureStatement()}, or null if
+	 * no statement was seen, for example because no QueryBudgetInterceptor is set.
+	 */
+	static String takeCapturedStatement()
+	{
+		final String[] capture = capturedStatement.get();
+		capturedStatement.remove();
+		return (capture == null) ? null : capture[0];
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public boolean isActive()
+	{
+		return active;
+	}
+
+	/**
+	 * Gets the number of statements counted so far.
+	 */
+	public synchronized int getStatementCount()
+	{
+		return statementCount;
+	}
+
+	/**
+	 * Gets the statement shapes issued more than once so far, with the number of times they were issued.
+	 */
+	public synchronized Map<String, Integer> getRepeatedStatements()
+	{
+		final Map<String, Integer> repeated = new LinkedHashMap<String, Integer>();
+
+		for (Map.Entry<String, Integer> shape : shapes.entrySet())
+		{
+			if (shape.getValue().intValue() > 1)
+				repeated.put(shape.getKey(), shape.getValue());
+		}
+
+		return repeated;
+	}
+
+	/**
+	 * Starts counting for the HbnContainer call identified by the given token.
+	 */
+	QueryBudget beginCall(long token)
+	{
+		this.token = token;
+		return begin();
+	}
+
+	/**
+	 * Ends this budget if it was begun by the HbnContainer call identified by the given token.
+	 */
+	void endCall(long token)
+	{
+		if (active && this.token == token)
+			end();
+	}
+
+	/**
+	 * This is an internal QueryBudget utility method that counts a statement of the given shape and reports the limits
+	 * it exceeds.
+	 */
+	private void count(String shape)
+	{
+		String violation = null;
+
+		synchronized (this)
+		{
+			statementCount++;
+
+			final Integer previous = shapes.get(shape);
+			final int repeats = (previous == null) ? 1 : previous.intValue() + 1;
+			shapes.put(shape, repeats);
+
+			if (maxStatements > 0 && statementCount > maxStatements && !statementsExceeded)
+			{
+				statementsExceeded = true;
+				violation = "query budget " + name + " exceeded: more than " + maxStatements + " statements";
+			}
+			else if (maxRepeats > 0 && repeats == maxRepeats + 1)
+			{
+				violation = "query budget " + name + " exceeded: statement repeated more than " + maxRepeats
+						+ " times, possible N+1 query: " + shape;
+			}
+		}
+
+		if (violation == null)
+			return;
+
+		if (action == Action.THROW)
+			throw new ExceededException(violation);
+
+		logger.warn(violation);
+	}
+}
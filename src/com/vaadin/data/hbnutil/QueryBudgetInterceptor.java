@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import org.hibernate.EmptyInterceptor;
+
+/**
+ * Interceptor counting every SQL statement Hibernate prepares against the QueryBudget of the current thread. Set it
+ * with Configuration.setInterceptor before building the SessionFactory; applications with their own Interceptor call
+ * QueryBudget.statementPrepared from its onPrepareStatement method instead.
+ */
+public class QueryBudgetInterceptor extends EmptyInterceptor
+{
+	private static final long serialVersionUID = -2911546371806429637L;
+
+	@Override
+	public String onPrepareStatement(String sql)
+	{
+		QueryBudget.statementPrepared(sql);
+		return super.onPrepareStatement(sql);
+	}
+}
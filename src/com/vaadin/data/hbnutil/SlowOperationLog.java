@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared, rate limited log of the container operations and queries that exceeded the slow operation threshold of
+ * their HbnContainer. At most {@link #getMaxEntriesPerMinute()} entries are written per minute across all containers;
+ * the entries over that limit are only counted, and the count is reported with the next entry written, so the log is
+ * safe to leave enabled under load. Entries are written as warnings.
+ */
+public final class SlowOperationLog
+{
+	private static final ApplicationLogger logger = new ApplicationLogger(SlowOperationLog.class);
+	private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private static int maxEntriesPerMinute = 20;
+	private static long windowStart = System.nanoTime();
+	private static int windowEntries = 0;
+	private static long suppressedCount = 0;
+	private static long pendingSuppressed = 0;
+	private static long loggedCount = 0;
+
+	private SlowOperationLog()
+	{
+	}
+
+	/**
+	 * Sets the maximum number of entries written per minute. Zero disables the log.
+	 */
+	public static synchronized void setMaxEntriesPerMinute(int maxEntriesPerMinute)
+	{
+		SlowOperationLog.maxEntriesPerMinute = Math.max(0, maxEntriesPerMinute);
+	}
+
+	public static synchronized int getMaxEntriesPerMinute()
+	{
+		return maxEntriesPerMinute;
+	}
+
+	/**
+	 * Gets the number of entries written so far.
+	 */
+	public static synchronized long getLoggedCount()
+	{
+		return loggedCount;
+	}
+
+	/**
+	 * Gets the number of slow operations detected so far that were not written because of the rate limit.
+	 */
+	public static synchronized long getSuppressedCount()
+	{
+		return suppressedCount;
+	}
+
+	/**
+	 * Starts a new one minute window, so the full number of entries per minute can be written again right away.
+	 */
+	public static synchronized void resetWindow()
+	{
+		windowStart = System.nanoTime();
+		windowEntries = 0;
+	}
+
+	/**
+	 * Reserves an entry in the current one minute window. The caller should only build its message, which may be
+	 * expensive, if this returns true, and must then pass it to {@link #log(String)}.
+	 */
+	static synchronized boolean tryAcquire()
+	{
+		final long now = System.nanoTime();
+
+		if (now - windowStart >= WINDOW_NANOS)
+		{
+			windowStart = now;
+			windowEntries = 0;
+		}
+
+		if (windowEntries >= maxEntriesPerMinute)
+		{
+			suppressedCount++;
+			pendingSuppressed++;
+			return false;
+		}
+
+		windowEntries++;
+		return true;
+	}
+
+	/**
+	 * Writes an entry reserved with {@link #tryAcquire()}, together with the number of slow operations not written
+	 * since the previous entry.
+	 */
+	static void log(String message)
+	{
+		final long suppressed;
+
+		synchronized (SlowOperationLog.class)
+		{
+			suppressed = pendingSuppressed;
+			pendingSuppressed = 0;
+			loggedCount++;
+		}
+
+		logger.warn((suppressed > 0) ? message + " (" + suppressed + " slow operations not logged)" : message);
+	}
+}
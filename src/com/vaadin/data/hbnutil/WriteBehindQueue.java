@@ -0,0 +1,410 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
+
+/**
+ * Queue of pending inserts and updates that HbnContainer writes on a background executor when write-behind is enabled.
+ * The state of an entity is copied when it is queued, so the executor thread never reads an entity the caller goes on
+ * modifying. The copy is shallow: associated entities are shared and collections are copied. Writes are coalesced per
+ * entity: an entity queued several times is written once, with the state of the last copy. Pending writes are drained
+ * in batches, each written in its own session and transaction, and the outcome of every batch is reported to the
+ * listener on the executor thread. The identifier and version assigned by a write are copied back to the queued
+ * entity; they are safe to read once {@link #awaitFlush()} returned. A write queued while the insert of the same
+ * entity is being written is held until the insert completed, and then queued as an update of the inserted row, or
+ * as the insert again if it failed.
+ */
+class WriteBehindQueue<T>
+{
+	private ApplicationLogger logger = new ApplicationLogger(WriteBehindQueue.class);
+
+	private final SessionFactory sessionFactory;
+	private final ClassMetadata classMetadata;
+	private final Executor executor;
+	private final HbnContainer.WriteBehindListener<T> listener;
+	private final int batchSize;
+	private final Map<Object, PendingWrite<T>> pendingWrites = new LinkedHashMap<Object, PendingWrite<T>>();
+	private final Map<T, Boolean> pendingEntities = new IdentityHashMap<T, Boolean>();
+	private final Map<T, Boolean> writingEntities = new IdentityHashMap<T, Boolean>();
+	private final Map<T, PendingWrite<T>> heldWrites = new IdentityHashMap<T, PendingWrite<T>>();
+	private boolean flushScheduled = false;
+	private boolean processed = false;
+
+	private final Runnable flushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			List<PendingWrite<T>> batch;
+
+			while (!(batch = nextBatch()).isEmpty())
+			{
+				try
+				{
+					write(batch);
+				}
+				catch (RuntimeException e)
+				{
+					logger.error(e);
+				}
+			}
+		}
+	};
+
+	WriteBehindQueue(SessionFactory sessionFactory, ClassMetadata classMetadata, Executor executor,
+			HbnContainer.WriteBehindListener<T> listener, int batchSize)
+	{
+		this.sessionFactory = sessionFactory;
+		this.classMetadata = classMetadata;
+		this.executor = executor;
+		this.listener = listener;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Queues the insert of a new entity.
+	 */
+	synchronized void insert(T entity)
+	{
+		logger.executionTrace("insert");
+
+		if (isInsertWriting(entity))
+			heldWrites.put(entity, new PendingWrite<T>(entity, snapshot(entity), false));
+		else
+			queue(new EntityKey(entity), new PendingWrite<T>(entity, snapshot(entity), true));
+	}
+
+	/**
+	 * Queues the update of an entity. If the entity is still waiting to be inserted, the insert writes the new state
+	 * instead; if its insert is being written, the update is held until the identifier is known.
+	 */
+	synchronized void update(Object entityId, T entity)
+	{
+		logger.executionTrace("update");
+
+		if (entityId == null && isInsertWriting(entity))
+		{
+			heldWrites.put(entity, new PendingWrite<T>(entity, snapshot(entity), false));
+			return;
+		}
+
+		final EntityKey entityKey = new EntityKey(entity);
+
+		if (pendingWrites.containsKey(entityKey))
+		{
+			queue(entityKey, new PendingWrite<T>(entity, snapshot(entity), true));
+			return;
+		}
+
+		final Object key = (entityId != null) ? entityId : entityKey;
+		queue(key, new PendingWrite<T>(entity, snapshot(entity), false));
+	}
+
+	/**
+	 * Tells if the given entity is waiting to be written or is being written.
+	 */
+	synchronized boolean isQueued(Object entity)
+	{
+		return pendingEntities.containsKey(entity) || writingEntities.containsKey(entity);
+	}
+
+	/**
+	 * Tells if the insert of the given entity is being written, in which case it has no identifier yet.
+	 */
+	private boolean isInsertWriting(T entity)
+	{
+		return writingEntities.containsKey(entity) && classMetadata.getIdentifier(entity, null) == null;
+	}
+
+	/**
+	 * Blocks until all pending writes are written. Returns true if any batch was written, or failed to be written,
+	 * since the previous call.
+	 */
+	synchronized boolean awaitFlush() throws InterruptedException
+	{
+		logger.executionTrace("awaitFlush");
+
+		while (flushScheduled)
+			wait();
+
+		final boolean result = processed;
+		processed = false;
+		return result;
+	}
+
+	private void queue(Object key, PendingWrite<T> pendingWrite)
+	{
+		final PendingWrite<T> replaced = pendingWrites.put(key, pendingWrite);
+
+		if (replaced != null)
+			pendingEntities.remove(replaced.entity);
+
+		pendingEntities.put(pendingWrite.entity, Boolean.TRUE);
+
+		if (!flushScheduled)
+		{
+			flushScheduled = true;
+
+			try
+			{
+				executor.execute(flushTask);
+			}
+			catch (RuntimeException e)
+			{
+				flushScheduled = false;
+				notifyAll();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Copies the state of an entity. Initialized collections are copied as well, since the caller may modify them;
+	 * uninitialized ones are left to merge, which ignores them.
+	 */
+	private T snapshot(T entity)
+	{
+		final Object[] values = classMetadata.getPropertyValues(entity);
+		final Type[] types = classMetadata.getPropertyTypes();
+
+		for (int i = 0; i < values.length; i++)
+		{
+			if (types[i].isCollectionType())
+				values[i] = copyCollection(values[i]);
+		}
+
+		@SuppressWarnings("unchecked")
+		final T copy = (T) classMetadata.instantiate(classMetadata.getIdentifier(entity, null), null);
+
+		classMetadata.setPropertyValues(copy, values);
+		return copy;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Object copyCollection(Object collection)
+	{
+		if (collection == null || !Hibernate.isInitialized(collection))
+			return collection;
+
+		if (collection instanceof SortedSet)
+			return new TreeSet((SortedSet) collection);
+
+		if (collection instanceof Set)
+			return new LinkedHashSet((Set) collection);
+
+		if (collection instanceof SortedMap)
+			return new TreeMap((SortedMap) collection);
+
+		if (collection instanceof Map)
+			return new LinkedHashMap((Map) collection);
+
+		if (collection instanceof Collection)
+			return new ArrayList((Collection) collection);
+
+		if (collection instanceof Object[])
+			return ((Object[]) collection).clone();
+
+		return collection;
+	}
+
+	/**
+	 * Copies the identifier and version assigned by a write back to the queued entity.
+	 */
+	private void copyWrittenState(T entity, Object written)
+	{
+		if (classMetadata.getIdentifier(entity, null) == null)
+			classMetadata.setIdentifier(entity, classMetadata.getIdentifier(written, null), null);
+
+		if (classMetadata.isVersioned())
+		{
+			final String versionName = classMetadata.getPropertyNames()[classMetadata.getVersionProperty()];
+			classMetadata.setPropertyValue(entity, versionName, classMetadata.getPropertyValue(written, versionName));
+		}
+	}
+
+	private synchronized List<PendingWrite<T>> nextBatch()
+	{
+		final List<PendingWrite<T>> batch = new ArrayList<PendingWrite<T>>(batchSize);
+		final Iterator<PendingWrite<T>> iterator = pendingWrites.values().iterator();
+
+		while (iterator.hasNext() && batch.size() < batchSize)
+		{
+			final PendingWrite<T> pendingWrite = iterator.next();
+			iterator.remove();
+
+			batch.add(pendingWrite);
+			pendingEntities.remove(pendingWrite.entity);
+			writingEntities.put(pendingWrite.entity, Boolean.TRUE);
+		}
+
+		if (batch.isEmpty())
+		{
+			flushScheduled = false;
+			notifyAll();
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Ends the write of a batch: copies the written state back to the queued entities if the write succeeded, which
+	 * is null otherwise, and queues the writes held for them.
+	 */
+	private synchronized void writeCompleted(List<T> entities, List<Object> written)
+	{
+		for (int i = 0; i < entities.size(); i++)
+		{
+			final T entity = entities.get(i);
+
+			if (written != null)
+				copyWrittenState(entity, written.get(i));
+
+			writingEntities.remove(entity);
+
+			final PendingWrite<T> held = heldWrites.remove(entity);
+
+			if (held == null)
+				continue;
+
+			if (written != null)
+			{
+				copyWrittenState(held.snapshot, written.get(i));
+				queue(classMetadata.getIdentifier(entity, null), held);
+			}
+			else
+			{
+				queue(new EntityKey(entity), new PendingWrite<T>(entity, held.snapshot, true));
+			}
+		}
+
+		processed = true;
+	}
+
+	private void write(List<PendingWrite<T>> batch)
+	{
+		logger.executionTrace("write");
+
+		final List<T> entities = new ArrayList<T>(batch.size());
+		final List<Object> written = new ArrayList<Object>(batch.size());
+
+		for (PendingWrite<T> pendingWrite : batch)
+			entities.add(pendingWrite.entity);
+
+		final Session session = sessionFactory.openSession();
+		final long start = System.currentTimeMillis();
+		Transaction transaction = null;
+
+		try
+		{
+			transaction = session.beginTransaction();
+
+			for (PendingWrite<T> pendingWrite : batch)
+			{
+				if (pendingWrite.insert)
+				{
+					session.save(pendingWrite.snapshot);
+					written.add(pendingWrite.snapshot);
+				}
+				else
+				{
+					written.add(session.merge(pendingWrite.snapshot));
+				}
+			}
+
+			transaction.commit();
+			logger.debug("wrote " + batch.size() + " entities in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (RuntimeException e)
+		{
+			logger.error(e);
+
+			if (transaction != null && transaction.isActive())
+				transaction.rollback();
+
+			writeCompleted(entities, null);
+			listener.writesFailed(entities, e);
+			return;
+		}
+		finally
+		{
+			session.close();
+		}
+
+		writeCompleted(entities, written);
+		listener.writesCompleted(entities);
+	}
+
+	/**
+	 * A queued insert or update of an entity, with the copy of its state to write.
+	 */
+	private static final class PendingWrite<T>
+	{
+		private final T entity;
+		private final T snapshot;
+		private final boolean insert;
+
+		private PendingWrite(T entity, T snapshot, boolean insert)
+		{
+			this.entity = entity;
+			this.snapshot = snapshot;
+			this.insert = insert;
+		}
+	}
+
+	/**
+	 * Key of an entity that has no identifier yet, compared by identity.
+	 */
+	private static final class EntityKey
+	{
+		private final Object entity;
+
+		private EntityKey(Object entity)
+		{
+			this.entity = entity;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return (obj instanceof EntityKey) && ((EntityKey) obj).entity == entity;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(entity);
+		}
+	}
+}
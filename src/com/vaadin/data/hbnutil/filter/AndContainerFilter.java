@@ -3,6 +3,7 @@ package com.vaadin.data.hbnutil.filter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
@@ -63,4 +64,34 @@ public class AndContainerFilter extends ContainerFilter
 		return true;
 	}
 
+	@Override
+	public boolean isHqlExpressible()
+	{
+		for (Filter filter : filters)
+		{
+			if (!FilterFactory.getContainerFilter(filter).isHqlExpressible())
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		final StringBuilder condition = new StringBuilder();
+
+		for (Filter filter : filters)
+		{
+			final ContainerFilter f = FilterFactory.getContainerFilter(filter);
+
+			if (condition.length() > 0)
+				condition.append(" and ");
+
+			condition.append("(").append(f.getFieldHqlCondition(fullPropertyName, parameters)).append(")");
+		}
+
+		return (condition.length() > 0) ? condition.toString() : "1=1";
+	}
+
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.filter;
+
+import org.hibernate.criterion.Criterion;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Filters the container by a property of an associated entity, for example orders by the region of their customer.
+ * The wrapped filter must use the dotted path as its property identifier, e.g. new Compare.Equal("customer.region",
+ * "EU"). Collection valued path elements are allowed as well, in which case an item passes if any element matches.
+ */
+public class AssociationContainerFilter extends SubqueryContainerFilter
+{
+	private final ContainerFilter filter;
+
+	public AssociationContainerFilter(ContainerFilter filter)
+	{
+		super(filter.getPropertyId());
+		this.filter = filter;
+	}
+
+	public AssociationContainerFilter(Filter filter)
+	{
+		this(FilterFactory.getContainerFilter(filter));
+	}
+
+	@Override
+	protected Criterion getPathCriterion(String alias, String propertyName)
+	{
+		return filter.getFieldCriterion(alias + "." + propertyName);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((filter == null) ? 0 : filter.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		AssociationContainerFilter other = (AssociationContainerFilter) obj;
+		if (filter == null)
+		{
+			if (other.filter != null)
+				return false;
+		} else if (!filter.equals(other.filter))
+			return false;
+		return true;
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
@@ -24,6 +26,34 @@ public class BetweenContainerFilter extends ContainerFilter
 		return Restrictions.between(fullPropertyName, startValue, endValue);
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		if (propertyValue == null || startValue == null || endValue == null)
+			return false;
+
+		return compareValues(propertyValue, startValue) >= 0 && compareValues(propertyValue, endValue) <= 0;
+	}
+
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		return fullPropertyName + " between " + addHqlParameter(parameters, startValue) + " and "
+				+ addHqlParameter(parameters, endValue);
+	}
+
 	@Override
 	public int hashCode()
 	{
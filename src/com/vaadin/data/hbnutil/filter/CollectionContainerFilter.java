@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.filter;
+
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * Filters the container to the items whose collection contains the entity with the given identifier, for example
+ * articles tagged with a given tag. The collection property may itself be a dotted path such as "customer.groups".
+ */
+public class CollectionContainerFilter extends SubqueryContainerFilter
+{
+	private final Object elementId;
+
+	public CollectionContainerFilter(Object collectionPropertyId, Object elementId)
+	{
+		super(collectionPropertyId);
+		this.elementId = elementId;
+	}
+
+	/**
+	 * The collection itself is joined as well and the element is matched by the special "id" property.
+	 */
+	@Override
+	protected String[] getPath()
+	{
+		final String[] path = super.getPath();
+		final String[] elementPath = new String[path.length + 1];
+
+		System.arraycopy(path, 0, elementPath, 0, path.length);
+		elementPath[path.length] = "id";
+
+		return elementPath;
+	}
+
+	@Override
+	protected Criterion getPathCriterion(String alias, String propertyName)
+	{
+		return Restrictions.eq(alias + "." + propertyName, elementId);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((elementId == null) ? 0 : elementId.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		CollectionContainerFilter other = (CollectionContainerFilter) obj;
+		if (elementId == null)
+		{
+			if (other.elementId != null)
+				return false;
+		} else if (!elementId.equals(other.elementId))
+			return false;
+		return true;
+	}
+
+}
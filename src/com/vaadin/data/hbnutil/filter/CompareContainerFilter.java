@@ -1,5 +1,7 @@
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
@@ -41,6 +43,67 @@ public class CompareContainerFilter extends ContainerFilter
 		}
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		if (propertyValue == null || value == null)
+			return false;
+
+		final int comparison = compareValues(propertyValue, value);
+
+		switch (operation)
+		{
+		case EQUAL:
+			return comparison == 0;
+		case GREATER:
+			return comparison > 0;
+		case GREATER_OR_EQUAL:
+			return comparison >= 0;
+		case LESS:
+			return comparison < 0;
+		case LESS_OR_EQUAL:
+			return comparison <= 0;
+		default:
+			throw new UnsupportedFilterException(
+					"Unknown Compare filter operation " + operation);
+		}
+	}
+
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		final String parameter = addHqlParameter(parameters, value);
+
+		switch (operation)
+		{
+		case EQUAL:
+			return fullPropertyName + " = " + parameter;
+		case GREATER:
+			return fullPropertyName + " > " + parameter;
+		case GREATER_OR_EQUAL:
+			return fullPropertyName + " >= " + parameter;
+		case LESS:
+			return fullPropertyName + " < " + parameter;
+		case LESS_OR_EQUAL:
+			return fullPropertyName + " <= " + parameter;
+		default:
+			throw new UnsupportedFilterException(
+					"Unknown Compare filter operation " + operation);
+		}
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -13,8 +13,13 @@
 
 package com.vaadin.data.hbnutil.filter;
 
+import java.math.BigDecimal;
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 
+import com.vaadin.data.util.filter.UnsupportedFilterException;
+
 public abstract class ContainerFilter
 {
 	private final Object propertyId;
@@ -37,6 +42,71 @@ public abstract class ContainerFilter
 				: getFieldCriterion(idName + "." + getPropertyId());
 	}
 
+	/**
+	 * Tells if this filter can be evaluated in memory using {@link #evaluate(Object)}.
+	 */
+	public boolean isEvaluable()
+	{
+		return false;
+	}
+
+	/**
+	 * Evaluates this filter in memory against the value of the filtered property. The semantics follow the criterion
+	 * returned by {@link #getFieldCriterion(String)} as closely as possible.
+	 */
+	public boolean evaluate(Object propertyValue)
+	{
+		final String message = "HbnContainer can not evaluate in memory " + getClass().getName();
+		throw new UnsupportedFilterException(message);
+	}
+
+	/**
+	 * Tells if this filter can be expressed as an HQL condition using {@link #getFieldHqlCondition(String, Map)}.
+	 */
+	public boolean isHqlExpressible()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns this filter as an HQL condition on the given property, used for bulk updates and deletes. The semantics
+	 * follow the criterion returned by {@link #getFieldCriterion(String)}. Values are passed as named parameters that
+	 * are added to the given map.
+	 */
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		final String message = "HbnContainer can not express in HQL " + getClass().getName();
+		throw new UnsupportedFilterException(message);
+	}
+
+	public String getHqlCondition(String idName, Map<String, Object> parameters)
+	{
+		return (idName == null) ? getFieldHqlCondition(getPropertyId().toString(), parameters)
+				: getFieldHqlCondition(idName + "." + getPropertyId(), parameters);
+	}
+
+	/**
+	 * Adds a value to the named parameters of an HQL condition and returns its placeholder.
+	 */
+	protected static String addHqlParameter(Map<String, Object> parameters, Object value)
+	{
+		final String name = "hbnp" + parameters.size();
+		parameters.put(name, value);
+		return ":" + name;
+	}
+
+	/**
+	 * Compares two non-null property values. Numbers of different types are compared by their value.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static int compareValues(Object value, Object otherValue)
+	{
+		if (value instanceof Number && otherValue instanceof Number && value.getClass() != otherValue.getClass())
+			return new BigDecimal(value.toString()).compareTo(new BigDecimal(otherValue.toString()));
+
+		return ((Comparable) value).compareTo(otherValue);
+	}
+
 	@Override
 	public int hashCode()
 	{
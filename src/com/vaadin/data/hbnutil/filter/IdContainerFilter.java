@@ -13,6 +13,8 @@
 
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
@@ -32,6 +34,18 @@ public class IdContainerFilter extends ContainerFilter
 		return Restrictions.eq(fullPropertyName, id);
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		return propertyValue != null && id != null && compareValues(propertyValue, id) == 0;
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -60,4 +74,16 @@ public class IdContainerFilter extends ContainerFilter
 		return true;
 	}
 
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		return fullPropertyName + " = " + addHqlParameter(parameters, id);
+	}
+
 }
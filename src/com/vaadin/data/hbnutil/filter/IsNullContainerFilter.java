@@ -1,5 +1,7 @@
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
@@ -19,4 +21,28 @@ public class IsNullContainerFilter extends ContainerFilter
 		return Restrictions.isNull(fullPropertyName);
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		return propertyValue == null;
+	}
+
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		return fullPropertyName + " is null";
+	}
+
 }
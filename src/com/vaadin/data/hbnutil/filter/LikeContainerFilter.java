@@ -1,5 +1,8 @@
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+import java.util.regex.Pattern;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
@@ -9,11 +12,41 @@ public class LikeContainerFilter extends ContainerFilter
 {
 
 	final Object value;
+	private final Pattern pattern;
 
 	public LikeContainerFilter(Like filter)
 	{
 		super(filter.getPropertyId());
 		this.value = filter.getValue();
+		this.pattern = (value == null) ? null : Pattern.compile(toRegex(value.toString()), Pattern.DOTALL);
+	}
+
+	/**
+	 * Translates a LIKE pattern into a regular expression, quoting everything but the % and _ wildcards.
+	 */
+	private static String toRegex(String likePattern)
+	{
+		final StringBuilder regex = new StringBuilder();
+		int literalStart = 0;
+
+		for (int i = 0; i < likePattern.length(); i++)
+		{
+			final char c = likePattern.charAt(i);
+
+			if (c == '%' || c == '_')
+			{
+				if (i > literalStart)
+					regex.append(Pattern.quote(likePattern.substring(literalStart, i)));
+
+				regex.append((c == '%') ? ".*" : ".");
+				literalStart = i + 1;
+			}
+		}
+
+		if (literalStart < likePattern.length())
+			regex.append(Pattern.quote(likePattern.substring(literalStart)));
+
+		return regex.toString();
 	}
 
 	@Override
@@ -22,6 +55,33 @@ public class LikeContainerFilter extends ContainerFilter
 		return Restrictions.like(fullPropertyName, value);
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		if (propertyValue == null || pattern == null)
+			return false;
+
+		return pattern.matcher(propertyValue.toString()).matches();
+	}
+
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		return fullPropertyName + " like " + addHqlParameter(parameters, value);
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -1,31 +1,94 @@
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
 
-import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.Not;
 
 public class NotContainerFilter extends ContainerFilter
 {
 
-	final Filter filter;
+	final ContainerFilter filter;
 
+	/**
+	 * The negated filter is converted once; the negation filters the same property as the filter it negates.
+	 */
 	public NotContainerFilter(Not filter)
 	{
-		super(null);
-		this.filter = filter.getFilter();
+		this(FilterFactory.getContainerFilter(filter.getFilter()));
+	}
+
+	private NotContainerFilter(ContainerFilter filter)
+	{
+		super(filter.getPropertyId());
+		this.filter = filter;
 	}
 
 	@Override
 	public Criterion getFieldCriterion(String fullPropertyName)
 	{
-		final ContainerFilter containerFilter = FilterFactory
-				.getContainerFilter(filter);
-		final Criterion criterion = containerFilter
-				.getFieldCriterion(fullPropertyName);
+		return Restrictions.not(filter.getFieldCriterion(fullPropertyName));
+	}
+
+	@Override
+	public boolean isEvaluable()
+	{
+		return filter.isEvaluable();
+	}
+
+	/**
+	 * Follows the SQL semantics of the criterion: a null value never passes, as the negated condition is either unknown
+	 * for it or, for IS NULL, true.
+	 */
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		if (propertyValue == null)
+			return false;
+
+		return !filter.evaluate(propertyValue);
+	}
+
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return filter.isHqlExpressible();
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		return "not (" + filter.getFieldHqlCondition(fullPropertyName, parameters) + ")";
+	}
 
-		return Restrictions.not(criterion);
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((filter == null) ? 0 : filter.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		NotContainerFilter other = (NotContainerFilter) obj;
+		if (filter == null)
+		{
+			if (other.filter != null)
+				return false;
+		} else if (!filter.equals(other.filter))
+			return false;
+		return true;
 	}
 
 }
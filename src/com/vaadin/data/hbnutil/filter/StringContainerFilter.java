@@ -13,6 +13,8 @@
 
 package com.vaadin.data.hbnutil.filter;
 
+import java.util.Map;
+
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Restrictions;
@@ -38,6 +40,23 @@ public class StringContainerFilter extends ContainerFilter
 				onlyMatchPrefix ? MatchMode.START : MatchMode.ANYWHERE);
 	}
 
+	@Override
+	public boolean isEvaluable()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean evaluate(Object propertyValue)
+	{
+		if (propertyValue == null)
+			return false;
+
+		final String value = (ignoreCase) ? propertyValue.toString().toLowerCase() : propertyValue.toString();
+
+		return (onlyMatchPrefix) ? value.startsWith(filterString) : value.contains(filterString);
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -73,4 +92,19 @@ public class StringContainerFilter extends ContainerFilter
 		return true;
 	}
 
+	@Override
+	public boolean isHqlExpressible()
+	{
+		return true;
+	}
+
+	@Override
+	public String getFieldHqlCondition(String fullPropertyName, Map<String, Object> parameters)
+	{
+		final String pattern = (onlyMatchPrefix) ? filterString + "%" : "%" + filterString + "%";
+		final String propertyName = (ignoreCase) ? "lower(" + fullPropertyName + ")" : fullPropertyName;
+
+		return propertyName + " like " + addHqlParameter(parameters, pattern);
+	}
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.filter;
+
+import org.hibernate.criterion.CriteriaSpecification;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
+
+import com.vaadin.data.util.filter.UnsupportedFilterException;
+
+/**
+ * Base class for filters on properties that are reached through associations or collections of the container entity.
+ * The property identifier is a dotted path such as "customer.region" or "tags.name". Instead of a plain restriction
+ * these filters compile to a correlated EXISTS subquery that joins along the path, so the database performs the
+ * semi-join and no identifiers need to be fetched up front.
+ */
+public abstract class SubqueryContainerFilter extends ContainerFilter
+{
+	private static final String SUBQUERY_ALIAS = "hbnsub";
+
+	public SubqueryContainerFilter(Object propertyPath)
+	{
+		super(propertyPath);
+	}
+
+	/**
+	 * Returns the restriction for the last element of the path. The alias is the join alias of the entity owning that
+	 * property.
+	 */
+	protected abstract Criterion getPathCriterion(String alias, String propertyName);
+
+	/**
+	 * Returns the elements of the path. Every element but the last one is joined with an alias.
+	 */
+	protected String[] getPath()
+	{
+		return getPropertyId().toString().split("\\.");
+	}
+
+	/**
+	 * Builds the EXISTS subquery for the given container entity type, correlated to the root entity of the container
+	 * query by its identifier.
+	 */
+	public Criterion getSubqueryCriterion(Class<?> entityType, String idPropertyName)
+	{
+		final String[] path = getPath();
+		final DetachedCriteria subquery = DetachedCriteria.forClass(entityType, SUBQUERY_ALIAS);
+
+		String alias = SUBQUERY_ALIAS;
+
+		for (int i = 0; i < path.length - 1; i++)
+		{
+			final String joinAlias = SUBQUERY_ALIAS + i;
+			subquery.createAlias(alias + "." + path[i], joinAlias);
+			alias = joinAlias;
+		}
+
+		subquery.add(getPathCriterion(alias, path[path.length - 1]));
+		subquery.add(Restrictions.eqProperty(SUBQUERY_ALIAS + "." + idPropertyName,
+				CriteriaSpecification.ROOT_ALIAS + "." + idPropertyName));
+		subquery.setProjection(Projections.id());
+
+		return Subqueries.exists(subquery);
+	}
+
+	/**
+	 * Subquery filters can not be expressed as a restriction on a single field of the container entity.
+	 */
+	@Override
+	public Criterion getFieldCriterion(String fullPropertyName)
+	{
+		final String message = "Association and collection filters must be added directly to the container";
+		throw new UnsupportedFilterException(message);
+	}
+}
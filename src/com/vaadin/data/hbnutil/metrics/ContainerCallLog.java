@@ -0,0 +1,418 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.data.hbnutil.ApplicationLogger;
+
+/**
+ * Text log of the Container calls made on a RecordingContainer, e.g. by a Table during a real UI session, so that the
+ * session can be replayed later without a browser. Every line holds the microseconds since the log was opened, the
+ * method name and the arguments, separated by tabs. Arguments are written with a type prefix: L for Long, I for
+ * Integer, B for Boolean, S for String, X for other Serializable values in hexadecimal Java serialization and - for
+ * null. Lines starting with # are comments; "# entity" names the entity type and "# request" marks the start of a UI
+ * request, see {@link #markRequest()}.
+ * 
+ * Logging is synchronized, so one log may be shared by several containers. A log that fails to write reports the
+ * error once and then ignores further calls.
+ */
+public class ContainerCallLog implements Closeable
+{
+	private ApplicationLogger logger = new ApplicationLogger(ContainerCallLog.class);
+
+	public static final String HEADER = "# HbnContainer call log 1";
+	private static final String ENTITY = "# entity ";
+	private static final String REQUEST = "# request";
+
+	private final Writer writer;
+	private final long startNanos = System.nanoTime();
+	private long callCount = 0;
+	private boolean failed = false;
+
+	/**
+	 * Creates a log of the calls on containers of the given entity type, written to the given writer.
+	 */
+	public ContainerCallLog(Writer writer, String entityName) throws IOException
+	{
+		this.writer = writer;
+		writer.write(HEADER + "\n" + ENTITY + entityName + "\n");
+	}
+
+	/**
+	 * Creates a log written in UTF-8 to the given file, which is overwritten.
+	 */
+	public static ContainerCallLog create(File file, String entityName) throws IOException
+	{
+		return new ContainerCallLog(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), entityName);
+	}
+
+	/**
+	 * Records a call of the given Container method.
+	 */
+	public synchronized void record(String method, Object... arguments)
+	{
+		if (failed)
+			return;
+
+		final StringBuilder line = new StringBuilder();
+		line.append(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)).append('\t').append(method);
+
+		try
+		{
+			for (Object argument : arguments)
+				line.append('\t').append(encode(argument));
+
+			writer.write(line.append('\n').toString());
+			callCount++;
+		}
+		catch (IOException e)
+		{
+			fail(e);
+		}
+	}
+
+	/**
+	 * Marks the start of a UI request, for example from a servlet filter or a Vaadin RequestHandler, so that the calls
+	 * are replayed in the same transactions. Without marks, replays group calls by the time between them.
+	 */
+	public synchronized void markRequest()
+	{
+		if (failed)
+			return;
+
+		try
+		{
+			writer.write(REQUEST + " " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) + "\n");
+		}
+		catch (IOException e)
+		{
+			fail(e);
+		}
+	}
+
+	/**
+	 * Gets the number of calls recorded so far.
+	 */
+	public synchronized long getCallCount()
+	{
+		return callCount;
+	}
+
+	public synchronized void flush() throws IOException
+	{
+		writer.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		failed = true;
+		writer.close();
+	}
+
+	/**
+	 * Reads a log written in UTF-8 to the given file.
+	 */
+	public static Recording read(File file) throws IOException
+	{
+		final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+		try
+		{
+			return read(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a log from the given reader, which is not closed.
+	 */
+	public static Recording read(Reader reader) throws IOException
+	{
+		final BufferedReader lines = new BufferedReader(reader);
+		final List<Call> calls = new ArrayList<Call>();
+		String entityName = null;
+		int request = 0;
+		boolean marked = false;
+		String line;
+
+		if (!HEADER.equals(lines.readLine()))
+			throw new IOException("not an HbnContainer call log");
+
+		while ((line = lines.readLine()) != null)
+		{
+			if (line.startsWith(ENTITY))
+			{
+				entityName = line.substring(ENTITY.length());
+			}
+			else if (line.startsWith(REQUEST))
+			{
+				if (marked || !calls.isEmpty())
+					request++;
+
+				marked = true;
+			}
+			else if (line.length() > 0 && !line.startsWith("#"))
+			{
+				final String[] fields = line.split("\t", -1);
+				final Object[] arguments = new Object[fields.length - 2];
+
+				for (int i = 0; i < arguments.length; i++)
+					arguments[i] = decode(fields[i + 2]);
+
+				calls.add(new Call(Long.parseLong(fields[0]), fields[1], arguments, marked ? request : -1));
+			}
+		}
+
+		return new Recording(entityName, calls, marked);
+	}
+
+	/**
+	 * This is an internal ContainerCallLog utility method that reports a write error and disables the log.
+	 */
+	private void fail(IOException e)
+	{
+		logger.error("unable to write the container call log, recording stopped", e);
+		failed = true;
+	}
+
+	/**
+	 * This is an internal ContainerCallLog utility method that encodes an argument with its type prefix.
+	 */
+	private static String encode(Object argument) throws IOException
+	{
+		if (argument == null)
+			return "-";
+
+		if (argument instanceof Long)
+			return "L" + argument;
+
+		if (argument instanceof Integer)
+			return "I" + argument;
+
+		if (argument instanceof Boolean)
+			return "B" + argument;
+
+		if (argument instanceof String)
+			return "S" + escape((String) argument);
+
+		if (argument instanceof Serializable)
+		{
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream output = new ObjectOutputStream(bytes);
+			output.writeObject(argument);
+			output.close();
+
+			final StringBuilder hex = new StringBuilder("X");
+
+			for (byte b : bytes.toByteArray())
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+			return hex.toString();
+		}
+
+		return "S" + escape(argument.toString());
+	}
+
+	/**
+	 * This is an internal ContainerCallLog utility method that decodes an argument written by encode.
+	 */
+	private static Object decode(String field) throws IOException
+	{
+		if (field.equals("-"))
+			return null;
+
+		final char type = field.charAt(0);
+		final String value = field.substring(1);
+
+		switch (type)
+		{
+			case 'L':
+				return Long.valueOf(value);
+			case 'I':
+				return Integer.valueOf(value);
+			case 'B':
+				return Boolean.valueOf(value);
+			case 'S':
+				return unescape(value);
+			case 'X':
+				final byte[] bytes = new byte[value.length() / 2];
+
+				for (int i = 0; i < bytes.length; i++)
+					bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+
+				try
+				{
+					return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+				}
+				catch (ClassNotFoundException e)
+				{
+					throw new IOException("unknown argument class: " + e.getMessage());
+				}
+			default:
+				throw new IOException("unknown argument type: " + field);
+		}
+	}
+
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String value)
+	{
+		final StringBuilder text = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+
+			if (c == '\\' && i + 1 < value.length())
+			{
+				c = value.charAt(++i);
+				c = (c == 't') ? '\t' : (c == 'n') ? '\n' : (c == 'r') ? '\r' : c;
+			}
+
+			text.append(c);
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * The calls read from a log.
+	 */
+	public static final class Recording
+	{
+		private final String entityName;
+		private final List<Call> calls;
+		private final boolean requestsMarked;
+
+		private Recording(String entityName, List<Call> calls, boolean requestsMarked)
+		{
+			this.entityName = entityName;
+			this.calls = Collections.unmodifiableList(calls);
+			this.requestsMarked = requestsMarked;
+		}
+
+		/**
+		 * Gets the name of the entity type the calls were made on, or null if it is not known.
+		 */
+		public String getEntityName()
+		{
+			return entityName;
+		}
+
+		public List<Call> getCalls()
+		{
+			return calls;
+		}
+
+		/**
+		 * Tells if the log marks the UI requests, in which case every call knows its request.
+		 */
+		public boolean isRequestsMarked()
+		{
+			return requestsMarked;
+		}
+	}
+
+	/**
+	 * One recorded call.
+	 */
+	public static final class Call
+	{
+		private final long offsetMicros;
+		private final String method;
+		private final Object[] arguments;
+		private final int request;
+
+		private Call(long offsetMicros, String method, Object[] arguments, int request)
+		{
+			this.offsetMicros = offsetMicros;
+			this.method = method;
+			this.arguments = arguments;
+			this.request = request;
+		}
+
+		/**
+		 * Gets the microseconds between the opening of the log and the call.
+		 */
+		public long getOffsetMicros()
+		{
+			return offsetMicros;
+		}
+
+		public String getMethod()
+		{
+			return method;
+		}
+
+		public Object[] getArguments()
+		{
+			return arguments.clone();
+		}
+
+		public Object getArgument(int index)
+		{
+			return arguments[index];
+		}
+
+		public int getArgumentCount()
+		{
+			return arguments.length;
+		}
+
+		/**
+		 * Gets the index of the UI request the call was made in, or -1 if requests are not marked.
+		 */
+		public int getRequest()
+		{
+			return request;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder text = new StringBuilder(method).append('(');
+
+			for (int i = 0; i < arguments.length; i++)
+				text.append((i == 0) ? "" : ", ").append(arguments[i]);
+
+			return text.append(')').toString();
+		}
+	}
+}
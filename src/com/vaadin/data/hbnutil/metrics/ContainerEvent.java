@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable description of one operation of an HbnContainer, as passed to a ContainerEventRecorder. Ranges and row
+ * counts that are unknown or do not apply are given as -1.
+ */
+public final class ContainerEvent
+{
+	/**
+	 * The kinds of operations events are created for.
+	 */
+	public enum Kind
+	{
+		/**
+		 * A query loading a page of entities or identifiers.
+		 */
+		PAGE_LOAD,
+
+		/**
+		 * A query counting the filtered entities.
+		 */
+		COUNT,
+
+		/**
+		 * A lookup of an item, which is loaded from the database on a cache miss.
+		 */
+		CACHE_LOAD,
+
+		/**
+		 * A call of a Container.Hierarchical method.
+		 */
+		HIERARCHY_QUERY,
+
+		/**
+		 * A filter was added or removed.
+		 */
+		FILTER_CHANGE,
+
+		/**
+		 * The sort order was changed.
+		 */
+		SORT_CHANGE,
+
+		/**
+		 * Entities were inserted, updated or deleted.
+		 */
+		WRITE
+	}
+
+	private final Kind kind;
+	private final String entityName;
+	private final String operation;
+	private final long startNanos;
+	private final long durationNanos;
+	private final int startIndex;
+	private final int count;
+	private final int rows;
+	private final boolean cacheHit;
+
+	public ContainerEvent(Kind kind, String entityName, String operation, long startNanos, long durationNanos,
+			int startIndex, int count, int rows, boolean cacheHit)
+	{
+		this.kind = kind;
+		this.entityName = entityName;
+		this.operation = operation;
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+		this.startIndex = startIndex;
+		this.count = count;
+		this.rows = rows;
+		this.cacheHit = cacheHit;
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	public String getEntityName()
+	{
+		return entityName;
+	}
+
+	/**
+	 * Gets the name of the container method, or of the query shape for PAGE_LOAD and COUNT events.
+	 */
+	public String getOperation()
+	{
+		return operation;
+	}
+
+	/**
+	 * Gets the System.nanoTime() at which the operation started.
+	 */
+	public long getStartNanos()
+	{
+		return startNanos;
+	}
+
+	/**
+	 * Gets the duration of the operation in nanoseconds, zero for FILTER_CHANGE and SORT_CHANGE events.
+	 */
+	public long getDurationNanos()
+	{
+		return durationNanos;
+	}
+
+	/**
+	 * Gets the index of the first requested row.
+	 */
+	public int getStartIndex()
+	{
+		return startIndex;
+	}
+
+	/**
+	 * Gets the number of requested rows.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Gets the number of rows fetched from the database, or for WRITE events the number of entities written.
+	 */
+	public int getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Tells if a CACHE_LOAD event was served from the item cache without loading the entity.
+	 */
+	public boolean isCacheHit()
+	{
+		return cacheHit;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s %s.%s %.3f ms range %d+%d rows %d%s", kind, entityName, operation,
+				(double) durationNanos / TimeUnit.MILLISECONDS.toNanos(1), startIndex, count, rows,
+				cacheHit ? " cache hit" : "");
+	}
+}
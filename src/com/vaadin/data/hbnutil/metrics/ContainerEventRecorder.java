@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+/**
+ * Receives an event for every page load, count, item cache lookup, hierarchy query, filter or sort change and write
+ * of the HbnContainers it is set on, for example to publish them as Java Flight Recorder events on a JVM providing
+ * jdk.jfr, so that recordings attribute database latency and allocation to specific containers and operations.
+ * Events are delivered synchronously on the thread of the operation, after it completed, so implementations must be
+ * fast and thread safe. Containers without a recorder do not create any events.
+ */
+public interface ContainerEventRecorder
+{
+	/**
+	 * Records a completed operation.
+	 */
+	public void record(ContainerEvent event);
+}
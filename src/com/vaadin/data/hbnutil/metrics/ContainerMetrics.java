@@ -0,0 +1,349 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Counters and timings of the HbnContainers of one entity type: the calls of each Container API entry point, the
+ * queries of each shape they generate, the hit ratio of the row buffers used for paging and the statistics of the item
+ * caches. All methods are thread safe and recording does not allocate once an operation was seen.
+ */
+public class ContainerMetrics implements ContainerMetricsMXBean
+{
+	/**
+	 * Shape of a query issued by a container.
+	 */
+	public enum QueryShape
+	{
+		/**
+		 * Row count of the filtered entities, e.g. for size().
+		 */
+		COUNT,
+
+		/**
+		 * Window of entities in the current order, e.g. to fill a row buffer.
+		 */
+		PAGE,
+
+		/**
+		 * Identifiers or other projected columns of the filtered entities.
+		 */
+		ID_PROJECTION,
+
+		/**
+		 * Load of a single entity by identifier into the item cache.
+		 */
+		SINGLE_GET
+	}
+
+	private final String entityName;
+	private final ConcurrentMap<String, Timer> operations = new ConcurrentHashMap<String, Timer>();
+	private final Map<QueryShape, Timer> queries = new EnumMap<QueryShape, Timer>(QueryShape.class);
+	private final AtomicLong rowBufferHits = new AtomicLong();
+	private final AtomicLong rowBufferMisses = new AtomicLong();
+	private final List<WeakReference<Cache<?, ?>>> caches = new CopyOnWriteArrayList<WeakReference<Cache<?, ?>>>();
+	private volatile CacheStats cacheStatsBaseline = new CacheStats(0, 0, 0, 0, 0, 0);
+
+	public ContainerMetrics(String entityName)
+	{
+		this.entityName = entityName;
+
+		for (QueryShape shape : QueryShape.values())
+			queries.put(shape, new Timer());
+	}
+
+	/**
+	 * Records a call of the given Container API entry point that took the given time.
+	 */
+	public void recordOperation(String operation, long nanos)
+	{
+		Timer timer = operations.get(operation);
+
+		if (timer == null)
+		{
+			final Timer newTimer = new Timer();
+			timer = operations.putIfAbsent(operation, newTimer);
+
+			if (timer == null)
+				timer = newTimer;
+		}
+
+		timer.record(nanos);
+	}
+
+	/**
+	 * Records a query of the given shape that took the given time.
+	 */
+	public void recordQuery(QueryShape shape, long nanos)
+	{
+		queries.get(shape).record(nanos);
+	}
+
+	/**
+	 * Records a lookup in a row buffer, which either found the wanted row or required a query.
+	 */
+	public void recordRowBuffer(boolean hit)
+	{
+		if (hit)
+			rowBufferHits.incrementAndGet();
+		else
+			rowBufferMisses.incrementAndGet();
+	}
+
+	/**
+	 * Adds the item cache of a container to the cache statistics. The cache must record its statistics and is
+	 * referenced weakly, so the statistics of collected containers are no longer included.
+	 */
+	public void addCache(Cache<?, ?> cache)
+	{
+		caches.add(new WeakReference<Cache<?, ?>>(cache));
+	}
+
+	/**
+	 * Gets the statistics of all item caches of this entity type since the last reset.
+	 */
+	public CacheStats getCacheStats()
+	{
+		CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+		for (WeakReference<Cache<?, ?>> reference : caches)
+		{
+			final Cache<?, ?> cache = reference.get();
+
+			if (cache == null)
+				caches.remove(reference);
+			else
+				stats = stats.plus(cache.stats());
+		}
+
+		return stats.minus(cacheStatsBaseline);
+	}
+
+	/**
+	 * Gets the timer of the given Container API entry point, or null if it was not called yet.
+	 */
+	public Timer getOperation(String operation)
+	{
+		return operations.get(operation);
+	}
+
+	public Timer getQuery(QueryShape shape)
+	{
+		return queries.get(shape);
+	}
+
+	@Override
+	public String getEntityName()
+	{
+		return entityName;
+	}
+
+	@Override
+	public Map<String, Long> getOperationCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, Timer> entry : operations.entrySet())
+			counts.put(entry.getKey(), entry.getValue().getCount());
+
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getOperationMeanMillis()
+	{
+		final Map<String, Double> means = new TreeMap<String, Double>();
+
+		for (Map.Entry<String, Timer> entry : operations.entrySet())
+			means.put(entry.getKey(), toMillis(entry.getValue().getMeanNanos()));
+
+		return means;
+	}
+
+	@Override
+	public Map<String, Double> getOperationMaxMillis()
+	{
+		final Map<String, Double> maximums = new TreeMap<String, Double>();
+
+		for (Map.Entry<String, Timer> entry : operations.entrySet())
+			maximums.put(entry.getKey(), toMillis(entry.getValue().getMaxNanos()));
+
+		return maximums;
+	}
+
+	@Override
+	public Map<String, Long> getQueryCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+
+		for (Map.Entry<QueryShape, Timer> entry : queries.entrySet())
+			counts.put(entry.getKey().name(), entry.getValue().getCount());
+
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getQueryMeanMillis()
+	{
+		final Map<String, Double> means = new TreeMap<String, Double>();
+
+		for (Map.Entry<QueryShape, Timer> entry : queries.entrySet())
+			means.put(entry.getKey().name(), toMillis(entry.getValue().getMeanNanos()));
+
+		return means;
+	}
+
+	@Override
+	public Map<String, Double> getQueryMaxMillis()
+	{
+		final Map<String, Double> maximums = new TreeMap<String, Double>();
+
+		for (Map.Entry<QueryShape, Timer> entry : queries.entrySet())
+			maximums.put(entry.getKey().name(), toMillis(entry.getValue().getMaxNanos()));
+
+		return maximums;
+	}
+
+	@Override
+	public long getCacheHitCount()
+	{
+		return getCacheStats().hitCount();
+	}
+
+	@Override
+	public long getCacheMissCount()
+	{
+		return getCacheStats().missCount();
+	}
+
+	@Override
+	public long getCacheEvictionCount()
+	{
+		return getCacheStats().evictionCount();
+	}
+
+	@Override
+	public double getCacheHitRate()
+	{
+		return getCacheStats().hitRate();
+	}
+
+	@Override
+	public double getCacheAverageLoadMillis()
+	{
+		return toMillis(getCacheStats().averageLoadPenalty());
+	}
+
+	@Override
+	public long getRowBufferHitCount()
+	{
+		return rowBufferHits.get();
+	}
+
+	@Override
+	public long getRowBufferMissCount()
+	{
+		return rowBufferMisses.get();
+	}
+
+	@Override
+	public double getRowBufferHitRatio()
+	{
+		final long hits = rowBufferHits.get();
+		final long lookups = hits + rowBufferMisses.get();
+
+		return (lookups == 0) ? 1.0 : (double) hits / lookups;
+	}
+
+	@Override
+	public void reset()
+	{
+		for (Timer timer : operations.values())
+			timer.reset();
+
+		for (Timer timer : queries.values())
+			timer.reset();
+
+		rowBufferHits.set(0);
+		rowBufferMisses.set(0);
+		cacheStatsBaseline = getCacheStats().plus(cacheStatsBaseline);
+	}
+
+	private static double toMillis(double nanos)
+	{
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Call count, total and maximum time of an operation or query shape.
+	 */
+	public static final class Timer
+	{
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void record(long nanos)
+		{
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max = maxNanos.get();
+
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+				max = maxNanos.get();
+		}
+
+		private void reset()
+		{
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos.get();
+		}
+
+		public double getMeanNanos()
+		{
+			final long calls = count.get();
+			return (calls == 0) ? 0.0 : (double) totalNanos.get() / calls;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of one entity type, as registered by JmxMetricsRegistry. Operation metrics are
+ * keyed by Container method name and query metrics by query shape. Times are given in milliseconds.
+ */
+public interface ContainerMetricsMXBean
+{
+	public String getEntityName();
+
+	public Map<String, Long> getOperationCounts();
+
+	public Map<String, Double> getOperationMeanMillis();
+
+	public Map<String, Double> getOperationMaxMillis();
+
+	public Map<String, Long> getQueryCounts();
+
+	public Map<String, Double> getQueryMeanMillis();
+
+	public Map<String, Double> getQueryMaxMillis();
+
+	public long getCacheHitCount();
+
+	public long getCacheMissCount();
+
+	public long getCacheEvictionCount();
+
+	public double getCacheHitRate();
+
+	public double getCacheAverageLoadMillis();
+
+	public long getRowBufferHitCount();
+
+	public long getRowBufferMissCount();
+
+	public double getRowBufferHitRatio();
+
+	/**
+	 * Starts counting from zero again.
+	 */
+	public void reset();
+}
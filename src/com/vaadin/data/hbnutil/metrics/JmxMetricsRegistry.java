@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.vaadin.data.hbnutil.ApplicationLogger;
+
+/**
+ * Metrics registry publishing the metrics of every entity type as an MXBean named
+ * com.vaadin.data.hbnutil:type=HbnContainer,entity=&lt;entity name&gt;, by default in the platform MBean server.
+ */
+public class JmxMetricsRegistry extends SimpleMetricsRegistry
+{
+	private ApplicationLogger logger = new ApplicationLogger(JmxMetricsRegistry.class);
+
+	public static final String DOMAIN = "com.vaadin.data.hbnutil";
+	private final MBeanServer server;
+
+	public JmxMetricsRegistry()
+	{
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public JmxMetricsRegistry(MBeanServer server)
+	{
+		this.server = server;
+	}
+
+	/**
+	 * Gets the name the metrics of the given entity type are registered with.
+	 */
+	public static ObjectName getObjectName(String entityName) throws MalformedObjectNameException
+	{
+		return new ObjectName(DOMAIN + ":type=HbnContainer,entity=" + ObjectName.quote(entityName));
+	}
+
+	/**
+	 * Unregisters the MXBeans of all entity types, for example when the application is undeployed.
+	 */
+	public void unregisterAll()
+	{
+		logger.executionTrace("unregisterAll");
+
+		for (ContainerMetrics metrics : getAllMetrics())
+		{
+			try
+			{
+				final ObjectName name = getObjectName(metrics.getEntityName());
+
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+			}
+			catch (JMException e)
+			{
+				logger.error(e);
+			}
+		}
+	}
+
+	@Override
+	protected ContainerMetrics createMetrics(String entityName)
+	{
+		logger.executionTrace("createMetrics");
+
+		final ContainerMetrics metrics = super.createMetrics(entityName);
+
+		try
+		{
+			server.registerMBean(metrics, getObjectName(entityName));
+		}
+		catch (JMException e)
+		{
+			logger.error(e);
+		}
+
+		return metrics;
+	}
+}
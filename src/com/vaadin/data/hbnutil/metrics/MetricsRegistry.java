@@ -0,0 +1,27 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+/**
+ * Provides the metrics HbnContainers record their operations, queries and caches into. Metrics are aggregated per
+ * entity type, so all containers of one entity type share the same ContainerMetrics. Implementations must be thread
+ * safe.
+ */
+public interface MetricsRegistry
+{
+	/**
+	 * Gets the metrics of the given entity type, creating them on first use.
+	 */
+	public ContainerMetrics getMetrics(String entityName);
+}
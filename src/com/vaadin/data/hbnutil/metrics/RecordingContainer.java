@@ -0,0 +1,395 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.ApplicationLogger;
+import com.vaadin.data.hbnutil.HbnContainer;
+import com.vaadin.data.util.filter.UnsupportedFilterException;
+
+/**
+ * Wrapper of an HbnContainer that writes the calls a component makes on it to a ContainerCallLog, to capture the
+ * access pattern of a Table or TreeTable in a real UI session: size, containsId, getItem, getContainerProperty, both
+ * getItemIds, indexOfId, getIdByIndex, the Container.Ordered navigation methods, sort and the read methods of
+ * Container.Hierarchical. Calls the container makes on itself are not recorded. Filter changes and writes are passed
+ * on without being recorded, as filters can not be written to the log.
+ * 
+ * Set the wrapper as the data source of the component instead of the container; the container itself is available
+ * through {@link #getContainer()}.
+ */
+public class RecordingContainer<T> implements Container.Indexed, Container.Sortable, Container.Filterable,
+		Container.Hierarchical, Container.ItemSetChangeNotifier
+{
+	private static final long serialVersionUID = 2912054833127745390L;
+	private ApplicationLogger logger = new ApplicationLogger(RecordingContainer.class);
+
+	private final HbnContainer<T> container;
+	private final transient ContainerCallLog log;
+
+	public RecordingContainer(HbnContainer<T> container, ContainerCallLog log)
+	{
+		this.container = container;
+		this.log = log;
+	}
+
+	public HbnContainer<T> getContainer()
+	{
+		return container;
+	}
+
+	public ContainerCallLog getLog()
+	{
+		return log;
+	}
+
+	@Override
+	public int size()
+	{
+		logger.executionTrace("size");
+
+		log.record("size");
+		return container.size();
+	}
+
+	@Override
+	public boolean containsId(Object itemId)
+	{
+		logger.executionTrace("containsId");
+
+		log.record("containsId", itemId);
+		return container.containsId(itemId);
+	}
+
+	@Override
+	public HbnContainer<T>.EntityItem<T> getItem(Object itemId)
+	{
+		logger.executionTrace("getItem");
+
+		log.record("getItem", itemId);
+		return container.getItem(itemId);
+	}
+
+	@Override
+	public Property<?> getContainerProperty(Object itemId, Object propertyId)
+	{
+		logger.executionTrace("getContainerProperty");
+
+		log.record("getContainerProperty", itemId, propertyId);
+		return container.getContainerProperty(itemId, propertyId);
+	}
+
+	@Override
+	public Collection<?> getItemIds()
+	{
+		logger.executionTrace("getItemIds");
+
+		log.record("getItemIds");
+		return container.getItemIds();
+	}
+
+	@Override
+	public List<?> getItemIds(int startIndex, int count)
+	{
+		logger.executionTrace("getItemIds");
+
+		log.record("getItemIds", startIndex, count);
+		return container.getItemIds(startIndex, count);
+	}
+
+	@Override
+	public int indexOfId(Object itemId)
+	{
+		logger.executionTrace("indexOfId");
+
+		log.record("indexOfId", itemId);
+		return container.indexOfId(itemId);
+	}
+
+	@Override
+	public Object getIdByIndex(int index)
+	{
+		logger.executionTrace("getIdByIndex");
+
+		log.record("getIdByIndex", index);
+		return container.getIdByIndex(index);
+	}
+
+	@Override
+	public Object nextItemId(Object itemId)
+	{
+		logger.executionTrace("nextItemId");
+
+		log.record("nextItemId", itemId);
+		return container.nextItemId(itemId);
+	}
+
+	@Override
+	public Object prevItemId(Object itemId)
+	{
+		logger.executionTrace("prevItemId");
+
+		log.record("prevItemId", itemId);
+		return container.prevItemId(itemId);
+	}
+
+	@Override
+	public Object firstItemId()
+	{
+		logger.executionTrace("firstItemId");
+
+		log.record("firstItemId");
+		return container.firstItemId();
+	}
+
+	@Override
+	public Object lastItemId()
+	{
+		logger.executionTrace("lastItemId");
+
+		log.record("lastItemId");
+		return container.lastItemId();
+	}
+
+	@Override
+	public boolean isFirstId(Object itemId)
+	{
+		logger.executionTrace("isFirstId");
+
+		log.record("isFirstId", itemId);
+		return container.isFirstId(itemId);
+	}
+
+	@Override
+	public boolean isLastId(Object itemId)
+	{
+		logger.executionTrace("isLastId");
+
+		log.record("isLastId", itemId);
+		return container.isLastId(itemId);
+	}
+
+	/**
+	 * Sorts the container. The call is recorded with the property identifiers and directions as alternating arguments.
+	 */
+	@Override
+	public void sort(Object[] propertyId, boolean[] ascending)
+	{
+		logger.executionTrace("sort");
+
+		final Object[] arguments = new Object[2 * propertyId.length];
+
+		for (int i = 0; i < propertyId.length; i++)
+		{
+			arguments[2 * i] = propertyId[i];
+			arguments[2 * i + 1] = (i < ascending.length) ? ascending[i] : true;
+		}
+
+		log.record("sort", arguments);
+		container.sort(propertyId, ascending);
+	}
+
+	@Override
+	public Collection<?> getChildren(Object itemId)
+	{
+		logger.executionTrace("getChildren");
+
+		log.record("getChildren", itemId);
+		return container.getChildren(itemId);
+	}
+
+	@Override
+	public Object getParent(Object itemId)
+	{
+		logger.executionTrace("getParent");
+
+		log.record("getParent", itemId);
+		return container.getParent(itemId);
+	}
+
+	@Override
+	public Collection<?> rootItemIds()
+	{
+		logger.executionTrace("rootItemIds");
+
+		log.record("rootItemIds");
+		return container.rootItemIds();
+	}
+
+	@Override
+	public boolean areChildrenAllowed(Object itemId)
+	{
+		logger.executionTrace("areChildrenAllowed");
+
+		log.record("areChildrenAllowed", itemId);
+		return container.areChildrenAllowed(itemId);
+	}
+
+	@Override
+	public boolean isRoot(Object itemId)
+	{
+		logger.executionTrace("isRoot");
+
+		log.record("isRoot", itemId);
+		return container.isRoot(itemId);
+	}
+
+	@Override
+	public boolean hasChildren(Object itemId)
+	{
+		logger.executionTrace("hasChildren");
+
+		log.record("hasChildren", itemId);
+		return container.hasChildren(itemId);
+	}
+
+	@Override
+	public Collection<?> getContainerPropertyIds()
+	{
+		return container.getContainerPropertyIds();
+	}
+
+	@Override
+	public Class<?> getType(Object propertyId)
+	{
+		return container.getType(propertyId);
+	}
+
+	@Override
+	public Collection<?> getSortableContainerPropertyIds()
+	{
+		return container.getSortableContainerPropertyIds();
+	}
+
+	@Override
+	public Item addItem(Object itemId) throws UnsupportedOperationException
+	{
+		return container.addItem(itemId);
+	}
+
+	@Override
+	public Object addItem() throws UnsupportedOperationException
+	{
+		return container.addItem();
+	}
+
+	@Override
+	public Object addItemAt(int index) throws UnsupportedOperationException
+	{
+		return container.addItemAt(index);
+	}
+
+	@Override
+	public Item addItemAt(int index, Object newItemId) throws UnsupportedOperationException
+	{
+		return container.addItemAt(index, newItemId);
+	}
+
+	@Override
+	public Object addItemAfter(Object previousItemId) throws UnsupportedOperationException
+	{
+		return container.addItemAfter(previousItemId);
+	}
+
+	@Override
+	public Item addItemAfter(Object previousItemId, Object newItemId) throws UnsupportedOperationException
+	{
+		return container.addItemAfter(previousItemId, newItemId);
+	}
+
+	@Override
+	public boolean removeItem(Object itemId) throws UnsupportedOperationException
+	{
+		return container.removeItem(itemId);
+	}
+
+	@Override
+	public boolean removeAllItems() throws UnsupportedOperationException
+	{
+		return container.removeAllItems();
+	}
+
+	@Override
+	public boolean addContainerProperty(Object propertyId, Class<?> type, Object defaultValue)
+			throws UnsupportedOperationException
+	{
+		return container.addContainerProperty(propertyId, type, defaultValue);
+	}
+
+	@Override
+	public boolean removeContainerProperty(Object propertyId) throws UnsupportedOperationException
+	{
+		return container.removeContainerProperty(propertyId);
+	}
+
+	@Override
+	public boolean setParent(Object itemId, Object newParentId) throws UnsupportedOperationException
+	{
+		return container.setParent(itemId, newParentId);
+	}
+
+	@Override
+	public boolean setChildrenAllowed(Object itemId, boolean areChildrenAllowed) throws UnsupportedOperationException
+	{
+		return container.setChildrenAllowed(itemId, areChildrenAllowed);
+	}
+
+	@Override
+	public void addContainerFilter(Filter filter) throws UnsupportedFilterException
+	{
+		container.addContainerFilter(filter);
+	}
+
+	@Override
+	public void removeContainerFilter(Filter filter)
+	{
+		container.removeContainerFilter(filter);
+	}
+
+	@Override
+	public void removeAllContainerFilters()
+	{
+		container.removeAllContainerFilters();
+	}
+
+	@Override
+	public void addItemSetChangeListener(ItemSetChangeListener listener)
+	{
+		container.addItemSetChangeListener(listener);
+	}
+
+	@Override
+	public void removeItemSetChangeListener(ItemSetChangeListener listener)
+	{
+		container.removeItemSetChangeListener(listener);
+	}
+
+	@Override
+	@Deprecated
+	public void addListener(ItemSetChangeListener listener)
+	{
+		container.addItemSetChangeListener(listener);
+	}
+
+	@Override
+	@Deprecated
+	public void removeListener(ItemSetChangeListener listener)
+	{
+		container.removeItemSetChangeListener(listener);
+	}
+}
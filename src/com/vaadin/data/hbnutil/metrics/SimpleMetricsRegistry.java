@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012, Gary Piercey, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vaadin.data.hbnutil.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Metrics registry keeping the metrics of every entity type in memory, to be read by the application, e.g. for a
+ * diagnostics view or periodic logging.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry
+{
+	private final Map<String, ContainerMetrics> metrics = new HashMap<String, ContainerMetrics>();
+
+	@Override
+	public synchronized ContainerMetrics getMetrics(String entityName)
+	{
+		ContainerMetrics entityMetrics = metrics.get(entityName);
+
+		if (entityMetrics == null)
+		{
+			entityMetrics = createMetrics(entityName);
+			metrics.put(entityName, entityMetrics);
+		}
+
+		return entityMetrics;
+	}
+
+	/**
+	 * Gets the metrics of all entity types seen so far.
+	 */
+	public synchronized Collection<ContainerMetrics> getAllMetrics()
+	{
+		return new ArrayList<ContainerMetrics>(metrics.values());
+	}
+
+	/**
+	 * Creates the metrics of an entity type. Subclasses may override this to publish them.
+	 */
+	protected ContainerMetrics createMetrics(String entityName)
+	{
+		return new ContainerMetrics(entityName);
+	}
+}
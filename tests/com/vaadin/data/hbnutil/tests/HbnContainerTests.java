@@ -2,16 +2,47 @@ package com.vaadin.data.hbnutil.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.hibernate.*;
+import org.hibernate.context.internal.ThreadLocalSessionContext;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
 import org.junit.*;
 
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Container.ItemSetChangeEvent;
 import com.vaadin.data.Container.ItemSetChangeListener;
+import com.vaadin.data.Property;
 import com.vaadin.data.hbnutil.*;
+import com.vaadin.data.hbnutil.filter.*;
+import com.vaadin.data.hbnutil.metrics.*;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Not;
 import com.vaadin.data.util.filter.SimpleStringFilter;
 
 public class HbnContainerTests
@@ -20,6 +51,10 @@ public class HbnContainerTests
 	private static Session session = null;
 	private static HbnContainer<SampleNode> container = null;
 	private static int recordsToLoad = 10;
+	private static volatile CountDownLatch queryStarted;
+	private static volatile CountDownLatch queryReleased;
+	private static volatile CountDownLatch insertStarted;
+	private static volatile CountDownLatch insertReleased;
 
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception
@@ -52,6 +87,71 @@ public class HbnContainerTests
 	{
 	}
 
+	/**
+	 * Item set change listener counting and keeping the events it receives, possibly from other threads.
+	 */
+	@SuppressWarnings("serial")
+	private static class CountingListener implements ItemSetChangeListener
+	{
+		private final List<ItemSetChangeEvent> events = new ArrayList<ItemSetChangeEvent>();
+
+		@Override
+		public synchronized void containerItemSetChange(ItemSetChangeEvent event)
+		{
+			events.add(event);
+		}
+
+		public synchronized int count()
+		{
+			return events.size();
+		}
+
+		public synchronized ItemSetChangeEvent get(int index)
+		{
+			return events.get(index);
+		}
+
+		public synchronized ItemSetChangeEvent last()
+		{
+			return events.get(events.size() - 1);
+		}
+
+		public synchronized void reset()
+		{
+			events.clear();
+		}
+	}
+
+	/**
+	 * Runs the given work in a current session and transaction of its own, which is committed, while the fixture
+	 * transaction stays open.
+	 */
+	private static <V> V callInOwnTransaction(Callable<V> work) throws Exception
+	{
+		final Session fixtureSession = ThreadLocalSessionContext.unbind(sessionFactory);
+
+		try
+		{
+			final Transaction transaction = sessionFactory.getCurrentSession().beginTransaction();
+
+			try
+			{
+				final V result = work.call();
+				transaction.commit();
+				return result;
+			}
+			finally
+			{
+				if (transaction.isActive())
+					transaction.rollback();
+			}
+		}
+		finally
+		{
+			ThreadLocalSessionContext.bind(fixtureSession);
+		}
+	}
+
 	//
 	// ************************************************************************************************************
 	//
@@ -236,4 +336,1184 @@ public class HbnContainerTests
 		filters = container.getContainerFilters();
 		assertTrue(filters == null);
 	}
+
+	@Test
+	public final void testQueryTimeout()
+	{
+		container.setQueryTimeout(30);
+		assertTrue(container.getQueryTimeout() == 30);
+		assertTrue(container.size() > 0);
+
+		container.setQueryTimeout(0);
+		assertTrue(container.getQueryTimeout() == 0);
+	}
+
+	/**
+	 * Stands in for a long running query in testSupersededQuery: blocks until released and then fails the way a
+	 * cancelled statement does, as HSQLDB itself ignores Statement.cancel().
+	 */
+	public static int blockQuery() throws SQLException
+	{
+		queryStarted.countDown();
+
+		try
+		{
+			queryReleased.await(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		throw new SQLException("statement cancelled", "HY008");
+	}
+
+	@Test
+	public final void testSupersededQuery() throws Exception
+	{
+		sessionFactory.getCurrentSession().createSQLQuery("create function block_query() returns int language java "
+				+ "not deterministic no sql external name 'CLASSPATH:" + HbnContainerTests.class.getName()
+				+ ".blockQuery'").executeUpdate();
+
+		final HbnContainer<SampleNode> blocked = new HbnContainer<SampleNode>(SampleNode.class, sessionFactory);
+		final ContainerFilter blocking = new ContainerFilter("title")
+		{
+			@Override
+			public Criterion getFieldCriterion(String fullPropertyName)
+			{
+				return Restrictions.sqlRestriction("block_query() = 1");
+			}
+		};
+
+		final Callable<Collection<?>> query = new Callable<Collection<?>>()
+		{
+			@Override
+			public Collection<?> call()
+			{
+				final Transaction transaction = sessionFactory.getCurrentSession().beginTransaction();
+
+				try
+				{
+					return blocked.getItemIds();
+				}
+				finally
+				{
+					transaction.rollback();
+				}
+			}
+		};
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		blocked.addContainerFilter(blocking);
+		queryStarted = new CountDownLatch(1);
+		queryReleased = new CountDownLatch(1);
+
+		final Future<Collection<?>> superseded = executor.submit(query);
+		assertTrue(queryStarted.await(30, TimeUnit.SECONDS));
+		blocked.removeAllContainerFilters();
+		queryReleased.countDown();
+		assertTrue(superseded.get().isEmpty());
+
+		blocked.addContainerFilter(blocking);
+		queryStarted = new CountDownLatch(1);
+
+		try
+		{
+			executor.submit(query).get();
+			fail("a failed query that was not cancelled must be rethrown");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof JDBCException);
+		}
+
+		executor.shutdown();
+		sessionFactory.getCurrentSession().createSQLQuery("drop function block_query").executeUpdate();
+	}
+
+	@Test
+	public final void testAssociationContainerFilter()
+	{
+		final SampleNode parent = new SampleNode("association parent", null);
+		final Object parentId = container.saveEntity(parent);
+		final Object firstChildId = container.saveEntity(new SampleNode("first child", parent));
+		final Object secondChildId = container.saveEntity(new SampleNode("second child", parent));
+
+		container.addContainerFilter(new AssociationContainerFilter(
+				new Compare.Equal("parent.title", "association parent")));
+
+		assertTrue(container.size() == 2);
+		assertTrue(container.getItemIds().contains(firstChildId));
+		assertTrue(container.getItemIds().contains(secondChildId));
+
+		container.removeAllContainerFilters();
+		container.removeItem(parentId);
+	}
+
+	@Test
+	public final void testCollectionContainerFilter()
+	{
+		final SampleNode first = new SampleNode("first member", null);
+		final SampleNode second = new SampleNode("second member", null);
+		container.saveEntity(first);
+		container.saveEntity(second);
+
+		final HbnContainer<SampleGroup> groups = new HbnContainer<SampleGroup>(SampleGroup.class, sessionFactory);
+		final Object bothId = groups.saveEntity(new SampleGroup("both", first, second));
+		final Object firstOnlyId = groups.saveEntity(new SampleGroup("first only", first));
+		final Object emptyId = groups.saveEntity(new SampleGroup("empty"));
+		sessionFactory.getCurrentSession().flush();
+
+		groups.addContainerFilter(new CollectionContainerFilter("members", first.getId()));
+		assertTrue(groups.size() == 2);
+		assertTrue(groups.getItemIds().contains(bothId));
+		assertTrue(groups.getItemIds().contains(firstOnlyId));
+
+		groups.removeAllContainerFilters();
+		groups.addContainerFilter(new CollectionContainerFilter("members", second.getId()));
+		assertTrue(groups.size() == 1);
+		assertTrue(groups.getItemIds().contains(bothId));
+
+		groups.removeAllContainerFilters();
+		groups.removeItem(bothId);
+		groups.removeItem(firstOnlyId);
+		groups.removeItem(emptyId);
+		container.removeItem(first.getId());
+		container.removeItem(second.getId());
+	}
+
+	@Test
+	public final void testFilterResultCache()
+	{
+		container.setFilterResultCacheSize(10000);
+		container.addContainerFilter(new StringContainerFilter("title", "untitled", true, false));
+
+		final int size = container.size();
+		assertTrue(size > 0);
+
+		container.sort(new Object[] { "created" }, new boolean[] { false });
+		assertTrue(container.size() == size);
+		assertTrue(container.getFilterResultCache().stats().hitCount() > 0);
+		assertTrue(container.getItemIds().size() == size);
+		assertTrue(container.indexOfId(container.getIdByIndex(size - 1)) == size - 1);
+
+		container.removeAllContainerFilters();
+		container.sort(new Object[] {}, new boolean[] {});
+		container.setFilterResultCacheSize(0);
+		assertNull(container.getFilterResultCache());
+	}
+
+	@Test
+	public final void testFilterResultCacheLimit()
+	{
+		final FilterResultCache cache = new FilterResultCache(100);
+		final Set<ContainerFilter> filters = new HashSet<ContainerFilter>();
+		final List<Long> ids = new ArrayList<Long>();
+
+		for (long id = 0; id < 90; id++)
+			ids.add(id);
+
+		filters.add(new StringContainerFilter("title", "untitled", true, false));
+		cache.put(filters, ids);
+		assertNotNull(cache.get(filters));
+		assertTrue(cache.get(filters).size() == 90);
+
+		filters.add(new StringContainerFilter("title", "u", true, true));
+		cache.put(filters, ids.subList(0, 20));
+		assertNotNull(cache.get(filters));
+		assertTrue(cache.stats().evictionCount() == 1);
+	}
+
+	@Test
+	public final void testInMemory()
+	{
+		container.sort(new Object[] { "id" }, new boolean[] { false });
+		final List<?> databaseIds = container.getItemIds(0, container.size());
+
+		container.setInMemory(true);
+		assertTrue(container.isInMemory());
+		assertTrue(container.getItemIds().equals(databaseIds));
+		assertTrue(container.firstItemId().equals(databaseIds.get(0)));
+		assertTrue(container.lastItemId().equals(databaseIds.get(databaseIds.size() - 1)));
+		assertTrue(container.nextItemId(databaseIds.get(0)).equals(databaseIds.get(1)));
+		assertTrue(container.prevItemId(databaseIds.get(1)).equals(databaseIds.get(0)));
+		assertTrue(container.indexOfId(databaseIds.get(2)) == 2);
+
+		final SampleNode entity = new SampleNode("in memory", null);
+		final Object entityId = container.saveEntity(entity);
+		assertTrue(container.getIdByIndex(0).equals(entityId));
+
+		container.addContainerFilter(new StringContainerFilter("title", "IN MEM", true, true));
+		assertTrue(container.size() == 1);
+		assertTrue(container.indexOfId(databaseIds.get(0)) == -1);
+
+		container.removeAllContainerFilters();
+		container.removeItem(entityId);
+		container.setInMemory(false);
+		container.sort(new Object[] {}, new boolean[] {});
+	}
+
+	@Test
+	public final void testNotContainerFilter()
+	{
+		final NotContainerFilter notMatching = new NotContainerFilter(new Not(new Compare.Equal("title", "not me")));
+		assertTrue(notMatching.getPropertyId().equals("title"));
+		assertTrue(notMatching.evaluate("other"));
+		assertFalse(notMatching.evaluate("not me"));
+		assertFalse(notMatching.evaluate(null));
+		assertFalse(new NotContainerFilter(new Not(new IsNull("title"))).evaluate(null));
+
+		final SampleNode untitled = new SampleNode(null, null);
+		final Object untitledId = container.saveEntity(untitled);
+		final Object excludedId = container.saveEntity(new SampleNode("not me", null));
+
+		container.addContainerFilter(notMatching);
+		final List<?> databaseIds = container.getItemIds(0, container.size());
+		assertFalse(databaseIds.contains(untitledId));
+		assertFalse(databaseIds.contains(excludedId));
+
+		container.setInMemory(true);
+		assertTrue(container.getItemIds().equals(databaseIds));
+
+		container.setInMemory(false);
+		container.removeAllContainerFilters();
+		container.removeItem(untitledId);
+		container.removeItem(excludedId);
+	}
+
+	@Test
+	public final void testAddedPropertyFilterAndSort()
+	{
+		container.addContainerProperty("titleLength", Integer.class, 0);
+
+		final Object shortId = container.saveEntity(new SampleNode("x", null));
+		final Object longId = container.saveEntity(new SampleNode("a rather long title to filter on", null));
+
+		container.addContainerFilter(new Compare.Greater("titleLength", 20));
+		assertTrue(container.size() == 1);
+		assertTrue(container.firstItemId().equals(longId));
+
+		container.removeAllContainerFilters();
+		container.sort(new Object[] { "titleLength" }, new boolean[] { true });
+		assertTrue(container.firstItemId().equals(shortId));
+		assertTrue(container.lastItemId().equals(longId));
+		assertTrue(container.indexOfId(longId) == container.size() - 1);
+
+		container.sort(new Object[] {}, new boolean[] {});
+		container.removeItem(shortId);
+		container.removeItem(longId);
+		container.removeContainerProperty("titleLength");
+	}
+
+	@Test
+	public final void testSaveEntities()
+	{
+		final CountingListener listener = new CountingListener();
+
+		final List<SampleNode> entities = new ArrayList<SampleNode>();
+
+		for (int i = 0; i < 120; i++)
+			entities.add(new SampleNode("bulk " + i, null));
+
+		final int size = container.size();
+		container.addItemSetChangeListener(listener);
+		container.setWriteBatchSize(50);
+
+		final List<?> entityIds = container.saveEntities(entities);
+		assertTrue(entityIds.size() == 120);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.size() == size + 120);
+
+		container.removeItemSetChangeListener(listener);
+		container.setWriteBatchSize(0);
+
+		for (Object entityId : entityIds)
+			container.removeItem(entityId);
+	}
+
+	@Test
+	public final void testImportExportEntities()
+	{
+		final CountingListener listener = new CountingListener();
+
+		final List<SampleNode> entities = new ArrayList<SampleNode>();
+
+		for (int i = 0; i < 100; i++)
+			entities.add(new SampleNode("import " + i, null));
+
+		final int size = container.size();
+		container.addItemSetChangeListener(listener);
+
+		final List<?> entityIds = container.importEntities(entities);
+		assertTrue(entityIds.size() == 100);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.size() == size + 100);
+
+		container.addContainerFilter(new SimpleStringFilter("title", "import", false, true));
+		container.sort(new Object[] { "title" }, new boolean[] { false });
+
+		final List<SampleNode> exported = new ArrayList<SampleNode>();
+		final int count = container.exportEntities(new HbnContainer.ExportHandler<SampleNode>()
+		{
+			@Override
+			public void export(SampleNode entity)
+			{
+				exported.add(entity);
+			}
+		});
+
+		assertTrue(count == 100);
+		assertTrue(exported.get(0).getTitle().equals("import 99"));
+
+		for (SampleNode entity : exported)
+			entity.setTitle("updated " + entity.getId());
+
+		listener.reset();
+		container.updateEntities(exported);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.size() == 0);
+
+		final Object entityId = entityIds.get(0);
+		assertTrue(container.getItem(entityId).getPojo().getTitle().equals("updated " + entityId));
+
+		container.removeItemSetChangeListener(listener);
+		container.removeAllContainerFilters();
+		container.sort(new Object[] { "id" }, new boolean[] { true });
+
+		for (Object id : entityIds)
+			container.removeItem(id);
+	}
+
+	@Test
+	public final void testUpdateAllRemoveAll()
+	{
+		final CountingListener listener = new CountingListener();
+
+		final List<SampleNode> entities = new ArrayList<SampleNode>();
+
+		for (int i = 0; i < 50; i++)
+			entities.add(new SampleNode("archive " + i, null));
+
+		final List<?> entityIds = container.importEntities(entities);
+		final Object entityId = entityIds.get(0);
+		final int size = container.size();
+
+		container.addContainerFilter(new SimpleStringFilter("title", "archive", false, true));
+		container.addItemSetChangeListener(listener);
+
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("title", "archived");
+
+		assertTrue(container.updateAll(values) == 50);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.getItem(entityId).getPojo().getTitle().equals("archived"));
+
+		container.addContainerProperty("titleLength", Integer.class, 0);
+		container.addContainerFilter(new Compare.Equal("titleLength", 8));
+		values.put("title", "archive!");
+
+		listener.reset();
+		assertTrue(container.updateAll(values) == 50);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.getItem(entityId).getPojo().getTitle().equals("archive!"));
+
+		container.removeContainerFilters("titleLength");
+		container.removeContainerProperty("titleLength");
+
+		final Object parentId = container.getIdByIndex(1);
+		values.clear();
+		values.put("parent", parentId);
+
+		assertTrue(container.updateAll(values) == 50);
+		assertTrue(container.getItem(entityId).getPojo().getParent().getId().equals(parentId));
+
+		for (String propertyName : new String[] { "unmapped", "title = 'x', parent" })
+		{
+			values.clear();
+			values.put(propertyName, "x");
+
+			try
+			{
+				container.updateAll(values);
+				fail("bulk update of " + propertyName + " must be rejected");
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+		}
+
+		values.clear();
+		values.put("parent", null);
+		assertTrue(container.updateAll(values) == 50);
+
+		listener.reset();
+		assertTrue(container.removeAll() == 50);
+		assertTrue(listener.count() == 1);
+		assertTrue(container.size() == 0);
+
+		container.removeItemSetChangeListener(listener);
+		container.removeAllContainerFilters();
+		assertTrue(container.size() == size - 50);
+	}
+
+	@Test
+	public final void testVersionedUpdateAll()
+	{
+		final HbnContainer<SampleGroup> groups = new HbnContainer<SampleGroup>(SampleGroup.class, sessionFactory);
+		final SampleGroup group = new SampleGroup("versioned");
+		final Object groupId = groups.saveEntity(group);
+		sessionFactory.getCurrentSession().flush();
+
+		final Integer version = group.getVersion();
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("name", "versioned 2");
+
+		assertTrue(groups.updateAll(values) >= 1);
+		assertTrue(groups.getItem(groupId).getPojo().getVersion().intValue() == version.intValue() + 1);
+
+		for (String propertyName : new String[] { "version", "members" })
+		{
+			values.clear();
+			values.put(propertyName, null);
+
+			try
+			{
+				groups.updateAll(values);
+				fail("bulk update of " + propertyName + " must be rejected");
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+		}
+
+		groups.removeItem(groupId);
+	}
+
+	@Test
+	public final void testRemoveItems()
+	{
+		final CountingListener listener = new CountingListener();
+
+		final int size = container.size();
+		final Object rootId = container.saveEntity(new SampleNode("tree root", null));
+		final SampleNode root = container.getItem(rootId).getPojo();
+		final Object childId = container.saveEntity(new SampleNode("tree child", root));
+		final SampleNode child = container.getItem(childId).getPojo();
+		final Object grandChildId = container.saveEntity(new SampleNode("tree grandchild", child));
+		container.saveEntity(new SampleNode("tree child", root));
+
+		final List<Object> entityIds = new ArrayList<Object>();
+		entityIds.add(rootId);
+		entityIds.add(container.saveEntity(new SampleNode("single", null)));
+		entityIds.add(container.saveEntity(new SampleNode("single", null)));
+		assertTrue(container.size() == size + 6);
+
+		container.addItemSetChangeListener(listener);
+
+		assertTrue(container.removeItems(entityIds));
+		assertTrue(listener.count() == 1);
+		assertTrue(container.size() == size);
+		assertNull(container.getItem(grandChildId).getPojo());
+
+		container.removeItemSetChangeListener(listener);
+	}
+
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public final void testWriteBehind()
+	{
+		final List<SampleNode> completed = new ArrayList<SampleNode>();
+		final List<SampleNode> failed = new ArrayList<SampleNode>();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		final HbnContainer.WriteBehindListener<SampleNode> listener = new HbnContainer.WriteBehindListener<SampleNode>()
+		{
+			@Override
+			public synchronized void writesCompleted(List<SampleNode> entities)
+			{
+				completed.addAll(entities);
+			}
+
+			@Override
+			public synchronized void writesFailed(List<SampleNode> entities, Exception exception)
+			{
+				failed.addAll(entities);
+			}
+		};
+
+		container.setWriteBehind(executor, listener);
+
+		final SampleNode entity = new SampleNode("behind", null);
+		container.saveEntity(entity);
+		entity.setTitle("changed after queueing");
+		container.flushWrites();
+		assertNotNull(entity.getId());
+		assertTrue(completed.contains(entity));
+
+		final Session otherSession = sessionFactory.openSession();
+		otherSession.beginTransaction();
+		assertTrue(((SampleNode) otherSession.get(SampleNode.class, entity.getId())).getTitle().equals("behind"));
+		otherSession.getTransaction().commit();
+		otherSession.close();
+
+		final Property title = container.getItem(entity.getId()).getItemProperty("title");
+		title.setValue("behind 1");
+		title.setValue("behind 2");
+		assertTrue(title.getValue().equals("behind 2"));
+
+		container.flushWrites();
+		assertTrue(container.getItem(entity.getId()).getPojo().getTitle().equals("behind 2"));
+
+		container.saveEntity(new SampleNode("orphan", new SampleNode("unsaved", null)));
+		container.flushWrites();
+		assertTrue(failed.size() == 1);
+
+		container.setWriteBehind(null, null);
+		executor.shutdown();
+		container.setWriteBehind(executor, listener);
+
+		try
+		{
+			container.saveEntity(new SampleNode("rejected", null));
+			fail("a write rejected by the executor must be reported");
+		}
+		catch (RejectedExecutionException e)
+		{
+		}
+
+		container.setWriteBehind(null, null);
+		container.removeItem(entity.getId());
+	}
+
+	/**
+	 * Holds an insert in testWriteBehindInsertInFlight until released, so writes can be queued while it is running.
+	 */
+	public static int holdInsert() throws InterruptedException
+	{
+		insertStarted.countDown();
+		insertReleased.await(30, TimeUnit.SECONDS);
+		return 0;
+	}
+
+	@Test
+	public final void testWriteBehindInsertInFlight() throws Exception
+	{
+		final Session currentSession = sessionFactory.getCurrentSession();
+
+		currentSession.createSQLQuery("create function hold_insert() returns int language java not deterministic "
+				+ "no sql external name 'CLASSPATH:" + HbnContainerTests.class.getName() + ".holdInsert'")
+				.executeUpdate();
+		currentSession.createSQLQuery("create trigger samplenode_hold before insert on SampleNode referencing new "
+				+ "row as inserted for each row when (inserted.title = 'in flight') set inserted.title = "
+				+ "case when hold_insert() = 0 then inserted.title else inserted.title end").executeUpdate();
+		currentSession.getTransaction().commit();
+		sessionFactory.getCurrentSession().beginTransaction();
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final List<Exception> failures = new ArrayList<Exception>();
+
+		container.setWriteBehind(executor, new HbnContainer.WriteBehindListener<SampleNode>()
+		{
+			@Override
+			public void writesCompleted(List<SampleNode> entities)
+			{
+			}
+
+			@Override
+			public synchronized void writesFailed(List<SampleNode> entities, Exception exception)
+			{
+				failures.add(exception);
+			}
+		});
+
+		insertStarted = new CountDownLatch(1);
+		insertReleased = new CountDownLatch(1);
+
+		final SampleNode entity = new SampleNode("in flight", null);
+		container.saveEntity(entity);
+		assertTrue(insertStarted.await(30, TimeUnit.SECONDS));
+
+		entity.setTitle("edited in flight");
+		assertNull(container.updateEntity(entity));
+		insertReleased.countDown();
+		container.flushWrites();
+
+		assertNotNull(entity.getId());
+		assertTrue(failures.isEmpty());
+
+		final Session otherSession = sessionFactory.openSession();
+		otherSession.beginTransaction();
+		assertTrue(((Number) otherSession.createSQLQuery("select count(*) from SampleNode where title in "
+				+ "('in flight', 'edited in flight')").uniqueResult()).intValue() == 1);
+		assertTrue(((SampleNode) otherSession.get(SampleNode.class, entity.getId())).getTitle()
+				.equals("edited in flight"));
+		otherSession.getTransaction().commit();
+		otherSession.close();
+
+		container.setWriteBehind(null, null);
+		executor.shutdown();
+		container.removeItem(entity.getId());
+
+		sessionFactory.getCurrentSession().createSQLQuery("drop trigger samplenode_hold").executeUpdate();
+		sessionFactory.getCurrentSession().createSQLQuery("drop function hold_insert").executeUpdate();
+	}
+
+	@Test
+	public final void testReadYourWrites()
+	{
+		container.sort(new Object[] { "id" }, new boolean[] { false });
+
+		final int size = container.size();
+		final Object firstId = container.getIdByIndex(0);
+
+		final Object entityId = container.saveEntity(new SampleNode("recent", null));
+		assertTrue(container.size() == size + 1);
+
+		final long statements = sessionFactory.getStatistics().getPrepareStatementCount();
+		assertTrue(container.getIdByIndex(0).equals(entityId));
+		assertTrue(container.getIdByIndex(1).equals(firstId));
+		assertTrue(container.indexOfId(firstId) == 1);
+		assertTrue(sessionFactory.getStatistics().getPrepareStatementCount() == statements);
+
+		container.removeItem(entityId);
+		assertTrue(container.size() == size);
+		assertTrue(container.getIdByIndex(0).equals(firstId));
+		assertTrue(container.indexOfId(firstId) == 0);
+
+		container.sort(new Object[] { "id" }, new boolean[] { true });
+	}
+
+	@Test
+	public final void testItemAddRemoveEvents()
+	{
+		final CountingListener listener = new CountingListener();
+
+		container.sort(new Object[] { "id" }, new boolean[] { false });
+		container.getIdByIndex(0);
+		container.addItemSetChangeListener(listener);
+
+		final Object entityId = container.saveEntity(new SampleNode("event", null));
+		final HbnContainer.ItemAddEvent addEvent = (HbnContainer.ItemAddEvent) listener.get(0);
+		assertTrue(addEvent.getFirstItemId().equals(entityId));
+		assertTrue(addEvent.getFirstIndex() == 0);
+		assertTrue(addEvent.getAddedItemsCount() == 1);
+
+		container.removeItem(entityId);
+		final HbnContainer.ItemRemoveEvent removeEvent = (HbnContainer.ItemRemoveEvent) listener.get(1);
+		assertTrue(removeEvent.getFirstItemId().equals(entityId));
+		assertTrue(removeEvent.getFirstIndex() == 0);
+		assertTrue(removeEvent.getRemovedItemsCount() == 1);
+
+		final List<SampleNode> entities = new ArrayList<SampleNode>();
+		entities.add(new SampleNode("event 1", null));
+		entities.add(new SampleNode("event 2", null));
+
+		final List<?> entityIds = container.importEntities(entities);
+		final HbnContainer.ItemAddEvent importEvent = (HbnContainer.ItemAddEvent) listener.get(2);
+		assertTrue(importEvent.getFirstIndex() == -1);
+		assertTrue(importEvent.getAddedItemsCount() == 2);
+
+		container.removeItems(entityIds);
+		final HbnContainer.ItemRemoveEvent removeItemsEvent = (HbnContainer.ItemRemoveEvent) listener.get(3);
+		assertTrue(removeItemsEvent.getRemovedItemsCount() == 2);
+
+		container.removeItemSetChangeListener(listener);
+		container.sort(new Object[] { "id" }, new boolean[] { true });
+	}
+
+	@Test
+	public final void testItemAddWithCustomOrder()
+	{
+		@SuppressWarnings("serial")
+		final HbnContainer<SampleNode> newestFirst = new HbnContainer<SampleNode>(SampleNode.class, sessionFactory)
+		{
+			@Override
+			protected Order getNaturalOrder(boolean flipOrder)
+			{
+				return (flipOrder) ? Order.asc("id") : Order.desc("id");
+			}
+		};
+
+		final CountingListener listener = new CountingListener();
+		newestFirst.getIdByIndex(0);
+		newestFirst.addItemSetChangeListener(listener);
+
+		final Object entityId = newestFirst.saveEntity(new SampleNode("newest", null));
+		assertFalse(listener.last() instanceof HbnContainer.ItemAddEvent);
+		assertTrue(newestFirst.getIdByIndex(0).equals(entityId));
+
+		newestFirst.removeItemSetChangeListener(listener);
+		newestFirst.removeItem(entityId);
+	}
+
+	@Test
+	public final void testEventCoalescing() throws Exception
+	{
+		final CountingListener listener = new CountingListener();
+
+		container.addItemSetChangeListener(listener);
+		container.setEventCoalescing(true);
+
+		container.addContainerFilter(new SimpleStringFilter("title", "coalesce", false, true));
+		container.sort(new Object[] { "id" }, new boolean[] { false });
+		final Object entityId = container.saveEntity(new SampleNode("coalesce", null));
+		assertTrue(listener.count() == 0);
+
+		container.flushEvents();
+		assertTrue(listener.count() == 1);
+		assertFalse(listener.get(0) instanceof HbnContainer.ItemAddEvent);
+
+		container.removeItem(entityId);
+		container.flushEvents();
+		assertTrue(listener.count() == 2);
+		assertTrue(listener.get(1) instanceof HbnContainer.ItemRemoveEvent);
+
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		final BlockingQueue<Runnable> dispatched = new LinkedBlockingQueue<Runnable>();
+		container.setEventDebounce(50, TimeUnit.MILLISECONDS, scheduler, new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				dispatched.add(command);
+			}
+		});
+		container.removeAllContainerFilters();
+		container.sort(new Object[] { "id" }, new boolean[] { true });
+
+		final Runnable dispatch = dispatched.poll(10, TimeUnit.SECONDS);
+		assertNotNull(dispatch);
+		assertTrue(listener.count() == 2);
+		dispatch.run();
+		assertTrue(listener.count() == 3);
+
+		container.setEventDebounce(50, TimeUnit.MILLISECONDS, scheduler);
+		container.addContainerFilter(new SimpleStringFilter("title", "coalesce", false, true));
+		scheduler.schedule(Executors.callable(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}), 100, TimeUnit.MILLISECONDS).get();
+		assertTrue(listener.count() == 3);
+		container.size();
+		assertTrue(listener.count() == 4);
+
+		container.setEventDebounce(0, TimeUnit.MILLISECONDS, null);
+		container.setEventCoalescing(false);
+		container.removeItemSetChangeListener(listener);
+		container.removeAllContainerFilters();
+		scheduler.shutdown();
+	}
+
+	@Test
+	public final void testChangeTracking() throws Exception
+	{
+		final CountingListener listener = new CountingListener();
+
+		container.setChangeTracking(true);
+		container.addItemSetChangeListener(listener);
+
+		final int size = container.size();
+		final SampleNode entity = new SampleNode("external", null);
+		final Session otherSession = sessionFactory.openSession();
+
+		otherSession.beginTransaction();
+		otherSession.save(entity);
+		otherSession.getTransaction().commit();
+
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.size() == size + 1);
+		assertTrue(((HbnContainer.ItemAddEvent) listener.get(0)).getFirstItemId().equals(entity.getId()));
+
+		container.getItem(entity.getId()).getPojo();
+		otherSession.beginTransaction();
+		entity.setTitle("external 2");
+		otherSession.getTransaction().commit();
+
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.getItem(entity.getId()).getPojo().getTitle().equals("external 2"));
+
+		otherSession.beginTransaction();
+		otherSession.delete(entity);
+		otherSession.getTransaction().commit();
+		otherSession.close();
+
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.size() == size);
+		assertTrue(listener.last() instanceof HbnContainer.ItemRemoveEvent);
+
+		final Object entityId = callInOwnTransaction(new Callable<Object>()
+		{
+			@Override
+			public Object call()
+			{
+				return container.saveEntity(new SampleNode("own", null));
+			}
+		});
+
+		assertTrue(container.applyExternalChanges() == 0);
+
+		container.removeItem(entityId);
+		container.removeItemSetChangeListener(listener);
+		container.setChangeTracking(false);
+	}
+
+	@Test
+	public final void testChangeLogPoller() throws Exception
+	{
+		final String[][] triggers = { { "insert", "new", "I" }, { "update", "new", "U" }, { "delete", "old", "D" } };
+		final Session currentSession = sessionFactory.getCurrentSession();
+
+		currentSession.createSQLQuery("create table changelog (seq bigint generated by default as identity "
+				+ "primary key, entity varchar(255), entity_id bigint, op char(1))").executeUpdate();
+
+		for (String[] trigger : triggers)
+		{
+			currentSession.createSQLQuery("create trigger samplenode_" + trigger[0] + " after " + trigger[0]
+					+ " on SampleNode referencing " + trigger[1] + " row as changed for each row insert into "
+					+ "changelog (entity, entity_id, op) values ('SampleNode', changed.id, '" + trigger[2] + "')")
+					.executeUpdate();
+		}
+
+		currentSession.getTransaction().commit();
+		sessionFactory.getCurrentSession().beginTransaction();
+
+		final ChangeLogPoller poller = new ChangeLogPoller(sessionFactory, "changelog");
+		poller.addContainer(container);
+		poller.skipLoggedChanges();
+
+		final int size = container.size();
+		container.getIdByIndex(0);
+
+		final Session otherSession = sessionFactory.openSession();
+		otherSession.beginTransaction();
+		otherSession.createSQLQuery("insert into SampleNode (title, created) values ('batch', current_timestamp)")
+				.executeUpdate();
+		otherSession.getTransaction().commit();
+
+		final Long entityId = ((Number) otherSession
+				.createSQLQuery("select id from SampleNode where title = 'batch'")
+				.uniqueResult()).longValue();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.size() == size + 1);
+		assertTrue(container.indexOfId(entityId) >= 0);
+
+		otherSession.beginTransaction();
+		otherSession.createSQLQuery("update SampleNode set title = 'batch 2' where id = " + entityId).executeUpdate();
+		otherSession.getTransaction().commit();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.getItem(entityId).getPojo().getTitle().equals("batch 2"));
+
+		otherSession.beginTransaction();
+		otherSession.createSQLQuery("delete from SampleNode where id = " + entityId).executeUpdate();
+		otherSession.getTransaction().commit();
+		otherSession.close();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.size() == size);
+
+		final Object ownId = callInOwnTransaction(new Callable<Object>()
+		{
+			@Override
+			public Object call()
+			{
+				return container.saveEntity(new SampleNode("logged", null));
+			}
+		});
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(container.applyExternalChanges() == 1);
+		assertTrue(container.size() == size + 1);
+		assertTrue(container.getIdByIndex(container.indexOfId(ownId)).equals(ownId));
+
+		container.removeItem(ownId);
+		poller.removeContainer(container);
+
+		for (String[] trigger : triggers)
+			sessionFactory.getCurrentSession().createSQLQuery("drop trigger samplenode_" + trigger[0]).executeUpdate();
+
+		sessionFactory.getCurrentSession().createSQLQuery("drop table changelog").executeUpdate();
+	}
+
+	@Test
+	public final void testChangeLogGaps() throws Exception
+	{
+		sessionFactory.getCurrentSession().createSQLQuery("create table changelog (seq bigint primary key, "
+				+ "entity varchar(255), entity_id bigint, op char(1))").executeUpdate();
+		sessionFactory.getCurrentSession().getTransaction().commit();
+		sessionFactory.getCurrentSession().beginTransaction();
+
+		final Object entityId = container.getIdByIndex(0);
+		final ChangeLogPoller poller = new ChangeLogPoller(sessionFactory, "changelog");
+		poller.addContainer(container);
+
+		final Session lateSession = sessionFactory.openSession();
+		final Session otherSession = sessionFactory.openSession();
+
+		otherSession.beginTransaction();
+		otherSession.createSQLQuery("insert into changelog values (1, 'SampleNode', " + entityId + ", 'U')")
+				.executeUpdate();
+		otherSession.getTransaction().commit();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(container.applyExternalChanges() == 1);
+
+		lateSession.beginTransaction();
+		lateSession.createSQLQuery("insert into changelog values (2, 'SampleNode', " + entityId + ", 'U')")
+				.executeUpdate();
+
+		otherSession.beginTransaction();
+		otherSession.createSQLQuery("insert into changelog values (3, 'SampleNode', " + entityId + ", 'U')")
+				.executeUpdate();
+		otherSession.getTransaction().commit();
+		otherSession.close();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(poller.getLastSequence() == 3);
+		assertTrue(poller.getGapCount() == 1);
+		assertTrue(poller.poll() == 0);
+
+		lateSession.getTransaction().commit();
+		lateSession.close();
+
+		assertTrue(poller.poll() == 1);
+		assertTrue(poller.getGapCount() == 0);
+		assertTrue(container.applyExternalChanges() == 2);
+
+		poller.removeContainer(container);
+		sessionFactory.getCurrentSession().createSQLQuery("drop table changelog").executeUpdate();
+	}
+
+	@Test
+	public final void testMetrics() throws Exception
+	{
+		final JmxMetricsRegistry registry = new JmxMetricsRegistry();
+		container.setMetricsRegistry(registry);
+
+		final ContainerMetrics metrics = container.getMetrics();
+		container.size();
+		final Object entityId = container.getIdByIndex(0);
+		container.getIdByIndex(1);
+		container.getItem(entityId);
+		container.getItem(entityId);
+		container.getItemIds(0, 2);
+		container.prevItemId(container.getIdByIndex(1));
+
+		assertTrue(metrics.getOperation("size").getCount() == 1);
+		assertTrue(metrics.getOperation("getIdByIndex").getCount() == 3);
+		assertTrue(metrics.getOperation("getItemIds").getCount() == 1);
+		assertTrue(metrics.getOperation("prevItemId").getCount() == 1);
+		assertNull(metrics.getOperation("nextItemId"));
+		assertTrue(metrics.getQuery(ContainerMetrics.QueryShape.COUNT).getCount() >= 1);
+		assertTrue(metrics.getQuery(ContainerMetrics.QueryShape.PAGE).getCount() >= 1);
+		assertTrue(metrics.getRowBufferHitCount() >= 1);
+		assertTrue(metrics.getCacheHitCount() >= 1);
+
+		final Object counts = ManagementFactory.getPlatformMBeanServer().getAttribute(
+				JmxMetricsRegistry.getObjectName(SampleNode.class.getName()), "OperationCounts");
+		assertNotNull(counts);
+
+		metrics.reset();
+		assertTrue(metrics.getOperation("size").getCount() == 0);
+		assertTrue(metrics.getCacheHitCount() == 0);
+
+		registry.unregisterAll();
+		container.setMetricsRegistry(null);
+	}
+
+	@Test
+	public final void testSlowOperationLog()
+	{
+		final long logged = SlowOperationLog.getLoggedCount();
+		final long suppressed = SlowOperationLog.getSuppressedCount();
+		SlowOperationLog.setMaxEntriesPerMinute(2);
+		SlowOperationLog.resetWindow();
+		container.addContainerFilter(new StringContainerFilter("title", "untitled", true, false));
+		container.setSlowOperationThreshold(1, TimeUnit.NANOSECONDS);
+		assertTrue(container.getSlowOperationThreshold(TimeUnit.NANOSECONDS) == 1);
+
+		container.size();
+		container.getIdByIndex(0);
+
+		assertTrue(SlowOperationLog.getLoggedCount() == logged + 2);
+		assertTrue(SlowOperationLog.getSuppressedCount() > suppressed);
+
+		container.setSlowOperationThreshold(0, TimeUnit.NANOSECONDS);
+		container.removeAllContainerFilters();
+		SlowOperationLog.setMaxEntriesPerMinute(20);
+		SlowOperationLog.resetWindow();
+	}
+
+	@Test
+	public final void testQueryBudget()
+	{
+		sessionFactory.getCurrentSession().flush();
+		final QueryBudget request = new QueryBudget("request", 0, 2, QueryBudget.Action.THROW).begin();
+
+		try
+		{
+			container.size();
+			container.size();
+			assertTrue(request.getStatementCount() == 2);
+
+			try
+			{
+				container.size();
+				fail("repeated statement not detected");
+			}
+			catch (QueryBudget.ExceededException e)
+			{
+				assertTrue(request.getRepeatedStatements().size() == 1);
+			}
+		}
+		finally
+		{
+			request.end();
+		}
+
+		assertNull(QueryBudget.getCurrent());
+
+		container.setCallQueryBudget(1, 0, QueryBudget.Action.THROW);
+		container.size();
+		assertNull(QueryBudget.getCurrent());
+		container.setCallQueryBudget(0, 0, QueryBudget.Action.WARN);
+	}
+
+	@Test
+	public final void testHierarchyQueryBudget()
+	{
+		final HbnContainer<SampleNode> budgeted = new HbnContainer<SampleNode>(SampleNode.class, sessionFactory);
+		final Object entityId = budgeted.firstItemId();
+
+		budgeted.setCallQueryBudget(1, 0, QueryBudget.Action.THROW);
+		sessionFactory.getCurrentSession().flush();
+		sessionFactory.getCurrentSession().clear();
+
+		try
+		{
+			budgeted.hasChildren(entityId);
+			fail("exceeded budget swallowed by hasChildren");
+		}
+		catch (QueryBudget.ExceededException e)
+		{
+		}
+
+		sessionFactory.getCurrentSession().clear();
+
+		try
+		{
+			budgeted.getChildren(entityId);
+			fail("exceeded budget swallowed by getChildren");
+		}
+		catch (QueryBudget.ExceededException e)
+		{
+		}
+
+		assertNull(QueryBudget.getCurrent());
+	}
+
+	@Test
+	public final void testEventRecorder()
+	{
+		final List<ContainerEvent> events = new ArrayList<ContainerEvent>();
+
+		container.setEventRecorder(new ContainerEventRecorder()
+		{
+			@Override
+			public void record(ContainerEvent event)
+			{
+				events.add(event);
+			}
+		});
+
+		container.addContainerFilter(new StringContainerFilter("title", "untitled", true, false));
+		container.size();
+		final Object entityId = container.getIdByIndex(0);
+		container.getItem(entityId);
+		container.getItem(entityId);
+		container.getChildren(entityId);
+		container.removeAllContainerFilters();
+		container.setEventRecorder(null);
+
+		final Set<ContainerEvent.Kind> kinds = new HashSet<ContainerEvent.Kind>();
+		boolean cacheHit = false;
+
+		for (ContainerEvent event : events)
+		{
+			kinds.add(event.getKind());
+			cacheHit |= event.getKind() == ContainerEvent.Kind.CACHE_LOAD && event.isCacheHit();
+			assertTrue(event.getEntityName().equals(SampleNode.class.getName()));
+		}
+
+		assertTrue(kinds.contains(ContainerEvent.Kind.FILTER_CHANGE));
+		assertTrue(kinds.contains(ContainerEvent.Kind.COUNT));
+		assertTrue(kinds.contains(ContainerEvent.Kind.PAGE_LOAD));
+		assertTrue(kinds.contains(ContainerEvent.Kind.HIERARCHY_QUERY));
+		assertTrue(cacheHit);
+	}
+
+	@Test
+	public final void testCallLog() throws Exception
+	{
+		final StringWriter output = new StringWriter();
+		final ContainerCallLog log = new ContainerCallLog(output, SampleNode.class.getName());
+		final RecordingContainer<SampleNode> recording = new RecordingContainer<SampleNode>(container, log);
+
+		log.markRequest();
+		recording.size();
+		final Object entityId = recording.getIdByIndex(0);
+		recording.getContainerProperty(entityId, "title");
+		log.markRequest();
+		recording.sort(new Object[] { "title" }, new boolean[] { false });
+		recording.nextItemId(entityId);
+		recording.sort(new Object[0], new boolean[0]);
+		log.close();
+
+		assertTrue(log.getCallCount() == 6);
+
+		final ContainerCallLog.Recording recorded = ContainerCallLog.read(new StringReader(output.toString()));
+		final List<ContainerCallLog.Call> calls = recorded.getCalls();
+
+		assertTrue(recorded.getEntityName().equals(SampleNode.class.getName()));
+		assertTrue(recorded.isRequestsMarked());
+		assertTrue(calls.size() == 6);
+		assertTrue(calls.get(0).getMethod().equals("size") && calls.get(0).getArgumentCount() == 0);
+		assertTrue(calls.get(1).getArgument(0).equals(0));
+		assertTrue(calls.get(2).getArgument(0).equals(entityId) && calls.get(2).getArgument(1).equals("title"));
+		assertTrue(calls.get(2).getRequest() == 0 && calls.get(3).getRequest() == 1);
+		assertTrue(calls.get(3).getArgument(0).equals("title") && calls.get(3).getArgument(1).equals(Boolean.FALSE));
+		assertTrue(calls.get(4).getArgument(0).equals(entityId));
+	}
+
+	@Test
+	public final void testExecutionTrace()
+	{
+		ExecutionTrace.clear();
+		ExecutionTrace.setEnabled(true);
+		container.size();
+		ExecutionTrace.setEnabled(false);
+		container.size();
+
+		final List<String> operations = ExecutionTrace.dump();
+		assertTrue(operations.get(0).endsWith("HbnContainer.size()"));
+		assertTrue(operations.size() < ExecutionTrace.getCapacity());
+
+		int sizeCalls = 0;
+
+		for (String operation : operations)
+		{
+			if (operation.endsWith("HbnContainer.size()"))
+				sizeCalls++;
+		}
+
+		assertTrue(sizeCalls == 1);
+		ExecutionTrace.clear();
+	}
 }
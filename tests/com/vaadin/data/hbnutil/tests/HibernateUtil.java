@@ -10,6 +10,8 @@ import org.hibernate.service.ServiceRegistryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vaadin.data.hbnutil.QueryBudgetInterceptor;
+
 public class HibernateUtil
 {
 	private static final Logger logger = LoggerFactory.getLogger(HibernateUtil.class);
@@ -23,6 +25,7 @@ public class HibernateUtil
 			
 			final Configuration configuration = new Configuration();
 			configuration.configure();
+			configuration.setInterceptor(new QueryBudgetInterceptor());
 			
 			final ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
 
@@ -0,0 +1,82 @@
+package com.vaadin.data.hbnutil.tests;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToMany;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+@Entity
+@Table(name = "SampleGroup")
+public class SampleGroup implements Serializable
+{
+	private static final long serialVersionUID = -3120873654927611053L;
+	private Long id;
+	private String name;
+	private Integer version;
+	private Set<SampleNode> members = new HashSet<SampleNode>();
+
+	public SampleGroup()
+	{
+	}
+
+	public SampleGroup(String name, SampleNode... members)
+	{
+		this.name = name;
+
+		for (SampleNode member : members)
+			this.members.add(member);
+	}
+
+	@Id
+	@Column
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	public Long getId()
+	{
+		return id;
+	}
+	
+	public void setId(Long id)
+	{
+		this.id = id;
+	}
+
+	@Column
+	public String getName()
+	{
+		return name;
+	}
+	
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	@Version
+	public Integer getVersion()
+	{
+		return version;
+	}
+	
+	public void setVersion(Integer version)
+	{
+		this.version = version;
+	}
+
+	@ManyToMany
+	public Set<SampleNode> getMembers()
+	{
+		return members;
+	}
+	
+	public void setMembers(Set<SampleNode> members)
+	{
+		this.members = members;
+	}
+}
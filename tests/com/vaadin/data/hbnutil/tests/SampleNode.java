@@ -10,6 +10,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 @Entity
 @Table(name = "SampleNode")
@@ -76,4 +77,10 @@ public class SampleNode implements Serializable
 	{
 		this.parent = parent;
 	}
+
+	@Transient
+	public Integer getTitleLength()
+	{
+		return (title == null) ? null : title.length();
+	}
 }